@@ -52,8 +52,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import java.util.ArrayList;
 import java.util.List;
@@ -73,6 +75,22 @@ public class PSoCCapSenseLedService extends Service {
     private static BluetoothDevice mLeDevice;
     private static BluetoothGatt mBluetoothGatt;
 
+    // Devices found during scanning and their filtered RSSI. The nearest device is
+    // picked once its RSSI has settled, or the strongest one after SELECT_TIMEOUT.
+    private static final ScanRegistry mScanRegistry = new ScanRegistry();
+    private static final long SELECT_TIMEOUT = 2000;
+    private static long mScanStartTime;
+    private static boolean mScanning;
+
+    // The scan starts in low latency mode and steps down to lower power modes while no
+    // devices are around. The policy is checked every SCAN_POLICY_INTERVAL. Before
+    // LOLLIPOP there are no scan modes, so the scan stays as it is.
+    private static final long SCAN_POLICY_INTERVAL = 1000;
+    private static final ScanPolicy mScanPolicy =
+            new ScanPolicy(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+    private static ScanPolicy.Mode mCurrentScanMode;
+    private final Handler mHandler = new Handler();
+
     // Bluetooth characteristics that we need to read/write
     private static BluetoothGattCharacteristic mLedCharacterisitc;
     private static BluetoothGattCharacteristic mCapsenseCharacteristic;
@@ -160,26 +178,82 @@ public class PSoCCapSenseLedService extends Service {
         UUID   capsenseLedService =       UUID.fromString(capsenseLedServiceUUID);
         UUID[] capsenseLedServiceArray = {capsenseLedService};
 
+        mScanRegistry.clear();
+        mScanStartTime = SystemClock.elapsedRealtime();
+        mScanning = true;
+        ScanPolicy.Mode mode = mScanPolicy.start(mScanStartTime);
+
         // Use old scan method for versions older than lollipop
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             //noinspection deprecation
             mBluetoothAdapter.startLeScan(capsenseLedServiceArray, mLeScanCallback);
         } else { // New BLE scanning introduced in LOLLIPOP
-            ScanSettings settings;
-            List<ScanFilter> filters;
             mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
-            settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .build();
-            filters = new ArrayList<>();
-            // We will scan just for the CAR's UUID
-            ParcelUuid PUuid = new ParcelUuid(capsenseLedService);
-            ScanFilter filter = new ScanFilter.Builder().setServiceUuid(PUuid).build();
-            filters.add(filter);
-            mLEScanner.startScan(filters, settings, mScanCallback);
+            startLeScanner(mode);
+        }
+        mHandler.postDelayed(mScanPolicyUpdater, SCAN_POLICY_INTERVAL);
+    }
+
+    /**
+     * Start the LOLLIPOP and later BLE scanner in the given scan mode
+     *
+     * @param mode the scan mode to use
+     */
+    private void startLeScanner(ScanPolicy.Mode mode) {
+        mCurrentScanMode = mode;
+        int scanMode;
+        switch (mode) {
+            case BALANCED:
+                scanMode = ScanSettings.SCAN_MODE_BALANCED;
+                break;
+            case LOW_POWER:
+                scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+                break;
+            default:
+                scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+                break;
+        }
+        ScanSettings settings;
+        List<ScanFilter> filters;
+        settings = new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .build();
+        filters = new ArrayList<>();
+        // We will scan just for the CAR's UUID
+        ParcelUuid PUuid = new ParcelUuid(UUID.fromString(capsenseLedServiceUUID));
+        ScanFilter filter = new ScanFilter.Builder().setServiceUuid(PUuid).build();
+        filters.add(filter);
+        mLEScanner.startScan(filters, settings, mScanCallback);
+    }
+
+    /**
+     * Change the scan mode of a running scan. The LOLLIPOP scanner has to be restarted
+     * with new settings for this. Older versions of Android do not have scan modes.
+     *
+     * @param mode the new scan mode
+     */
+    private void setScanMode(ScanPolicy.Mode mode) {
+        if (mode == mCurrentScanMode || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
         }
+        Log.i(TAG, "Changing scan mode to " + mode);
+        mLEScanner.stopScan(mScanCallback);
+        startLeScanner(mode);
     }
 
+    /**
+     * This periodically lets the scan policy step the scan mode down while scanning
+     */
+    private final Runnable mScanPolicyUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanning) {
+                setScanMode(mScanPolicy.update(SystemClock.elapsedRealtime()));
+                mHandler.postDelayed(this, SCAN_POLICY_INTERVAL);
+            }
+        }
+    };
+
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      *
@@ -312,20 +386,64 @@ public class PSoCCapSenseLedService extends Service {
     }
 
 
+    /**
+     * Adds an advertisement to the scan registry and selects a device once the nearest one
+     * is known. If there is no clear winner after SELECT_TIMEOUT, the strongest device is used.
+     * This must be called on the main thread, which is the only one that uses the registry
+     * and the scan policy.
+     *
+     * @param device the device that was found
+     * @param rssi the RSSI of the advertisement
+     */
+    private void handleScanResult(BluetoothDevice device, int rssi) {
+        if (!mScanning) {
+            return; // Results can still arrive after the scan was stopped
+        }
+        long now = SystemClock.elapsedRealtime();
+        mScanRegistry.update(device.getAddress(), device.getName(), rssi, now);
+        ScanPolicy.Mode mode = mScanPolicy.onResult(device.getAddress(), now);
+
+        ScanRegistry.Device selected = mScanRegistry.getNearest(now);
+        if (selected == null && now - mScanStartTime > SELECT_TIMEOUT) {
+            selected = mScanRegistry.getStrongest(now);
+        }
+        if (selected == null) {
+            setScanMode(mode);
+            return; // Keep scanning until the RSSI estimates settle
+        }
+
+        mScanning = false;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            //noinspection deprecation
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        } else {
+            mLEScanner.stopScan(mScanCallback);
+        }
+        mHandler.removeCallbacks(mScanPolicyUpdater);
+        mScanPolicy.stop(now);
+        Log.i(TAG, mScanPolicy.toString());
+        Log.i(TAG, "Selected " + selected.getAddress() + " at " + Math.round(selected.getRssi()) + " dBm");
+        mLeDevice = mBluetoothAdapter.getRemoteDevice(selected.getAddress());
+        broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+    }
+
     /**
      * Implements the callback for when scanning for devices has found a device with
      * the service we are looking for.
      *
-     * This is the callback for BLE scanning on versions prior to Lollipop
+     * This is the callback for BLE scanning on versions prior to Lollipop. It is called on
+     * a binder thread, so the result is handled on the main thread like the rest of the scan.
      */
     private BluetoothAdapter.LeScanCallback mLeScanCallback =
             new BluetoothAdapter.LeScanCallback() {
                 @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    mLeDevice = device;
-                    //noinspection deprecation
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback); // Stop scanning after the first device is found
-                    broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+                public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleScanResult(device, rssi);
+                        }
+                    });
                 }
             };
 
@@ -338,9 +456,7 @@ public class PSoCCapSenseLedService extends Service {
     private final ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            mLeDevice = result.getDevice();
-            mLEScanner.stopScan(mScanCallback); // Stop scanning after the first device is found
-            broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+            handleScanResult(result.getDevice(), result.getRssi());
         }
     };
 
@@ -0,0 +1,269 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Runs the motors through a short set of speeds, measures how fast each wheel turns at
+ * each one and fits a {@link MotorCalibration} to the results.
+ *
+ * Each speed is run twice, once spinning the robot one way and once the other way, so the
+ * robot stays where it is and every motor is measured in both directions. At each step the
+ * wheels are given time to get up to speed and then the tach rate is measured. The sweep
+ * ramps up to the first speed so the robot is not jerked from a standstill. The speeds
+ * sent here are raw motor speeds, so they must not go through any speed shaping.
+ *
+ * The rates are measured from the tach samples, but the sweep moves on by time. Tach
+ * samples may only come when the count changes, so a wheel that does not turn sends
+ * none, and check must be called regularly to ramp up and go from step to step. A sweep
+ * that has not finished within the timeout is given up on. The sweep does not allocate
+ * once started.
+ */
+public class CalibrationSweep {
+
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+
+    // Speeds to measure, from fast to slow
+    private static final int[] SPEEDS = { 100, 75, 50, 35, 25 };
+    private static final int STEPS = 2 * SPEEDS.length;
+
+    // Time (ns) at each step before measuring and time to measure for
+    private static final long SETTLE_TIME = 300000000L;
+    private static final long MEASURE_TIME = 500000000L;
+
+    // Time (ns) to ramp up to the first speed from a standstill
+    private static final long RAMP_TIME = 300000000L;
+
+    // Time (ns) after which the sweep is given up on. It normally takes the ramp time
+    // plus STEPS * (SETTLE_TIME + MEASURE_TIME).
+    private static final long TIMEOUT = 15000000000L;
+
+    // Slower than this (counts/s) the wheel is taken to not be turning
+    private static final double MIN_RATE = 20;
+
+    private boolean mRunning;
+    private boolean mTimedOut;
+    private long mStartTime;
+    private double mRamp;       // fraction of the step speed to send, 1 once ramped up
+    private int mStep;
+    private long mStepStart;
+    private final int[] mFirstCount = new int[WHEELS];
+    private final long[] mFirstTime = new long[WHEELS];
+    private final int[] mLastCount = new int[WHEELS];
+    private final long[] mLastTime = new long[WHEELS];
+    private final boolean[] mMeasuring = new boolean[WHEELS];
+
+    // Measured tach rates, indexed by Motor.ordinal() * 2 (plus 1 for backwards), then by speed
+    private final double[][] mRates = new double[2 * WHEELS][SPEEDS.length];
+
+    /**
+     * Start the sweep
+     *
+     * @param now the current time in ns
+     */
+    public synchronized void start(long now) {
+        mRunning = true;
+        mTimedOut = false;
+        mStartTime = now;
+        mRamp = 0;
+        // The first step settles once the ramp is done
+        startStep(0, now + RAMP_TIME);
+    }
+
+    /**
+     * Stop the sweep early
+     */
+    public synchronized void cancel() {
+        mRunning = false;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return fraction of the sweep that has been done, from 0 to 1
+     */
+    public synchronized double getProgress() {
+        return (double) mStep / STEPS;
+    }
+
+    /**
+     * @param motor the motor
+     * @return the speed to send the motor now
+     */
+    public synchronized int getSpeed(PSoCBleRobotService.Motor motor) {
+        if (!mRunning) {
+            return 0;
+        }
+        int speed = (int) Math.round(SPEEDS[mStep / 2] * mRamp);
+        // Spin right on even steps and left on odd steps
+        boolean leftForwards = (mStep % 2 == 0);
+        boolean forwards = (motor == PSoCBleRobotService.Motor.LEFT) == leftForwards;
+        return forwards ? speed : -speed;
+    }
+
+    private void startStep(int step, long now) {
+        mStep = step;
+        mStepStart = now;
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            mMeasuring[wheel] = false;
+        }
+    }
+
+    /**
+     * Handle a tach sample
+     *
+     * @param motor the wheel
+     * @param count its tach count
+     * @param now time the sample arrived in ns
+     * @return true if the sweep has just finished
+     */
+    public synchronized boolean onTach(PSoCBleRobotService.Motor motor, int count, long now) {
+        if (!mRunning) {
+            return false;
+        }
+        ramp(now);
+        if (now - mStepStart >= SETTLE_TIME) {
+            int wheel = motor.ordinal();
+            if (!mMeasuring[wheel]) {
+                mMeasuring[wheel] = true;
+                mFirstCount[wheel] = count;
+                mFirstTime[wheel] = now;
+            }
+            mLastCount[wheel] = count;
+            mLastTime[wheel] = now;
+        }
+        return advance(now);
+    }
+
+    /**
+     * Move the sweep on without a tach sample. This must be called regularly, since a
+     * wheel that does not turn sends no tach samples.
+     *
+     * @param now the current time in ns
+     * @return true if the sweep has just finished or been given up on
+     */
+    public synchronized boolean check(long now) {
+        if (!mRunning) {
+            return false;
+        }
+        if (now - mStartTime >= TIMEOUT) {
+            mRunning = false;
+            mTimedOut = true;
+            return true;
+        }
+        ramp(now);
+        return advance(now);
+    }
+
+    /**
+     * @return true if the last sweep was given up on because it took too long
+     */
+    public synchronized boolean hasTimedOut() {
+        return mTimedOut;
+    }
+
+    private void ramp(long now) {
+        if (mRamp < 1) {
+            mRamp = Math.max(0, Math.min(1, (double) (now - mStartTime) / RAMP_TIME));
+        }
+    }
+
+    /**
+     * Once the step has been measured for long enough, record the rates and go on to the
+     * next step
+     *
+     * @return true if the sweep has just finished
+     */
+    private boolean advance(long now) {
+        if (now - mStepStart < SETTLE_TIME + MEASURE_TIME) {
+            return false;
+        }
+        for (PSoCBleRobotService.Motor m : PSoCBleRobotService.Motor.values()) {
+            int w = m.ordinal();
+            int speed = getSpeed(m);
+            double rate = 0;
+            if (mMeasuring[w] && mLastTime[w] > mFirstTime[w]) {
+                rate = Math.abs(mLastCount[w] - mFirstCount[w]) * 1e9 / (mLastTime[w] - mFirstTime[w]);
+            }
+            mRates[w * 2 + (speed > 0 ? 0 : 1)][mStep / 2] = rate;
+        }
+        if (mStep + 1 < STEPS) {
+            startStep(mStep + 1, now);
+            return false;
+        }
+        mStep = STEPS;
+        mRunning = false;
+        return true;
+    }
+
+    /**
+     * Fit the calibration to the measured rates. Each motor and direction gets the straight
+     * line that best fits the speeds at which the wheel turned.
+     *
+     * @return the calibration, or null if the sweep was given up on or a wheel did not
+     * turn at two or more speeds in one of its directions
+     */
+    public synchronized MotorCalibration getResult() {
+        if (mTimedOut) {
+            return null;
+        }
+        MotorCalibration calibration = new MotorCalibration();
+        for (PSoCBleRobotService.Motor motor : PSoCBleRobotService.Motor.values()) {
+            for (int direction = 0; direction < 2; direction++) {
+                double[] rates = mRates[motor.ordinal() * 2 + direction];
+                // Least squares fit of rate = gain * speed + intercept
+                int n = 0;
+                double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+                for (int i = 0; i < SPEEDS.length; i++) {
+                    if (rates[i] >= MIN_RATE) {
+                        n++;
+                        sumX += SPEEDS[i];
+                        sumY += rates[i];
+                        sumXX += SPEEDS[i] * SPEEDS[i];
+                        sumXY += SPEEDS[i] * rates[i];
+                    }
+                }
+                if (n < 2) {
+                    return null;
+                }
+                double gain = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+                if (!(gain > 0)) {
+                    return null;
+                }
+                double offset = -(sumY - gain * sumX) / n / gain;
+                offset = Math.max(0, Math.min(MotorCalibration.MAX_SPEED - 1, offset));
+                calibration.set(motor, direction == 0, gain, offset);
+            }
+        }
+        return calibration;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Live line chart of telemetry, such as the tach readings of both wheels. Tapping the
+ * chart steps through the time spans it can show.
+ *
+ * New data only schedules a frame, so however fast notifications arrive the samples are
+ * copied and prepared at most once per display refresh. Preparing reduces the samples to
+ * a few segments per pixel column with {@link ChartPoints} and drawing is then a single
+ * {@code drawLines()} per series from buffers made when the size is set, so nothing is
+ * allocated per frame. The scale comes from a {@link SlidingWindow} per line over the
+ * span shown, which is only given the samples that are new since the last frame. Only
+ * the plot area is invalidated unless the scale, and so the labels at the left, has
+ * changed.
+ */
+public class ChartView extends View {
+
+    /**
+     * Supplies the samples to plot
+     */
+    public interface Source {
+        /**
+         * @return the time now, in the units of the sample times
+         */
+        long getTime();
+
+        /**
+         * @return number of lines to plot
+         */
+        int getSeriesCount();
+
+        /**
+         * Copy out the samples of one line from a time onwards, oldest first
+         *
+         * @param series which line
+         * @param from the earliest time to copy
+         * @param times where to put the sample times
+         * @param values where to put the samples
+         * @param max the largest number of samples to copy
+         * @return the number of samples copied
+         */
+        int copy(int series, long from, long[] times, float[] values, int max);
+    }
+
+    /**
+     * Most samples copied for each line per frame
+     */
+    public static final int MAX_SAMPLES = 4096;
+
+    private static final int[] COLORS = { Color.BLUE, Color.RED, Color.GREEN, Color.DKGRAY };
+    private static final int STEPS = 4; // about how many steps the scale is rounded to
+    private static final float TEXT_SIZE = 12; // dp
+    private static final float LINE_WIDTH = 2; // dp
+
+    private final Paint mAxisPaint = new Paint();
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint[] mLinePaints = new Paint[COLORS.length];
+    private final char[] mLabel = new char[11];
+    private final float[] mRange = new float[2];
+    private float mTextSize;
+
+    private Source mSource;
+    private long[] mSpans = { 1 };
+    private int mSpan;
+    // Copies of the samples and the segments prepared from them, one for each line
+    private long[][] mTimes = new long[0][];
+    private float[][] mValues = new float[0][];
+    private int[] mCounts = new int[0];
+    private ChartPoints[] mPoints = new ChartPoints[0];
+    // Lowest and highest sample of each line over the span, and the time of the newest
+    // sample given to each
+    private SlidingWindow[] mWindows = new SlidingWindow[0];
+    private long[] mWindowTimes = new long[0];
+
+    // Scale of the plot
+    private float mLow;
+    private float mHigh = 1;
+    private boolean mFramePending;
+
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            mFramePending = false;
+            update();
+        }
+    };
+
+    public ChartView(Context context) {
+        super(context);
+        init();
+    }
+
+    public ChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        float density = getResources().getDisplayMetrics().density;
+        mTextSize = TEXT_SIZE * density;
+        mTextPaint.setColor(Color.DKGRAY);
+        mTextPaint.setTextSize(mTextSize);
+        mAxisPaint.setColor(Color.LTGRAY);
+        for (int i = 0; i < COLORS.length; i++) {
+            mLinePaints[i] = new Paint();
+            mLinePaints[i].setColor(COLORS[i]);
+            mLinePaints[i].setStrokeWidth(LINE_WIDTH * density);
+        }
+    }
+
+    /**
+     * Set what to plot
+     *
+     * @param source supplies the samples, or null to plot nothing
+     * @param spans the time spans to step through when the chart is tapped, in the units
+     *              of the sample times. The first is shown to start with.
+     */
+    public void setSource(Source source, long[] spans) {
+        mSource = source;
+        mSpans = spans;
+        mSpan = 0;
+        int series = source == null ? 0 : source.getSeriesCount();
+        mTimes = new long[series][MAX_SAMPLES];
+        mValues = new float[series][MAX_SAMPLES];
+        mCounts = new int[series];
+        makePoints(getWidth());
+        makeWindows();
+        invalidate();
+    }
+
+    /**
+     * @return the time span being shown
+     */
+    public long getSpan() {
+        return mSpans[mSpan];
+    }
+
+    /**
+     * Tell the chart that there are new samples. The chart is updated on the next frame.
+     */
+    public void onData() {
+        if (!mFramePending && mSource != null) {
+            mFramePending = true;
+            postOnAnimation(mFrame);
+        }
+    }
+
+    /**
+     * @param times sample times, oldest first
+     * @param count number of samples
+     * @param time a time
+     * @return index of the first sample after the time, or count if there is none
+     */
+    private static int firstAfter(long[] times, int count, long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] > time) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Make empty windows for the span shown. They fill up from the next frame.
+     */
+    private void makeWindows() {
+        mWindows = new SlidingWindow[mCounts.length];
+        mWindowTimes = new long[mCounts.length];
+        for (int i = 0; i < mWindows.length; i++) {
+            mWindows[i] = new SlidingWindow(MAX_SAMPLES, mSpans[mSpan]);
+            mWindowTimes[i] = Long.MIN_VALUE;
+        }
+    }
+
+    private void makePoints(int width) {
+        mPoints = new ChartPoints[mCounts.length];
+        for (int i = 0; i < mPoints.length; i++) {
+            mPoints[i] = new ChartPoints(width);
+        }
+    }
+
+    /**
+     * @return width of the labels at the left
+     */
+    private float getGutter() {
+        // Room for about five digits
+        return 3 * mTextSize;
+    }
+
+    /**
+     * Copy and prepare the samples, then invalidate what has changed
+     */
+    private void update() {
+        int width = getWidth();
+        int height = getHeight();
+        if (mSource == null || width == 0 || height == 0) {
+            return;
+        }
+        long to = mSource.getTime();
+        long from = to - mSpans[mSpan];
+        float low = Float.MAX_VALUE;
+        float high = -Float.MAX_VALUE;
+        for (int i = 0; i < mCounts.length; i++) {
+            int count = mSource.copy(i, from, mTimes[i], mValues[i], MAX_SAMPLES);
+            long[] times = mTimes[i];
+            float[] values = mValues[i];
+            SlidingWindow window = mWindows[i];
+            for (int j = firstAfter(times, count, mWindowTimes[i]); j < count; j++) {
+                window.add(times[j], values[j]);
+                mWindowTimes[i] = times[j];
+            }
+            if (!window.isEmpty()) {
+                low = Math.min(low, window.getMin());
+                high = Math.max(high, window.getMax());
+            }
+            mCounts[i] = count;
+        }
+        boolean rescaled = false;
+        if (low <= high) {
+            ChartPoints.niceRange(low, high, STEPS, mRange);
+            rescaled = mRange[0] != mLow || mRange[1] != mHigh;
+            mLow = mRange[0];
+            mHigh = mRange[1];
+        }
+
+        float left = getGutter();
+        float top = mTextSize / 2;
+        float bottom = height - mTextSize / 2;
+        for (int i = 0; i < mCounts.length; i++) {
+            mPoints[i].prepare(mTimes[i], mValues[i], mCounts[i], from, to, mLow, mHigh,
+                    left, top, width, bottom);
+        }
+        if (rescaled) {
+            invalidate();
+        } else {
+            invalidate((int) left, 0, width, height);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        makePoints(w);
+        update();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(mFrame);
+        mFramePending = false;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float left = getGutter();
+        float top = mTextSize / 2;
+        float bottom = getHeight() - mTextSize / 2;
+        canvas.drawLine(left, top, getWidth(), top, mAxisPaint);
+        canvas.drawLine(left, bottom, getWidth(), bottom, mAxisPaint);
+        int n = ChartPoints.format(Math.round(mHigh), mLabel);
+        canvas.drawText(mLabel, 0, n, 0, top + mTextSize / 2, mTextPaint);
+        n = ChartPoints.format(Math.round(mLow), mLabel);
+        canvas.drawText(mLabel, 0, n, 0, bottom, mTextPaint);
+        for (int i = 0; i < mPoints.length; i++) {
+            ChartPoints points = mPoints[i];
+            canvas.drawLines(points.getLines(), 0, points.getLineFloats(), mLinePaints[i % COLORS.length]);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                return true;
+            case MotionEvent.ACTION_UP:
+                mSpan = (mSpan + 1) % mSpans.length;
+                makeWindows();
+                onData();
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+}
@@ -30,20 +30,34 @@ http://www.cypress.com/products/bluetooth-low-energy-ble
 
 package com.cypress.academy.ble101_robot;
 
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.text.InputType;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.InputDevice;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.View;
 import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.SeekBar;
 import android.widget.Switch;
 import android.widget.TextView;
+import android.widget.Toast;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This Activity provides the user interface to control the robot.  The Activity
@@ -55,17 +69,75 @@ public class ControlActivity extends AppCompatActivity {
     // Objects to access the layout items for Tach, Buttons, and Seek bars
     private static TextView mTachLeftText;
     private static TextView mTachRightText;
+    private static TextView mPoseText;
     private static SeekBar mSpeedLeftSeekBar;
     private static SeekBar mSpeedRightSeekBar;
     private static Switch mEnableLeftSwitch;
     private static Switch mEnableRightSwitch;
+    private static View mSliders;
+    private static JoystickView mJoystick;
+    private static ChartView mTachChart;
+
+    // Time spans the tach chart steps through when tapped (ns)
+    private static final long[] CHART_SPANS = { 10000000000L, 30000000000L, 60000000000L };
+
+    // Ways of driving the robot. Everything except the sliders goes through the input pipeline.
+    private enum InputMode { SLIDERS, JOYSTICK, TILT, GAMEPAD }
+    private static InputMode mInputMode;
+    private static boolean mTankMixing;
+    private static final long COMMAND_PERIOD = 50000000L; // 50 ms between commands to the robot
+    private static InputPipeline mInputPipeline;
+    private static TiltInput mTiltInput;
 
     // This tag is used for debug messages
     private static final String TAG = ControlActivity.class.getSimpleName();
 
     private static String mDeviceAddress;
+
+    // When launched directly with the last device, go back to scanning if the
+    // device is not connected and ready within this time
+    private static final long FAST_PATH_TIMEOUT = 5000;
+    private static Handler mHandler;
+
+    // Time between heartbeats to the service's deadman while the activity is in front (ms)
+    private static final long HEARTBEAT_PERIOD = 250;
+
+    // Launch time of the app, used to log the time to the first telemetry
+    private static long mLaunchTime;
     private static PSoCBleRobotService mPSoCBleRobotService;
 
+    // Reused for every telemetry update
+    private static final Odometry.Pose mPose = new Odometry.Pose();
+
+    // Preferences used to remember the control options from the menu
+    private static final String PREFS_NAME = "ControlPrefs";
+    private static final String PREF_CLOSED_LOOP = "ClosedLoop";
+    private static final String PREF_SMOOTH_DRIVE = "SmoothDrive";
+    private static final String PREF_STALL_CUTOFF = "StallCutoff";
+    private static final String PREF_INPUT_MODE = "InputMode";
+    private static final String PREF_TANK_MIXING = "TankMixing";
+    private static final String PREF_PROGRAM = "Program";
+    private static final String PREF_MOVE_COUNTS = "MoveCounts";
+
+    // Speed for moves from the menu
+    private static final int MOVE_SPEED = 60;
+
+    // TCP port for driving the robot from another computer
+    private static final int REMOTE_PORT = 7101;
+
+    // If true, the service holds the wheel speeds using the tach readings
+    private static boolean mClosedLoop;
+
+    // If true, the speeds are shaped with a deadband, an expo curve and a slew rate limit
+    private static boolean mSmoothDrive;
+    private static final int SMOOTH_DEADBAND = 5;
+    private static final double SMOOTH_EXPO = 0.4;
+    private static final double SMOOTH_SLEW_RATE = 200; // speed units per second
+
+    // If true, the service turns off a wheel that stalls
+    private static boolean mStallCutoff;
+    private static boolean mRecording;
+
     /**
      * This manages the lifecycle of the BLE service.
      * When the service starts we get the service object, initialize the service, and connect.
@@ -82,6 +154,9 @@ public class ControlActivity extends AppCompatActivity {
             }
             // Automatically connects to the car database upon successful start-up initialization.
             mPSoCBleRobotService.connect(mDeviceAddress);
+            mPSoCBleRobotService.adopt();
+            mPSoCBleRobotService.setClosedLoop(mClosedLoop);
+            setSmoothDrive(mSmoothDrive);
         }
 
         @Override
@@ -98,13 +173,75 @@ public class ControlActivity extends AppCompatActivity {
         // Assign the various layout objects to the appropriate variables
         mTachLeftText = (TextView) findViewById(R.id.tach_left);
         mTachRightText = (TextView) findViewById(R.id.tach_right);
+        mPoseText = (TextView) findViewById(R.id.pose);
         mEnableLeftSwitch = (Switch) findViewById(R.id.enable_left);
         mEnableRightSwitch = (Switch) findViewById(R.id.enable_right);
         mSpeedLeftSeekBar = (SeekBar) findViewById(R.id.speed_left);
         mSpeedRightSeekBar = (SeekBar) findViewById(R.id.speed_right);
+        mSliders = findViewById(R.id.sliders);
+        mJoystick = (JoystickView) findViewById(R.id.joystick);
+        mTachChart = (ChartView) findViewById(R.id.tach_chart);
+        mTachChart.setSource(new ChartView.Source() {
+            private final int[] mTach = new int[ChartView.MAX_SAMPLES];
+
+            @Override
+            public long getTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public int getSeriesCount() {
+                return 2;
+            }
+
+            @Override
+            public int copy(int series, long from, long[] times, float[] values, int max) {
+                PSoCBleRobotService.Motor motor = series == 0 ? PSoCBleRobotService.Motor.LEFT
+                        : PSoCBleRobotService.Motor.RIGHT;
+                int count = PSoCBleRobotService.getTachHistory(motor).copyFrom(from, times, mTach,
+                        Math.min(max, mTach.length));
+                for (int i = 0; i < count; i++) {
+                    values[i] = mTach[i];
+                }
+                return count;
+            }
+        }, CHART_SPANS);
+
+        // Set up the input pipeline used for joystick, tilt and gamepad driving
+        mInputPipeline = new InputPipeline(COMMAND_PERIOD, new InputPipeline.Sink() {
+            @Override
+            public void drive(int left, int right) {
+                PSoCBleRobotService service = mPSoCBleRobotService;
+                if (service != null) {
+                    service.setDrive(left, right);
+                }
+            }
+        });
+        mTiltInput = new TiltInput(this, mInputPipeline);
+        mJoystick.setListener(new JoystickView.Listener() {
+            @Override
+            public void onMove(float x, float y) {
+                PSoCBleRobotService.traceInput();
+                mInputPipeline.setInput(y, x);
+            }
+        });
+        mInputMode = InputMode.valueOf(getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getString(PREF_INPUT_MODE, InputMode.SLIDERS.name()));
+        mTankMixing = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_TANK_MIXING, false);
+        showInputMode();
 
         final Intent intent = getIntent();
         mDeviceAddress = intent.getStringExtra(ScanActivity.EXTRAS_BLE_ADDRESS);
+        mLaunchTime = ScanActivity.takeLaunchTime();
+        mClosedLoop = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_CLOSED_LOOP, false);
+        mSmoothDrive = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_SMOOTH_DRIVE, false);
+        mStallCutoff = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_STALL_CUTOFF, true);
+        PSoCBleRobotService.setStallCutoff(mStallCutoff);
+
+        mHandler = new Handler();
+        if (intent.getBooleanExtra(ScanActivity.EXTRAS_FAST_PATH, false)) {
+            mHandler.postDelayed(mFastPathCheck, FAST_PATH_TIMEOUT);
+        }
 
         // Bind to the BLE service
         Log.i(TAG, "Binding Service");
@@ -135,8 +272,16 @@ public class ControlActivity extends AppCompatActivity {
 
             public void onProgressChanged(SeekBar seekBar, int speed, boolean fromUser) {
                 /* Scale the speed from what the seek bar provides to what the PSoC FW expects */
+                if (mInputMode != InputMode.SLIDERS || PSoCBleRobotService.isPlaying()
+                        || PSoCBleRobotService.isMoving() || PSoCBleRobotService.isCalibrating()) {
+                    return; // the input pipeline, a program, a move or the calibration is driving
+                }
+                if (fromUser) {
+                    PSoCBleRobotService.traceInput();
+                }
                 speed = scaleSpeed(speed);
-                mPSoCBleRobotService.setMotorSpeed(PSoCBleRobotService.Motor.LEFT, speed);
+                // Send both speeds together so that the wheels change speed at the same time
+                mPSoCBleRobotService.setDrive(speed, scaleSpeed(mSpeedRightSeekBar.getProgress()));
                 Log.d(TAG, "Left Speed Change to:" + speed);
             }
         });
@@ -151,8 +296,16 @@ public class ControlActivity extends AppCompatActivity {
 
             public void onProgressChanged(SeekBar seekBar, int speed, boolean fromUser) {
                 /* Scale the speed from what the seek bar provides to what the PSoC FW expects */
+                if (mInputMode != InputMode.SLIDERS || PSoCBleRobotService.isPlaying()
+                        || PSoCBleRobotService.isMoving() || PSoCBleRobotService.isCalibrating()) {
+                    return; // the input pipeline, a program, a move or the calibration is driving
+                }
+                if (fromUser) {
+                    PSoCBleRobotService.traceInput();
+                }
                 speed = scaleSpeed(speed);
-                mPSoCBleRobotService.setMotorSpeed(PSoCBleRobotService.Motor.RIGHT, speed);
+                // Send both speeds together so that the wheels change speed at the same time
+                mPSoCBleRobotService.setDrive(scaleSpeed(mSpeedLeftSeekBar.getProgress()), speed);
                 Log.d(TAG, "Right Speed Change to:" + speed);
             }
         });
@@ -165,22 +318,410 @@ public class ControlActivity extends AppCompatActivity {
         if (mPSoCBleRobotService != null) {
             final boolean result = mPSoCBleRobotService.connect(mDeviceAddress);
             Log.i(TAG, "Connect request result=" + result);
+            mPSoCBleRobotService.adopt();
         }
+        // The robot was stopped when we were paused
+        centerSpeedSliders();
+        mHandler.post(mHeartbeat);
+        startInput();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mRobotUpdateReceiver);
+        // Nobody is driving the robot now
+        stopInput();
+        if (mRecording) {
+            setRecording(false);
+        }
+        mHandler.removeCallbacks(mHeartbeat);
+        if (mPSoCBleRobotService != null) {
+            mPSoCBleRobotService.stop();
+        }
+        Log.i(TAG, PSoCBleRobotService.getDriveSkew().toString());
+        Log.i(TAG, PSoCBleRobotService.getLatencyTracer().toString());
+        if (PSoCBleRobotService.getFleet().size() > 0) {
+            Log.i(TAG, PSoCBleRobotService.getFleet().toString());
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mFastPathCheck);
         unbindService(mServiceConnection);
         mPSoCBleRobotService = null;
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_control, menu);
+        menu.findItem(R.id.closed_loop).setChecked(mClosedLoop);
+        menu.findItem(R.id.smooth_drive).setChecked(mSmoothDrive);
+        menu.findItem(R.id.stall_cutoff).setChecked(mStallCutoff);
+        menu.findItem(R.id.tank_mixing).setChecked(mTankMixing);
+        menu.findItem(R.id.record_program).setChecked(mRecording);
+        menu.findItem(R.id.remote_control).setChecked(PSoCBleRobotService.isRemoteControlOn());
+        switch (mInputMode) {
+            case SLIDERS:
+                menu.findItem(R.id.input_sliders).setChecked(true);
+                break;
+            case JOYSTICK:
+                menu.findItem(R.id.input_joystick).setChecked(true);
+                break;
+            case TILT:
+                menu.findItem(R.id.input_tilt).setChecked(true);
+                break;
+            case GAMEPAD:
+                menu.findItem(R.id.input_gamepad).setChecked(true);
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.closed_loop:
+                mClosedLoop = !item.isChecked();
+                item.setChecked(mClosedLoop);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_CLOSED_LOOP, mClosedLoop).apply();
+                if (mPSoCBleRobotService != null) {
+                    mPSoCBleRobotService.setClosedLoop(mClosedLoop);
+                }
+                return true;
+            case R.id.smooth_drive:
+                mSmoothDrive = !item.isChecked();
+                item.setChecked(mSmoothDrive);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_SMOOTH_DRIVE, mSmoothDrive).apply();
+                if (mPSoCBleRobotService != null) {
+                    setSmoothDrive(mSmoothDrive);
+                }
+                return true;
+            case R.id.stall_cutoff:
+                mStallCutoff = !item.isChecked();
+                item.setChecked(mStallCutoff);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_STALL_CUTOFF, mStallCutoff).apply();
+                PSoCBleRobotService.setStallCutoff(mStallCutoff);
+                return true;
+            case R.id.tank_mixing:
+                mTankMixing = !item.isChecked();
+                item.setChecked(mTankMixing);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_TANK_MIXING, mTankMixing).apply();
+                setInputMode(mInputMode);
+                return true;
+            case R.id.input_sliders:
+                item.setChecked(true);
+                setInputMode(InputMode.SLIDERS);
+                return true;
+            case R.id.input_joystick:
+                item.setChecked(true);
+                setInputMode(InputMode.JOYSTICK);
+                return true;
+            case R.id.input_tilt:
+                item.setChecked(true);
+                setInputMode(InputMode.TILT);
+                return true;
+            case R.id.input_gamepad:
+                item.setChecked(true);
+                setInputMode(InputMode.GAMEPAD);
+                return true;
+            case R.id.record_program:
+                if (mPSoCBleRobotService != null) {
+                    setRecording(!item.isChecked());
+                    item.setChecked(mRecording);
+                }
+                return true;
+            case R.id.play_program:
+                playProgram();
+                return true;
+            case R.id.stop_program:
+                if (mPSoCBleRobotService != null) {
+                    mPSoCBleRobotService.stop();
+                }
+                return true;
+            case R.id.edit_program:
+                editProgram();
+                return true;
+            case R.id.move:
+                chooseMove();
+                return true;
+            case R.id.calibrate_motors:
+                if (mPSoCBleRobotService != null) {
+                    stopInput();
+                    centerSpeedSliders();
+                    mEnableLeftSwitch.setChecked(true);
+                    mEnableRightSwitch.setChecked(true);
+                    mPSoCBleRobotService.calibrateMotors();
+                    Toast.makeText(this, R.string.calibrating, Toast.LENGTH_LONG).show();
+                }
+                return true;
+            case R.id.clear_calibration:
+                if (mPSoCBleRobotService != null) {
+                    mPSoCBleRobotService.clearCalibration();
+                }
+                return true;
+            case R.id.fleet:
+                chooseFleet();
+                return true;
+            case R.id.remote_control:
+                if (item.isChecked()) {
+                    PSoCBleRobotService.stopRemoteControl();
+                } else if (mPSoCBleRobotService != null) {
+                    if (mPSoCBleRobotService.startRemoteControl(REMOTE_PORT)) {
+                        Toast.makeText(this, getString(R.string.remote_control_on, REMOTE_PORT), Toast.LENGTH_LONG).show();
+                    } else {
+                        Toast.makeText(this, getString(R.string.remote_control_failed, REMOTE_PORT), Toast.LENGTH_LONG).show();
+                    }
+                }
+                item.setChecked(PSoCBleRobotService.isRemoteControlOn());
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Handle the sticks of a gamepad. In arcade mixing the left stick drives. In tank mixing
+     * the left stick drives the left wheel and the right stick drives the right wheel.
+     */
+    @Override
+    public boolean onGenericMotionEvent(MotionEvent event) {
+        if (mInputMode == InputMode.GAMEPAD
+                && (event.getSource() & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK
+                && event.getActionMasked() == MotionEvent.ACTION_MOVE) {
+            PSoCBleRobotService.traceInput();
+            // Stick axes are negative when pushed forward
+            if (mTankMixing) {
+                mInputPipeline.setInput(-event.getAxisValue(MotionEvent.AXIS_Y), -event.getAxisValue(MotionEvent.AXIS_RZ));
+            } else {
+                mInputPipeline.setInput(-event.getAxisValue(MotionEvent.AXIS_Y), event.getAxisValue(MotionEvent.AXIS_X));
+            }
+            return true;
+        }
+        return super.onGenericMotionEvent(event);
+    }
+
+    /**
+     * Switch to a different way of driving the robot
+     *
+     * @param mode the new input mode
+     */
+    private void setInputMode(InputMode mode) {
+        stopInput();
+        mInputMode = mode;
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(PREF_INPUT_MODE, mode.name()).apply();
+        showInputMode();
+        if (mPSoCBleRobotService != null) {
+            mPSoCBleRobotService.stop();
+        }
+        centerSpeedSliders();
+        startInput();
+    }
+
+    /**
+     * Show the controls for the current input mode
+     */
+    private void showInputMode() {
+        mSliders.setVisibility(mInputMode == InputMode.SLIDERS ? View.VISIBLE : View.GONE);
+        mJoystick.setVisibility(mInputMode == InputMode.JOYSTICK ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Start the input pipeline and sensors for the current input mode
+     */
+    private void startInput() {
+        if (mInputMode == InputMode.SLIDERS) {
+            return;
+        }
+        boolean tank = (mInputMode == InputMode.GAMEPAD && mTankMixing);
+        mInputPipeline.setMixing(tank ? InputPipeline.Mixing.TANK : InputPipeline.Mixing.ARCADE);
+        mInputPipeline.start();
+        if (mInputMode == InputMode.TILT && !mTiltInput.start()) {
+            Toast.makeText(this, R.string.no_tilt_sensor, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Stop the input pipeline and sensors
+     */
+    private void stopInput() {
+        mTiltInput.stop();
+        mInputPipeline.stop();
+        Log.i(TAG, "Input: " + mInputPipeline.getSamples() + " samples, "
+                + mInputPipeline.getCommands() + " commands");
+    }
+
+    /**
+     * Start or stop recording the way the robot is driven. The recording is saved as the
+     * program.
+     *
+     * @param recording true to start recording, false to stop
+     */
+    private void setRecording(boolean recording) {
+        mRecording = recording;
+        if (recording) {
+            mPSoCBleRobotService.startRecording();
+        } else {
+            DriveProgram program = mPSoCBleRobotService.stopRecording();
+            if (program != null) {
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putString(PREF_PROGRAM, program.toScript()).apply();
+            }
+        }
+    }
+
+    /**
+     * Play the saved program. Both motors are turned on and the controls are ignored until
+     * the program ends.
+     */
+    private void playProgram() {
+        if (mPSoCBleRobotService == null) {
+            return;
+        }
+        DriveProgram program;
+        try {
+            program = DriveProgram.parse(getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(PREF_PROGRAM, ""));
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mRecording = false;
+        stopInput();
+        centerSpeedSliders();
+        mEnableLeftSwitch.setChecked(true);
+        mEnableRightSwitch.setChecked(true);
+        mPSoCBleRobotService.playProgram(program);
+    }
+
+    /**
+     * Show the saved program as a script that can be changed
+     */
+    private void editProgram() {
+        final EditText script = new EditText(this);
+        script.setMinLines(4);
+        script.setText(getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(PREF_PROGRAM, ""));
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.edit_program);
+        builder.setView(script);
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                String text = script.getText().toString();
+                try {
+                    // Store the program in the same form it is shown in
+                    text = DriveProgram.parse(text).toScript();
+                } catch (IllegalArgumentException e) {
+                    Toast.makeText(ControlActivity.this, e.getMessage(), Toast.LENGTH_LONG).show();
+                    return;
+                }
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putString(PREF_PROGRAM, text).apply();
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * Ask how many tach counts to move and start the move. Both motors are turned on and
+     * the controls are ignored until the robot has stopped.
+     */
+    private void chooseMove() {
+        if (mPSoCBleRobotService == null) {
+            return;
+        }
+        final EditText counts = new EditText(this);
+        counts.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_SIGNED);
+        counts.setText(String.valueOf(getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getInt(PREF_MOVE_COUNTS, 720)));
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.move);
+        builder.setView(counts);
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                int target;
+                try {
+                    target = Integer.parseInt(counts.getText().toString().trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit().putInt(PREF_MOVE_COUNTS, target).apply();
+                stopInput();
+                centerSpeedSliders();
+                mEnableLeftSwitch.setChecked(true);
+                mEnableRightSwitch.setChecked(true);
+                mPSoCBleRobotService.move(target, MOVE_SPEED);
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * Let the user pick other robots found while scanning to drive together with this one
+     */
+    private void chooseFleet() {
+        if (mPSoCBleRobotService == null) {
+            return;
+        }
+        ScanRegistry registry = ScanActivity.getScanRegistry();
+        List<String> fleet = PSoCBleRobotService.getFleetAddresses();
+        final List<String> addresses = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < registry.size(); i++) {
+            ScanRegistry.Device device = registry.get(i);
+            if (!device.getAddress().equals(mDeviceAddress)) {
+                addresses.add(device.getAddress());
+                names.add((device.getName() != null ? device.getName() + " " : "") + device.getAddress());
+            }
+        }
+        if (addresses.isEmpty()) {
+            Toast.makeText(this, R.string.no_other_robots, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        boolean[] checked = new boolean[addresses.size()];
+        for (int i = 0; i < checked.length; i++) {
+            checked[i] = fleet.contains(addresses.get(i));
+        }
+        final AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.fleet);
+        builder.setMultiChoiceItems(names.toArray(new String[names.size()]), checked,
+                new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        if (mPSoCBleRobotService == null) {
+                            return;
+                        }
+                        if (isChecked) {
+                            mPSoCBleRobotService.addFleetRobot(addresses.get(which));
+                        } else {
+                            mPSoCBleRobotService.removeFleetRobot(addresses.get(which));
+                        }
+                    }
+                });
+        builder.setPositiveButton(android.R.string.ok, null);
+        builder.show();
+    }
+
+    /**
+     * Turn the speed shaping in the service on or off
+     *
+     * @param enabled true to shape the speeds, false to send them as they are
+     */
+    private void setSmoothDrive(boolean enabled) {
+        if (enabled) {
+            mPSoCBleRobotService.setSpeedShaping(SMOOTH_DEADBAND, SMOOTH_EXPO, 0, SMOOTH_SLEW_RATE);
+        } else {
+            mPSoCBleRobotService.setSpeedShaping(0, 0, 0, 0);
+        }
+    }
+
      /**
      * Scale the speed read from the slider (0 to 20) to
      * what the car object expects (-100 to +100).
@@ -218,12 +759,52 @@ public class ControlActivity extends AppCompatActivity {
 
     }
 
+    /**
+     * Move both speed sliders to the middle (stopped) position
+     */
+    private void centerSpeedSliders() {
+        mSpeedLeftSeekBar.setProgress(10);
+        mSpeedRightSeekBar.setProgress(10);
+    }
+
+    /**
+     * This tells the service that we are still here. If the UI thread stops running the
+     * heartbeats stop and the service stops the robot.
+     */
+    private final Runnable mHeartbeat = new Runnable() {
+        @Override
+        public void run() {
+            PSoCBleRobotService.heartbeat();
+            mHandler.postDelayed(this, HEARTBEAT_PERIOD);
+        }
+    };
+
+    /**
+     * This checks that the direct connection to the last device worked. If it did not,
+     * we finish so that the scan activity can look for devices instead.
+     */
+    private final Runnable mFastPathCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mPSoCBleRobotService == null || !mPSoCBleRobotService.isReady()) {
+                Log.w(TAG, "Could not reach the last device, going back to scanning");
+                Toast.makeText(ControlActivity.this, R.string.fast_path_failed, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        }
+    };
+
     /**
      * Handle broadcasts from the Car service object. The events are:
      * ACTION_CONNECTED: connected to the car.
      * ACTION_DISCONNECTED: disconnected from the car.
      * ACTION_DATA_AVAILABLE: received data from the car.  This can be a result of a read
      * or notify operation.
+     * ACTION_STALL: a wheel is being driven but is not turning.
+     * ACTION_DEADMAN_STOP: the robot was stopped because there was no input for too long.
+     * ACTION_PROGRAM_DONE: a program has finished playing or was stopped.
+     * ACTION_MOVE_DONE: the robot has stopped at the end of a move, or the move was given up on.
+     * ACTION_CALIBRATION_DONE: the motor calibration sweep has finished.
      */
     private final BroadcastReceiver mRobotUpdateReceiver = new BroadcastReceiver() {
         @Override
@@ -238,8 +819,53 @@ public class ControlActivity extends AppCompatActivity {
                     break;
                 case PSoCBleRobotService.ACTION_DATA_AVAILABLE:
                     // This is called after a Notify completes
+                    if (mLaunchTime != 0) {
+                        Log.i(TAG, "First telemetry " + (SystemClock.elapsedRealtime() - mLaunchTime) + " ms after launch");
+                        mLaunchTime = 0;
+                    }
                     mTachLeftText.setText(String.format("%d", PSoCBleRobotService.getTach(PSoCBleRobotService.Motor.LEFT)));
                     mTachRightText.setText(String.format("%d", PSoCBleRobotService.getTach(PSoCBleRobotService.Motor.RIGHT)));
+                    mTachChart.onData();
+                    PSoCBleRobotService.getPose(mPose);
+                    mPoseText.setText(getString(R.string.pose, mPose.x, mPose.y, Math.toDegrees(mPose.heading)));
+                    break;
+                case PSoCBleRobotService.ACTION_STALL:
+                    PSoCBleRobotService.Motor motor =
+                            PSoCBleRobotService.Motor.valueOf(intent.getStringExtra(PSoCBleRobotService.EXTRA_MOTOR));
+                    boolean left = (motor == PSoCBleRobotService.Motor.LEFT);
+                    Toast.makeText(ControlActivity.this, getString(R.string.stalled, left ? "Left" : "Right"),
+                            Toast.LENGTH_SHORT).show();
+                    if (mStallCutoff) {
+                        // The service has turned the motor off so show that on the switch
+                        (left ? mEnableLeftSwitch : mEnableRightSwitch).setChecked(false);
+                    }
+                    break;
+                case PSoCBleRobotService.ACTION_DEADMAN_STOP:
+                    // We were not heard from for too long and the robot was stopped
+                    centerSpeedSliders();
+                    break;
+                case PSoCBleRobotService.ACTION_PROGRAM_DONE:
+                    Toast.makeText(ControlActivity.this, R.string.program_done, Toast.LENGTH_SHORT).show();
+                    startInput();
+                    break;
+                case PSoCBleRobotService.ACTION_MOVE_DONE:
+                    if (intent.getBooleanExtra(PSoCBleRobotService.EXTRA_TIMED_OUT, false)) {
+                        Toast.makeText(ControlActivity.this, R.string.move_timed_out, Toast.LENGTH_SHORT).show();
+                    } else {
+                        int overshoot = intent.getIntExtra(PSoCBleRobotService.EXTRA_OVERSHOOT, 0);
+                        Toast.makeText(ControlActivity.this, getString(R.string.move_done, overshoot), Toast.LENGTH_SHORT).show();
+                    }
+                    startInput();
+                    break;
+                case PSoCBleRobotService.ACTION_CALIBRATION_DONE:
+                    boolean calibrated = intent.getBooleanExtra(PSoCBleRobotService.EXTRA_CALIBRATED, false);
+                    if (intent.getBooleanExtra(PSoCBleRobotService.EXTRA_TIMED_OUT, false)) {
+                        Toast.makeText(ControlActivity.this, R.string.calibration_timed_out, Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(ControlActivity.this, calibrated ? R.string.calibration_done : R.string.calibration_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                    startInput();
                     break;
             }
         }
@@ -256,6 +882,11 @@ public class ControlActivity extends AppCompatActivity {
         intentFilter.addAction(PSoCBleRobotService.ACTION_CONNECTED);
         intentFilter.addAction(PSoCBleRobotService.ACTION_DISCONNECTED);
         intentFilter.addAction(PSoCBleRobotService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(PSoCBleRobotService.ACTION_STALL);
+        intentFilter.addAction(PSoCBleRobotService.ACTION_DEADMAN_STOP);
+        intentFilter.addAction(PSoCBleRobotService.ACTION_PROGRAM_DONE);
+        intentFilter.addAction(PSoCBleRobotService.ACTION_MOVE_DONE);
+        intentFilter.addAction(PSoCBleRobotService.ACTION_CALIBRATION_DONE);
         return intentFilter;
     }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task at a fixed rate on its own thread. Each tick is scheduled from the
+ * previous deadline rather than from when the previous tick finished so the rate
+ * does not drift. How late each tick starts is recorded as the loop jitter. If the
+ * loop falls more than a period behind the missed ticks are skipped.
+ */
+public class ControlLoop implements Runnable {
+
+    /**
+     * Work done on each tick of the loop
+     */
+    public interface Task {
+        /**
+         * @param now time of the tick from {@code System.nanoTime()}
+         * @param dt time since the last tick in seconds
+         */
+        void tick(long now, double dt);
+    }
+
+    private final String mName;
+    private final long mPeriod;
+    private final Task mTask;
+    private final TimingStats mJitter;
+    private volatile Thread mThread;
+
+    /**
+     * @param name name of the thread
+     * @param period time between ticks in ns
+     * @param task work to do on each tick
+     */
+    public ControlLoop(String name, long period, Task task) {
+        mName = name;
+        mPeriod = period;
+        mTask = task;
+        mJitter = new TimingStats(name + " jitter");
+    }
+
+    /**
+     * Start the loop thread if it is not already running
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(this, mName);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop the loop. A tick that is already running is allowed to finish.
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * @return statistics of how late the ticks started
+     */
+    public TimingStats getJitter() {
+        return mJitter;
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        long last = System.nanoTime();
+        long next = last + mPeriod;
+        while (mThread == self) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            long now = System.nanoTime();
+            mJitter.add(now - next);
+            mTask.tick(now, (now - last) / 1e9);
+            last = now;
+            next += mPeriod;
+            if (now - next > mPeriod) {
+                next = now + mPeriod;
+            }
+        }
+    }
+}
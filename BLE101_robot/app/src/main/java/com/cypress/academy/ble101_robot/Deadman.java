@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Deadman timer for the robot. The controlling side feeds it on every input and on a
+ * regular heartbeat. If it goes quiet for longer than the timeout the stop action is
+ * run once, and it is not run again until the next input.
+ *
+ * The timer is checked by running it as the task of a {@link ControlLoop}, so the
+ * stop does not depend on the UI thread. The stop is issued at most one check period
+ * after the deadline plus the time the stop action takes, and the actual latency of
+ * every stop is recorded.
+ *
+ * Input, the check and the stop action all hold the lock of the deadman. Input that
+ * arrives while the timer is checked is either seen by the check, or waits for the stop
+ * and then comes after it, so the robot is never stopped right after fresh input. The
+ * stop action must therefore not wait for another thread that feeds the deadman.
+ */
+public class Deadman implements ControlLoop.Task {
+
+    /**
+     * What to do when the deadman timer runs out
+     */
+    public interface Action {
+        void stop();
+    }
+
+    private final Action mAction;
+    private final TimingStats mLatency = new TimingStats("Deadman stop latency");
+    private volatile long mTimeout;
+    private long mLastInput;
+    // Nothing to stop until the first input
+    private boolean mStopped = true;
+
+    /**
+     * @param timeout time without input before stopping in ns
+     * @param action what to do when the timer runs out
+     */
+    public Deadman(long timeout, Action action) {
+        mTimeout = timeout;
+        mAction = action;
+    }
+
+    /**
+     * @param timeout time without input before stopping in ns
+     */
+    public void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Record control input or a heartbeat
+     *
+     * @param now time of the input from {@code System.nanoTime()}
+     */
+    public synchronized void feed(long now) {
+        mLastInput = now;
+        mStopped = false;
+    }
+
+    /**
+     * Tell the deadman that the robot has been stopped some other way so there is nothing
+     * to stop until the next input
+     */
+    public synchronized void clear() {
+        mStopped = true;
+    }
+
+    /**
+     * Check the timer and run the stop action if it has run out
+     *
+     * @param now current time from {@code System.nanoTime()}
+     * @param dt time since the last check in seconds
+     */
+    @Override
+    public synchronized void tick(long now, double dt) {
+        if (mStopped) {
+            return;
+        }
+        long deadline = mLastInput + mTimeout;
+        if (now - deadline < 0) {
+            return;
+        }
+        mStopped = true;
+        long start = System.nanoTime();
+        mAction.stop();
+        // Time from the deadline to the check plus the time to issue the stop
+        mLatency.add((now - deadline) + (System.nanoTime() - start));
+    }
+
+    /**
+     * @return true if the timer has run out and there has been no input since
+     */
+    public synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * @return statistics of the time from the deadline to the stop being issued
+     */
+    public TimingStats getLatency() {
+        return mLatency;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * The output stage of the robot. It holds the requested speed and on/off state of each
+ * motor, shapes the requested speeds and either sends them or, while the control loop
+ * runs, makes them the targets of the control loop.
+ *
+ * The operator, the control loop, moves, program playback, the calibration sweep and the
+ * deadman all change the motor speeds from their own threads. Every change goes through
+ * this object and its methods are synchronized on it, so one change is finished before the
+ * next starts and the speeds sent always match the state here. Callers that need to look
+ * at other state and then change the speeds as one step can synchronize on it too.
+ *
+ * A stop has to win over anything that was decided before it. Each stop is counted and the
+ * automatic drivers (moves, programs and the calibration) pass in the count from when they
+ * started. Their speeds are dropped once the robot has been stopped since, so a driver that
+ * was part way through working out a speed when the stop came cannot start the robot again.
+ */
+public class DriveOutput {
+
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+    private static final int LEFT = PSoCBleRobotService.Motor.LEFT.ordinal();
+    private static final int RIGHT = PSoCBleRobotService.Motor.RIGHT.ordinal();
+
+    /**
+     * Writes the speeds to the robot
+     */
+    public interface Link {
+        /**
+         * Write both speeds as one drive frame
+         *
+         * @param left speed for the left motor
+         * @param right speed for the right motor
+         */
+        void sendDrive(int left, int right);
+
+        /**
+         * Write the speed of one motor on its own
+         *
+         * @param motor the motor
+         * @param speed its speed
+         * @return false if the robot can only be sent whole drive frames
+         */
+        boolean sendSpeed(PSoCBleRobotService.Motor motor, int speed);
+    }
+
+    private final SpeedShaper mShaper;
+    private final SpeedController mController;
+    private final StallDetector mStallDetector;
+    private final Link mLink;
+
+    // Per motor state, indexed by Motor.ordinal()
+    private final boolean[] mOn = new boolean[WHEELS];
+    private final int[] mSpeed = new int[WHEELS];
+    private final int[] mTarget = new int[WHEELS];
+    private final int[] mSent = new int[WHEELS];
+
+    private boolean mControlLoop;
+    private boolean mClosedLoop;
+    private int mStops;
+
+    /**
+     * @param shaper shapes the requested speeds
+     * @param controller closed loop speed controller
+     * @param stallDetector told the speed sent to each motor
+     * @param link writes the speeds to the robot
+     */
+    public DriveOutput(SpeedShaper shaper, SpeedController controller, StallDetector stallDetector,
+                       Link link) {
+        mShaper = shaper;
+        mController = controller;
+        mStallDetector = stallDetector;
+        mLink = link;
+    }
+
+    /**
+     * Turn a motor on or off
+     *
+     * @param motor the motor
+     * @param on true to turn it on
+     */
+    public synchronized void setMotorState(PSoCBleRobotService.Motor motor, boolean on) {
+        mOn[motor.ordinal()] = on;
+        update(motor);
+    }
+
+    /**
+     * Set the requested speed of one motor. It is only sent if the motor is on.
+     *
+     * @param motor the motor
+     * @param speed speed from -100 to +100
+     */
+    public synchronized void setMotorSpeed(PSoCBleRobotService.Motor motor, int speed) {
+        mSpeed[motor.ordinal()] = speed;
+        update(motor);
+    }
+
+    /**
+     * Set the requested speed of both motors as one drive frame. A motor that is off is
+     * sent a speed of 0.
+     *
+     * @param left speed for the left motor
+     * @param right speed for the right motor
+     */
+    public synchronized void setDrive(int left, int right) {
+        mSpeed[LEFT] = left;
+        mSpeed[RIGHT] = right;
+        apply();
+    }
+
+    /**
+     * Set the requested speed of both motors for an automatic driver, as setDrive does,
+     * unless the robot has been stopped since the driver started
+     *
+     * @param left speed for the left motor
+     * @param right speed for the right motor
+     * @param stops the stop count from {@link #getStops()} when the driver started
+     * @return false if the speeds were dropped
+     */
+    public synchronized boolean setDrive(int left, int right, int stops) {
+        if (stops != mStops) {
+            return false;
+        }
+        setDrive(left, right);
+        return true;
+    }
+
+    /**
+     * Send speeds as they are, without shaping or the control loop, unless the robot has
+     * been stopped since the driver started. The requested speeds are not changed.
+     *
+     * @param left speed for the left motor
+     * @param right speed for the right motor
+     * @param stops the stop count from {@link #getStops()} when the driver started
+     * @return false if the speeds were dropped
+     */
+    public synchronized boolean sendRaw(int left, int right, int stops) {
+        if (stops != mStops) {
+            return false;
+        }
+        send(left, right);
+        return true;
+    }
+
+    /**
+     * Stop both motors for an automatic driver, as a stop does but without counting it,
+     * unless the robot has already been stopped since the driver started
+     *
+     * @param stops the stop count from {@link #getStops()} when the driver started
+     * @return false if the robot had already been stopped
+     */
+    public synchronized boolean halt(int stops) {
+        if (stops != mStops) {
+            return false;
+        }
+        halt();
+        return true;
+    }
+
+    /**
+     * Stop both motors right away without slew limiting. The requested speeds are set to 0
+     * so the robot stays stopped until new speeds are set. The on/off states are not
+     * changed. Speeds from automatic drivers that started before the stop are dropped
+     * from now on.
+     *
+     * @return the new stop count
+     */
+    public synchronized int stop() {
+        mStops++;
+        halt();
+        return mStops;
+    }
+
+    /**
+     * @return how many times the robot has been stopped
+     */
+    public synchronized int getStops() {
+        return mStops;
+    }
+
+    /**
+     * Turn a motor off right away without slew limiting. It stays off until it is turned
+     * on again.
+     *
+     * @param motor the motor
+     */
+    public synchronized void cut(PSoCBleRobotService.Motor motor) {
+        int wheel = motor.ordinal();
+        mOn[wheel] = false;
+        mTarget[wheel] = 0;
+        mShaper.reset(motor, 0);
+        send((motor == PSoCBleRobotService.Motor.LEFT) ? 0 : mSent[LEFT],
+                (motor == PSoCBleRobotService.Motor.RIGHT) ? 0 : mSent[RIGHT]);
+    }
+
+    /**
+     * Say whether the control loop is running. While it is, the shaped speeds are its
+     * targets and only {@link #tick(long, double)} sends speeds. Call {@link #refresh()}
+     * afterwards to send the requested speeds through the new output stage.
+     *
+     * @param running true if the control loop is running
+     */
+    public synchronized void setControlLoop(boolean running) {
+        if (running && !mControlLoop) {
+            // Start from the speeds the motors are at now
+            mShaper.reset(PSoCBleRobotService.Motor.LEFT, mSent[LEFT]);
+            mShaper.reset(PSoCBleRobotService.Motor.RIGHT, mSent[RIGHT]);
+        }
+        mControlLoop = running;
+    }
+
+    /**
+     * Turn closed loop speed control in the control loop on or off
+     *
+     * @param enabled true for closed loop control
+     */
+    public synchronized void setClosedLoop(boolean enabled) {
+        if (enabled != mClosedLoop) {
+            mClosedLoop = enabled;
+            mController.reset();
+        }
+    }
+
+    /**
+     * @return true if closed loop speed control is on
+     */
+    public synchronized boolean isClosedLoop() {
+        return mClosedLoop;
+    }
+
+    /**
+     * Shape and send the requested speeds again, for example after the shaping has changed
+     */
+    public synchronized void refresh() {
+        apply();
+    }
+
+    /**
+     * Run one control loop tick: slew limit the targets, run the speed controller if closed
+     * loop control is on and send the new speeds if they changed. The stall detector is
+     * given the slew limited targets rather than the controller output.
+     *
+     * @param now current time from {@code System.nanoTime()}
+     * @param dt time since the last tick in seconds
+     */
+    public synchronized void tick(long now, double dt) {
+        int left = mShaper.slew(PSoCBleRobotService.Motor.LEFT, mTarget[LEFT], dt);
+        int right = mShaper.slew(PSoCBleRobotService.Motor.RIGHT, mTarget[RIGHT], dt);
+        mStallDetector.setCommand(PSoCBleRobotService.Motor.LEFT, left, now);
+        mStallDetector.setCommand(PSoCBleRobotService.Motor.RIGHT, right, now);
+        if (mClosedLoop) {
+            mController.setTarget(PSoCBleRobotService.Motor.LEFT, left);
+            mController.setTarget(PSoCBleRobotService.Motor.RIGHT, right);
+            mController.update(now, dt);
+            left = mController.getOutput(PSoCBleRobotService.Motor.LEFT);
+            right = mController.getOutput(PSoCBleRobotService.Motor.RIGHT);
+        }
+        if (left != mSent[LEFT] || right != mSent[RIGHT]) {
+            write(left, right);
+        }
+    }
+
+    /**
+     * @param motor the motor
+     * @return true if it is on
+     */
+    public synchronized boolean isOn(PSoCBleRobotService.Motor motor) {
+        return mOn[motor.ordinal()];
+    }
+
+    /**
+     * @param motor the motor
+     * @return its requested speed, whether or not it is on
+     */
+    public synchronized int getSpeed(PSoCBleRobotService.Motor motor) {
+        return mSpeed[motor.ordinal()];
+    }
+
+    /**
+     * @param motor the motor
+     * @return the speed last sent to it
+     */
+    public synchronized int getSent(PSoCBleRobotService.Motor motor) {
+        return mSent[motor.ordinal()];
+    }
+
+    /**
+     * Turn both motors off and forget the requested speeds without sending anything
+     */
+    public synchronized void reset() {
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            mOn[wheel] = false;
+            mSpeed[wheel] = 0;
+        }
+    }
+
+    /**
+     * @param motor the motor
+     * @return the shaped requested speed, or 0 if the motor is off
+     */
+    private int shaped(PSoCBleRobotService.Motor motor) {
+        int wheel = motor.ordinal();
+        return mOn[wheel] ? mShaper.shape(motor, mSpeed[wheel]) : 0;
+    }
+
+    /**
+     * Send the speed of one motor, or make it the target of the control loop
+     */
+    private void update(PSoCBleRobotService.Motor motor) {
+        int wheel = motor.ordinal();
+        int speed = shaped(motor);
+        if (mControlLoop) {
+            mTarget[wheel] = speed;
+        } else if (mLink.sendSpeed(motor, speed)) {
+            mSent[wheel] = speed;
+            mStallDetector.setCommand(motor, speed, System.nanoTime());
+        } else {
+            send((motor == PSoCBleRobotService.Motor.LEFT) ? speed : mSent[LEFT],
+                    (motor == PSoCBleRobotService.Motor.RIGHT) ? speed : mSent[RIGHT]);
+        }
+    }
+
+    /**
+     * Send the speeds of both motors, or make them the targets of the control loop
+     */
+    private void apply() {
+        int left = shaped(PSoCBleRobotService.Motor.LEFT);
+        int right = shaped(PSoCBleRobotService.Motor.RIGHT);
+        if (mControlLoop) {
+            mTarget[LEFT] = left;
+            mTarget[RIGHT] = right;
+        } else {
+            send(left, right);
+        }
+    }
+
+    private void halt() {
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            mSpeed[wheel] = 0;
+            mTarget[wheel] = 0;
+        }
+        mShaper.reset(PSoCBleRobotService.Motor.LEFT, 0);
+        mShaper.reset(PSoCBleRobotService.Motor.RIGHT, 0);
+        send(0, 0);
+    }
+
+    private void send(int left, int right) {
+        long now = System.nanoTime();
+        mStallDetector.setCommand(PSoCBleRobotService.Motor.LEFT, left, now);
+        mStallDetector.setCommand(PSoCBleRobotService.Motor.RIGHT, right, now);
+        write(left, right);
+    }
+
+    private void write(int left, int right) {
+        mSent[LEFT] = left;
+        mSent[RIGHT] = right;
+        mLink.sendDrive(left, right);
+    }
+}
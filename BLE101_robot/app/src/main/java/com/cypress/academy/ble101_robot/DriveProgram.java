@@ -0,0 +1,212 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A timed sequence of drive commands. Each step sets the left and right wheel speeds at
+ * a time measured from the start of the program, and the robot is stopped at the end.
+ *
+ * A program is either recorded from a driving session or written as a script such as
+ * "left 60 for 1.2 s, then both -40 for 0.8 s". Steps in a script are separated by
+ * commas, semicolons or new lines and can start with "then". Each step is one of:
+ * <ul>
+ * <li>left SPEED for SECONDS s</li>
+ * <li>right SPEED for SECONDS s</li>
+ * <li>both SPEED for SECONDS s</li>
+ * <li>drive LEFT RIGHT for SECONDS s</li>
+ * <li>stop for SECONDS s</li>
+ * </ul>
+ * A wheel that is not named in a step is stopped during that step.
+ */
+public class DriveProgram {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_SPEED = 100;
+
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private int[] mLeft = new int[INITIAL_CAPACITY];
+    private int[] mRight = new int[INITIAL_CAPACITY];
+    private int mSize;
+    private long mDuration;
+
+    /**
+     * Add a step. Steps must be added in time order.
+     *
+     * @param time start of the step in ns from the start of the program
+     * @param left left wheel speed from -100 to +100
+     * @param right right wheel speed from -100 to +100
+     */
+    public void add(long time, int left, int right) {
+        if (mSize > 0 && time < mTimes[mSize - 1]) {
+            throw new IllegalArgumentException("Steps must be in time order");
+        }
+        if (mSize == mTimes.length) {
+            mTimes = Arrays.copyOf(mTimes, mSize * 2);
+            mLeft = Arrays.copyOf(mLeft, mSize * 2);
+            mRight = Arrays.copyOf(mRight, mSize * 2);
+        }
+        mTimes[mSize] = time;
+        mLeft[mSize] = left;
+        mRight[mSize] = right;
+        mSize++;
+        mDuration = Math.max(mDuration, time);
+    }
+
+    /**
+     * @param duration time in ns from the start of the program when the robot is stopped
+     */
+    public void setDuration(long duration) {
+        mDuration = duration;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param step step number
+     * @return start of the step in ns from the start of the program
+     */
+    public long getTime(int step) {
+        return mTimes[step];
+    }
+
+    public int getLeft(int step) {
+        return mLeft[step];
+    }
+
+    public int getRight(int step) {
+        return mRight[step];
+    }
+
+    /**
+     * Write the program as a script that {@link #parse(String)} reads back
+     *
+     * @return the script
+     */
+    public String toScript() {
+        StringBuilder script = new StringBuilder();
+        for (int step = 0; step < mSize; step++) {
+            long end = (step + 1 < mSize) ? mTimes[step + 1] : mDuration;
+            if (step == 0 && mTimes[0] > 0) {
+                script.append(String.format(Locale.US, "stop for %.3f s\n", mTimes[0] / 1e9));
+            }
+            script.append(String.format(Locale.US, "drive %d %d for %.3f s\n",
+                    mLeft[step], mRight[step], (end - mTimes[step]) / 1e9));
+        }
+        return script.toString();
+    }
+
+    /**
+     * Read a program from a script
+     *
+     * @param script the script to read
+     * @return the program
+     * @throws IllegalArgumentException if the script has a step that cannot be read
+     */
+    public static DriveProgram parse(String script) {
+        DriveProgram program = new DriveProgram();
+        long time = 0;
+        for (String step : script.split("[,;\\n]")) {
+            String[] words = step.trim().toLowerCase(Locale.US).split("\\s+");
+            int word = 0;
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            if (words[0].equals("then")) {
+                word++;
+            }
+            try {
+                int left;
+                int right;
+                switch (words[word++]) {
+                    case "left":
+                        left = parseSpeed(words[word++]);
+                        right = 0;
+                        break;
+                    case "right":
+                        left = 0;
+                        right = parseSpeed(words[word++]);
+                        break;
+                    case "both":
+                        left = parseSpeed(words[word++]);
+                        right = left;
+                        break;
+                    case "drive":
+                        left = parseSpeed(words[word++]);
+                        right = parseSpeed(words[word++]);
+                        break;
+                    case "stop":
+                        left = 0;
+                        right = 0;
+                        break;
+                    default:
+                        throw new IllegalArgumentException();
+                }
+                if (!words[word++].equals("for")) {
+                    throw new IllegalArgumentException();
+                }
+                String seconds = words[word++];
+                if (seconds.endsWith("s")) {
+                    seconds = seconds.substring(0, seconds.length() - 1);
+                } else if (word < words.length && words[word].equals("s")) {
+                    word++;
+                }
+                double duration = Double.parseDouble(seconds);
+                if (word != words.length || duration < 0) {
+                    throw new IllegalArgumentException();
+                }
+                program.add(time, left, right);
+                time += Math.round(duration * 1e9);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Cannot read step \"" + step.trim() + "\"");
+            }
+        }
+        program.setDuration(time);
+        return program;
+    }
+
+    private static int parseSpeed(String speed) {
+        // Accept the minus sign that word processors put in when a script is pasted
+        int value = Integer.parseInt(speed.replace('\u2212', '-'));
+        if (value < -MAX_SPEED || value > MAX_SPEED) {
+            throw new IllegalArgumentException();
+        }
+        return value;
+    }
+}
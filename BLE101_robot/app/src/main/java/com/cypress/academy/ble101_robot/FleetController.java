@@ -0,0 +1,372 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the same drive frame to several robots at once and measures how far apart in
+ * time the robots receive it.
+ *
+ * Each frame is issued to every robot back to back from the calling thread. The robots
+ * with the longest mean write latency are issued first so that the frame reaches all of
+ * them at about the same time. Each robot reports when its write of the frame has
+ * completed and the spread of those completion times is the inter-robot skew of the
+ * frame. Frames that are replaced by the next frame before every robot has completed
+ * them are counted as incomplete instead.
+ *
+ * A robot only ever has one frame in flight, because completions do not say which frame
+ * they belong to. A frame issued while the robot is still writing the previous one waits
+ * and is written as soon as the previous one completes. A waiting frame that is replaced
+ * by a newer one is never written and is counted as superseded.
+ */
+public class FleetController {
+
+    // A write that has not completed by then is taken to be lost, 1 s in ns
+    static final long WRITE_TIMEOUT = 1000000000L;
+
+    /**
+     * A robot that can be driven as part of the fleet
+     */
+    public interface Robot {
+        /**
+         * @return the Bluetooth address of the robot
+         */
+        String getAddress();
+
+        /**
+         * Start writing a drive frame. The robot calls {@link #onWriteDone(Robot, long)}
+         * when the write has completed.
+         *
+         * @param left left wheel speed from -100 to +100
+         * @param right right wheel speed from -100 to +100
+         * @return true if the write was started
+         */
+        boolean writeDrive(int left, int right);
+    }
+
+    /**
+     * State and statistics kept for each robot
+     */
+    private static class Member {
+        final Robot robot;
+        final TimingStats latency;
+        long frame;         // last frame written to this robot
+        long issueTime;     // when the write of that frame was started
+        boolean pending;    // the write of that frame has not completed yet
+        boolean waiting;    // the current frame waits for the write in flight
+        long completed;     // number of frames completed
+        long superseded;    // waiting frames replaced before they were written
+        long lost;          // writes that never completed
+        long firstDoneTime;
+        long lastDoneTime;
+
+        Member(Robot robot) {
+            this.robot = robot;
+            latency = new TimingStats(robot.getAddress() + " drive latency");
+        }
+    }
+
+    // Members in the order frames are issued to them
+    private final List<Member> mMembers = new ArrayList<>();
+    private final TimingStats mSkew = new TimingStats("Fleet skew");
+
+    // The frame being measured
+    private long mFrame;
+    private int mLeft;
+    private int mRight;
+    private int mOutstanding;
+    private long mFirstDoneTime;
+    private long mLastDoneTime;
+    private long mIncompleteFrames;
+
+    /**
+     * Add a robot to the fleet. Adding a robot that is already in the fleet does nothing.
+     *
+     * @param robot the robot to add
+     */
+    public synchronized void add(Robot robot) {
+        if (find(robot) < 0) {
+            mMembers.add(new Member(robot));
+        }
+    }
+
+    /**
+     * Remove a robot from the fleet
+     *
+     * @param robot the robot to remove
+     */
+    public synchronized void remove(Robot robot) {
+        int index = find(robot);
+        if (index >= 0) {
+            Member member = mMembers.remove(index);
+            if ((member.pending && member.frame == mFrame) || member.waiting) {
+                // Do not wait for a robot that is gone
+                mOutstanding--;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mMembers.size();
+    }
+
+    /**
+     * @param index robot number from 0 to size() - 1
+     * @return the robot
+     */
+    public synchronized Robot getRobot(int index) {
+        return mMembers.get(index).robot;
+    }
+
+    /**
+     * Send a drive frame to every robot in the fleet. Robots that are still writing the
+     * previous frame are sent this one when that write completes.
+     *
+     * @param left left wheel speed from -100 to +100
+     * @param right right wheel speed from -100 to +100
+     * @param now the current time in ns
+     * @return the number of robots the frame was sent to or is waiting for
+     */
+    public synchronized int drive(int left, int right, long now) {
+        if (mOutstanding > 0) {
+            mIncompleteFrames++;
+        }
+        sortByLatency();
+        mFrame++;
+        mLeft = left;
+        mRight = right;
+        mOutstanding = 0;
+        mFirstDoneTime = 0;
+        mLastDoneTime = 0;
+        int sent = 0;
+        for (int i = 0; i < mMembers.size(); i++) {
+            Member member = mMembers.get(i);
+            if (member.pending && now - member.issueTime >= WRITE_TIMEOUT) {
+                // For example the robot disconnected with the write in flight
+                member.pending = false;
+                member.lost++;
+            }
+            if (member.waiting) {
+                member.superseded++;
+            }
+            member.waiting = member.pending;
+            if (member.waiting || write(member, now)) {
+                mOutstanding++;
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Called by a robot when its write of a drive frame has completed
+     *
+     * @param robot the robot
+     * @param now the current time in ns, on the same clock as passed to drive
+     */
+    public synchronized void onWriteDone(Robot robot, long now) {
+        int index = find(robot);
+        if (index < 0) {
+            return;
+        }
+        Member member = mMembers.get(index);
+        if (!member.pending) {
+            return;
+        }
+        member.pending = false;
+        member.latency.add(now - member.issueTime);
+        member.completed++;
+        if (member.firstDoneTime == 0) {
+            member.firstDoneTime = now;
+        }
+        member.lastDoneTime = now;
+        if (member.frame == mFrame) {
+            if (mFirstDoneTime == 0) {
+                mFirstDoneTime = now;
+            }
+            mLastDoneTime = now;
+            countDone();
+        } else if (member.waiting) {
+            member.waiting = false;
+            if (!write(member, now)) {
+                // This robot will not complete the frame
+                countDone();
+            }
+        }
+    }
+
+    /**
+     * @return statistics of the time between the first and last robot completing a frame
+     */
+    public TimingStats getSkew() {
+        return mSkew;
+    }
+
+    /**
+     * @return number of frames that were replaced before every robot completed them
+     */
+    public synchronized long getIncompleteFrames() {
+        return mIncompleteFrames;
+    }
+
+    /**
+     * @param robot the robot
+     * @return statistics of the time from issuing a frame to the robot completing it, or
+     * null if the robot is not in the fleet
+     */
+    public synchronized TimingStats getLatency(Robot robot) {
+        int index = find(robot);
+        return (index < 0) ? null : mMembers.get(index).latency;
+    }
+
+    /**
+     * @param robot the robot
+     * @return number of frames the robot has completed
+     */
+    public synchronized long getCompleted(Robot robot) {
+        int index = find(robot);
+        return (index < 0) ? 0 : mMembers.get(index).completed;
+    }
+
+    /**
+     * @param robot the robot
+     * @return number of frames for the robot that were replaced before they were written
+     */
+    public synchronized long getSuperseded(Robot robot) {
+        int index = find(robot);
+        return (index < 0) ? 0 : mMembers.get(index).superseded;
+    }
+
+    /**
+     * @param robot the robot
+     * @return number of writes to the robot that never completed
+     */
+    public synchronized long getLost(Robot robot) {
+        int index = find(robot);
+        return (index < 0) ? 0 : mMembers.get(index).lost;
+    }
+
+    /**
+     * @param robot the robot
+     * @return frames per second the robot has completed, or 0 if it is not known yet
+     */
+    public synchronized double getThroughput(Robot robot) {
+        int index = find(robot);
+        if (index < 0) {
+            return 0;
+        }
+        Member member = mMembers.get(index);
+        long time = member.lastDoneTime - member.firstDoneTime;
+        return (member.completed < 2 || time <= 0) ? 0 : (member.completed - 1) * 1e9 / time;
+    }
+
+    /**
+     * Clear the statistics of the fleet and every robot
+     */
+    public synchronized void resetStats() {
+        mSkew.reset();
+        mIncompleteFrames = 0;
+        for (Member member : mMembers) {
+            member.latency.reset();
+            member.completed = 0;
+            member.superseded = 0;
+            member.lost = 0;
+            member.firstDoneTime = 0;
+            member.lastDoneTime = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder(mSkew.toString());
+        text.append(", ").append(mIncompleteFrames).append(" incomplete frames");
+        for (Member member : mMembers) {
+            text.append('\n').append(member.latency).append(", ")
+                    .append(String.format("%.1f frames/s, %d superseded, %d lost",
+                            getThroughput(member.robot), member.superseded, member.lost));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Start writing the current frame to a robot
+     *
+     * @param member the robot
+     * @param now the current time in ns
+     * @return true if the write was started
+     */
+    private boolean write(Member member, long now) {
+        member.pending = member.robot.writeDrive(mLeft, mRight);
+        if (member.pending) {
+            member.frame = mFrame;
+            member.issueTime = now;
+        }
+        return member.pending;
+    }
+
+    /**
+     * Count one robot as done with the current frame
+     */
+    private void countDone() {
+        if (--mOutstanding == 0 && mFirstDoneTime != 0) {
+            mSkew.add(mLastDoneTime - mFirstDoneTime);
+        }
+    }
+
+    private int find(Robot robot) {
+        for (int i = 0; i < mMembers.size(); i++) {
+            if (mMembers.get(i).robot == robot) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Put the robots with the longest mean latency first. There are only a few robots and
+     * they are nearly always in order already, so an insertion sort is used. It does not
+     * allocate.
+     */
+    private void sortByLatency() {
+        for (int i = 1; i < mMembers.size(); i++) {
+            Member member = mMembers.get(i);
+            long latency = member.latency.getMean();
+            int j = i - 1;
+            while (j >= 0 && mMembers.get(j).latency.getMean() < latency) {
+                mMembers.set(j + 1, mMembers.get(j));
+                j--;
+            }
+            mMembers.set(j + 1, member);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns driving input from a joystick, the tilt sensors or a gamepad into left and right
+ * motor speeds.
+ *
+ * Input sources can deliver samples at any rate from any thread. Each sample only
+ * replaces the latest input, which is packed into a single long so that the two axes
+ * are always seen together. The pipeline runs on its own thread at the command rate:
+ * each tick it takes the latest input, mixes it into wheel speeds and sends them if
+ * they changed. Fast input streams are coalesced this way down to what the BLE link
+ * can carry, and nothing is allocated per sample or per tick.
+ */
+public class InputPipeline {
+
+    /**
+     * How the two input axes are turned into wheel speeds
+     */
+    public enum Mixing {
+        ARCADE, // first axis is throttle, second is turn (positive to the right)
+        TANK    // first axis is the left wheel, second is the right wheel
+    }
+
+    /**
+     * Where the mixed wheel speeds go
+     */
+    public interface Sink {
+        /**
+         * Called from the pipeline thread when the wheel speeds change
+         *
+         * @param left left wheel speed from -100 to +100
+         * @param right right wheel speed from -100 to +100
+         */
+        void drive(int left, int right);
+    }
+
+    private static final int MAX_SPEED = 100;
+
+    private final Sink mSink;
+    private final ControlLoop mLoop;
+    private volatile Mixing mMixing = Mixing.ARCADE;
+
+    // Latest input with the float bits of the first axis in the high half
+    private final AtomicLong mInput = new AtomicLong(pack(0, 0));
+    private final AtomicLong mSamples = new AtomicLong();
+    private volatile long mCommands;
+
+    // Used only on the pipeline thread
+    private final int[] mSpeeds = new int[2];
+    private int mLastLeft;
+    private int mLastRight;
+
+    /**
+     * @param period time between commands in ns
+     * @param sink where to send the wheel speeds
+     */
+    public InputPipeline(long period, Sink sink) {
+        mSink = sink;
+        mLoop = new ControlLoop("InputPipeline", period, mTask);
+    }
+
+    /**
+     * @param mixing how to turn the input axes into wheel speeds
+     */
+    public void setMixing(Mixing mixing) {
+        mMixing = mixing;
+    }
+
+    /**
+     * Set the latest input. This can be called from any thread at any rate.
+     *
+     * @param first throttle or left wheel from -1 to +1
+     * @param second turn or right wheel from -1 to +1
+     */
+    public void setInput(float first, float second) {
+        mInput.set(pack(first, second));
+        mSamples.incrementAndGet();
+    }
+
+    /**
+     * Start sending commands. The input is reset to the center first.
+     */
+    public void start() {
+        mInput.set(pack(0, 0));
+        mLastLeft = 0;
+        mLastRight = 0;
+        mLoop.start();
+    }
+
+    /**
+     * Stop sending commands
+     */
+    public void stop() {
+        mLoop.stop();
+    }
+
+    /**
+     * @return number of input samples received
+     */
+    public long getSamples() {
+        return mSamples.get();
+    }
+
+    /**
+     * @return number of commands sent to the sink
+     */
+    public long getCommands() {
+        return mCommands;
+    }
+
+    /**
+     * Each tick takes the latest input and sends it if the speeds changed
+     */
+    private final ControlLoop.Task mTask = new ControlLoop.Task() {
+        @Override
+        public void tick(long now, double dt) {
+            long input = mInput.get();
+            mix(mMixing, Float.intBitsToFloat((int) (input >>> 32)), Float.intBitsToFloat((int) input), mSpeeds);
+            if (mSpeeds[0] != mLastLeft || mSpeeds[1] != mLastRight) {
+                mLastLeft = mSpeeds[0];
+                mLastRight = mSpeeds[1];
+                mCommands++;
+                mSink.drive(mLastLeft, mLastRight);
+            }
+        }
+    };
+
+    /**
+     * Mix two input axes into wheel speeds. For arcade mixing, if throttle plus turn is
+     * more than full speed both wheels are scaled down together so that the turn keeps
+     * its shape.
+     *
+     * @param mixing how to mix the axes
+     * @param first throttle or left wheel from -1 to +1
+     * @param second turn or right wheel from -1 to +1
+     * @param speeds filled in with the left and right wheel speeds from -100 to +100
+     */
+    public static void mix(Mixing mixing, float first, float second, int[] speeds) {
+        first = clamp(first);
+        second = clamp(second);
+        float left;
+        float right;
+        if (mixing == Mixing.ARCADE) {
+            left = first + second;
+            right = first - second;
+            float largest = Math.max(Math.abs(left), Math.abs(right));
+            if (largest > 1) {
+                left /= largest;
+                right /= largest;
+            }
+        } else {
+            left = first;
+            right = second;
+        }
+        speeds[0] = Math.round(left * MAX_SPEED);
+        speeds[1] = Math.round(right * MAX_SPEED);
+    }
+
+    private static float clamp(float value) {
+        if (value > 1) {
+            return 1;
+        } else if (value < -1) {
+            return -1;
+        } else if (value != value) {
+            return 0; // NaN
+        }
+        return value;
+    }
+
+    private static long pack(float first, float second) {
+        return ((long) Float.floatToIntBits(first) << 32) | (Float.floatToIntBits(second) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * On screen joystick. Dragging the knob reports its position, and letting go springs
+ * it back to the center. Nothing is allocated while dragging or drawing.
+ */
+public class JoystickView extends View {
+
+    /**
+     * Receives the joystick position
+     */
+    public interface Listener {
+        /**
+         * @param x from -1 (left) to +1 (right)
+         * @param y from -1 (back) to +1 (forward)
+         */
+        void onMove(float x, float y);
+    }
+
+    // Size of the knob relative to the size of the joystick
+    private static final float KNOB_SIZE = 0.3f;
+
+    private final Paint mBasePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mKnobPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private Listener mListener;
+    private float mX;
+    private float mY;
+
+    public JoystickView(Context context) {
+        super(context);
+        init();
+    }
+
+    public JoystickView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        mBasePaint.setColor(Color.LTGRAY);
+        mBasePaint.setStyle(Paint.Style.FILL);
+        mKnobPaint.setColor(Color.DKGRAY);
+        mKnobPaint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * @param listener receives the joystick position, or null
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return radius that the center of the knob can move in
+     */
+    private float getTravel() {
+        return Math.min(getWidth(), getHeight()) / 2f * (1 - KNOB_SIZE);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        float centerX = getWidth() / 2f;
+        float centerY = getHeight() / 2f;
+        float travel = getTravel();
+        canvas.drawCircle(centerX, centerY, Math.min(centerX, centerY), mBasePaint);
+        canvas.drawCircle(centerX + mX * travel, centerY - mY * travel,
+                Math.min(centerX, centerY) * KNOB_SIZE, mKnobPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_MOVE:
+                float travel = getTravel();
+                if (travel <= 0) {
+                    return true;
+                }
+                float x = (event.getX() - getWidth() / 2f) / travel;
+                float y = (getHeight() / 2f - event.getY()) / travel;
+                // Keep the knob inside the circle
+                float distance = (float) Math.sqrt(x * x + y * y);
+                if (distance > 1) {
+                    x /= distance;
+                    y /= distance;
+                }
+                moveTo(x, y);
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                moveTo(0, 0);
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    private void moveTo(float x, float y) {
+        mX = x;
+        mY = y;
+        if (mListener != null) {
+            mListener.onMove(x, y);
+        }
+        invalidate();
+    }
+}
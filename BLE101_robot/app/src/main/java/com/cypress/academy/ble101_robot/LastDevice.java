@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Persistent record of the last device that was controlled. This allows the app to go
+ * straight to the control screen on the next launch instead of scanning first.
+ *
+ * The record holds the device address, the profile (the UUID of the primary service
+ * that the app talks to) and the layout of that service (the UUIDs of the
+ * characteristics that were discovered in it).
+ */
+public class LastDevice {
+
+    private static final String PREFS_NAME = "LastDevice";
+    private static final String PREF_ADDRESS = "Address";
+    private static final String PREF_PROFILE = "Profile";
+    private static final String PREF_LAYOUT = "Layout";
+
+    private final String mAddress;
+    private final UUID mProfile;
+    private final List<UUID> mLayout;
+
+    private LastDevice(String address, UUID profile, List<UUID> layout) {
+        mAddress = address;
+        mProfile = profile;
+        mLayout = layout;
+    }
+
+    /**
+     * Load the last device record
+     *
+     * @param context context used to access the preferences
+     * @return the last device or null if there is no (valid) record
+     */
+    public static LastDevice load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String address = prefs.getString(PREF_ADDRESS, null);
+        String profile = prefs.getString(PREF_PROFILE, null);
+        String layout = prefs.getString(PREF_LAYOUT, "");
+        if (address == null || profile == null) {
+            return null;
+        }
+        try {
+            List<UUID> characteristics = new ArrayList<>();
+            for (String uuid : layout.split(",")) {
+                if (!uuid.isEmpty()) {
+                    characteristics.add(UUID.fromString(uuid));
+                }
+            }
+            return new LastDevice(address, UUID.fromString(profile), characteristics);
+        } catch (IllegalArgumentException e) {
+            return null; // Record is corrupted
+        }
+    }
+
+    /**
+     * Save the record for the device that was just connected
+     *
+     * @param context context used to access the preferences
+     * @param address the device address
+     * @param profile UUID of the service the app uses
+     * @param layout UUIDs of the characteristics found in that service
+     */
+    public static void save(Context context, String address, UUID profile, List<UUID> layout) {
+        StringBuilder characteristics = new StringBuilder();
+        for (UUID uuid : layout) {
+            if (characteristics.length() > 0) {
+                characteristics.append(',');
+            }
+            characteristics.append(uuid.toString());
+        }
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(PREF_ADDRESS, address)
+                .putString(PREF_PROFILE, profile.toString())
+                .putString(PREF_LAYOUT, characteristics.toString())
+                .apply();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public UUID getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Check the services found on connecting against the last connection. Android keeps
+     * its own cache of the services of a device, which can be out of date after the
+     * device's firmware has changed.
+     *
+     * @param layout UUIDs of the characteristics found in the service now
+     * @return true if every characteristic found the last time was found again
+     */
+    public boolean matchesLayout(List<UUID> layout) {
+        return layout.containsAll(mLayout);
+    }
+}
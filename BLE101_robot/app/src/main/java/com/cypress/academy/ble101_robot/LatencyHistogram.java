@@ -0,0 +1,150 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Distribution of a latency, for reporting percentiles such as the median and p99.
+ *
+ * Values are counted in buckets that are spaced logarithmically, with 16 buckets for each
+ * doubling, so a percentile is within about 6% of the true value over a range of 1 us to
+ * hours. The buckets are allocated once, so adding a value does not allocate.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40; // about 12 days in us
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mMax;
+
+    /**
+     * @param name name used when the distribution is printed
+     */
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * Add a measurement
+     *
+     * @param nanos the measured time in ns. Negative times are counted as 0.
+     */
+    public synchronized void add(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mCounts[bucket(micros)]++;
+        mCount++;
+        if (nanos > mMax) {
+            mMax = nanos;
+        }
+    }
+
+    /**
+     * Clear all measurements
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mMax = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Get a percentile of the measurements
+     *
+     * @param fraction the fraction of measurements that are at or below the result, for
+     * example 0.95 for the 95th percentile
+     * @return the percentile in ns, or 0 if there are no measurements
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                // The last bucket also counts everything that is too big for the others
+                return (i == BUCKETS - 1) ? mMax : Math.min(upperBound(i) * 1000, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d samples, p50 %d us, p95 %d us, p99 %d us, max %d us", mName, mCount,
+                getPercentile(0.5) / 1000, getPercentile(0.95) / 1000, getPercentile(0.99) / 1000, mMax / 1000);
+    }
+
+    /**
+     * @param micros a time in us
+     * @return the bucket that counts the time
+     */
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket a bucket
+     * @return the largest time in us counted by the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1L) << shift) - 1;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.Locale;
+
+/**
+ * Follows drive commands from the input event through to the robot and collects how long
+ * each one took to reach each stage.
+ *
+ * Each command gets an ID when it is started. The stages it passes are marked with that
+ * ID and the time since the command was started is added to the distribution for the
+ * stage. The times of the last {@value #SLOTS} commands are kept in a fixed table, so
+ * marking a stage does not allocate. A command that is replaced before it reaches a stage,
+ * as happens when speed writes are coalesced, simply never reaches it.
+ */
+public class LatencyTracer {
+
+    /**
+     * The stages of a drive command, in order
+     */
+    public enum Stage {
+        INPUT,      // the user moved a control
+        COMMAND,    // the service was asked to change speed
+        ENQUEUE,    // the speed write was put in the BLE queue
+        SUBMIT,     // the speed write was handed to the GATT
+        WRITTEN,    // the robot acknowledged the write
+        TACH        // the next tach reading arrived
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final int SLOTS = 64;
+
+    // A command is taken to come from an input event this recent (ns)
+    private static final long MAX_INPUT_AGE = 100000000L;
+
+    private final int[] mIds = new int[SLOTS];
+    private final long[] mStartTimes = new long[SLOTS];
+    private final boolean[][] mReached = new boolean[SLOTS][STAGES.length];
+    private final LatencyHistogram[] mStats = new LatencyHistogram[STAGES.length];
+    private final String[][] mSectionNames = new String[SLOTS][STAGES.length];
+    private int mNextId = 1;
+    private int mCurrent;
+
+    public LatencyTracer() {
+        for (Stage stage : STAGES) {
+            mStats[stage.ordinal()] = new LatencyHistogram("Input to " + stage.name().toLowerCase(Locale.US));
+            for (int slot = 0; slot < SLOTS; slot++) {
+                // Made up front so that trace sections can be named without allocating
+                mSectionNames[slot][stage.ordinal()] = "Drive " + slot + " " + stage.name().toLowerCase(Locale.US);
+            }
+        }
+    }
+
+    /**
+     * Start following a new command
+     *
+     * @param stage the first stage the command has reached
+     * @param now the current time in ns
+     * @return the ID of the command
+     */
+    public synchronized int start(Stage stage, long now) {
+        int id = mNextId++;
+        if (mNextId <= 0) {
+            mNextId = 1;
+        }
+        int slot = id & (SLOTS - 1);
+        mIds[slot] = id;
+        mStartTimes[slot] = now;
+        for (int i = 0; i < STAGES.length; i++) {
+            mReached[slot][i] = false;
+        }
+        mReached[slot][stage.ordinal()] = true;
+        mCurrent = id;
+        return id;
+    }
+
+    /**
+     * Mark the command stage. This continues the command started by the latest input event
+     * if there was a recent one, otherwise it starts a new command.
+     *
+     * @param now the current time in ns
+     * @return the ID of the command
+     */
+    public synchronized int command(long now) {
+        int slot = mCurrent & (SLOTS - 1);
+        if (mCurrent != 0 && mIds[slot] == mCurrent && !mReached[slot][Stage.COMMAND.ordinal()]
+                && now - mStartTimes[slot] < MAX_INPUT_AGE) {
+            mark(mCurrent, Stage.COMMAND, now);
+            return mCurrent;
+        }
+        return start(Stage.COMMAND, now);
+    }
+
+    /**
+     * Mark that a command has reached a stage. Only the first time a command reaches a
+     * stage counts, and commands that are too old to still be in the table are ignored.
+     *
+     * @param id the ID of the command
+     * @param stage the stage
+     * @param now the current time in ns
+     */
+    public synchronized void mark(int id, Stage stage, long now) {
+        int slot = id & (SLOTS - 1);
+        if (id == 0 || mIds[slot] != id || mReached[slot][stage.ordinal()]) {
+            return;
+        }
+        mReached[slot][stage.ordinal()] = true;
+        mStats[stage.ordinal()].add(now - mStartTimes[slot]);
+    }
+
+    /**
+     * @return the ID of the latest command
+     */
+    public synchronized int getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * Get the name of the system trace section for a command at a stage. Commands that are
+     * {@value #SLOTS} apart share names.
+     *
+     * @param id the ID of the command
+     * @param stage the stage
+     * @return the section name
+     */
+    public String getSectionName(int id, Stage stage) {
+        return mSectionNames[id & (SLOTS - 1)][stage.ordinal()];
+    }
+
+    /**
+     * @param stage the stage
+     * @return the distribution of the time from the start of a command to the stage
+     */
+    public LatencyHistogram getStats(Stage stage) {
+        return mStats[stage.ordinal()];
+    }
+
+    /**
+     * Clear the distributions
+     */
+    public void reset() {
+        for (LatencyHistogram stats : mStats) {
+            stats.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i < STAGES.length; i++) {
+            if (i > 1) {
+                text.append('\n');
+            }
+            text.append(mStats[i]);
+        }
+        return text.toString();
+    }
+}
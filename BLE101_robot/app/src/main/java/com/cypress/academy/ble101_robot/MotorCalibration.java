@@ -0,0 +1,220 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import android.content.Context;
+
+/**
+ * How each motor responds to the speed it is sent, learned by a {@link CalibrationSweep}.
+ *
+ * Each motor is modelled separately for each direction as not turning up to an offset
+ * speed, then turning faster by a gain (tach counts/s) for each speed unit above it. The
+ * calibration turns a wanted speed into the speed to send each motor so that both wheels
+ * turn at the same rate. Full speed is the top rate of the slower motor, so that the
+ * faster one is held back to match it.
+ *
+ * Calibrations are kept in the preferences by device address since each robot's motors
+ * differ.
+ */
+public class MotorCalibration {
+
+    private static final String PREFS_NAME = "MotorCalibration";
+
+    public static final int MAX_SPEED = 100;
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+
+    // Indexed by Motor.ordinal() * 2, plus 1 for backwards
+    private final double[] mGain = new double[2 * WHEELS];
+    private final double[] mOffset = new double[2 * WHEELS];
+
+    /**
+     * Make a calibration where every motor turns 10 counts/s per speed unit from 0
+     */
+    public MotorCalibration() {
+        for (int i = 0; i < mGain.length; i++) {
+            mGain[i] = 10;
+        }
+    }
+
+    private static int index(PSoCBleRobotService.Motor motor, boolean forwards) {
+        return motor.ordinal() * 2 + (forwards ? 0 : 1);
+    }
+
+    /**
+     * Set the response of a motor in one direction
+     *
+     * @param motor the motor
+     * @param forwards true for positive speeds, false for negative speeds
+     * @param gain tach counts/s for each speed unit above the offset. Must be positive.
+     * @param offset size of the speed at which the motor starts turning, from 0 to 99
+     */
+    public void set(PSoCBleRobotService.Motor motor, boolean forwards, double gain, double offset) {
+        if (!(gain > 0) || !(offset >= 0 && offset < MAX_SPEED)) {
+            throw new IllegalArgumentException("Bad calibration: gain " + gain + " offset " + offset);
+        }
+        mGain[index(motor, forwards)] = gain;
+        mOffset[index(motor, forwards)] = offset;
+    }
+
+    public double getGain(PSoCBleRobotService.Motor motor, boolean forwards) {
+        return mGain[index(motor, forwards)];
+    }
+
+    public double getOffset(PSoCBleRobotService.Motor motor, boolean forwards) {
+        return mOffset[index(motor, forwards)];
+    }
+
+    /**
+     * @param forwards the direction
+     * @return the tach rate that both motors can reach in that direction, in counts/s
+     */
+    public double getMaxRate(boolean forwards) {
+        double rate = Double.MAX_VALUE;
+        for (PSoCBleRobotService.Motor motor : PSoCBleRobotService.Motor.values()) {
+            int i = index(motor, forwards);
+            rate = Math.min(rate, mGain[i] * (MAX_SPEED - mOffset[i]));
+        }
+        return rate;
+    }
+
+    /**
+     * Work out the speed to send a motor. Any speed other than 0 is sent at least at the
+     * offset so that the motor turns.
+     *
+     * @param motor the motor
+     * @param speed wanted speed from -100 to 100, where 100 is the top rate of the slower motor
+     * @return speed to send the motor, from -100 to 100
+     */
+    public double command(PSoCBleRobotService.Motor motor, double speed) {
+        if (speed == 0) {
+            return 0;
+        }
+        boolean forwards = speed > 0;
+        int i = index(motor, forwards);
+        double rate = Math.min(MAX_SPEED, Math.abs(speed)) / MAX_SPEED * getMaxRate(forwards);
+        double command = Math.min(MAX_SPEED, mOffset[i] + rate / mGain[i]);
+        return forwards ? command : -command;
+    }
+
+    /**
+     * @return the calibration as text that decode reads back
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < mGain.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(mGain[i]).append(',').append(mOffset[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Read a calibration written by encode
+     *
+     * @param text the encoded calibration
+     * @return the calibration
+     * @throws IllegalArgumentException if the text is not a valid calibration
+     */
+    public static MotorCalibration decode(String text) {
+        String[] values = text.split(",");
+        if (values.length != 4 * WHEELS) {
+            throw new IllegalArgumentException("Bad calibration: " + text);
+        }
+        MotorCalibration calibration = new MotorCalibration();
+        int value = 0;
+        for (PSoCBleRobotService.Motor motor : PSoCBleRobotService.Motor.values()) {
+            for (int direction = 0; direction < 2; direction++) {
+                double gain = Double.parseDouble(values[value++]);
+                double offset = Double.parseDouble(values[value++]);
+                calibration.set(motor, direction == 0, gain, offset);
+            }
+        }
+        return calibration;
+    }
+
+    /**
+     * Load the calibration of a robot
+     *
+     * @param context context used to access the preferences
+     * @param address the device address
+     * @return the calibration or null if the robot has no (valid) calibration
+     */
+    public static MotorCalibration load(Context context, String address) {
+        String text = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(address, null);
+        if (text == null) {
+            return null;
+        }
+        try {
+            return decode(text);
+        } catch (IllegalArgumentException e) {
+            return null; // Record is corrupted
+        }
+    }
+
+    /**
+     * Save this as the calibration of a robot
+     *
+     * @param context context used to access the preferences
+     * @param address the device address
+     */
+    public void save(Context context, String address) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(address, encode())
+                .apply();
+    }
+
+    /**
+     * Remove the calibration of a robot
+     *
+     * @param context context used to access the preferences
+     * @param address the device address
+     */
+    public static void forget(Context context, String address) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .remove(address)
+                .apply();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("Calibration:");
+        for (PSoCBleRobotService.Motor motor : PSoCBleRobotService.Motor.values()) {
+            for (int direction = 0; direction < 2; direction++) {
+                int i = index(motor, direction == 0);
+                text.append(String.format(" %s %s gain %.2f offset %.1f", motor, (direction == 0) ? "fwd" : "back",
+                        mGain[i], mOffset[i]));
+            }
+        }
+        return text.toString();
+    }
+}
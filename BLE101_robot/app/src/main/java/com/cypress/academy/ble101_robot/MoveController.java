@@ -0,0 +1,359 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Drives the robot a set number of tach counts and stops it as close to the target as
+ * it can.
+ *
+ * Stopping only when the target has been reached always overshoots, since the last tach
+ * reading is already old when it arrives, the stop takes time to reach the robot and the
+ * robot coasts after the motors are stopped. So the controller slows down as it nears the
+ * target and sends the stop early, when the distance the robot is expected to travel in
+ * the link latency plus its coast time would take it to the target. The link latency is
+ * measured by the service. The coast time is learned from the overshoot of each move.
+ *
+ * Progress is the average of the two wheels' counts from the start of the move, so the
+ * robot is expected to drive both wheels at the same speed. The move is driven by tach
+ * samples, but tach samples may only come when the count changes, so
+ * {@link #check(long)} must also be called from a timer. It ends the move once the robot
+ * has settled, and gives up on a move whose wheels stop turning or that takes too long.
+ * Nothing allocates.
+ */
+public class MoveController {
+
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+
+    // The robot is taken to have stopped when the counts have not changed for this long (ns)
+    private static final long SETTLE_TIME = 200000000L;
+
+    // A move is given up on if the counts do not change for this long (ns) while driving
+    private static final long STUCK_TIME = 1000000000L;
+
+    // Longest a move may take by default (ns)
+    private static final long DEFAULT_TIMEOUT = 30000000000L;
+
+    // Initial coast time (s) and how much of each error is learned
+    private static final double INITIAL_COAST = 0.05;
+    private static final double LEARNING_RATE = 0.5;
+    private static final double MAX_COAST = 1.0;
+
+    private enum State { IDLE, MOVING, STOPPING }
+
+    private final int mMinSpeed;
+    private final double mBrakeTime;
+    private State mState = State.IDLE;
+    private long mLatency;
+    private double mCoastTime = INITIAL_COAST;
+    private boolean mPredictive = true;
+    private long mTimeout = DEFAULT_TIMEOUT;
+
+    // The move in progress
+    private int mTarget;
+    private int mDirection;
+    private int mCruiseSpeed;
+    private int mSpeed;
+    private final int[] mStart = new int[WHEELS];
+    private final int[] mCount = new int[WHEELS];
+    private final long[] mTime = new long[WHEELS];
+    private final double[] mRate = new double[WHEELS];
+    private final boolean[] mHaveCount = new boolean[WHEELS];
+    private double mStopRate;
+    private long mStartTime;
+    private long mLastChangeTime;
+    private boolean mTimedOut;
+
+    // Overshoot statistics in counts, positive when the robot went too far
+    private long mMoves;
+    private int mLastOvershoot;
+    private long mOvershootSum;
+    private long mAbsOvershootSum;
+    private int mMaxOvershoot;
+
+    /**
+     * @param minSpeed slowest speed to drive at while slowing down. It must be fast enough
+     *                 for the robot to keep moving.
+     * @param brakeTime time (s) before the target at which to start slowing down
+     */
+    public MoveController(int minSpeed, double brakeTime) {
+        mMinSpeed = minSpeed;
+        mBrakeTime = brakeTime;
+    }
+
+    /**
+     * @param latency time in ns from a tach reading being taken to a command sent in
+     *                response taking effect, about one BLE round trip
+     */
+    public synchronized void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Turn the early slow down and stop on or off. With it off the robot is stopped when
+     * the target has been reached, which shows how much the prediction helps.
+     *
+     * @param predictive true to slow down and stop early
+     */
+    public synchronized void setPredictive(boolean predictive) {
+        mPredictive = predictive;
+    }
+
+    /**
+     * @param timeout longest time in ns a move may take, from its start until the robot
+     *                has stopped
+     */
+    public synchronized void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Start a move
+     *
+     * @param counts tach counts to travel. Negative counts drive backwards.
+     * @param speed speed to drive at from 1 to 100
+     * @param leftCount the left tach count now
+     * @param rightCount the right tach count now
+     * @param now the current time in ns
+     * @return the speed to drive both wheels at
+     */
+    public synchronized int start(int counts, int speed, int leftCount, int rightCount, long now) {
+        mTarget = Math.abs(counts);
+        mDirection = (counts < 0) ? -1 : 1;
+        mCruiseSpeed = Math.max(mMinSpeed, Math.min(100, Math.abs(speed)));
+        mStart[PSoCBleRobotService.Motor.LEFT.ordinal()] = leftCount;
+        mStart[PSoCBleRobotService.Motor.RIGHT.ordinal()] = rightCount;
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            mCount[wheel] = mStart[wheel];
+            mTime[wheel] = now;
+            mRate[wheel] = 0;
+            mHaveCount[wheel] = false;
+        }
+        mStartTime = now;
+        mLastChangeTime = now;
+        mTimedOut = false;
+        mState = (mTarget == 0) ? State.IDLE : State.MOVING;
+        mSpeed = (mState == State.MOVING) ? mCruiseSpeed * mDirection : 0;
+        return mSpeed;
+    }
+
+    /**
+     * Stop the move without counting it
+     */
+    public synchronized void cancel() {
+        mState = State.IDLE;
+        mSpeed = 0;
+    }
+
+    /**
+     * @return true while a move is driving or settling
+     */
+    public synchronized boolean isActive() {
+        return mState != State.IDLE;
+    }
+
+    /**
+     * Handle a tach sample
+     *
+     * @param motor the wheel
+     * @param count its tach count
+     * @param now time the sample arrived in ns
+     * @return true if the move has just ended, so its overshoot is known
+     */
+    public synchronized boolean onTach(PSoCBleRobotService.Motor motor, int count, long now) {
+        if (mState == State.IDLE) {
+            return false;
+        }
+        int wheel = motor.ordinal();
+        long elapsed = now - mTime[wheel];
+        if (mHaveCount[wheel] && elapsed > 0) {
+            mRate[wheel] = Math.abs(count - mCount[wheel]) * 1e9 / elapsed;
+        }
+        if (count != mCount[wheel]) {
+            mLastChangeTime = now;
+        }
+        mHaveCount[wheel] = true;
+        mCount[wheel] = count;
+        mTime[wheel] = now;
+
+        double progress = getProgress();
+        double rate = (mRate[0] + mRate[1]) / 2;
+        if (mState == State.MOVING) {
+            double remaining = mTarget - progress;
+            // How far the robot goes after a stop is sent now
+            double stopping = mPredictive ? rate * (mLatency / 1e9 + mCoastTime) : 0;
+            if (remaining <= stopping) {
+                mState = State.STOPPING;
+                mStopRate = rate;
+                mSpeed = 0;
+            } else if (mPredictive && remaining - stopping < rate * mBrakeTime) {
+                // Slow down in proportion to the distance left
+                double fraction = (remaining - stopping) / (rate * mBrakeTime);
+                mSpeed = mDirection * Math.max(mMinSpeed, (int) Math.round(mCruiseSpeed * fraction));
+            } else {
+                mSpeed = mDirection * mCruiseSpeed;
+            }
+            return false;
+        }
+        return settle(now);
+    }
+
+    /**
+     * Check the move in progress without a tach sample. This must be called regularly,
+     * since the wheels stop sending tach samples once they stop turning.
+     *
+     * @param now the current time in ns
+     * @return true if the move has just ended, either because the robot has stopped or
+     * because the move was given up on
+     */
+    public synchronized boolean check(long now) {
+        if (mState == State.IDLE) {
+            return false;
+        }
+        boolean stuck = mState == State.MOVING && now - mLastChangeTime >= STUCK_TIME;
+        if (stuck || now - mStartTime >= mTimeout) {
+            mState = State.IDLE;
+            mSpeed = 0;
+            mTimedOut = true;
+            return true;
+        }
+        if (mState == State.STOPPING) {
+            return settle(now);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the last move was given up on because its wheels stopped turning
+     * or it took too long. Such a move is not counted in the overshoot statistics.
+     */
+    public synchronized boolean hasTimedOut() {
+        return mTimedOut;
+    }
+
+    /**
+     * End the move if the robot has stopped, and learn from its overshoot
+     *
+     * @return true if the move has just ended
+     */
+    private boolean settle(long now) {
+        if (now - mLastChangeTime < SETTLE_TIME) {
+            return false;
+        }
+        int overshoot = (int) Math.round(getProgress()) - mTarget;
+        if (mPredictive && mStopRate > 0) {
+            // Going too far means the robot coasts for longer than we thought
+            mCoastTime += LEARNING_RATE * overshoot / mStopRate;
+            mCoastTime = Math.max(0, Math.min(MAX_COAST, mCoastTime));
+        }
+        mMoves++;
+        mLastOvershoot = overshoot;
+        mOvershootSum += overshoot;
+        mAbsOvershootSum += Math.abs(overshoot);
+        mMaxOvershoot = Math.max(mMaxOvershoot, Math.abs(overshoot));
+        mState = State.IDLE;
+        return true;
+    }
+
+    /**
+     * @return the speed to drive both wheels at
+     */
+    public synchronized int getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * @return counts travelled in the direction of the move, averaged over the wheels
+     */
+    public synchronized double getProgress() {
+        long total = 0;
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            total += mCount[wheel] - mStart[wheel];
+        }
+        return mDirection * total / (double) WHEELS;
+    }
+
+    /**
+     * @return the coast time learned so far in s
+     */
+    public synchronized double getCoastTime() {
+        return mCoastTime;
+    }
+
+    public synchronized long getMoves() {
+        return mMoves;
+    }
+
+    /**
+     * @return the overshoot of the last move in counts, negative if it fell short
+     */
+    public synchronized int getLastOvershoot() {
+        return mLastOvershoot;
+    }
+
+    /**
+     * @return the mean overshoot in counts, which shows any bias
+     */
+    public synchronized double getMeanOvershoot() {
+        return (mMoves == 0) ? 0 : mOvershootSum / (double) mMoves;
+    }
+
+    /**
+     * @return the mean size of the overshoot in counts, which shows the accuracy
+     */
+    public synchronized double getMeanAbsOvershoot() {
+        return (mMoves == 0) ? 0 : mAbsOvershootSum / (double) mMoves;
+    }
+
+    /**
+     * @return the largest overshoot, either way, in counts
+     */
+    public synchronized int getMaxOvershoot() {
+        return mMaxOvershoot;
+    }
+
+    /**
+     * Clear the overshoot statistics and what has been learned
+     */
+    public synchronized void resetStats() {
+        mMoves = 0;
+        mLastOvershoot = 0;
+        mOvershootSum = 0;
+        mAbsOvershootSum = 0;
+        mMaxOvershoot = 0;
+        mCoastTime = INITIAL_COAST;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Moves: %d, last overshoot %d, mean %.1f, mean size %.1f, max %d counts, coast %.0f ms",
+                mMoves, mLastOvershoot, getMeanOvershoot(), getMeanAbsOvershoot(), mMaxOvershoot, mCoastTime * 1000);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Dead reckoning for the robot from the tach counts of the two wheels.
+ *
+ * Each tach sample is timestamped when it arrives. The change in count since the
+ * previous sample of that wheel is turned into a distance. The two wheels send their
+ * samples separately, so a move is integrated into the x/y position and heading of
+ * the robot once both wheels have reported. Integrating each wheel on its own would
+ * make the robot pivot about the other wheel on every sample and drift sideways. If
+ * one wheel stops reporting, the other is integrated on its own. The tach is a 32 bit
+ * counter so the change is taken with an int subtraction, which is correct across
+ * wraparound.
+ *
+ * The pose is written by the thread that delivers the tach samples and can be read
+ * from any thread with {@link #getPose(Pose)}. Readers never block the writer: the
+ * pose is published with a sequence number that is odd while an update is in
+ * progress, and a reader simply tries again if the sequence changed while it was
+ * reading. Nothing here allocates after construction.
+ */
+public class Odometry {
+
+    /**
+     * A copy of the robot pose. Callers keep one of these and have it filled in.
+     */
+    public static class Pose {
+        public double x;            // m, along the starting heading
+        public double y;            // m, to the left of the starting heading
+        public double heading;      // radians, counter clockwise from the starting heading
+        public double leftRpm;
+        public double rightRpm;
+        public long time;           // time of the last tach sample from System.nanoTime()
+    }
+
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+
+    // A wheel that has not reported a tach sample for this long (ns) is reported as stopped
+    private static final long RPM_TIMEOUT = 500000000L;
+
+    // Moves are integrated without waiting for a wheel that has been silent this long (ns)
+    private static final long PAIR_TIMEOUT = 100000000L;
+
+    private final double mMetersPerCount;
+    private final double mCountsPerRev;
+    private final double mTrackWidth;
+
+    // Writer state, only used by the thread that calls onTach
+    private final boolean[] mHaveCount = new boolean[WHEELS];
+    private final int[] mLastCount = new int[WHEELS];
+    private final long[] mLastTime = new long[WHEELS];
+    private final int[] mPendingCount = new int[WHEELS];
+    private final boolean[] mPending = new boolean[WHEELS];
+    private double mX;
+    private double mY;
+    private double mHeading;
+    private final double[] mRpm = new double[WHEELS];
+
+    // Published pose
+    private volatile int mSequence;
+    private volatile double mPubX;
+    private volatile double mPubY;
+    private volatile double mPubHeading;
+    private volatile double mPubLeftRpm;
+    private volatile double mPubRightRpm;
+    private volatile long mPubTime;
+    private volatile long mPubLeftTime;
+    private volatile long mPubRightTime;
+
+    /**
+     * @param countsPerRev tach counts per revolution of a wheel
+     * @param wheelDiameter diameter of the wheels in m
+     * @param trackWidth distance between the wheels in m
+     */
+    public Odometry(double countsPerRev, double wheelDiameter, double trackWidth) {
+        mCountsPerRev = countsPerRev;
+        mMetersPerCount = Math.PI * wheelDiameter / countsPerRev;
+        mTrackWidth = trackWidth;
+    }
+
+    /**
+     * Feed a tach sample into the odometry. This must always be called from the same
+     * thread, normally the GATT callback thread.
+     *
+     * @param motor wheel the sample is for
+     * @param count tach count
+     * @param now time of arrival from {@code System.nanoTime()}
+     */
+    public void onTach(PSoCBleRobotService.Motor motor, int count, long now) {
+        int wheel = motor.ordinal();
+        if (!mHaveCount[wheel]) {
+            // First sample only sets the starting count
+            mHaveCount[wheel] = true;
+            mLastCount[wheel] = count;
+            mLastTime[wheel] = now;
+            return;
+        }
+        long elapsed = now - mLastTime[wheel];
+        int delta = count - mLastCount[wheel];
+        mLastCount[wheel] = count;
+        mLastTime[wheel] = now;
+        if (elapsed > 0) {
+            mRpm[wheel] = delta * 60e9 / (elapsed * mCountsPerRev);
+        }
+
+        mPendingCount[wheel] += delta;
+        mPending[wheel] = true;
+        int other = 1 - wheel;
+        if (!mPending[other] && mHaveCount[other] && now - mLastTime[other] < PAIR_TIMEOUT) {
+            // Wait for the other wheel
+            publish(now);
+            return;
+        }
+
+        // Integrate along the arc using the heading half way through the move
+        int left = PSoCBleRobotService.Motor.LEFT.ordinal();
+        int right = PSoCBleRobotService.Motor.RIGHT.ordinal();
+        integrate(mPendingCount[left] * mMetersPerCount, mPendingCount[right] * mMetersPerCount);
+        mPendingCount[left] = 0;
+        mPendingCount[right] = 0;
+        mPending[left] = false;
+        mPending[right] = false;
+        publish(now);
+    }
+
+    /**
+     * Move the robot along an arc
+     *
+     * @param left distance moved by the left wheel in m
+     * @param right distance moved by the right wheel in m
+     */
+    private void integrate(double left, double right) {
+        double center = (left + right) / 2;
+        double turn = (right - left) / mTrackWidth;
+        double mid = mHeading + turn / 2;
+        mX += center * Math.cos(mid);
+        mY += center * Math.sin(mid);
+        mHeading = normalize(mHeading + turn);
+    }
+
+    /**
+     * Put the robot back at the origin and forget the tach history. This must be called
+     * from the same thread as onTach, or while no samples are arriving.
+     */
+    public void reset() {
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            mHaveCount[wheel] = false;
+            mPendingCount[wheel] = 0;
+            mPending[wheel] = false;
+            mRpm[wheel] = 0;
+        }
+        mX = 0;
+        mY = 0;
+        mHeading = 0;
+        publish(0);
+    }
+
+    /**
+     * Get a consistent copy of the latest pose. This can be called from any thread.
+     *
+     * @param pose object to fill in
+     * @param now current time from {@code System.nanoTime()}, used to report wheels that
+     *            have stopped sending samples as stopped
+     */
+    public void getPose(Pose pose, long now) {
+        int sequence;
+        long leftTime;
+        long rightTime;
+        do {
+            sequence = mSequence;
+            pose.x = mPubX;
+            pose.y = mPubY;
+            pose.heading = mPubHeading;
+            pose.leftRpm = mPubLeftRpm;
+            pose.rightRpm = mPubRightRpm;
+            pose.time = mPubTime;
+            leftTime = mPubLeftTime;
+            rightTime = mPubRightTime;
+        } while ((sequence & 1) != 0 || sequence != mSequence);
+
+        if (now - leftTime > RPM_TIMEOUT) {
+            pose.leftRpm = 0;
+        }
+        if (now - rightTime > RPM_TIMEOUT) {
+            pose.rightRpm = 0;
+        }
+    }
+
+    /**
+     * Get a consistent copy of the latest pose. This can be called from any thread.
+     *
+     * @param pose object to fill in
+     */
+    public void getPose(Pose pose) {
+        getPose(pose, System.nanoTime());
+    }
+
+    /**
+     * Publish the writer state for readers
+     *
+     * @param now time of the sample that caused the update
+     */
+    private void publish(long now) {
+        mSequence++;
+        mPubX = mX;
+        mPubY = mY;
+        mPubHeading = mHeading;
+        mPubLeftRpm = mRpm[PSoCBleRobotService.Motor.LEFT.ordinal()];
+        mPubRightRpm = mRpm[PSoCBleRobotService.Motor.RIGHT.ordinal()];
+        mPubLeftTime = mLastTime[PSoCBleRobotService.Motor.LEFT.ordinal()];
+        mPubRightTime = mLastTime[PSoCBleRobotService.Motor.RIGHT.ordinal()];
+        mPubTime = now;
+        mSequence++;
+    }
+
+    /**
+     * @param angle angle in radians
+     * @return the same angle in the range -pi to pi
+     */
+    private static double normalize(double angle) {
+        while (angle > Math.PI) {
+            angle -= 2 * Math.PI;
+        }
+        while (angle <= -Math.PI) {
+            angle += 2 * Math.PI;
+        }
+        return angle;
+    }
+}
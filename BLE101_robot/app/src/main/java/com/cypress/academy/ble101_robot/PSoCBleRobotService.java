@@ -43,11 +43,20 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Service for managing connection and data communication with the BLE car
@@ -57,36 +66,149 @@ public class PSoCBleRobotService extends Service {
     private final static String TAG = PSoCBleRobotService.class.getSimpleName();
 
     public enum Motor { LEFT, RIGHT }
+    private static final Motor[] MOTORS = Motor.values();
 
     private static BluetoothManager mBluetoothManager;
     private static BluetoothAdapter mBluetoothAdapter;
     private static String mBluetoothDeviceAddress;
     private static BluetoothGatt mBluetoothGatt;
+    private static boolean mConnected;
+
+    // Times (in ms) when the current connection was started and when it was ready for use.
+    // These are used to report how much time a speculative connection saved.
+    private static long mConnectStartTime;
+    private static long mReadyTime;
+
+    // True once the GATT cache has been refreshed on this connection because the services
+    // found did not match the last connection
+    private static boolean mGattRefreshed;
+
+    // Services found on this connection, and whether the user picked its device. Only a
+    // device the user picked is remembered for the next launch, not one connected to
+    // speculatively while scanning.
+    private static volatile List<UUID> mLayout;
+    private static volatile boolean mAdopted;
 
     //  Queue for BLE events
-    //  This is needed so that rapid BLE events don't get dropped
-    private static final Queue<Object> BleQueue = new LinkedList<>();
+    //  This is needed so that rapid BLE events don't get dropped. The item at the head of the
+    //  queue is the one in flight. The queue is used from the UI thread and from the GATT
+    //  callbacks so it must only be accessed while holding its lock.
+    private static final LinkedList<Object> BleQueue = new LinkedList<>();
 
     // UUID for the custom motor characteristics
-    private static final String baseUUID =           "00000000-0000-1000-8000-00805f9b34f";
-    private static final String motorServiceUUID =   baseUUID + "0";
-    private static final String speedLeftCharUUID =  baseUUID + "1";
-    private static final String speedRightCharUUID = baseUUID + "2";
-    private static final String tachLeftCharUUID =   baseUUID + "3";
-    private static final String tachRightCharUUID =  baseUUID + "4";
-    private static final String CCCD_UUID =          "00002902-0000-1000-8000-00805f9b34fb";
+    static final String baseUUID =           "00000000-0000-1000-8000-00805f9b34f";
+    static final String motorServiceUUID =   baseUUID + "0";
+    static final String speedLeftCharUUID =  baseUUID + "1";
+    static final String speedRightCharUUID = baseUUID + "2";
+    static final String tachLeftCharUUID =   baseUUID + "3";
+    static final String tachRightCharUUID =  baseUUID + "4";
+    // Optional characteristic that takes both speeds (left then right, SINT8) in one write
+    static final String driveCharUUID =      baseUUID + "5";
+    static final String CCCD_UUID =          "00002902-0000-1000-8000-00805f9b34fb";
 
     // Bluetooth Characteristics that we need to read/write
     private static BluetoothGattCharacteristic mSpeedLeftCharacteristic;
     private static BluetoothGattCharacteristic mSpeedRightCharacteristic;
     private static BluetoothGattCharacteristic mTachLeftCharacteristic;
     private static BluetoothGattCharacteristic mTachRightCharacteristic;
+    private static BluetoothGattCharacteristic mDriveCharacteristic;
+
+    // Completion times (in ns) of the two wheel writes of the drive frame in flight, used to
+    // measure how far apart the wheels changed speed. Zero means that write is not done yet.
+    // Only one frame is in flight at a time so that each completion belongs to it. A frame
+    // written meanwhile is held and sent when the one in flight is done. All of this is
+    // guarded by BleQueue.
+    private static boolean mDriveFramePending;
+    private static long mDriveLeftDoneTime;
+    private static long mDriveRightDoneTime;
+    private static boolean mDriveFrameHeld;
+    private static int mHeldLeft;
+    private static int mHeldRight;
+    private static final TimingStats mDriveSkew = new TimingStats("Drive skew");
+
+    // Time (in ns) the last drive frame was issued and how long frames take to be written
+    private static long mDriveIssueTime;
+    private static final TimingStats mDriveLatency = new TimingStats("Drive write latency");
+
+    // Output stage. Requested speeds are shaped by the speed shaper. When slew limiting or
+    // closed loop speed control is on a control loop runs and the shaped speeds become its
+    // targets. The control loop is then the only thing that writes the motor speeds. Every
+    // change to the motor speeds goes through mOutput, which is also the lock for them.
+    private static final long CONTROL_PERIOD = 50000000L; // 50 ms
+    private static final double MAX_TACH_RATE = 1000; // counts/s at full speed
+    private static final SpeedShaper mSpeedShaper = new SpeedShaper();
+    private static final SpeedController mSpeedController = new SpeedController(MAX_TACH_RATE);
+    private static ControlLoop mControlLoop;
+    private static DriveOutput mOutput;
+
+    // Stall detection. If the cutoff is on a stalled motor is turned off.
+    private static final int STALL_WINDOW = 8; // tach samples
+    private static final StallDetector mStallDetector = new StallDetector(MAX_TACH_RATE, STALL_WINDOW);
+    private static boolean mStallCutoff = true;
+
+    // Deadman stop. The robot is stopped if there is no control input or heartbeat for the
+    // timeout. The deadman is checked on its own thread so a stuck UI thread cannot delay it.
+    // The same thread checks for wheels that have stopped reporting.
+    private static final long DEADMAN_TIMEOUT = 1000; // ms
+    private static final long DEADMAN_CHECK_PERIOD = 20000000L; // 20 ms
+    private static Deadman mDeadman;
+    private static ControlLoop mDeadmanLoop;
+
+    // Program recording and playback. While recording, every change in the requested
+    // speeds is added to the program.
+    private static DriveProgram mRecording;
+    private static long mRecordStart;
+    private static int mRecordedLeft;
+    private static int mRecordedRight;
+    private static ProgramPlayer mPlayer;
+
+    // Moves by a number of tach counts. A move is driven by the tach notifications and
+    // checked on the deadman thread. Its speeds are dropped once the robot has been stopped
+    // since the move started. A move is not control input as far as the deadman is concerned.
+    private static final int MOVE_MIN_SPEED = 25;
+    private static final double MOVE_BRAKE_TIME = 0.3; // s
+    private static final MoveController mMove = new MoveController(MOVE_MIN_SPEED, MOVE_BRAKE_TIME);
+    private static int mMoveStops;
+
+    // Motor calibration. While the sweep runs it sends raw speeds and the speed shaping,
+    // control loop and stall cutoff are left out. The result is built into the shaper table.
+    private static final CalibrationSweep mSweep = new CalibrationSweep();
+    private static int mSweepStops;
+
+    // Other robots driven together with this one. When there are any, this robot is in the
+    // fleet too and every drive frame goes to all of them.
+    private static final FleetController mFleet = new FleetController();
+    private static final List<RobotLink> mFleetLinks = new ArrayList<>();
+
+    // Latency tracing. The speed write of the latest command and the command it belongs
+    // to are remembered so that the later stages can be marked when they happen.
+    private static final LatencyTracer mTracer = new LatencyTracer();
+    private static volatile BluetoothGattCharacteristic mTracedWrite;
+    private static volatile int mWriteTraceId;
+    private static volatile int mTachTraceId;
+
+    // Bridge for driving the robot from another computer over TCP
+    private static RemoteBridge mRemoteBridge;
+
+    // Longest time (ms) to wait for a stop to be sent before disconnecting. The wait is done
+    // on the close thread, and the connection is then closed on the main thread by the
+    // pending close unless a new connection has closed it first.
+    private static final long STOP_FLUSH_TIMEOUT = 200;
+    private static final ExecutorService mCloseExecutor = Executors.newSingleThreadExecutor();
+    private static Runnable mPendingClose;
+    private final Handler mHandler = new Handler();
+
+    // Geometry of the robot used for odometry
+    private static final double COUNTS_PER_REV = 360;   // tach counts per wheel revolution
+    private static final double WHEEL_DIAMETER = 0.065; // m
+    private static final double TRACK_WIDTH = 0.13;     // m between the wheels
+    private static final Odometry mOdometry = new Odometry(COUNTS_PER_REV, WHEEL_DIAMETER, TRACK_WIDTH);
 
-    // State (on/off), speed of the motors, and tach values
-    private static boolean motorLeftState;
-    private static boolean motorRightState;
-    private static int motorLeftSpeed;
-    private static int motorRightSpeed;
+    // History of the tach readings for each wheel, indexed by Motor.ordinal()
+    private static final int DEFAULT_HISTORY = 4096; // samples per wheel
+    private static volatile TelemetryBuffer[] mTachHistory = makeTachHistory(DEFAULT_HISTORY);
+
+    // Tach values
     private static int motorLeftTach;
     private static int motorRightTach;
 
@@ -97,6 +219,33 @@ public class PSoCBleRobotService extends Service {
             "com.cypress.academy.ble101_robot.ACTION_GATT_DISCONNECTED";
     public static final String ACTION_DATA_AVAILABLE =
             "com.cypress.academy.ble101_robot.ACTION_DATA_AVAILABLE";
+    public static final String ACTION_STALL =
+            "com.cypress.academy.ble101_robot.ACTION_STALL";
+    public static final String ACTION_DEADMAN_STOP =
+            "com.cypress.academy.ble101_robot.ACTION_DEADMAN_STOP";
+    public static final String ACTION_PROGRAM_DONE =
+            "com.cypress.academy.ble101_robot.ACTION_PROGRAM_DONE";
+    public static final String ACTION_MOVE_DONE =
+            "com.cypress.academy.ble101_robot.ACTION_MOVE_DONE";
+    public static final String ACTION_CALIBRATION_DONE =
+            "com.cypress.academy.ble101_robot.ACTION_CALIBRATION_DONE";
+
+    // Extra in ACTION_STALL with the name of the Motor that stalled
+    public static final String EXTRA_MOTOR =
+            "com.cypress.academy.ble101_robot.EXTRA_MOTOR";
+
+    // Extra in ACTION_MOVE_DONE with how many counts the robot went past the target
+    public static final String EXTRA_OVERSHOOT =
+            "com.cypress.academy.ble101_robot.EXTRA_OVERSHOOT";
+
+    // Extra in ACTION_MOVE_DONE and ACTION_CALIBRATION_DONE, true if the move or the
+    // calibration was given up on before it was done
+    public static final String EXTRA_TIMED_OUT =
+            "com.cypress.academy.ble101_robot.EXTRA_TIMED_OUT";
+
+    // Extra in ACTION_CALIBRATION_DONE, true if a calibration was learned
+    public static final String EXTRA_CALIBRATED =
+            "com.cypress.academy.ble101_robot.EXTRA_CALIBRATED";
 
     /**
      * This is a binder for the BluetoothLeService
@@ -114,12 +263,43 @@ public class PSoCBleRobotService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // Disconnect from the GATT database and close the connection
-        disconnect();
-        close();
+        stopRemoteControl();
+        // Stop the robot and give the stop a chance to go out before disconnecting
+        if (mDeadmanLoop != null) {
+            mDeadmanLoop.stop();
+            mDeadmanLoop = null;
+            Log.i(TAG, mDeadman.getLatency().toString());
+        }
+        stop();
+        closeAfterStop();
         return super.onUnbind(intent);
     }
 
+    /**
+     * Disconnect from the GATT database and close the connection once the BLE queue has
+     * been sent or STOP_FLUSH_TIMEOUT has passed, without holding up the main thread
+     */
+    private void closeAfterStop() {
+        final Runnable close = new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingClose == this) {
+                    mPendingClose = null;
+                    disconnect();
+                    close();
+                }
+            }
+        };
+        mPendingClose = close;
+        mCloseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                waitForBleQueue(STOP_FLUSH_TIMEOUT);
+                mHandler.post(close);
+            }
+        });
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -135,6 +315,7 @@ public class PSoCBleRobotService extends Service {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnected = true;
                 broadcastUpdate(ACTION_CONNECTED);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
@@ -142,6 +323,7 @@ public class PSoCBleRobotService extends Service {
                         mBluetoothGatt.discoverServices());
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mConnected = false;
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(ACTION_DISCONNECTED);
             }
@@ -162,15 +344,56 @@ public class PSoCBleRobotService extends Service {
                 // Get the characteristics for the motor service
                 BluetoothGattService gattService = mBluetoothGatt.getService(UUID.fromString(motorServiceUUID));
                 if (gattService == null) return; // return if the motor service is not supported
+
+                // A characteristic that was there the last time but is missing now usually
+                // means that Android's cache of the services is stale. Drop it and look again.
+                List<UUID> layout = new ArrayList<>();
+                for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
+                    layout.add(characteristic.getUuid());
+                }
+                LastDevice lastDevice = LastDevice.load(PSoCBleRobotService.this);
+                if (lastDevice != null && !mGattRefreshed
+                        && lastDevice.getAddress().equals(mBluetoothDeviceAddress)
+                        && !lastDevice.matchesLayout(layout)) {
+                    Log.w(TAG, "Services differ from the last connection, discovering again");
+                    mGattRefreshed = true;
+                    if (refreshGattCache(gatt) && gatt.discoverServices()) {
+                        return;
+                    }
+                }
                 mSpeedLeftCharacteristic = gattService.getCharacteristic(UUID.fromString(speedLeftCharUUID));
                 mSpeedRightCharacteristic = gattService.getCharacteristic(UUID.fromString(speedRightCharUUID));
                 mTachLeftCharacteristic = gattService.getCharacteristic(UUID.fromString(tachLeftCharUUID));
                 mTachRightCharacteristic = gattService.getCharacteristic(UUID.fromString(tachRightCharUUID));
+                mDriveCharacteristic = gattService.getCharacteristic(UUID.fromString(driveCharUUID));
+                if (mDriveCharacteristic != null) {
+                    // Size the value once so that drive frames can be set without allocating
+                    mDriveCharacteristic.setValue(new byte[2]);
+                    Log.i(TAG, "Robot supports packed drive frames");
+                }
+
+                // Start dead reckoning and stall detection from here
+                mOdometry.reset();
+                mStallDetector.reset();
+
+                // Make up for this robot's motor differences if it has been calibrated
+                MotorCalibration calibration = MotorCalibration.load(PSoCBleRobotService.this, mBluetoothDeviceAddress);
+                mSpeedShaper.setCalibration(calibration);
+                if (calibration != null) {
+                    Log.i(TAG, calibration.toString());
+                }
 
                 // Set the CCCD to notify us for the two tach readings
                 setCharacteristicNotification(mTachLeftCharacteristic, true);
                 setCharacteristicNotification(mTachRightCharacteristic, true);
 
+                mReadyTime = SystemClock.elapsedRealtime();
+                Log.i(TAG, "Ready for control " + (mReadyTime - mConnectStartTime) + " ms after connecting");
+
+                // Remember this device so the next launch can connect to it directly
+                mLayout = layout;
+                saveLastDevice();
+
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
@@ -180,12 +403,18 @@ public class PSoCBleRobotService extends Service {
          * This handles the BLE Queue. If the queue is not empty, it starts the next event.
          */
         private void handleBleQueue() {
-            if(BleQueue.size() > 0) {
-                // Determine which type of event is next and fire it off
-                if (BleQueue.element() instanceof BluetoothGattDescriptor) {
-                    mBluetoothGatt.writeDescriptor((BluetoothGattDescriptor) BleQueue.element());
-                } else if (BleQueue.element() instanceof BluetoothGattCharacteristic) {
-                    mBluetoothGatt.writeCharacteristic((BluetoothGattCharacteristic) BleQueue.element());
+            synchronized (BleQueue) {
+                if (BleQueue.isEmpty()) {
+                    // Wake up anyone waiting for the queue to drain
+                    BleQueue.notifyAll();
+                } else if (mBluetoothGatt != null) {
+                    // Determine which type of event is next and fire it off
+                    if (BleQueue.element() instanceof BluetoothGattDescriptor) {
+                        mBluetoothGatt.writeDescriptor((BluetoothGattDescriptor) BleQueue.element());
+                    } else if (BleQueue.element() instanceof BluetoothGattCharacteristic) {
+                        traceSubmit(BleQueue.element());
+                        mBluetoothGatt.writeCharacteristic((BluetoothGattCharacteristic) BleQueue.element());
+                    }
                 }
             }
         }
@@ -202,10 +431,55 @@ public class PSoCBleRobotService extends Service {
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
-            // Pop the item that was written from the queue
-            BleQueue.remove();
-            // See if there are more items in the BLE queues
-            handleBleQueue();
+            measureDriveSkew(characteristic);
+            if (characteristic == mTracedWrite) {
+                mTracedWrite = null;
+                trace(mWriteTraceId, LatencyTracer.Stage.WRITTEN);
+                mTachTraceId = mWriteTraceId;
+            }
+            synchronized (BleQueue) {
+                // Pop the item that was written from the queue
+                BleQueue.poll();
+                // See if there are more items in the BLE queues
+                handleBleQueue();
+            }
+        }
+
+        /**
+         * Record when each wheel of a drive frame was written. Once both are done the time
+         * between them is added to the drive skew statistics and any frame that was held
+         * meanwhile is written.
+         *
+         * @param characteristic The characteristic that was written.
+         */
+        private void measureDriveSkew(BluetoothGattCharacteristic characteristic) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            synchronized (BleQueue) {
+                if (!mDriveFramePending) {
+                    return;
+                }
+                if (characteristic == mDriveCharacteristic) {
+                    // Both wheels were set by the same write
+                    mDriveSkew.add(0);
+                } else {
+                    if (characteristic == mSpeedLeftCharacteristic) {
+                        mDriveLeftDoneTime = now;
+                    } else if (characteristic == mSpeedRightCharacteristic) {
+                        mDriveRightDoneTime = now;
+                    }
+                    if (mDriveLeftDoneTime == 0 || mDriveRightDoneTime == 0) {
+                        return;
+                    }
+                    mDriveSkew.add(Math.abs(mDriveRightDoneTime - mDriveLeftDoneTime));
+                }
+                mDriveFramePending = false;
+                mDriveLatency.add(now - mDriveIssueTime);
+                if (mDriveFrameHeld) {
+                    writeDrive(mHeldLeft, mHeldRight);
+                }
+            }
+            // Outside the queue lock, the fleet may write the next frame to this robot
+            mFleet.onWriteDone(mThisRobot, now);
         }
 
         /**
@@ -219,10 +493,12 @@ public class PSoCBleRobotService extends Service {
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
                                       int status) {
-            // Pop the item that was written from the queue
-            BleQueue.remove();
-            // See if there are more items in the BLE queues
-            handleBleQueue();
+            synchronized (BleQueue) {
+                // Pop the item that was written from the queue
+                BleQueue.poll();
+                // See if there are more items in the BLE queues
+                handleBleQueue();
+            }
         }
 
         /**
@@ -235,6 +511,9 @@ public class PSoCBleRobotService extends Service {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
+            // Timestamp the sample as soon as it arrives
+            long now = System.nanoTime();
+
             // Get the UUID of the characteristic that changed
             String uuid = characteristic.getUuid().toString();
 
@@ -242,17 +521,53 @@ public class PSoCBleRobotService extends Service {
             switch (uuid) {
                 case tachLeftCharUUID:
                     motorLeftTach = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32,0);
+                    mSpeedController.onTach(Motor.LEFT, motorLeftTach, now);
+                    mOdometry.onTach(Motor.LEFT, motorLeftTach, now);
+                    mTachHistory[Motor.LEFT.ordinal()].add(now, motorLeftTach);
+                    if (mStallDetector.onTach(Motor.LEFT, motorLeftTach, now)) {
+                        onStall(Motor.LEFT);
+                    }
+                    updateMove(Motor.LEFT, motorLeftTach, now);
+                    updateSweep(Motor.LEFT, motorLeftTach, now);
                     break;
                 case tachRightCharUUID:
                     motorRightTach = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32,0);
+                    mSpeedController.onTach(Motor.RIGHT, motorRightTach, now);
+                    mOdometry.onTach(Motor.RIGHT, motorRightTach, now);
+                    mTachHistory[Motor.RIGHT.ordinal()].add(now, motorRightTach);
+                    if (mStallDetector.onTach(Motor.RIGHT, motorRightTach, now)) {
+                        onStall(Motor.RIGHT);
+                    }
+                    updateMove(Motor.RIGHT, motorRightTach, now);
+                    updateSweep(Motor.RIGHT, motorRightTach, now);
                     break;
             }
+            if (mTachTraceId != 0) {
+                trace(mTachTraceId, LatencyTracer.Stage.TACH);
+                mTachTraceId = 0;
+            }
             // Tell the activity that new car data is available
             broadcastUpdate(ACTION_DATA_AVAILABLE);
         }
     };
 
 
+    /**
+     * Drop Android's cached copy of the services of the connected device so that the next
+     * discovery reads them from the device. There is no public API for this.
+     *
+     * @param gatt the connection
+     * @return true if the cache was dropped
+     */
+    private static boolean refreshGattCache(BluetoothGatt gatt) {
+        try {
+            return (Boolean) gatt.getClass().getMethod("refresh").invoke(gatt);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot refresh the GATT cache", e);
+            return false;
+        }
+    }
+
     /**
      * Sends a broadcast to the listener in the main activity.
      *
@@ -264,12 +579,38 @@ public class PSoCBleRobotService extends Service {
     }
 
 
+    /**
+     * Tell the activity that a motor has stalled, after turning the motor off if the
+     * stall cutoff is on.
+     *
+     * @param motor the motor that stalled
+     */
+    private void onStall(Motor motor) {
+        if (mSweep.isRunning()) {
+            return; // the calibration finds out for itself if a wheel does not turn
+        }
+        Log.w(TAG, motor + " motor stalled");
+        if (mStallCutoff) {
+            cutMotor(motor);
+        }
+        final Intent intent = new Intent(ACTION_STALL);
+        intent.putExtra(EXTRA_MOTOR, motor.name());
+        sendBroadcast(intent);
+    }
+
     /**
      * Initialize a reference to the local Bluetooth adapter.
      *
      * @return Return true if the initialization is successful.
      */
     public boolean initialize() {
+        // Initialize car state variables. This comes first so that stop works even if
+        // Bluetooth does not.
+        if (mOutput == null) {
+            mOutput = new DriveOutput(mSpeedShaper, mSpeedController, mStallDetector, mOutputLink);
+        }
+        mOutput.reset();
+
         // For API level 18 and above, get a reference to BluetoothAdapter through
         // BluetoothManager.
         if (mBluetoothManager == null) {
@@ -286,11 +627,12 @@ public class PSoCBleRobotService extends Service {
             return false;
         }
 
-        // Initialize car state variables
-        motorLeftState = false;
-        motorRightState = false;
-        motorLeftSpeed = 0;
-        motorRightSpeed = 0;
+        // Start the deadman
+        if (mDeadmanLoop == null) {
+            mDeadman = new Deadman(DEADMAN_TIMEOUT * 1000000L, mDeadmanAction);
+            mDeadmanLoop = new ControlLoop("Deadman", DEADMAN_CHECK_PERIOD, mWatchdogTask);
+            mDeadmanLoop.start();
+        }
 
         return true;
     }
@@ -309,10 +651,20 @@ public class PSoCBleRobotService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        if (mPendingClose != null) {
+            // The last connection is still sending its stop. Close it now rather than
+            // closing this one later.
+            mPendingClose.run();
+        }
 
         // Previously connected device.  Try to reconnect.
         if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
                 && mBluetoothGatt != null) {
+            if (mConnected) {
+                // This happens when the connection was already made while scanning
+                Log.i(TAG, "Already connected.");
+                return true;
+            }
             Log.i(TAG, "Trying to use an existing mBluetoothGatt for connection.");
             return mBluetoothGatt.connect();
         }
@@ -324,6 +676,11 @@ public class PSoCBleRobotService extends Service {
         }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
+        mConnectStartTime = SystemClock.elapsedRealtime();
+        mReadyTime = 0;
+        mGattRefreshed = false;
+        mLayout = null;
+        mAdopted = false;
         mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
         Log.i(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
@@ -349,43 +706,102 @@ public class PSoCBleRobotService extends Service {
      * released properly.
      */
     public void close() {
+        stopControlLoop();
+        // The other robots follow this one so stop them too
+        closeFleetLinks(new ArrayList<>(mFleetLinks));
+        mFleetLinks.clear();
+        mFleet.remove(mThisRobot);
         if (mBluetoothGatt == null) {
             return;
         }
         mBluetoothGatt.close();
         mBluetoothGatt = null;
+        mConnected = false;
+        mDriveCharacteristic = null;
+        mLayout = null;
+        mAdopted = false;
+        synchronized (BleQueue) {
+            // Anything still queued was for the connection that was just closed
+            mDriveFramePending = false;
+            mDriveFrameHeld = false;
+            BleQueue.clear();
+            BleQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Mark the connection as the one to the device the user picked, for example when the
+     * control activity takes over a connection made while scanning. The device is then
+     * remembered for the next launch once its services have been found.
+     */
+    public void adopt() {
+        mAdopted = true;
+        saveLastDevice();
     }
 
     /**
-     * Update the speed of the motor in the GATT database or turn off motor. the speed
-     * value comes from the global variables motorLeftSpeed or motorRightSpeed which are
-     * set by the setMotorSpeed function.
+     * Remember the device of this connection if the user picked it and its services are known
+     */
+    private void saveLastDevice() {
+        List<UUID> layout = mLayout;
+        if (mAdopted && layout != null && mBluetoothDeviceAddress != null) {
+            LastDevice.save(this, mBluetoothDeviceAddress, UUID.fromString(motorServiceUUID), layout);
+        }
+    }
+
+    /**
+     * @return true if the device is connected and its services have been discovered
+     */
+    public boolean isReady() {
+        return mConnected && mReadyTime != 0;
+    }
+
+    /**
+     * Get how much of the connection setup had already been done when the user selected
+     * the device. This is the time saved by connecting speculatively while scanning.
      *
-     * @param motor to write (L or R)
-     * @param state determines if motor is on or off
+     * @param selectTime time of the selection from {@code SystemClock.elapsedRealtime()}
+     * @return time saved in ms
      */
-    private void updateGattSpeed(Motor motor, boolean state)
-    {
-        if(motor == Motor.LEFT) {
-            if (mSpeedLeftCharacteristic != null) {
-                if(state) {
-                    mSpeedLeftCharacteristic.setValue(motorLeftSpeed, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
-                } else {
-                    mSpeedLeftCharacteristic.setValue(0, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
-                }
-                writeCharacteristic(mSpeedLeftCharacteristic);
+    public long getConnectTimeSaved(long selectTime) {
+        if (mBluetoothGatt == null || mConnectStartTime == 0) {
+            return 0;
+        }
+        long doneTime = selectTime;
+        if (mReadyTime != 0 && mReadyTime < selectTime) {
+            doneTime = mReadyTime;
+        }
+        return Math.max(0, doneTime - mConnectStartTime);
+    }
+
+    /**
+     * Writes the speeds from the output stage to the GATT database. When there is a fleet
+     * every robot in it is sent both speeds.
+     */
+    private final DriveOutput.Link mOutputLink = new DriveOutput.Link() {
+        @Override
+        public void sendDrive(int left, int right) {
+            if (mFleet.size() > 0) {
+                mFleet.drive(left, right, SystemClock.elapsedRealtimeNanos());
+            } else {
+                writeDrive(left, right);
             }
-        } else { // Motor == RIGHT
-            if (mSpeedRightCharacteristic != null) {
-                if(state) {
-                    mSpeedRightCharacteristic.setValue(motorRightSpeed, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
-                } else {
-                    mSpeedRightCharacteristic.setValue(0, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
-                }
-                writeCharacteristic(mSpeedRightCharacteristic);
+        }
+
+        @Override
+        public boolean sendSpeed(Motor motor, int speed) {
+            if (mFleet.size() > 0) {
+                return false;
             }
+            BluetoothGattCharacteristic characteristic =
+                    (motor == Motor.LEFT) ? mSpeedLeftCharacteristic : mSpeedRightCharacteristic;
+            if (characteristic != null) {
+                characteristic.setValue(speed, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+                writeCharacteristic(characteristic);
+            }
+            return true;
         }
-    }
+    };
 
     /**
      * Request a write on a given {@code BluetoothGattCharacteristic}.
@@ -397,10 +813,141 @@ public class PSoCBleRobotService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        BleQueue.add(characteristic);
-        if (BleQueue.size() == 1) {
-            mBluetoothGatt.writeCharacteristic(characteristic);
-            Log.i(TAG, "Writing Characteristic");
+        synchronized (BleQueue) {
+            BleQueue.add(characteristic);
+            if (characteristic == mSpeedLeftCharacteristic || characteristic == mSpeedRightCharacteristic) {
+                traceWrite(characteristic);
+            }
+            if (BleQueue.size() == 1) {
+                traceSubmit(characteristic);
+                mBluetoothGatt.writeCharacteristic(characteristic);
+                Log.i(TAG, "Writing Characteristic");
+            }
+        }
+    }
+
+    /**
+     * Request writes of motor speed characteristics ahead of everything else in the BLE queue.
+     * They are placed right behind the operation in flight and next to each other so that
+     * nothing can be sent between them. Speed writes that are still waiting are dropped since
+     * the new writes replace them.
+     *
+     * @param first The characteristic to write first.
+     * @param second The characteristic to write right after it, or null.
+     */
+    private void writeCharacteristicsFirst(BluetoothGattCharacteristic first,
+                                           BluetoothGattCharacteristic second) {
+        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        synchronized (BleQueue) {
+            ListIterator<Object> iterator = BleQueue.listIterator();
+            if (iterator.hasNext()) {
+                iterator.next(); // leave the operation in flight alone
+            }
+            while (iterator.hasNext()) {
+                Object item = iterator.next();
+                if (item == mSpeedLeftCharacteristic || item == mSpeedRightCharacteristic
+                        || item == mDriveCharacteristic) {
+                    iterator.remove();
+                }
+            }
+            boolean idle = BleQueue.isEmpty();
+            int position = idle ? 0 : 1;
+            BleQueue.add(position, first);
+            if (second != null) {
+                BleQueue.add(position + 1, second);
+            }
+            // The frame is written when its last write is
+            traceWrite(second != null ? second : first);
+            if (idle) {
+                traceSubmit(first);
+                mBluetoothGatt.writeCharacteristic(first);
+            }
+        }
+    }
+
+    /**
+     * Mark that a command has reached a stage, with a system trace section named for the
+     * command and stage so the stages can be lined up in a system trace
+     *
+     * @param id ID of the command
+     * @param stage the stage reached
+     */
+    private static void trace(int id, LatencyTracer.Stage stage) {
+        Trace.beginSection(mTracer.getSectionName(id, stage));
+        mTracer.mark(id, stage, System.nanoTime());
+        Trace.endSection();
+    }
+
+    /**
+     * Mark that the service has been asked to change speed
+     */
+    private static void traceCommand() {
+        int id = mTracer.command(System.nanoTime());
+        Trace.beginSection(mTracer.getSectionName(id, LatencyTracer.Stage.COMMAND));
+        Trace.endSection();
+    }
+
+    /**
+     * Mark that the speed write for the latest command has been queued
+     *
+     * @param characteristic the write that completes the command
+     */
+    private static void traceWrite(BluetoothGattCharacteristic characteristic) {
+        mWriteTraceId = mTracer.getCurrent();
+        mTracedWrite = characteristic;
+        trace(mWriteTraceId, LatencyTracer.Stage.ENQUEUE);
+    }
+
+    /**
+     * Mark that a queued operation is being handed to the GATT if it is part of the
+     * speed write being traced. Any speed write started after the traced write was queued
+     * belongs to it, since older ones are replaced.
+     *
+     * @param operation the queued operation
+     */
+    private static void traceSubmit(Object operation) {
+        if (mTracedWrite != null && (operation == mSpeedLeftCharacteristic
+                || operation == mSpeedRightCharacteristic || operation == mDriveCharacteristic)) {
+            trace(mWriteTraceId, LatencyTracer.Stage.SUBMIT);
+        }
+    }
+
+    /**
+     * Mark that the user has moved a control. The command that follows is traced from here.
+     */
+    public static void traceInput() {
+        int id = mTracer.start(LatencyTracer.Stage.INPUT, System.nanoTime());
+        Trace.beginSection(mTracer.getSectionName(id, LatencyTracer.Stage.INPUT));
+        Trace.endSection();
+    }
+
+    /**
+     * @return the latency of drive commands from the input event to each stage
+     */
+    public static LatencyTracer getLatencyTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Wait until the BLE queue is empty
+     *
+     * @param timeout longest time to wait in ms
+     */
+    private static void waitForBleQueue(long timeout) {
+        long end = SystemClock.uptimeMillis() + timeout;
+        synchronized (BleQueue) {
+            long wait;
+            while (!BleQueue.isEmpty() && mBluetoothGatt != null
+                    && (wait = end - SystemClock.uptimeMillis()) > 0) {
+                try {
+                    BleQueue.wait(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
         }
     }
 
@@ -428,13 +975,15 @@ public class PSoCBleRobotService extends Service {
         } else {
             descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
         }
-        // Put the descriptor into the write queue
-        BleQueue.add(descriptor);
-        // If there is only 1 item in the queue, then write it. If more than one, then the callback
-        // will handle it
-        if (BleQueue.size() == 1) {
-            mBluetoothGatt.writeDescriptor(descriptor);
-            Log.i(TAG, "Writing Notification");
+        synchronized (BleQueue) {
+            // Put the descriptor into the write queue
+            BleQueue.add(descriptor);
+            // If there is only 1 item in the queue, then write it. If more than one, then the callback
+            // will handle it
+            if (BleQueue.size() == 1) {
+                mBluetoothGatt.writeDescriptor(descriptor);
+                Log.i(TAG, "Writing Notification");
+            }
         }
     }
 
@@ -446,15 +995,11 @@ public class PSoCBleRobotService extends Service {
      * @param state turn motor on or off
      */
     public void setMotorState(Motor motor, boolean state) {
-        // Update the motor state variable
-        if(motor == Motor.LEFT)
-        {
-            motorLeftState = state;
-        } else { // Motor == RIGHT
-            motorRightState = state;
-        }
-        // Update the Speed in the Gatt Database
-        updateGattSpeed(motor, state);
+        heartbeat();
+        traceCommand();
+        // Update the motor state and the speed in the Gatt Database
+        mOutput.setMotorState(motor, state);
+        recordCommand();
     }
 
     /**
@@ -467,17 +1012,791 @@ public class PSoCBleRobotService extends Service {
      * @param speed to set the motor to
      */
     public void setMotorSpeed(Motor motor, int speed) {
-        boolean state;
-        if(motor == Motor.LEFT)
-        {
-            motorLeftSpeed = speed;
-            state = motorLeftState;
-        } else  { // Motor == RIGHT
-            motorRightSpeed = speed;
-            state = motorRightState;
+        heartbeat();
+        traceCommand();
+        // Update the Speed in the Gatt Database if the motor is on
+        mOutput.setMotorSpeed(motor, speed);
+        recordCommand();
+    }
+
+    /**
+     * Set the speed of both motors as one command. The two speeds go out back-to-back
+     * ahead of any other queued BLE traffic so that the wheels change speed together.
+     * If the robot has the packed drive characteristic both speeds are sent in a single
+     * write. As with setMotorSpeed, the speeds go through the speed shaping and a motor
+     * that is turned off is sent a speed of 0.
+     *
+     * @param leftSpeed speed for the left motor
+     * @param rightSpeed speed for the right motor
+     */
+    public void setDrive(int leftSpeed, int rightSpeed) {
+        heartbeat();
+        traceCommand();
+        mOutput.setDrive(leftSpeed, rightSpeed);
+        recordCommand();
+    }
+
+    /**
+     * Write both motor speeds to this robot as one drive frame. If a frame is still being
+     * written this one is held and written when it is done, replacing any frame held before.
+     *
+     * @param left speed for the left motor
+     * @param right speed for the right motor
+     * @return true if the frame was queued or held
+     */
+    private boolean writeDrive(int left, int right) {
+        synchronized (BleQueue) {
+            if (mDriveFramePending && SystemClock.elapsedRealtimeNanos() - mDriveIssueTime
+                    < FleetController.WRITE_TIMEOUT) {
+                mDriveFrameHeld = true;
+                mHeldLeft = left;
+                mHeldRight = right;
+                return true;
+            }
+            mDriveFrameHeld = false;
+            return writeDriveNow(left, right);
+        }
+    }
+
+    /**
+     * Start writing a drive frame to this robot
+     *
+     * @param left speed for the left motor
+     * @param right speed for the right motor
+     * @return true if the frame was queued
+     */
+    private boolean writeDriveNow(int left, int right) {
+        if (mDriveCharacteristic != null) {
+            mDriveCharacteristic.setValue(left, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+            mDriveCharacteristic.setValue(right, BluetoothGattCharacteristic.FORMAT_SINT8, 1);
+            mDriveIssueTime = SystemClock.elapsedRealtimeNanos();
+            mDriveFramePending = true;
+            writeCharacteristicsFirst(mDriveCharacteristic, null);
+        } else if (mSpeedLeftCharacteristic != null && mSpeedRightCharacteristic != null) {
+            mSpeedLeftCharacteristic.setValue(left, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+            mSpeedRightCharacteristic.setValue(right, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+            mDriveLeftDoneTime = 0;
+            mDriveRightDoneTime = 0;
+            mDriveIssueTime = SystemClock.elapsedRealtimeNanos();
+            mDriveFramePending = true;
+            writeCharacteristicsFirst(mSpeedLeftCharacteristic, mSpeedRightCharacteristic);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop both motors right away. The stop goes ahead of any queued BLE traffic, replaces
+     * any speed writes that are still waiting and is not slew limited. The requested speeds
+     * are set to 0 so the robot stays stopped until new speeds are set. The motor on/off
+     * states are not changed. Any program that is playing, move or calibration in progress
+     * is stopped, and any speed one of them works out after the stop is dropped. This can
+     * be called from any thread.
+     */
+    public void stop() {
+        mOutput.stop();
+        stopProgram();
+        mMove.cancel();
+        mSweep.cancel();
+        if (mDeadman != null) {
+            mDeadman.clear();
+        }
+    }
+
+    /**
+     * Stop both motors right away for a move or the calibration, as stop does, without
+     * ending it. Nothing is sent if the robot has been stopped since it started.
+     *
+     * @param stops the stop count when the move or calibration started
+     */
+    private static void halt(int stops) {
+        if (mOutput.halt(stops) && mDeadman != null) {
+            mDeadman.clear();
+        }
+    }
+
+    /**
+     * Tell the service that the controlling activity is still alive. This must be called
+     * more often than the deadman timeout while the robot is being controlled, otherwise
+     * the robot is stopped. Setting the motor states or speeds also counts.
+     */
+    public static void heartbeat() {
+        if (mDeadman != null) {
+            mDeadman.feed(System.nanoTime());
+        }
+    }
+
+    /**
+     * Set how long the service waits without control input or heartbeat before stopping
+     *
+     * @param timeout deadman timeout in ms
+     */
+    public static void setDeadmanTimeout(long timeout) {
+        if (mDeadman != null) {
+            mDeadman.setTimeout(timeout * 1000000L);
+        }
+    }
+
+    /**
+     * @return statistics of the time from the deadman timeout to the stop being issued, or
+     * null if the deadman has not been started
+     */
+    public static TimingStats getDeadmanLatency() {
+        return (mDeadman == null) ? null : mDeadman.getLatency();
+    }
+
+    /**
+     * Each tick of the deadman thread checks the deadman, whether a wheel that is being
+     * driven has stopped sending tach samples, the move in progress and the calibration
+     * sweep. This runs whether or not the control loop does, and does not rely on tach
+     * samples arriving.
+     */
+    private final ControlLoop.Task mWatchdogTask = new ControlLoop.Task() {
+        @Override
+        public void tick(long now, double dt) {
+            mDeadman.tick(now, dt);
+            for (Motor motor : MOTORS) {
+                if (mStallDetector.check(motor, now)) {
+                    onStall(motor);
+                }
+            }
+            checkMove(now);
+            checkSweep(now);
+        }
+    };
+
+    /**
+     * Stops the robot when the deadman times out. This runs on the deadman thread.
+     */
+    private final Deadman.Action mDeadmanAction = new Deadman.Action() {
+        @Override
+        public void stop() {
+            PSoCBleRobotService.this.stop();
+            Log.w(TAG, "No control input, robot stopped");
+            broadcastUpdate(ACTION_DEADMAN_STOP);
+        }
+    };
+
+    /**
+     * Turn a motor off right away, ahead of any queued BLE traffic and without slew
+     * limiting. The motor stays off until it is turned on again with setMotorState.
+     *
+     * @param motor the motor to turn off
+     */
+    private void cutMotor(Motor motor) {
+        mOutput.cut(motor);
+    }
+
+    /**
+     * Choose whether a motor that stalls is turned off. Stalls are reported with the
+     * ACTION_STALL broadcast either way.
+     *
+     * @param enabled true to turn off stalled motors
+     */
+    public static void setStallCutoff(boolean enabled) {
+        mStallCutoff = enabled;
+    }
+
+    /**
+     * Turn closed loop wheel speed control on or off. When it is on a control loop adjusts
+     * the motor speeds using the tach readings so that the wheels hold the requested speed.
+     *
+     * @param enabled true to turn on closed loop control
+     */
+    public void setClosedLoop(boolean enabled) {
+        if (enabled == mOutput.isClosedLoop()) {
+            return;
+        }
+        mOutput.setClosedLoop(enabled);
+        updateControlLoop();
+    }
+
+    /**
+     * Set up the shaping of the requested speeds. With all values at 0 the speeds are
+     * sent as requested.
+     *
+     * @param deadband requested speeds up to this size give 0
+     * @param expo amount of expo curve from 0 (linear) to 1 (cubic)
+     * @param trim percent to slow the left motor (positive) or right motor (negative)
+     * @param slewRate maximum change in speed per second, or 0 for no limit
+     */
+    public void setSpeedShaping(int deadband, double expo, int trim, double slewRate) {
+        mSpeedShaper.configure(deadband, expo, trim, slewRate);
+        updateControlLoop();
+    }
+
+    /**
+     * Start or stop the control loop depending on whether slew limiting or closed loop
+     * control needs it, then send the requested speeds again through the new output stage.
+     */
+    private void updateControlLoop() {
+        boolean needed = mOutput.isClosedLoop() || mSpeedShaper.isSlewLimited();
+        if (needed && mControlLoop == null) {
+            mOutput.setControlLoop(true);
+            mControlLoop = new ControlLoop("SpeedControl", CONTROL_PERIOD, mSpeedControlTask);
+            mControlLoop.start();
+        } else if (!needed) {
+            stopControlLoop();
+        }
+        mOutput.refresh();
+    }
+
+    /**
+     * Stop the control loop thread if it is running
+     */
+    private static void stopControlLoop() {
+        if (mControlLoop != null) {
+            mControlLoop.stop();
+            Log.i(TAG, mControlLoop.getJitter().toString());
+            mControlLoop = null;
+            mOutput.setControlLoop(false);
+        }
+    }
+
+    /**
+     * Set the speed controller tuning
+     *
+     * @param kp proportional gain
+     * @param ki integral gain (per second)
+     * @param kd derivative gain (seconds)
+     * @param maxRate tach rate (counts/s) of a wheel at full speed
+     */
+    public static void setSpeedControl(double kp, double ki, double kd, double maxRate) {
+        mSpeedController.setGains(kp, ki, kd);
+        mSpeedController.setMaxRate(maxRate);
+    }
+
+    /**
+     * @return statistics of how late the control loop ticks start, or null if the control
+     * loop is not running
+     */
+    public static TimingStats getControlJitter() {
+        ControlLoop loop = mControlLoop;
+        return (loop == null) ? null : loop.getJitter();
+    }
+
+    /**
+     * Each tick of the control loop runs the slew limiter and the speed controller and
+     * sends the new speeds if they changed.
+     */
+    private final ControlLoop.Task mSpeedControlTask = new ControlLoop.Task() {
+        @Override
+        public void tick(long now, double dt) {
+            // Held so that the calibration cannot start part way through the tick
+            synchronized (mOutput) {
+                if (mSweep.isRunning()) {
+                    return; // the calibration sends the speeds
+                }
+                mOutput.tick(now, dt);
+            }
+        }
+    };
+
+    /**
+     * This robot as a member of the fleet
+     */
+    private final FleetController.Robot mThisRobot = new FleetController.Robot() {
+        @Override
+        public String getAddress() {
+            return mBluetoothDeviceAddress;
+        }
+
+        @Override
+        public boolean writeDrive(int left, int right) {
+            return PSoCBleRobotService.this.writeDrive(left, right);
+        }
+    };
+
+    /**
+     * Connect to another robot and drive it together with this one. The other robot is sent
+     * the same drive frames once it is ready.
+     *
+     * @param address Bluetooth address of the other robot
+     * @return true if the connection was started
+     */
+    public boolean addFleetRobot(String address) {
+        if (mBluetoothAdapter == null || address == null || address.equals(mBluetoothDeviceAddress)) {
+            return false;
+        }
+        for (RobotLink link : mFleetLinks) {
+            if (link.getAddress().equals(address)) {
+                return true;
+            }
+        }
+        RobotLink link = new RobotLink(address, mFleet);
+        if (!link.connect(this, mBluetoothAdapter)) {
+            return false;
+        }
+        mFleetLinks.add(link);
+        mFleet.add(mThisRobot);
+        mFleet.add(link);
+        return true;
+    }
+
+    /**
+     * Stop driving another robot and disconnect from it. The robot is stopped first.
+     *
+     * @param address Bluetooth address of the other robot
+     */
+    public void removeFleetRobot(String address) {
+        for (int i = 0; i < mFleetLinks.size(); i++) {
+            RobotLink link = mFleetLinks.get(i);
+            if (link.getAddress().equals(address)) {
+                mFleetLinks.remove(i);
+                closeFleetLinks(Collections.singletonList(link));
+                break;
+            }
+        }
+        if (mFleetLinks.isEmpty()) {
+            mFleet.remove(mThisRobot);
+        }
+    }
+
+    /**
+     * Take other robots out of the fleet, stop them and disconnect from them. Every stop is
+     * sent before waiting for any of them, so the waits overlap, and the wait is done on the
+     * close thread.
+     *
+     * @param links the other robots
+     */
+    private static void closeFleetLinks(final List<RobotLink> links) {
+        if (links.isEmpty()) {
+            return;
+        }
+        for (RobotLink link : links) {
+            mFleet.remove(link);
+        }
+        mCloseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (RobotLink link : links) {
+                    link.stop();
+                }
+                long end = SystemClock.elapsedRealtime() + STOP_FLUSH_TIMEOUT;
+                for (RobotLink link : links) {
+                    link.waitForQueue(end);
+                    link.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return addresses of the other robots driven together with this one
+     */
+    public static List<String> getFleetAddresses() {
+        List<String> addresses = new ArrayList<>();
+        for (RobotLink link : mFleetLinks) {
+            addresses.add(link.getAddress());
+        }
+        return addresses;
+    }
+
+    /**
+     * @return the fleet, with the skew between robots and the latency and throughput of each
+     */
+    public static FleetController getFleet() {
+        return mFleet;
+    }
+
+    /**
+     * Start listening for drive commands from another computer. See {@link RemoteBridge}
+     * for the protocol. The motors must be turned on for the commands to move the robot.
+     * The bridge stops the robot itself if a client stops sending commands, since the
+     * activity keeps the deadman fed while it is in front.
+     *
+     * @param port TCP port to listen on
+     * @return true if the bridge is listening
+     */
+    public boolean startRemoteControl(int port) {
+        if (mRemoteBridge != null) {
+            return true;
+        }
+        RemoteBridge bridge = new RemoteBridge(port, mRemoteRobot);
+        try {
+            bridge.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot listen on port " + port, e);
+            return false;
+        }
+        mRemoteBridge = bridge;
+        Log.i(TAG, "Remote control listening on port " + bridge.getPort());
+        return true;
+    }
+
+    /**
+     * Stop listening for drive commands from another computer and disconnect any clients
+     */
+    public static void stopRemoteControl() {
+        if (mRemoteBridge != null) {
+            mRemoteBridge.stop();
+            Log.i(TAG, "Remote control: " + mRemoteBridge.getCommands() + " commands, "
+                    + mRemoteBridge.getDriven() + " sent to the robot, "
+                    + mRemoteBridge.getTimeouts() + " stops for lack of input");
+            mRemoteBridge = null;
+        }
+    }
+
+    /**
+     * @return true if the robot can be driven from another computer
+     */
+    public static boolean isRemoteControlOn() {
+        return mRemoteBridge != null;
+    }
+
+    /**
+     * Connects the remote bridge to the same command path as the activity
+     */
+    private final RemoteBridge.Robot mRemoteRobot = new RemoteBridge.Robot() {
+        @Override
+        public void drive(int left, int right) {
+            setDrive(Math.max(-100, Math.min(100, left)), Math.max(-100, Math.min(100, right)));
+        }
+
+        @Override
+        public long getTelemetryCount() {
+            return getTachHistory(Motor.LEFT).getCount() + getTachHistory(Motor.RIGHT).getCount();
+        }
+
+        @Override
+        public int getTach(Motor motor) {
+            return PSoCBleRobotService.getTach(motor);
+        }
+    };
+
+    /**
+     * Start recording the drive commands into a new program. Any program that is playing
+     * is stopped.
+     */
+    public void startRecording() {
+        stopProgram();
+        mRecording = new DriveProgram();
+        mRecordStart = System.nanoTime();
+        mRecordedLeft = 0;
+        mRecordedRight = 0;
+        recordCommand();
+    }
+
+    /**
+     * Stop recording
+     *
+     * @return the recorded program, or null if nothing was being recorded
+     */
+    public DriveProgram stopRecording() {
+        DriveProgram program = mRecording;
+        if (program != null) {
+            program.setDuration(System.nanoTime() - mRecordStart);
+            mRecording = null;
+        }
+        return program;
+    }
+
+    /**
+     * Add the requested speeds to the program being recorded if they have changed
+     */
+    private static void recordCommand() {
+        DriveProgram program = mRecording;
+        if (program == null) {
+            return;
+        }
+        int left = mOutput.isOn(Motor.LEFT) ? mOutput.getSpeed(Motor.LEFT) : 0;
+        int right = mOutput.isOn(Motor.RIGHT) ? mOutput.getSpeed(Motor.RIGHT) : 0;
+        if (program.size() == 0 || left != mRecordedLeft || right != mRecordedRight) {
+            program.add(System.nanoTime() - mRecordStart, left, right);
+            mRecordedLeft = left;
+            mRecordedRight = right;
+        }
+    }
+
+    /**
+     * Play a program. Each step is sent with setDrive so the motors must be turned on. Every
+     * step after the first is sent early by the average drive write latency so that it takes
+     * effect on time. Anything else driving the robot is stopped first. ACTION_PROGRAM_DONE is
+     * broadcast at the end.
+     *
+     * @param program the program to play
+     */
+    public void playProgram(DriveProgram program) {
+        stopRecording();
+        stop();
+        mPlayer = new ProgramPlayer(program, makeProgramSink(mOutput.getStops()),
+                mDriveLatency.getMean(), mProgramListener);
+        mPlayer.start();
+    }
+
+    /**
+     * Stop the program that is playing, if any. The robot is stopped.
+     */
+    public static void stopProgram() {
+        if (mPlayer != null) {
+            mPlayer.stop();
+            mPlayer = null;
+        }
+    }
+
+    /**
+     * @return true if a program is playing
+     */
+    public static boolean isPlaying() {
+        ProgramPlayer player = mPlayer;
+        return player != null && player.isPlaying();
+    }
+
+    /**
+     * The program player drives the robot the same way the activity does, until the robot
+     * is stopped. Each player gets its own sink so that a player that is ending cannot
+     * drive over the next one.
+     *
+     * @param stops the stop count when the program started
+     * @return sink for the player
+     */
+    private InputPipeline.Sink makeProgramSink(final int stops) {
+        return new InputPipeline.Sink() {
+            @Override
+            public void drive(int left, int right) {
+                heartbeat();
+                traceCommand();
+                mOutput.setDrive(left, right, stops);
+            }
+        };
+    }
+
+    /**
+     * Logs the timing of each step when a program ends and tells the activity
+     */
+    private final ProgramPlayer.Listener mProgramListener = new ProgramPlayer.Listener() {
+        @Override
+        public void onDone(ProgramPlayer player) {
+            int played = player.getPlayed();
+            for (int step = 0; step < played; step++) {
+                Log.i(TAG, "Program step " + step + " error " + player.getError(step) / 1000 + " us");
+            }
+            Log.i(TAG, player.getErrorStats().toString());
+            broadcastUpdate(ACTION_PROGRAM_DONE);
+        }
+    };
+
+    /**
+     * Drive straight for a number of tach counts and stop. The robot slows down near the
+     * target and is stopped early by the distance it is expected to travel before the stop
+     * takes effect, worked out from its speed, the drive write latency and how far it
+     * coasted on earlier moves. The motors must be turned on. ACTION_MOVE_DONE is broadcast
+     * once the robot has stopped, with the overshoot in EXTRA_OVERSHOOT. If the wheels stop
+     * turning or the move takes too long the robot is stopped and ACTION_MOVE_DONE has
+     * EXTRA_TIMED_OUT set. The move does not feed the deadman, so the robot is still stopped
+     * if the controlling activity goes away. Any program that is playing is stopped.
+     *
+     * @param counts tach counts to travel. Negative counts drive backwards.
+     * @param speed speed to drive at from 1 to 100
+     */
+    public void move(int counts, int speed) {
+        stopProgram();
+        mSweep.cancel();
+        mMove.setLatency(mDriveLatency.getMean());
+        synchronized (mOutput) {
+            mMoveStops = mOutput.getStops();
+            int start = mMove.start(counts, speed, motorLeftTach, motorRightTach, System.nanoTime());
+            setDrive(start, start);
+        }
+    }
+
+    /**
+     * Pass a tach sample to the move in progress and send the speed it asks for
+     *
+     * @param motor the wheel
+     * @param count its tach count
+     * @param now time the sample arrived in ns
+     */
+    private void updateMove(Motor motor, int count, long now) {
+        if (!mMove.isActive()) {
+            return;
+        }
+        if (mMove.onTach(motor, count, now)) {
+            onMoveDone();
+            return;
+        }
+        int speed = mMove.getSpeed();
+        if (speed == 0) {
+            if (mOutput.getSpeed(Motor.LEFT) != 0 || mOutput.getSpeed(Motor.RIGHT) != 0) {
+                // The stop must not be slowed down by the slew limit
+                halt(mMoveStops);
+            }
+        } else if (speed != mOutput.getSpeed(Motor.LEFT) || speed != mOutput.getSpeed(Motor.RIGHT)) {
+            // Sent without a heartbeat since the move is not control input
+            traceCommand();
+            mOutput.setDrive(speed, speed, mMoveStops);
+        }
+    }
+
+    /**
+     * Check the move in progress between tach samples. This ends the move once the robot
+     * has settled even if the wheels send no more samples, and gives up on a move whose
+     * wheels have stopped turning or that is taking too long.
+     *
+     * @param now current time from {@code System.nanoTime()}
+     */
+    private void checkMove(long now) {
+        if (mMove.check(now)) {
+            onMoveDone();
+        }
+    }
+
+    /**
+     * Tell the activity that a move has ended. A move that was given up on is stopped
+     * in the same way as stop, so a speed worked out for it before then is not sent.
+     */
+    private void onMoveDone() {
+        boolean timedOut = mMove.hasTimedOut();
+        if (timedOut) {
+            Log.w(TAG, "Move given up at " + mMove.getProgress() + " counts");
+            stop();
+        } else {
+            Log.i(TAG, mMove.toString());
+        }
+        final Intent intent = new Intent(ACTION_MOVE_DONE);
+        intent.putExtra(EXTRA_OVERSHOOT, mMove.getLastOvershoot());
+        intent.putExtra(EXTRA_TIMED_OUT, timedOut);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * @return true while a move is driving or waiting for the robot to stop
+     */
+    public static boolean isMoving() {
+        return mMove.isActive();
+    }
+
+    /**
+     * @return the move controller, which has the overshoot statistics
+     */
+    public static MoveController getMoveController() {
+        return mMove;
+    }
+
+    /**
+     * Learn how the two motors differ. The robot spins on the spot one way then the other
+     * at a few speeds for about 8 s while the tach rates are measured, so it needs room to
+     * turn. The motors must be turned on. The calibration is saved for this robot and used
+     * from then on. ACTION_CALIBRATION_DONE is broadcast at the end, with EXTRA_CALIBRATED
+     * false if both wheels did not turn at enough of the speeds. A sweep that takes too
+     * long is given up on, the robot is stopped and EXTRA_TIMED_OUT is set. The sweep does
+     * not feed the deadman, so the robot is still stopped if the controlling activity goes
+     * away.
+     */
+    public void calibrateMotors() {
+        stopRecording();
+        stopProgram();
+        mMove.cancel();
+        synchronized (mOutput) {
+            mSweepStops = mOutput.getStops();
+            mSweep.start(System.nanoTime());
+            mOutput.sendRaw(mSweep.getSpeed(Motor.LEFT), mSweep.getSpeed(Motor.RIGHT), mSweepStops);
+        }
+    }
+
+    /**
+     * Pass a tach sample to the calibration sweep and send the speeds it asks for. The
+     * calibration is applied when the sweep ends.
+     *
+     * @param motor the wheel
+     * @param count its tach count
+     * @param now time the sample arrived in ns
+     */
+    private void updateSweep(Motor motor, int count, long now) {
+        if (mSweep.isRunning()) {
+            onSweep(mSweep.onTach(motor, count, now));
+        }
+    }
+
+    /**
+     * Move the calibration sweep on between tach samples. A wheel that does not turn sends
+     * no tach samples, so this is what ramps up the speed and goes from step to step when
+     * they do not come, and gives up on a sweep that takes too long.
+     *
+     * @param now current time from {@code System.nanoTime()}
+     */
+    private void checkSweep(long now) {
+        if (mSweep.isRunning()) {
+            onSweep(mSweep.check(now));
+        }
+    }
+
+    /**
+     * Send the speeds the calibration sweep asks for, or finish it
+     *
+     * @param done true if the sweep has just ended
+     */
+    private void onSweep(boolean done) {
+        if (!done) {
+            synchronized (mOutput) {
+                // The tach and deadman threads both get here, so send the latest speeds
+                int left = mSweep.getSpeed(Motor.LEFT);
+                int right = mSweep.getSpeed(Motor.RIGHT);
+                if (left != mOutput.getSent(Motor.LEFT) || right != mOutput.getSent(Motor.RIGHT)) {
+                    mOutput.sendRaw(left, right, mSweepStops);
+                }
+            }
+            return;
+        }
+        halt(mSweepStops);
+        boolean timedOut = mSweep.hasTimedOut();
+        MotorCalibration calibration = mSweep.getResult();
+        if (timedOut) {
+            Log.w(TAG, "Motor calibration given up at " + mSweep.getProgress());
+        } else if (calibration != null) {
+            Log.i(TAG, calibration.toString());
+            calibration.save(this, mBluetoothDeviceAddress);
+            mSpeedShaper.setCalibration(calibration);
+        } else {
+            Log.w(TAG, "Motor calibration failed");
+        }
+        final Intent intent = new Intent(ACTION_CALIBRATION_DONE);
+        intent.putExtra(EXTRA_CALIBRATED, calibration != null);
+        intent.putExtra(EXTRA_TIMED_OUT, timedOut);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Stop using the motor calibration and forget it for this robot
+     */
+    public void clearCalibration() {
+        mSpeedShaper.setCalibration(null);
+        if (mBluetoothDeviceAddress != null) {
+            MotorCalibration.forget(this, mBluetoothDeviceAddress);
         }
-        // Update the Speed in the Gatt Database
-        updateGattSpeed(motor, state);
+        mOutput.refresh();
+    }
+
+    /**
+     * @return true while the motor calibration sweep is running
+     */
+    public static boolean isCalibrating() {
+        return mSweep.isRunning();
+    }
+
+    /**
+     * @return the motor calibration in use, or null if there is none
+     */
+    public static MotorCalibration getCalibration() {
+        return mSpeedShaper.getCalibration();
+    }
+
+    /**
+     * @return statistics of the time from issuing a drive frame to the robot acknowledging it
+     */
+    public static TimingStats getDriveLatency() {
+        return mDriveLatency;
+    }
+
+    /**
+     * Get the statistics of the time between the left and right wheel writes of the drive
+     * frames sent by setDrive. This is 0 when the robot supports packed drive frames.
+     *
+     * @return drive skew statistics
+     */
+    public static TimingStats getDriveSkew() {
+        return mDriveSkew;
     }
 
     /**
@@ -494,6 +1813,44 @@ public class PSoCBleRobotService extends Service {
         }
     }
 
+    /**
+     * Get the history of the tach readings for one of the motors. Samples are timed with
+     * {@code System.nanoTime()} when they arrive. The history can be read from any thread.
+     *
+     * @param motor to operate on
+     * @return tach history
+     */
+    public static TelemetryBuffer getTachHistory(Motor motor) {
+        return mTachHistory[motor.ordinal()];
+    }
+
+    /**
+     * Set how many tach readings are kept for each motor. The current history is dropped.
+     *
+     * @param samples number of readings to keep for each motor
+     */
+    public static void setTachHistoryCapacity(int samples) {
+        mTachHistory = makeTachHistory(samples);
+    }
+
+    private static TelemetryBuffer[] makeTachHistory(int samples) {
+        TelemetryBuffer[] history = new TelemetryBuffer[MOTORS.length];
+        for (Motor motor : MOTORS) {
+            history[motor.ordinal()] = new TelemetryBuffer(samples);
+        }
+        return history;
+    }
+
+    /**
+     * Get the position and heading of the robot worked out from the tach readings since the
+     * connection was made, along with the wheel speeds. This can be called from any thread.
+     *
+     * @param pose object to fill in
+     */
+    public static void getPose(Odometry.Pose pose) {
+        mOdometry.getPose(pose);
+    }
+
     /**
      * This function returns the UUID of the motor service
      *
@@ -0,0 +1,229 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link DriveProgram} on its own thread.
+ *
+ * Steps are paced against {@code System.nanoTime()} from the start of playback, not from
+ * the previous step, so timing errors do not add up over the program. The first step is
+ * issued as soon as playback starts. Every later step is issued early by the lead time,
+ * which is set to the time it takes a drive command to get through the BLE queue to the
+ * robot, so that it takes effect at its time in the program counted from the start of
+ * playback. The first step cannot be sent early so it takes effect one lead time late. The
+ * error of every step is recorded as how late it was issued compared with its target.
+ */
+public class ProgramPlayer implements Runnable {
+
+    /**
+     * Told when playback ends
+     */
+    public interface Listener {
+        /**
+         * Called on the player thread when the program has finished or was stopped
+         *
+         * @param player the player that ended
+         */
+        void onDone(ProgramPlayer player);
+    }
+
+    /**
+     * Where the player gets the time and waits, so that it can be run on a simulated clock
+     */
+    public interface Clock {
+        /**
+         * @return the current time in ns
+         */
+        long nanoTime();
+
+        /**
+         * Wait for up to the given time. This may return early, for example when the
+         * player is stopped.
+         *
+         * @param blocker object the thread is waiting on
+         * @param nanos longest time to wait in ns
+         */
+        void park(Object blocker, long nanos);
+    }
+
+    /**
+     * The system clock
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void park(Object blocker, long nanos) {
+            LockSupport.parkNanos(blocker, nanos);
+        }
+    };
+
+    private final DriveProgram mProgram;
+    private final InputPipeline.Sink mSink;
+    private final Listener mListener;
+    private final long mLeadTime;
+    private final Clock mClock;
+    private final long[] mErrors;
+    private final TimingStats mErrorStats = new TimingStats("Program step error");
+    private volatile Thread mThread;
+    private volatile boolean mFinished;
+    private volatile int mPlayed;
+
+    /**
+     * @param program the program to play
+     * @param sink where to send the drive commands
+     * @param leadTime how early to issue each step after the first in ns
+     * @param listener told when playback ends, or null
+     */
+    public ProgramPlayer(DriveProgram program, InputPipeline.Sink sink, long leadTime, Listener listener) {
+        this(program, sink, leadTime, listener, SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param program the program to play
+     * @param sink where to send the drive commands
+     * @param leadTime how early to issue each step after the first in ns
+     * @param listener told when playback ends, or null
+     * @param clock where to get the time and wait
+     */
+    public ProgramPlayer(DriveProgram program, InputPipeline.Sink sink, long leadTime, Listener listener,
+                         Clock clock) {
+        mProgram = program;
+        mSink = sink;
+        mLeadTime = leadTime;
+        mListener = listener;
+        mClock = clock;
+        // One error per step plus the final stop
+        mErrors = new long[program.size() + 1];
+    }
+
+    /**
+     * Start playing
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(this, "ProgramPlayer");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop playing. The robot is stopped by the player thread.
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isPlaying() {
+        return mThread != null;
+    }
+
+    /**
+     * @return true if every step of the program was played
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * @return the number of steps issued so far, including the final stop
+     */
+    public int getPlayed() {
+        return mPlayed;
+    }
+
+    /**
+     * @param step step number, or the number of steps for the final stop
+     * @return how late the step was issued in ns. This is negative if it was early.
+     */
+    public long getError(int step) {
+        return mErrors[step];
+    }
+
+    /**
+     * @return statistics of how late the steps were issued
+     */
+    public TimingStats getErrorStats() {
+        return mErrorStats;
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        long start = mClock.nanoTime();
+        int steps = mProgram.size();
+        for (int step = 0; step <= steps; step++) {
+            long time = (step < steps) ? mProgram.getTime(step) : mProgram.getDuration();
+            // Issued early by the lead time, but nothing can be issued before the start
+            long due = start + Math.max(0, time - mLeadTime);
+            long wait;
+            while (mThread == self && (wait = due - mClock.nanoTime()) > 0) {
+                mClock.park(this, wait);
+            }
+            if (mThread != self) {
+                break;
+            }
+            long issued = mClock.nanoTime();
+            if (step < steps) {
+                mSink.drive(mProgram.getLeft(step), mProgram.getRight(step));
+            } else {
+                mSink.drive(0, 0);
+                mFinished = true;
+            }
+            mErrors[step] = issued - due;
+            mErrorStats.add(Math.abs(issued - due));
+            mPlayed = step + 1;
+        }
+        if (!mFinished) {
+            // Stopped part way through
+            mSink.drive(0, 0);
+        }
+        synchronized (this) {
+            if (mThread == self) {
+                mThread = null;
+            }
+        }
+        if (mListener != null) {
+            mListener.onDone(this);
+        }
+    }
+}
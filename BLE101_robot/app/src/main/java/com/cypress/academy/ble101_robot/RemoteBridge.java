@@ -0,0 +1,434 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Lets a program on another computer drive the robot over TCP, either through
+ * {@code adb forward} or over Wi-Fi.
+ *
+ * The bridge runs one thread with a non-blocking selector so any number of clients can
+ * be connected. All numbers are big endian. A client sends:
+ * <ul>
+ * <li>'D' left right: drive, with the speeds as signed bytes from -100 to +100</li>
+ * <li>'S': stop</li>
+ * <li>'P' token: ping, with a 32 bit token that is sent back</li>
+ * </ul>
+ * and receives:
+ * <ul>
+ * <li>'T' time left right: tach counts, with the 64 bit arrival time in ns and the two
+ * 32 bit counts</li>
+ * <li>'P' token: the reply to a ping</li>
+ * </ul>
+ * Drive commands are latest wins: of all the commands read in one pass only the last is
+ * sent to the robot, so a fast client cannot build up a backlog. Tach readings are sent
+ * at most every {@value #TELEMETRY_PERIOD} ms and are dropped for a client that is not
+ * reading them. A client that sends anything else is disconnected. The robot is stopped
+ * when the last client disconnects.
+ *
+ * While the robot is moving a client must keep sending drive commands, repeating the last
+ * one will do, at least every {@value #INPUT_TIMEOUT} ms. If none comes in that time the
+ * robot is stopped, so a client that hangs or loses its network cannot leave the robot
+ * driving. This does not depend on the deadman of the service, which the activity keeps
+ * fed for as long as it is in front.
+ */
+public class RemoteBridge implements Runnable {
+
+    /**
+     * The robot driven by the bridge
+     */
+    public interface Robot {
+        /**
+         * Called on the bridge thread with the latest drive command
+         *
+         * @param left left wheel speed from -100 to +100
+         * @param right right wheel speed from -100 to +100
+         */
+        void drive(int left, int right);
+
+        /**
+         * @return a count that changes whenever there are new tach readings
+         */
+        long getTelemetryCount();
+
+        /**
+         * @param motor the motor
+         * @return the latest tach count of the motor
+         */
+        int getTach(PSoCBleRobotService.Motor motor);
+    }
+
+    public static final byte DRIVE = 'D';
+    public static final byte STOP = 'S';
+    public static final byte PING = 'P';
+    public static final byte TACH = 'T';
+
+    public static final int TACH_SIZE = 17;
+    private static final long TELEMETRY_PERIOD = 20; // ms
+    public static final long INPUT_TIMEOUT = 500; // ms
+    private static final int BUFFER_SIZE = 256;
+
+    private final int mPort;
+    private final Robot mRobot;
+    private Selector mSelector;
+    private ServerSocketChannel mServer;
+    private volatile Thread mThread;
+    private volatile int mClients;
+
+    // Drive command waiting to be sent to the robot
+    private boolean mDrivePending;
+    private int mDriveLeft;
+    private int mDriveRight;
+    private long mCommands;
+    private long mDriven;
+
+    // Time (ms) of the last drive command and whether it left the robot moving
+    private volatile long mInputTimeout = INPUT_TIMEOUT;
+    private long mLastCommandTime;
+    private boolean mMoving;
+    private long mTimeouts;
+
+    private long mSentTelemetry = -1;
+    private long mNextTelemetryTime;
+
+    /**
+     * Per client buffers, allocated once when the client connects
+     */
+    private static class Client {
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * @param port TCP port to listen on, or 0 to use any free port
+     * @param robot the robot to drive
+     */
+    public RemoteBridge(int port, Robot robot) {
+        mPort = port;
+        mRobot = robot;
+    }
+
+    /**
+     * Start listening
+     *
+     * @throws IOException if the port cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        try {
+            mServer.socket().setReuseAddress(true);
+            mServer.socket().bind(new InetSocketAddress(mPort));
+            mServer.configureBlocking(false);
+            mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            mServer.close();
+            mSelector.close();
+            throw e;
+        }
+        mThread = new Thread(this, "RemoteBridge");
+        mThread.start();
+    }
+
+    /**
+     * Stop listening and disconnect all clients. The robot is stopped if a client was
+     * connected.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        mSelector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * @return the port the bridge is listening on
+     */
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /**
+     * Set how long the robot may keep moving without a drive command
+     *
+     * @param timeout input timeout in ms
+     */
+    public void setInputTimeout(long timeout) {
+        mInputTimeout = timeout;
+    }
+
+    /**
+     * @return the number of times the robot was stopped because no command came in time
+     */
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return the number of connected clients
+     */
+    public int getClients() {
+        return mClients;
+    }
+
+    /**
+     * @return the number of drive and stop commands received
+     */
+    public synchronized long getCommands() {
+        return mCommands;
+    }
+
+    /**
+     * @return the number of drive commands sent to the robot. This is less than the
+     * commands received when commands were coalesced.
+     */
+    public synchronized long getDriven() {
+        return mDriven;
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        try {
+            while (mThread == self) {
+                mSelector.select(TELEMETRY_PERIOD);
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(key);
+                        }
+                    } catch (IOException e) {
+                        disconnect(key);
+                    }
+                }
+                // Only the latest command read in this pass goes to the robot
+                if (mDrivePending) {
+                    mDrivePending = false;
+                    synchronized (this) {
+                        mDriven++;
+                    }
+                    mMoving = mDriveLeft != 0 || mDriveRight != 0;
+                    mRobot.drive(mDriveLeft, mDriveRight);
+                }
+                checkInput();
+                sendTelemetry();
+            }
+        } catch (IOException e) {
+            // The selector failed so there is nothing more we can do
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                disconnect(key);
+            }
+            try {
+                mServer.close();
+                mSelector.close();
+            } catch (IOException e) {
+                // Already closing
+            }
+            synchronized (this) {
+                if (mThread == self) {
+                    mThread = null;
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServer.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        // Commands are tiny and must not wait for more data to fill a packet
+        channel.socket().setTcpNoDelay(true);
+        channel.register(mSelector, SelectionKey.OP_READ, new Client());
+        mClients++;
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(client.in) < 0) {
+            disconnect(key);
+            return;
+        }
+        ByteBuffer in = client.in;
+        in.flip();
+        while (in.hasRemaining()) {
+            in.mark();
+            byte command = in.get();
+            if (command == DRIVE) {
+                if (in.remaining() < 2) {
+                    in.reset();
+                    break;
+                }
+                drive(in.get(), in.get());
+            } else if (command == STOP) {
+                drive(0, 0);
+            } else if (command == PING) {
+                if (in.remaining() < 4) {
+                    in.reset();
+                    break;
+                }
+                int token = in.getInt();
+                if (client.out.remaining() >= 5) {
+                    client.out.put(PING).putInt(token);
+                    flush(key);
+                }
+            } else {
+                throw new IOException("Unknown command " + command);
+            }
+        }
+        in.compact();
+    }
+
+    private void drive(int left, int right) {
+        mDrivePending = true;
+        mDriveLeft = left;
+        mDriveRight = right;
+        mLastCommandTime = System.nanoTime() / 1000000;
+        synchronized (this) {
+            mCommands++;
+        }
+    }
+
+    /**
+     * Stop the robot if it is moving and no drive command has come for the input timeout
+     */
+    private void checkInput() {
+        if (!mMoving || System.nanoTime() / 1000000 - mLastCommandTime < mInputTimeout) {
+            return;
+        }
+        mMoving = false;
+        synchronized (this) {
+            mTimeouts++;
+        }
+        mRobot.drive(0, 0);
+    }
+
+    /**
+     * Send the latest tach readings to every client if they have changed
+     */
+    private void sendTelemetry() throws IOException {
+        long now = System.nanoTime() / 1000000;
+        long count = mRobot.getTelemetryCount();
+        if (count == mSentTelemetry || now < mNextTelemetryTime) {
+            return;
+        }
+        mSentTelemetry = count;
+        mNextTelemetryTime = now + TELEMETRY_PERIOD;
+        long time = System.nanoTime();
+        int left = mRobot.getTach(PSoCBleRobotService.Motor.LEFT);
+        int right = mRobot.getTach(PSoCBleRobotService.Motor.RIGHT);
+        for (SelectionKey key : mSelector.keys()) {
+            Client client = (Client) key.attachment();
+            // Drop the reading for a client that has not taken the last ones
+            if (client == null || !key.isValid() || client.out.remaining() < TACH_SIZE) {
+                continue;
+            }
+            client.out.put(TACH).putLong(time).putInt(left).putInt(right);
+            try {
+                flush(key);
+            } catch (IOException e) {
+                disconnect(key);
+            }
+        }
+    }
+
+    /**
+     * Write as much of a client's output as the socket takes and wait for it to be
+     * writable if there is more
+     */
+    private void flush(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        client.out.flip();
+        ((SocketChannel) key.channel()).write(client.out);
+        boolean more = client.out.hasRemaining();
+        client.out.compact();
+        key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void disconnect(SelectionKey key) {
+        if (key.attachment() == null) {
+            return; // not a client
+        }
+        key.attach(null);
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        if (--mClients == 0) {
+            // Nobody is driving the robot now
+            mDrivePending = false;
+            mMoving = false;
+            mRobot.drive(0, 0);
+        }
+    }
+}
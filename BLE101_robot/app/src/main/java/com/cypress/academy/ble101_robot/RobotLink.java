@@ -0,0 +1,343 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.UUID;
+
+/**
+ * A connection to one more robot that follows the robot controlled by
+ * {@link PSoCBleRobotService}. Each link has its own GATT connection and BLE queue so
+ * any number of robots can be driven together through a {@link FleetController}.
+ *
+ * The link only drives the robot and keeps the latest tach counts. Drive frames are
+ * written latest wins: a frame that is still waiting in the queue is replaced by a newer
+ * one.
+ */
+public class RobotLink implements FleetController.Robot {
+
+    private final static String TAG = RobotLink.class.getSimpleName();
+
+    private final String mAddress;
+    private final FleetController mFleet;
+    private BluetoothGatt mBluetoothGatt;
+    private volatile boolean mConnected;
+    private volatile boolean mReady;
+
+    // Queue for BLE writes. The item at the head of the queue is the one in flight.
+    private final LinkedList<Object> mBleQueue = new LinkedList<>();
+
+    private BluetoothGattCharacteristic mSpeedLeftCharacteristic;
+    private BluetoothGattCharacteristic mSpeedRightCharacteristic;
+    private BluetoothGattCharacteristic mDriveCharacteristic;
+
+    // The drive frame in flight. The frame is done once both wheel writes are done. The
+    // fleet does not write the next frame until then, so every completion belongs to it.
+    private boolean mLeftPending;
+    private boolean mRightPending;
+
+    private volatile int mTachLeft;
+    private volatile int mTachRight;
+
+    /**
+     * @param address Bluetooth address of the robot
+     * @param fleet the fleet told when drive frames have been written
+     */
+    public RobotLink(String address, FleetController fleet) {
+        mAddress = address;
+        mFleet = fleet;
+    }
+
+    /**
+     * Start connecting to the robot
+     *
+     * @param context context used for the connection
+     * @param adapter the Bluetooth adapter
+     * @return true if the connection was started
+     */
+    public boolean connect(Context context, BluetoothAdapter adapter) {
+        final BluetoothDevice device = adapter.getRemoteDevice(mAddress);
+        if (device == null) {
+            Log.w(TAG, "Device " + mAddress + " not found.  Unable to connect.");
+            return false;
+        }
+        mBluetoothGatt = device.connectGatt(context, false, mGattCallback);
+        return true;
+    }
+
+    /**
+     * Start writing a stop to the robot
+     *
+     * @return true if the stop was queued
+     */
+    public boolean stop() {
+        return writeDrive(0, 0);
+    }
+
+    /**
+     * Wait until everything queued for the robot has been written
+     *
+     * @param end time to give up at, from {@code SystemClock.elapsedRealtime()}
+     */
+    public void waitForQueue(long end) {
+        synchronized (mBleQueue) {
+            long wait;
+            while (!mBleQueue.isEmpty() && (wait = end - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    mBleQueue.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Disconnect from the robot and release the connection
+     */
+    public void close() {
+        mReady = false;
+        mConnected = false;
+        synchronized (mBleQueue) {
+            mBleQueue.clear();
+            mBleQueue.notifyAll();
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.disconnect();
+                mBluetoothGatt.close();
+                mBluetoothGatt = null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the robot is connected and ready to drive
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Get the tach count for a motor
+     *
+     * @param motor the motor
+     * @return the last tach count reported by the robot
+     */
+    public int getTach(PSoCBleRobotService.Motor motor) {
+        return (motor == PSoCBleRobotService.Motor.LEFT) ? mTachLeft : mTachRight;
+    }
+
+    @Override
+    public boolean writeDrive(int left, int right) {
+        if (!mReady) {
+            return false;
+        }
+        synchronized (mBleQueue) {
+            if (mDriveCharacteristic != null) {
+                byte[] value = mDriveCharacteristic.getValue();
+                value[0] = (byte) left;
+                value[1] = (byte) right;
+                mLeftPending = true;
+                mRightPending = true;
+                enqueueLatest(mDriveCharacteristic);
+            } else {
+                mSpeedLeftCharacteristic.setValue(left, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+                mSpeedRightCharacteristic.setValue(right, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+                mLeftPending = true;
+                mRightPending = true;
+                enqueueLatest(mSpeedLeftCharacteristic);
+                enqueueLatest(mSpeedRightCharacteristic);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a write to the queue. A write of the same characteristic that has not been
+     * started yet is removed since it would only send an old value.
+     *
+     * @param characteristic the characteristic to write
+     */
+    private void enqueueLatest(BluetoothGattCharacteristic characteristic) {
+        ListIterator<Object> iterator = mBleQueue.listIterator(mBleQueue.isEmpty() ? 0 : 1);
+        while (iterator.hasNext()) {
+            if (iterator.next() == characteristic) {
+                iterator.remove();
+            }
+        }
+        mBleQueue.add(characteristic);
+        if (mBleQueue.size() == 1) {
+            mBluetoothGatt.writeCharacteristic(characteristic);
+        }
+    }
+
+    /**
+     * Start the write at the head of the queue, if any. Must be called holding the queue lock.
+     */
+    private void handleBleQueue() {
+        if (mBleQueue.isEmpty()) {
+            mBleQueue.notifyAll();
+        } else if (mBluetoothGatt != null) {
+            if (mBleQueue.element() instanceof BluetoothGattDescriptor) {
+                mBluetoothGatt.writeDescriptor((BluetoothGattDescriptor) mBleQueue.element());
+            } else {
+                mBluetoothGatt.writeCharacteristic((BluetoothGattCharacteristic) mBleQueue.element());
+            }
+        }
+    }
+
+    /**
+     * Turn on notifications of a characteristic
+     *
+     * @param characteristic the characteristic
+     */
+    private void enableNotification(BluetoothGattCharacteristic characteristic) {
+        if (characteristic == null) {
+            return;
+        }
+        mBluetoothGatt.setCharacteristicNotification(characteristic, true);
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(PSoCBleRobotService.CCCD_UUID));
+        if (descriptor == null) {
+            return;
+        }
+        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        synchronized (mBleQueue) {
+            mBleQueue.add(descriptor);
+            if (mBleQueue.size() == 1) {
+                mBluetoothGatt.writeDescriptor(descriptor);
+            }
+        }
+    }
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnected = true;
+                Log.i(TAG, "Connected to " + mAddress);
+                gatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mConnected = false;
+                mReady = false;
+                Log.i(TAG, "Disconnected from " + mAddress);
+                synchronized (mBleQueue) {
+                    mBleQueue.clear();
+                    mBleQueue.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+                return;
+            }
+            BluetoothGattService gattService = gatt.getService(UUID.fromString(PSoCBleRobotService.motorServiceUUID));
+            if (gattService == null) {
+                Log.w(TAG, mAddress + " is not a robot");
+                return;
+            }
+            mSpeedLeftCharacteristic = gattService.getCharacteristic(UUID.fromString(PSoCBleRobotService.speedLeftCharUUID));
+            mSpeedRightCharacteristic = gattService.getCharacteristic(UUID.fromString(PSoCBleRobotService.speedRightCharUUID));
+            mDriveCharacteristic = gattService.getCharacteristic(UUID.fromString(PSoCBleRobotService.driveCharUUID));
+            if (mDriveCharacteristic != null) {
+                mDriveCharacteristic.setValue(new byte[2]);
+            }
+            enableNotification(gattService.getCharacteristic(UUID.fromString(PSoCBleRobotService.tachLeftCharUUID)));
+            enableNotification(gattService.getCharacteristic(UUID.fromString(PSoCBleRobotService.tachRightCharUUID)));
+            mReady = mConnected && (mDriveCharacteristic != null
+                    || (mSpeedLeftCharacteristic != null && mSpeedRightCharacteristic != null));
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            boolean done = false;
+            synchronized (mBleQueue) {
+                if (characteristic == mDriveCharacteristic) {
+                    mLeftPending = false;
+                    mRightPending = false;
+                    done = true;
+                } else if (characteristic == mSpeedLeftCharacteristic && mLeftPending) {
+                    mLeftPending = false;
+                    done = !mRightPending;
+                } else if (characteristic == mSpeedRightCharacteristic && mRightPending) {
+                    mRightPending = false;
+                    done = !mLeftPending;
+                }
+                mBleQueue.poll();
+                handleBleQueue();
+            }
+            if (done) {
+                mFleet.onWriteDone(RobotLink.this, SystemClock.elapsedRealtimeNanos());
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            synchronized (mBleQueue) {
+                mBleQueue.poll();
+                handleBleQueue();
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            String uuid = characteristic.getUuid().toString();
+            switch (uuid) {
+                case PSoCBleRobotService.tachLeftCharUUID:
+                    mTachLeft = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32, 0);
+                    break;
+                case PSoCBleRobotService.tachRightCharUUID:
+                    mTachRight = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT32, 0);
+                    break;
+            }
+        }
+    };
+}
@@ -0,0 +1,471 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates a BLE101 robot so that the robot code can be run and measured without a
+ * board, and faster than real time.
+ *
+ * The simulator takes the place of the motor service: speed characteristic writes go in
+ * and tach notifications come out, in the same formats and with the same UUIDs as the
+ * firmware. Each wheel is driven by a DC motor through a gearbox, with the motor's back
+ * EMF, rotor inertia and friction. Both motors run from a battery that sags with the
+ * current drawn and runs down as it is used. Everything crosses a simulated BLE link
+ * that only sends at connection events and may lose packets, which are then sent again
+ * at the next connection event as the link layer does.
+ *
+ * Time only moves forward when {@link #advance(long)} is called. All times are in ns of
+ * simulated time.
+ */
+public class RobotSimulator {
+
+    /**
+     * Gets the simulated GATT events, in the same way as a BluetoothGattCallback
+     */
+    public interface Listener {
+        /**
+         * A write has been acknowledged by the robot
+         *
+         * @param uuid the characteristic that was written
+         * @param now the simulated time
+         */
+        void onCharacteristicWrite(String uuid, long now);
+
+        /**
+         * A notification has arrived
+         *
+         * @param uuid the characteristic that changed
+         * @param value the new value
+         * @param now the simulated time
+         */
+        void onCharacteristicChanged(String uuid, byte[] value, long now);
+    }
+
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+    private static final int MAX_SPEED = 100;
+    private static final long STEP = 1000000L; // 1 ms physics step
+
+    // Motor and gearbox. The motor constant is both the torque per amp and the back EMF
+    // per rad/s. The defaults give about 1000 tach counts/s at full speed.
+    private double mMotorConstant = 0.007;     // N m/A = V s/rad
+    private double mWindingResistance = 2.0;   // ohm
+    private double mRotorInertia = 1e-6;       // kg m^2, at the motor
+    private double mViscousFriction = 1e-7;    // N m s/rad, at the motor
+    private double mStaticFriction = 0.002;    // N m, at the motor
+    private double mGearRatio = 48;
+    private double mCountsPerRev = 360;        // tach counts per wheel revolution
+
+    // Battery. The open circuit voltage falls from full to empty as the charge is used.
+    private double mFullVoltage = 6.0;
+    private double mEmptyVoltage = 4.8;
+    private double mCapacity = 2000 * 3.6;     // coulombs (2000 mAh)
+    private double mInternalResistance = 0.5;  // ohm
+    private double mCharge = mCapacity;
+    private double mBatteryVoltage = mFullVoltage;
+
+    // Link
+    private long mConnectionInterval = 25000000L;
+    private long mAirTime = 1000000L;          // per packet
+    private long mEventLength = 4000000L;      // room for 4 packets each way per event
+    private double mLossRate;
+    private long mNotifyPeriod = 50000000L;
+    private final Random mRandom;
+
+    // Per wheel state, indexed by Motor.ordinal()
+    private final int[] mSpeed = new int[WHEELS];
+    private final double[] mMotorRate = new double[WHEELS];   // rad/s at the motor
+    private final double[] mWheelAngle = new double[WHEELS];  // rad
+    private final double[] mLoad = new double[WHEELS];        // N m at the wheel
+    private final boolean[] mBlocked = new boolean[WHEELS];
+    private final double[] mCurrent = new double[WHEELS];
+
+    private final Listener mListener;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private long mNow;
+    private long mNextNotifyTime;
+    private long mSequence;
+    private long mUplinkFreeTime;    // phone to robot
+    private long mDownlinkFreeTime;  // robot to phone
+    private boolean mPackedDrive;
+    private long mWrites;
+    private long mNotifications;
+    private long mLost;
+
+    /**
+     * Something that happens at a later time. Events at the same time happen in the order
+     * they were made.
+     */
+    private static class Event implements Comparable<Event> {
+        static final int APPLY = 0;   // a write reaches the robot
+        static final int ACK = 1;     // the acknowledgement of a write reaches the phone
+        static final int NOTIFY = 2;  // a notification reaches the phone
+
+        final long time;
+        final long sequence;
+        final int type;
+        final String uuid;
+        final byte[] value;
+
+        Event(long time, long sequence, int type, String uuid, byte[] value) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.uuid = uuid;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return (time < other.time) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : (sequence > other.sequence) ? 1 : 0;
+        }
+    }
+
+    /**
+     * @param listener gets the GATT events
+     * @param seed seed for the random link losses so runs can be repeated
+     */
+    public RobotSimulator(Listener listener, long seed) {
+        mListener = listener;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Set up the BLE link
+     *
+     * @param connectionInterval time between connection events in ns
+     * @param lossRate fraction of packets that are lost and must be sent again
+     * @param notifyPeriod time between tach notifications in ns
+     */
+    public void setLink(long connectionInterval, double lossRate, long notifyPeriod) {
+        mConnectionInterval = connectionInterval;
+        mLossRate = lossRate;
+        mNotifyPeriod = notifyPeriod;
+    }
+
+    /**
+     * Set up the drive train
+     *
+     * @param gearRatio motor turns per wheel turn
+     * @param rotorInertia inertia of the motor and gearbox at the motor in kg m^2
+     * @param countsPerRev tach counts per wheel turn
+     */
+    public void setDriveTrain(double gearRatio, double rotorInertia, double countsPerRev) {
+        mGearRatio = gearRatio;
+        mRotorInertia = rotorInertia;
+        mCountsPerRev = countsPerRev;
+    }
+
+    /**
+     * Set up the battery
+     *
+     * @param fullVoltage open circuit voltage when full
+     * @param emptyVoltage open circuit voltage when empty
+     * @param capacity capacity in mAh
+     * @param internalResistance internal resistance in ohm
+     */
+    public void setBattery(double fullVoltage, double emptyVoltage, double capacity, double internalResistance) {
+        mFullVoltage = fullVoltage;
+        mEmptyVoltage = emptyVoltage;
+        mCapacity = capacity * 3.6;
+        mCharge = mCapacity;
+        mInternalResistance = internalResistance;
+    }
+
+    /**
+     * Set how much charge is left in the battery
+     *
+     * @param fraction from 0 (empty) to 1 (full)
+     */
+    public void setCharge(double fraction) {
+        mCharge = mCapacity * Math.max(0, Math.min(1, fraction));
+    }
+
+    /**
+     * Say whether the robot has the packed drive characteristic
+     *
+     * @param packedDrive true if both speeds can be written at once
+     */
+    public void setPackedDrive(boolean packedDrive) {
+        mPackedDrive = packedDrive;
+    }
+
+    public boolean hasPackedDrive() {
+        return mPackedDrive;
+    }
+
+    /**
+     * Put a load on a wheel, such as a slope or a carpet
+     *
+     * @param motor the wheel
+     * @param torque load torque at the wheel in N m, against the direction of travel
+     */
+    public void setLoad(PSoCBleRobotService.Motor motor, double torque) {
+        mLoad[motor.ordinal()] = torque;
+    }
+
+    /**
+     * Stop a wheel from turning, as when the robot drives into a wall
+     *
+     * @param motor the wheel
+     * @param blocked true to stop the wheel
+     */
+    public void setBlocked(PSoCBleRobotService.Motor motor, boolean blocked) {
+        mBlocked[motor.ordinal()] = blocked;
+        if (blocked) {
+            mMotorRate[motor.ordinal()] = 0;
+        }
+    }
+
+    /**
+     * Send a characteristic write from the phone. It reaches the robot at a later
+     * connection event and is acknowledged at the one after.
+     *
+     * @param uuid the characteristic to write
+     * @param value the value
+     */
+    public void writeCharacteristic(String uuid, byte[] value) {
+        mWrites++;
+        mEvents.add(new Event(send(mNow, true), mSequence++, Event.APPLY, uuid, value.clone()));
+    }
+
+    /**
+     * Run the simulation
+     *
+     * @param time how long to run for in ns
+     */
+    public void advance(long time) {
+        long end = mNow + time;
+        while (mNow < end) {
+            long stepEnd = Math.min(end, mNow + STEP);
+            // Deliver everything that happens before the end of this step
+            while (!mEvents.isEmpty() && mEvents.peek().time <= stepEnd) {
+                Event event = mEvents.poll();
+                if (event.time > mNow) {
+                    step(event.time - mNow);
+                }
+                deliver(event);
+            }
+            if (stepEnd > mNow) {
+                step(stepEnd - mNow);
+            }
+            while (mNextNotifyTime <= mNow) {
+                notifyTach(mNextNotifyTime);
+                mNextNotifyTime += mNotifyPeriod;
+            }
+        }
+    }
+
+    /**
+     * @return the simulated time in ns
+     */
+    public long getTime() {
+        return mNow;
+    }
+
+    /**
+     * @param motor the wheel
+     * @return the tach count the robot would report now
+     */
+    public int getTach(PSoCBleRobotService.Motor motor) {
+        return (int) (long) Math.floor(mWheelAngle[motor.ordinal()] / (2 * Math.PI) * mCountsPerRev);
+    }
+
+    /**
+     * @param motor the wheel
+     * @return the wheel speed in tach counts/s
+     */
+    public double getTachRate(PSoCBleRobotService.Motor motor) {
+        return mMotorRate[motor.ordinal()] / mGearRatio / (2 * Math.PI) * mCountsPerRev;
+    }
+
+    /**
+     * @param motor the motor
+     * @return the speed last written to the motor by the phone
+     */
+    public int getSpeed(PSoCBleRobotService.Motor motor) {
+        return mSpeed[motor.ordinal()];
+    }
+
+    /**
+     * @return battery voltage under the current load
+     */
+    public double getBatteryVoltage() {
+        return mBatteryVoltage;
+    }
+
+    public long getWrites() {
+        return mWrites;
+    }
+
+    public long getNotifications() {
+        return mNotifications;
+    }
+
+    /**
+     * @return the number of packets that were lost and sent again
+     */
+    public long getLost() {
+        return mLost;
+    }
+
+    /**
+     * Work out when a packet queued at a time reaches the other side. Packets in each
+     * direction go one after the other during connection events. A packet that does not
+     * fit in the current event, or is lost, waits for the next one.
+     *
+     * @param time when the packet is queued
+     * @param uplink true for the phone to robot direction
+     * @return when the packet arrives
+     */
+    private long send(long time, boolean uplink) {
+        long start = Math.max(time, uplink ? mUplinkFreeTime : mDownlinkFreeTime);
+        long event = (start / mConnectionInterval) * mConnectionInterval;
+        if (start + mAirTime > event + mEventLength) {
+            event += mConnectionInterval;
+            start = event;
+        }
+        while (mRandom.nextDouble() < mLossRate) {
+            mLost++;
+            event += mConnectionInterval;
+            start = event;
+        }
+        long arrival = start + mAirTime;
+        if (uplink) {
+            mUplinkFreeTime = arrival;
+        } else {
+            mDownlinkFreeTime = arrival;
+        }
+        return arrival;
+    }
+
+    private void deliver(Event event) {
+        switch (event.type) {
+            case Event.APPLY:
+                apply(event.uuid, event.value);
+                // The write response goes back at a later connection event
+                mEvents.add(new Event(send(mNow, false), mSequence++, Event.ACK, event.uuid, null));
+                break;
+            case Event.ACK:
+                mListener.onCharacteristicWrite(event.uuid, mNow);
+                break;
+            case Event.NOTIFY:
+                mNotifications++;
+                mListener.onCharacteristicChanged(event.uuid, event.value, mNow);
+                break;
+        }
+    }
+
+    /**
+     * A write has reached the robot
+     */
+    private void apply(String uuid, byte[] value) {
+        switch (uuid) {
+            case PSoCBleRobotService.speedLeftCharUUID:
+                mSpeed[PSoCBleRobotService.Motor.LEFT.ordinal()] = clamp(value[0]);
+                break;
+            case PSoCBleRobotService.speedRightCharUUID:
+                mSpeed[PSoCBleRobotService.Motor.RIGHT.ordinal()] = clamp(value[0]);
+                break;
+            case PSoCBleRobotService.driveCharUUID:
+                if (mPackedDrive) {
+                    mSpeed[PSoCBleRobotService.Motor.LEFT.ordinal()] = clamp(value[0]);
+                    mSpeed[PSoCBleRobotService.Motor.RIGHT.ordinal()] = clamp(value[1]);
+                }
+                break;
+        }
+    }
+
+    private static int clamp(int speed) {
+        return Math.max(-MAX_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    /**
+     * Send the tach counts as they are now. They reach the phone later.
+     */
+    private void notifyTach(long time) {
+        notify(time, PSoCBleRobotService.tachLeftCharUUID, getTach(PSoCBleRobotService.Motor.LEFT));
+        notify(time, PSoCBleRobotService.tachRightCharUUID, getTach(PSoCBleRobotService.Motor.RIGHT));
+    }
+
+    private void notify(long time, String uuid, int count) {
+        // SINT32, little endian as in BLE
+        byte[] value = { (byte) count, (byte) (count >> 8), (byte) (count >> 16), (byte) (count >> 24) };
+        mEvents.add(new Event(send(time, false), mSequence++, Event.NOTIFY, uuid, value));
+    }
+
+    /**
+     * Move the physics on
+     *
+     * @param time step in ns
+     */
+    private void step(long time) {
+        double dt = time / 1e9;
+        // Battery voltage sags with the total current
+        double openVoltage = mEmptyVoltage + (mFullVoltage - mEmptyVoltage) * mCharge / mCapacity;
+        double totalCurrent = 0;
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            totalCurrent += Math.abs(mCurrent[wheel]);
+        }
+        mBatteryVoltage = Math.max(0, openVoltage - mInternalResistance * totalCurrent);
+        mCharge = Math.max(0, mCharge - totalCurrent * dt);
+
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            double voltage = mBatteryVoltage * mSpeed[wheel] / MAX_SPEED;
+            double rate = mMotorRate[wheel];
+            double current = (voltage - mMotorConstant * rate) / mWindingResistance;
+            mCurrent[wheel] = current;
+            if (mBlocked[wheel]) {
+                mMotorRate[wheel] = 0;
+                continue;
+            }
+            double torque = mMotorConstant * current - mViscousFriction * rate;
+            // The wheel load acts against the motion, or against the drive when stopped
+            double direction = (rate != 0) ? Math.signum(rate) : Math.signum(torque);
+            double resist = mStaticFriction + mLoad[wheel] / mGearRatio;
+            if (rate == 0 && Math.abs(torque) <= resist) {
+                continue; // not enough torque to start turning
+            }
+            double newRate = rate + (torque - direction * resist) / mRotorInertia * dt;
+            if (rate != 0 && Math.signum(newRate) != Math.signum(rate)) {
+                newRate = 0; // friction stops the motor, it does not reverse it
+            }
+            mMotorRate[wheel] = newRate;
+            mWheelAngle[wheel] += (rate + newRate) / 2 / mGearRatio * dt;
+        }
+        mNow += time;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the BLE devices found during scanning. Each device keeps a filtered
+ * estimate of its signal strength (RSSI) that is updated incrementally every time
+ * one of its advertisements is received.
+ *
+ * The raw RSSI of a single advertisement jumps around by 10 dB or more, so a simple
+ * one dimensional Kalman filter is used to smooth it. Once the estimate has settled,
+ * the registry can pick the nearest (strongest) device for us.
+ *
+ * Each device also remembers when it was last seen. Devices that have not been seen
+ * for STALE_AGE are marked as stale and are ignored when picking a device, and devices
+ * that have not been seen for EXPIRE_AGE are evicted. All times are in ms and are
+ * passed in by the caller (normally from {@code SystemClock.elapsedRealtime()}).
+ */
+public class ScanRegistry {
+
+    // Kalman filter tuning (all values in dBm squared).
+    // The process noise allows the estimate to follow the phone being moved around,
+    // the measurement noise is the typical variance of a single RSSI reading.
+    private static final double PROCESS_NOISE = 0.5;
+    private static final double MEASUREMENT_NOISE = 16.0;
+
+    // An estimate is settled once its variance has dropped below this value.
+    // With the tuning above this takes 5 advertisements.
+    private static final double SETTLED_VARIANCE = 4.0;
+
+    // The nearest device must be this much stronger than any other device
+    // before it is selected automatically
+    private static final double SELECT_MARGIN = 6.0;
+
+    // Age (in ms) after which a device is shown as stale, and after which it is removed
+    public static final long STALE_AGE = 5000;
+    public static final long EXPIRE_AGE = 60000;
+
+    /**
+     * A single device found during scanning and its filtered RSSI.
+     */
+    public static class Device {
+        private final String mAddress;
+        private String mName;
+        private double mRssi;
+        private double mVariance;
+        private int mSamples;
+        private long mLastSeen;
+
+        Device(String address) {
+            mAddress = address;
+        }
+
+        /**
+         * Run one step of the Kalman filter with a new RSSI reading.
+         *
+         * @param rssi RSSI of the advertisement that was just received
+         * @param now current time
+         */
+        void update(int rssi, long now) {
+            if (mSamples == 0 || isStale(now)) {
+                // The first reading is the best estimate we have. The same is true for a
+                // device that has not been seen for a while since the phone may have moved.
+                mRssi = rssi;
+                mVariance = MEASUREMENT_NOISE;
+            } else {
+                double variance = mVariance + PROCESS_NOISE;
+                double gain = variance / (variance + MEASUREMENT_NOISE);
+                mRssi += gain * (rssi - mRssi);
+                mVariance = (1 - gain) * variance;
+            }
+            mSamples++;
+            mLastSeen = now;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the filtered RSSI in dBm
+         */
+        public double getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * @return number of advertisements received from this device
+         */
+        public int getSamples() {
+            return mSamples;
+        }
+
+        /**
+         * @return true if enough advertisements have been received to trust the RSSI estimate
+         */
+        public boolean isSettled() {
+            return mSamples > 0 && mVariance < SETTLED_VARIANCE;
+        }
+
+        /**
+         * @return time this device was last seen
+         */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        /**
+         * @param now current time
+         * @return true if the device has not been seen for STALE_AGE
+         */
+        public boolean isStale(long now) {
+            return now - mLastSeen > STALE_AGE;
+        }
+    }
+
+    // Devices in the order they were found. This order matches the list on the screen.
+    private final List<Device> mDevices = new ArrayList<>();
+    private final Map<String, Device> mDeviceMap = new HashMap<>();
+
+    /**
+     * Add an advertisement to the registry. A new device is added to the end of the list.
+     *
+     * @param address Bluetooth address of the device
+     * @param name name of the device (may be null)
+     * @param rssi RSSI of the advertisement
+     * @param now current time
+     * @return the position of the device in the list
+     */
+    public int update(String address, String name, int rssi, long now) {
+        Device device = mDeviceMap.get(address);
+        if (device == null) {
+            device = new Device(address);
+            mDeviceMap.put(address, device);
+            mDevices.add(device);
+        }
+        if (name != null) {
+            device.mName = name;
+        }
+        device.update(rssi, now);
+        return mDevices.indexOf(device);
+    }
+
+    /**
+     * @param position position of the device in the list
+     * @return the device at that position
+     */
+    public Device get(int position) {
+        return mDevices.get(position);
+    }
+
+    /**
+     * @return number of devices in the registry
+     */
+    public int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * Remove all devices from the registry
+     */
+    public void clear() {
+        mDevices.clear();
+        mDeviceMap.clear();
+    }
+
+    /**
+     * Remove all devices that have not been seen for EXPIRE_AGE. This changes the
+     * positions of the remaining devices.
+     *
+     * @param now current time
+     * @return true if any device was removed
+     */
+    public boolean evict(long now) {
+        boolean removed = false;
+        for (Iterator<Device> iterator = mDevices.iterator(); iterator.hasNext(); ) {
+            Device device = iterator.next();
+            if (now - device.mLastSeen > EXPIRE_AGE) {
+                iterator.remove();
+                mDeviceMap.remove(device.mAddress);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Get the device with the strongest RSSI estimate, settled or not.
+     * Stale devices are ignored.
+     *
+     * @param now current time
+     * @return the strongest device or null if there are no recently seen devices
+     */
+    public Device getStrongest(long now) {
+        Device strongest = null;
+        for (Device device : mDevices) {
+            if (device.isStale(now)) {
+                continue;
+            }
+            if (strongest == null || device.mRssi > strongest.mRssi) {
+                strongest = device;
+            }
+        }
+        return strongest;
+    }
+
+    /**
+     * Get the device that is most likely to be picked by the user. The current candidate is
+     * only replaced when another settled device is stronger by SELECT_MARGIN, so the candidate
+     * does not flip back and forth between devices with a similar signal strength.
+     *
+     * @param currentAddress address of the current candidate or null if there is none
+     * @param now current time
+     * @return the candidate device or null if no device has a settled estimate yet
+     */
+    public Device getCandidate(String currentAddress, long now) {
+        Device current = (currentAddress == null) ? null : mDeviceMap.get(currentAddress);
+        if (current != null && current.isStale(now)) {
+            current = null;
+        }
+        Device strongest = getStrongest(now);
+        if (strongest == null || !strongest.isSettled()) {
+            return current;
+        }
+        if (current == null || strongest.mRssi - current.mRssi >= SELECT_MARGIN) {
+            return strongest;
+        }
+        return current;
+    }
+
+    /**
+     * Get the nearest device if it can be picked with confidence. That is the case when
+     * the strongest device has a settled estimate and is clearly stronger than all the others.
+     *
+     * @param now current time
+     * @return the nearest device or null if there is no clear winner (yet)
+     */
+    public Device getNearest(long now) {
+        Device strongest = getStrongest(now);
+        if (strongest == null || !strongest.isSettled()) {
+            return null;
+        }
+        for (Device device : mDevices) {
+            if (device != strongest && !device.isStale(now)
+                    && strongest.mRssi - device.mRssi < SELECT_MARGIN) {
+                return null;
+            }
+        }
+        return strongest;
+    }
+}
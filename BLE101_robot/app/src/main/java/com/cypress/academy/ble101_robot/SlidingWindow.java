@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Lowest and highest value of the readings in a sliding time window, for scaling a live
+ * chart. Each reading is added and dropped once and the minimum and maximum are read in
+ * constant time.
+ *
+ * Two queues of readings are kept, one with values that rise from front to back and one
+ * with values that fall. A new reading removes the readings at the back that can never be
+ * the minimum (or maximum) again, since it is newer and no higher (or lower). The front of
+ * each queue is then the minimum (or maximum) of the window. Everything is kept in arrays
+ * that are made once.
+ */
+public class SlidingWindow {
+
+    private final long mSpan;
+    private final int mMask;
+    // Readings by sequence number, in ring buffers
+    private final long[] mTimes;
+    private final float[] mValues;
+    private long mHead; // oldest reading in the window
+    private long mNext; // sequence number of the next reading
+    // Queues of sequence numbers for the minimum and maximum
+    private final long[] mMinQueue;
+    private final long[] mMaxQueue;
+    private long mMinFront;
+    private long mMinBack;
+    private long mMaxFront;
+    private long mMaxBack;
+
+    /**
+     * @param capacity most readings in the window. Older readings are dropped when there are
+     *                 more. It is rounded up to a power of 2.
+     * @param span length of the window, in the units of the reading times
+     */
+    public SlidingWindow(int capacity, long span) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mMask = size - 1;
+        mSpan = span;
+        mTimes = new long[size];
+        mValues = new float[size];
+        mMinQueue = new long[size];
+        mMaxQueue = new long[size];
+    }
+
+    /**
+     * Add a reading. Readings older than the span before it are dropped.
+     *
+     * @param time time of the reading, not before the last one
+     * @param value the reading
+     */
+    public synchronized void add(long time, float value) {
+        long sequence = mNext++;
+        int slot = (int) (sequence & mMask);
+        mTimes[slot] = time;
+        mValues[slot] = value;
+        if (mNext - mHead > mTimes.length) {
+            mHead++; // full
+        }
+        while (mTimes[(int) (mHead & mMask)] < time - mSpan) {
+            mHead++;
+        }
+        // Drop readings that have left the window from the fronts, which makes room for
+        // the new reading at the backs
+        while (mMinFront < mMinBack && mMinQueue[(int) (mMinFront & mMask)] < mHead) {
+            mMinFront++;
+        }
+        while (mMaxFront < mMaxBack && mMaxQueue[(int) (mMaxFront & mMask)] < mHead) {
+            mMaxFront++;
+        }
+        while (mMinBack > mMinFront && valueOf(mMinQueue[(int) ((mMinBack - 1) & mMask)]) >= value) {
+            mMinBack--;
+        }
+        mMinQueue[(int) (mMinBack++ & mMask)] = sequence;
+        while (mMaxBack > mMaxFront && valueOf(mMaxQueue[(int) ((mMaxBack - 1) & mMask)]) <= value) {
+            mMaxBack--;
+        }
+        mMaxQueue[(int) (mMaxBack++ & mMask)] = sequence;
+    }
+
+    private float valueOf(long sequence) {
+        return mValues[(int) (sequence & mMask)];
+    }
+
+    /**
+     * @return the lowest reading in the window, or 0 if it is empty
+     */
+    public synchronized float getMin() {
+        return isEmpty() ? 0 : valueOf(mMinQueue[(int) (mMinFront & mMask)]);
+    }
+
+    /**
+     * @return the highest reading in the window, or 0 if it is empty
+     */
+    public synchronized float getMax() {
+        return isEmpty() ? 0 : valueOf(mMaxQueue[(int) (mMaxFront & mMask)]);
+    }
+
+    /**
+     * @return number of readings in the window
+     */
+    public synchronized int getCount() {
+        return (int) (mNext - mHead);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mNext == mHead;
+    }
+
+    public synchronized void clear() {
+        mHead = mNext;
+        mMinFront = mMinBack;
+        mMaxFront = mMaxBack;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * PID speed controller for the two wheels. The commanded speed (-100 to +100) is
+ * turned into a target tach rate and the controller adjusts the speed that is
+ * written to the motor so that the wheel holds that rate under load and as the
+ * battery sags. The commanded speed is used as a feed forward term so with all
+ * gains at 0 the output is the same as open loop control.
+ *
+ * The tach is treated as a counter so the rate comes from the change in count
+ * between samples. Counter wraparound is handled by the int subtraction.
+ *
+ * Nothing here allocates after construction so it can run at the full control rate.
+ */
+public class SpeedController {
+
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+    private static final int MAX_SPEED = 100;
+
+    // A wheel that has not reported a tach sample for this long (ns) is taken to be stopped
+    private static final long RATE_TIMEOUT = 500000000L;
+
+    // Tach rate (counts/s) of a wheel driven at full speed with no load
+    private double mMaxRate;
+
+    // Gains. The error is in the same units as the speed.
+    private double mKp = 0.5;
+    private double mKi = 2.0;
+    private double mKd = 0;
+
+    // Per wheel state, indexed by Motor.ordinal()
+    private final int[] mTarget = new int[WHEELS];
+    private final boolean[] mHaveCount = new boolean[WHEELS];
+    private final int[] mLastCount = new int[WHEELS];
+    private final long[] mLastTime = new long[WHEELS];
+    private final double[] mRate = new double[WHEELS];
+    private final double[] mIntegral = new double[WHEELS];
+    private final double[] mLastError = new double[WHEELS];
+    private final int[] mOutput = new int[WHEELS];
+
+    /**
+     * @param maxRate tach rate (counts/s) of a wheel at full speed
+     */
+    public SpeedController(double maxRate) {
+        mMaxRate = maxRate;
+    }
+
+    /**
+     * Set the controller gains
+     *
+     * @param kp proportional gain
+     * @param ki integral gain (per second)
+     * @param kd derivative gain (seconds)
+     */
+    public synchronized void setGains(double kp, double ki, double kd) {
+        mKp = kp;
+        mKi = ki;
+        mKd = kd;
+    }
+
+    /**
+     * @param maxRate tach rate (counts/s) of a wheel at full speed
+     */
+    public synchronized void setMaxRate(double maxRate) {
+        mMaxRate = maxRate;
+    }
+
+    /**
+     * Set the commanded speed for a wheel
+     *
+     * @param motor wheel to set
+     * @param speed speed from -100 to +100
+     */
+    public synchronized void setTarget(PSoCBleRobotService.Motor motor, int speed) {
+        mTarget[motor.ordinal()] = speed;
+    }
+
+    /**
+     * Feed a tach sample into the controller
+     *
+     * @param motor wheel the sample is for
+     * @param count tach count
+     * @param now time of arrival from {@code System.nanoTime()}
+     */
+    public synchronized void onTach(PSoCBleRobotService.Motor motor, int count, long now) {
+        int wheel = motor.ordinal();
+        if (mHaveCount[wheel]) {
+            long elapsed = now - mLastTime[wheel];
+            if (elapsed <= 0) {
+                return;
+            }
+            mRate[wheel] = (count - mLastCount[wheel]) * 1e9 / elapsed;
+        }
+        mHaveCount[wheel] = true;
+        mLastCount[wheel] = count;
+        mLastTime[wheel] = now;
+    }
+
+    /**
+     * Run one step of the controller for both wheels
+     *
+     * @param now current time from {@code System.nanoTime()}
+     * @param dt time since the last step in seconds
+     */
+    public synchronized void update(long now, double dt) {
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            if (mHaveCount[wheel] && now - mLastTime[wheel] > RATE_TIMEOUT) {
+                mRate[wheel] = 0;
+            }
+            int target = mTarget[wheel];
+            if (target == 0 || dt <= 0) {
+                // Let a stopped wheel stop instead of fighting any drift
+                mIntegral[wheel] = 0;
+                mLastError[wheel] = 0;
+                mOutput[wheel] = target;
+                continue;
+            }
+            double error = target - mRate[wheel] * MAX_SPEED / mMaxRate;
+            double integral = mIntegral[wheel] + error * dt;
+            double derivative = (error - mLastError[wheel]) / dt;
+            mLastError[wheel] = error;
+
+            double output = target + mKp * error + mKi * integral + mKd * derivative;
+            if (output > MAX_SPEED) {
+                output = MAX_SPEED;
+            } else if (output < -MAX_SPEED) {
+                output = -MAX_SPEED;
+            } else {
+                // Only integrate while the output is not saturated to avoid wind up
+                mIntegral[wheel] = integral;
+            }
+            mOutput[wheel] = (int) Math.round(output);
+        }
+    }
+
+    /**
+     * @param motor wheel to get
+     * @return the speed to write to the motor from -100 to +100
+     */
+    public synchronized int getOutput(PSoCBleRobotService.Motor motor) {
+        return mOutput[motor.ordinal()];
+    }
+
+    /**
+     * @param motor wheel to get
+     * @return the measured tach rate in counts/s
+     */
+    public synchronized double getRate(PSoCBleRobotService.Motor motor) {
+        return mRate[motor.ordinal()];
+    }
+
+    /**
+     * Forget all tach history and controller state
+     */
+    public synchronized void reset() {
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            mHaveCount[wheel] = false;
+            mRate[wheel] = 0;
+            mIntegral[wheel] = 0;
+            mLastError[wheel] = 0;
+            mOutput[wheel] = mTarget[wheel];
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Output shaping between the requested motor speeds and what is written to the robot.
+ *
+ * The response curve is a deadband around zero followed by an expo curve which gives
+ * finer control at low speed. Trim slows down one motor to make the robot drive
+ * straight. A {@link MotorCalibration} can be applied after the trim to make up for
+ * differences between the motors. The curve, trim and calibration for each motor are
+ * precomputed into a lookup table when the shaper is configured so shaping a speed is a
+ * single array read.
+ *
+ * The slew limiter is run once per control loop tick and limits how fast the output
+ * can change so that full speed steps do not slam the gearbox.
+ */
+public class SpeedShaper {
+
+    public static final int MAX_SPEED = 100;
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+
+    // Lookup tables indexed by Motor.ordinal() then by speed + MAX_SPEED
+    private final int[][] mTable = new int[WHEELS][2 * MAX_SPEED + 1];
+
+    // Settings the table was built from
+    private int mDeadband;
+    private double mExpo;
+    private int mTrim;
+    private MotorCalibration mCalibration;
+
+    // Maximum change of the output in speed units per second. 0 turns the limiter off.
+    private double mSlewRate;
+    private final double[] mOutput = new double[WHEELS];
+
+    public SpeedShaper() {
+        configure(0, 0, 0, 0);
+    }
+
+    /**
+     * Set up the shaping. With all values at 0 the output is the same as the input.
+     *
+     * @param deadband requested speeds up to this size give 0
+     * @param expo amount of expo curve from 0 (linear) to 1 (cubic)
+     * @param trim percent to slow the left motor (positive) or right motor (negative), from
+     *             -100 to 100
+     * @param slewRate maximum change in speed per second, or 0 for no limit
+     */
+    public synchronized void configure(int deadband, double expo, int trim, double slewRate) {
+        mDeadband = Math.max(0, Math.min(MAX_SPEED - 1, deadband));
+        mExpo = Math.max(0, Math.min(1, expo));
+        mTrim = Math.max(-100, Math.min(100, trim));
+        mSlewRate = Math.max(0, slewRate);
+        buildTable();
+    }
+
+    /**
+     * Apply a motor calibration to the shaped speeds
+     *
+     * @param calibration the calibration, or null to send the speeds uncalibrated
+     */
+    public synchronized void setCalibration(MotorCalibration calibration) {
+        mCalibration = calibration;
+        buildTable();
+    }
+
+    public synchronized MotorCalibration getCalibration() {
+        return mCalibration;
+    }
+
+    private void buildTable() {
+        double leftGain = 1 - Math.max(0, mTrim) / 100.0;
+        double rightGain = 1 + Math.min(0, mTrim) / 100.0;
+        for (int speed = -MAX_SPEED; speed <= MAX_SPEED; speed++) {
+            double curve = 0;
+            int magnitude = Math.abs(speed);
+            if (magnitude > mDeadband) {
+                double x = (double) (magnitude - mDeadband) / (MAX_SPEED - mDeadband);
+                curve = MAX_SPEED * ((1 - mExpo) * x + mExpo * x * x * x);
+            }
+            int sign = (speed < 0) ? -1 : 1;
+            mTable[PSoCBleRobotService.Motor.LEFT.ordinal()][speed + MAX_SPEED] =
+                    calibrate(PSoCBleRobotService.Motor.LEFT, sign * curve * leftGain);
+            mTable[PSoCBleRobotService.Motor.RIGHT.ordinal()][speed + MAX_SPEED] =
+                    calibrate(PSoCBleRobotService.Motor.RIGHT, sign * curve * rightGain);
+        }
+    }
+
+    /**
+     * @param motor the motor
+     * @param speed a shaped speed
+     * @return the speed to send the motor, rounded
+     */
+    private int calibrate(PSoCBleRobotService.Motor motor, double speed) {
+        if (mCalibration != null) {
+            speed = mCalibration.command(motor, speed);
+        }
+        // Round the magnitude so that the curve is symmetric about zero
+        int sign = (speed < 0) ? -1 : 1;
+        return sign * (int) Math.round(Math.abs(speed));
+    }
+
+    /**
+     * @return true if the slew limiter is on so the output needs to be updated every tick
+     */
+    public synchronized boolean isSlewLimited() {
+        return mSlewRate > 0;
+    }
+
+    /**
+     * Apply the response curve and trim to a requested speed
+     *
+     * @param motor motor the speed is for
+     * @param speed requested speed from -100 to +100
+     * @return speed to send to the motor
+     */
+    public synchronized int shape(PSoCBleRobotService.Motor motor, int speed) {
+        speed = Math.max(-MAX_SPEED, Math.min(MAX_SPEED, speed));
+        return mTable[motor.ordinal()][speed + MAX_SPEED];
+    }
+
+    /**
+     * Move the output of a motor towards its target by no more than the slew rate allows.
+     * This is called once per control loop tick.
+     *
+     * @param motor motor to update
+     * @param target shaped speed the motor should get to
+     * @param dt time since the last tick in seconds
+     * @return speed to send to the motor
+     */
+    public synchronized int slew(PSoCBleRobotService.Motor motor, int target, double dt) {
+        int wheel = motor.ordinal();
+        double output = target;
+        if (mSlewRate > 0) {
+            double step = mSlewRate * dt;
+            double change = Math.max(-step, Math.min(step, target - mOutput[wheel]));
+            output = mOutput[wheel] + change;
+        }
+        mOutput[wheel] = output;
+        return (int) Math.round(output);
+    }
+
+    /**
+     * Set the output of a motor without slew limiting, for example after a stop
+     *
+     * @param motor motor to set
+     * @param speed the speed the motor is at
+     */
+    public synchronized void reset(PSoCBleRobotService.Motor motor, int speed) {
+        mOutput[motor.ordinal()] = speed;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Detects a wheel that is being driven but is not turning, for example because the
+ * robot has run into a wall.
+ *
+ * For each wheel the detector keeps the tach count changes and times of the last few
+ * samples in a ring buffer along with their running sums, so each sample is handled in
+ * constant time with fixed memory. A wheel is stalled when the tach rate over the
+ * window is well below the rate expected for the speed written to the motor, or when
+ * the tach stops reporting altogether. A command that starts the wheel, reverses it or
+ * changes its speed a lot gives the motor some time to get up to speed before it is
+ * checked again. Small changes, such as those from the slew limiter, do not, so that a
+ * command that keeps changing cannot put off the check.
+ */
+public class StallDetector {
+
+    private static final int WHEELS = PSoCBleRobotService.Motor.values().length;
+
+    // Speeds smaller than this are not checked since the motor may not turn at all
+    private static final int MIN_SPEED = 20;
+
+    // Stalled if the wheel turns at less than this fraction of the expected rate
+    private static final double STALL_FRACTION = 0.2;
+
+    // Time (ns) given to the motor to respond to a new command
+    private static final long GRACE_TIME = 500000000L;
+
+    // Smallest change in speed from the command the wheel was last given time for that
+    // gives it time again
+    private static final int REARM_STEP = 30;
+
+    // Stalled if no tach sample has arrived for this long (ns) while driving
+    private static final long SILENT_TIME = 1000000000L;
+
+    private final double mMaxRate;
+    private final int mWindow;
+
+    // Per wheel state, indexed by Motor.ordinal()
+    private final int[] mCommand = new int[WHEELS];
+    private final int[] mArmedCommand = new int[WHEELS];
+    private final long[] mGraceEnd = new long[WHEELS];
+    private final boolean[] mStalled = new boolean[WHEELS];
+    private final boolean[] mHaveCount = new boolean[WHEELS];
+    private final int[] mLastCount = new int[WHEELS];
+    private final long[] mLastTime = new long[WHEELS];
+
+    // Sliding window of count changes and times for each wheel
+    private final int[][] mDeltas;
+    private final long[][] mTimes;
+    private final int[] mNext = new int[WHEELS];
+    private final int[] mFilled = new int[WHEELS];
+    private final long[] mDeltaSum = new long[WHEELS];
+    private final long[] mTimeSum = new long[WHEELS];
+
+    /**
+     * @param maxRate tach rate (counts/s) of a wheel at full speed
+     * @param window number of tach samples to look at
+     */
+    public StallDetector(double maxRate, int window) {
+        mMaxRate = maxRate;
+        mWindow = window;
+        mDeltas = new int[WHEELS][window];
+        mTimes = new long[WHEELS][window];
+    }
+
+    /**
+     * Tell the detector the speed a motor is being driven at. With closed loop control
+     * this is the speed asked for rather than the controller output, which moves about
+     * while the controller works against the load.
+     *
+     * @param motor motor that was written
+     * @param speed speed from -100 to +100
+     * @param now time of the write from {@code System.nanoTime()}
+     */
+    public synchronized void setCommand(PSoCBleRobotService.Motor motor, int speed, long now) {
+        int wheel = motor.ordinal();
+        if (speed == mCommand[wheel]) {
+            return;
+        }
+        int armed = mArmedCommand[wheel];
+        mCommand[wheel] = speed;
+        if (Math.abs(speed) < MIN_SPEED) {
+            // Not checked, so a stall is over
+            mStalled[wheel] = false;
+            mArmedCommand[wheel] = speed;
+            return;
+        }
+        boolean starting = Math.abs(armed) < MIN_SPEED;
+        boolean reversing = (speed < 0) != (armed < 0);
+        if (starting || reversing || Math.abs(speed - armed) >= REARM_STEP) {
+            mArmedCommand[wheel] = speed;
+            mStalled[wheel] = false;
+            mGraceEnd[wheel] = now + GRACE_TIME;
+            clearWindow(wheel);
+        }
+    }
+
+    /**
+     * Feed a tach sample into the detector
+     *
+     * @param motor wheel the sample is for
+     * @param count tach count
+     * @param now time of arrival from {@code System.nanoTime()}
+     * @return true if this sample showed that the wheel has just stalled
+     */
+    public synchronized boolean onTach(PSoCBleRobotService.Motor motor, int count, long now) {
+        int wheel = motor.ordinal();
+        if (mHaveCount[wheel]) {
+            int slot = mNext[wheel];
+            int delta = count - mLastCount[wheel];
+            long elapsed = now - mLastTime[wheel];
+            if (mFilled[wheel] == mWindow) {
+                mDeltaSum[wheel] -= mDeltas[wheel][slot];
+                mTimeSum[wheel] -= mTimes[wheel][slot];
+            } else {
+                mFilled[wheel]++;
+            }
+            mDeltas[wheel][slot] = delta;
+            mTimes[wheel][slot] = elapsed;
+            mDeltaSum[wheel] += delta;
+            mTimeSum[wheel] += elapsed;
+            mNext[wheel] = (slot + 1) % mWindow;
+        }
+        mHaveCount[wheel] = true;
+        mLastCount[wheel] = count;
+        mLastTime[wheel] = now;
+
+        if (!isChecked(wheel, now) || mFilled[wheel] < mWindow || mTimeSum[wheel] <= 0) {
+            return false;
+        }
+        // Rate in the direction the wheel is being driven
+        double rate = mDeltaSum[wheel] * 1e9 / mTimeSum[wheel];
+        if (mCommand[wheel] < 0) {
+            rate = -rate;
+        }
+        double expected = Math.abs(mCommand[wheel]) * mMaxRate / 100;
+        if (rate < STALL_FRACTION * expected) {
+            mStalled[wheel] = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a wheel that is being driven has stopped sending tach samples.
+     * This should be called regularly from a timer since a stalled wheel may not report
+     * at all.
+     *
+     * @param motor wheel to check
+     * @param now current time from {@code System.nanoTime()}
+     * @return true if the wheel has just been found to be stalled
+     */
+    public synchronized boolean check(PSoCBleRobotService.Motor motor, long now) {
+        int wheel = motor.ordinal();
+        if (!isChecked(wheel, now)) {
+            return false;
+        }
+        long last = mGraceEnd[wheel];
+        if (mHaveCount[wheel] && mLastTime[wheel] - last > 0) {
+            last = mLastTime[wheel];
+        }
+        if (now - last > SILENT_TIME) {
+            mStalled[wheel] = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param motor wheel to get
+     * @return true if the wheel is stalled at its current command
+     */
+    public synchronized boolean isStalled(PSoCBleRobotService.Motor motor) {
+        return mStalled[motor.ordinal()];
+    }
+
+    /**
+     * Forget all commands and tach history
+     */
+    public synchronized void reset() {
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            mCommand[wheel] = 0;
+            mArmedCommand[wheel] = 0;
+            mStalled[wheel] = false;
+            mHaveCount[wheel] = false;
+            clearWindow(wheel);
+        }
+    }
+
+    /**
+     * @return true if the wheel is being driven hard enough and long enough to be checked
+     */
+    private boolean isChecked(int wheel, long now) {
+        return !mStalled[wheel] && Math.abs(mCommand[wheel]) >= MIN_SPEED && now - mGraceEnd[wheel] >= 0;
+    }
+
+    private void clearWindow(int wheel) {
+        mNext[wheel] = 0;
+        mFilled[wheel] = 0;
+        mDeltaSum[wheel] = 0;
+        mTimeSum[wheel] = 0;
+    }
+}
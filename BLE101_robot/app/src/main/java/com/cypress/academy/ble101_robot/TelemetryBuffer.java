@@ -0,0 +1,195 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size history of one telemetry channel, such as the tach count of a wheel.
+ *
+ * Samples are a time and an int value stored in primitive arrays used as a ring, so the
+ * memory used is fixed when the buffer is made and adding a sample does not allocate.
+ * There must only be one writer, normally the GATT callback thread. Any number of
+ * readers can copy samples out at the same time without locking and without waiting for
+ * the writer.
+ *
+ * The writer claims a sample's sequence number before writing it and publishes it after.
+ * A reader copies the published samples it wants and then reads the claim again. Any
+ * sample that the writer may have overwritten during the copy is dropped from the result,
+ * so a reader that falls behind gets fewer samples but never a mixed up one.
+ */
+public class TelemetryBuffer {
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLongArray mTimes;
+    private final AtomicIntegerArray mValues;
+
+    // Number of samples the writer has started and finished writing
+    private volatile long mClaimed;
+    private volatile long mPublished;
+
+    /**
+     * @param capacity the number of samples to keep. This is rounded up to a power of two.
+     */
+    public TelemetryBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be from 1 to 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mTimes = new AtomicLongArray(size);
+        mValues = new AtomicIntegerArray(size);
+    }
+
+    /**
+     * Add a sample. This must only be called from one thread at a time.
+     *
+     * @param time time of the sample in ns
+     * @param value the sample
+     */
+    public void add(long time, int value) {
+        long sequence = mPublished;
+        int index = (int) sequence & mMask;
+        mClaimed = sequence + 1;
+        mTimes.set(index, time);
+        mValues.set(index, value);
+        mPublished = sequence + 1;
+    }
+
+    /**
+     * @return the number of samples that can be kept
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the number of samples added since the buffer was made or cleared, including
+     * ones that have been overwritten
+     */
+    public long getCount() {
+        return mPublished;
+    }
+
+    /**
+     * Forget all samples. This must only be called from the writer thread.
+     */
+    public void clear() {
+        mClaimed = 0;
+        mPublished = 0;
+    }
+
+    /**
+     * Copy out the latest samples, oldest first
+     *
+     * @param times where to put the sample times
+     * @param values where to put the sample values
+     * @param max the largest number of samples to copy. The arrays must hold this many.
+     * @return the number of samples copied
+     */
+    public int copyLatest(long[] times, int[] values, int max) {
+        long end = mPublished;
+        long start = Math.max(0, end - Math.min(max, mCapacity));
+        return copy(start, end, times, values);
+    }
+
+    /**
+     * Copy out the samples added after an earlier read, oldest first. This lets a reader
+     * follow the channel by passing in the count returned by the last call.
+     *
+     * @param count the value of {@link #getCount()} at the end of the earlier read
+     * @param times where to put the sample times
+     * @param values where to put the sample values
+     * @param max the largest number of samples to copy. The arrays must hold this many.
+     * @return the number of samples copied. If more than max samples were added since
+     * count, or some were overwritten, only the latest ones are copied.
+     */
+    public int copySince(long count, long[] times, int[] values, int max) {
+        long end = mPublished;
+        long start = Math.max(count, end - Math.min(max, mCapacity));
+        if (start >= end) {
+            return 0;
+        }
+        return copy(start, end, times, values);
+    }
+
+    /**
+     * Copy out the samples from a time onwards, oldest first
+     *
+     * @param since the earliest time to copy in ns
+     * @param times where to put the sample times
+     * @param values where to put the sample values
+     * @param max the largest number of samples to copy. The arrays must hold this many.
+     * @return the number of samples copied. If more than max samples are newer than since,
+     * only the latest ones are copied.
+     */
+    public int copyFrom(long since, long[] times, int[] values, int max) {
+        int copied = copyLatest(times, values, max);
+        // Samples are in time order so find the first one that is new enough
+        int first = 0;
+        while (first < copied && times[first] < since) {
+            first++;
+        }
+        if (first > 0) {
+            System.arraycopy(times, first, times, 0, copied - first);
+            System.arraycopy(values, first, values, 0, copied - first);
+        }
+        return copied - first;
+    }
+
+    /**
+     * Copy samples by sequence number and drop any that were overwritten during the copy
+     */
+    private int copy(long start, long end, long[] times, int[] values) {
+        int copied = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int index = (int) sequence & mMask;
+            times[copied] = mTimes.get(index);
+            values[copied] = mValues.get(index);
+            copied++;
+        }
+        // Samples older than this may have been overwritten while they were copied
+        long oldest = mClaimed - mCapacity;
+        if (oldest > start) {
+            int lost = (int) Math.min(copied, oldest - start);
+            System.arraycopy(times, lost, times, 0, copied - lost);
+            System.arraycopy(values, lost, values, 0, copied - lost);
+            copied -= lost;
+        }
+        return copied;
+    }
+}
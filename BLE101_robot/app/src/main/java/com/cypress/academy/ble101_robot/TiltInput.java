@@ -0,0 +1,126 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Drives the robot by tilting the phone. Tilting forward and back sets the throttle
+ * and tilting left and right sets the turn, relative to how the phone was held when
+ * tilt input was started. The sensor samples are delivered on a background thread and
+ * go straight into the input pipeline, so the UI thread is not involved.
+ */
+public class TiltInput implements SensorEventListener {
+
+    // Tilt angle that gives full throttle or turn
+    private static final double MAX_TILT = Math.toRadians(30);
+    private static final float FULL_TILT = (float) (SensorManager.GRAVITY_EARTH * Math.sin(MAX_TILT));
+
+    private final SensorManager mSensorManager;
+    private final InputPipeline mPipeline;
+    private HandlerThread mThread;
+
+    // Gravity when tilt input was started, taken as the neutral position
+    private boolean mHaveNeutral;
+    private float mNeutralX;
+    private float mNeutralY;
+
+    /**
+     * @param context context used to get the sensor manager
+     * @param pipeline where to send the input
+     */
+    public TiltInput(Context context, InputPipeline pipeline) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mPipeline = pipeline;
+    }
+
+    /**
+     * Start listening to the sensor. The current phone position becomes neutral.
+     *
+     * @return false if the phone has no sensor to use
+     */
+    public boolean start() {
+        if (mThread != null) {
+            return true;
+        }
+        Sensor sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
+        if (sensor == null) {
+            sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        }
+        if (sensor == null) {
+            return false;
+        }
+        mHaveNeutral = false;
+        mThread = new HandlerThread("TiltInput");
+        mThread.start();
+        mSensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_GAME,
+                new Handler(mThread.getLooper()));
+        return true;
+    }
+
+    /**
+     * Stop listening to the sensor
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mSensorManager.unregisterListener(this);
+        mThread.quit();
+        mThread = null;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        // x points to the right edge of the phone and y to the top edge
+        float x = event.values[0];
+        float y = event.values[1];
+        if (!mHaveNeutral) {
+            mHaveNeutral = true;
+            mNeutralX = x;
+            mNeutralY = y;
+        }
+        // Tipping the top edge away or the right edge down reduces the gravity along it
+        float throttle = (mNeutralY - y) / FULL_TILT;
+        float turn = (mNeutralX - x) / FULL_TILT;
+        mPipeline.setInput(throttle, turn);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.ble101_robot;
+
+/**
+ * Running statistics for a timing measurement such as a latency or a skew.
+ * Values are in nanoseconds. Adding a value does not allocate, so this can be
+ * used from the BLE callbacks and from control loops.
+ */
+public class TimingStats {
+
+    private final String mName;
+    private long mCount;
+    private long mLast;
+    private long mMax;
+    private long mTotal;
+
+    /**
+     * @param name name used when the statistics are printed
+     */
+    public TimingStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Add a measurement
+     *
+     * @param nanos the measured time in ns
+     */
+    public synchronized void add(long nanos) {
+        mCount++;
+        mLast = nanos;
+        mTotal += nanos;
+        if (nanos > mMax) {
+            mMax = nanos;
+        }
+    }
+
+    /**
+     * Clear all measurements
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mLast = 0;
+        mMax = 0;
+        mTotal = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getLast() {
+        return mLast;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return (mCount == 0) ? 0 : mTotal / mCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d samples, last %d us, mean %d us, max %d us", mName, mCount,
+                mLast / 1000, getMean() / 1000, mMax / 1000);
+    }
+}
@@ -0,0 +1,119 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ChartPoints}, and a benchmark of preparing a frame of a live chart.
+ */
+public class ChartPointsTest {
+
+    @Test
+    public void joinsSamplesInSeparateColumns() {
+        ChartPoints points = new ChartPoints(100);
+        long[] times = { 0, 50, 99 };
+        float[] values = { 0, 10, 0 };
+        // 100 pixels wide for 100 time units and 10 pixels high for 10 value units
+        int floats = points.prepare(times, values, 3, 0, 100, 0, 10, 0, 0, 100, 10);
+        assertEquals(8, floats);
+        assertArrayEquals(new float[]{ 0.5f, 10, 50.5f, 0, 50.5f, 0, 99.5f, 10 },
+                copy(points.getLines(), floats), 0);
+        assertEquals(3, points.getSamples());
+    }
+
+    @Test
+    public void reducesEachColumnToItsSpread() {
+        ChartPoints points = new ChartPoints(10);
+        long[] times = new long[1000];
+        float[] values = new float[1000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i;
+            values[i] = i % 7;
+        }
+        int floats = points.prepare(times, values, 1000, 0, 1000, 0, 6, 0, 0, 10, 6);
+        // A spread and a join for every column except the first, which has no join
+        assertEquals(4 * 19, floats);
+        float[] lines = points.getLines();
+        for (int i = 0; i < floats; i += 4) {
+            for (int j = i + 1; j < i + 4; j += 2) {
+                assertTrue(lines[j] >= 0 && lines[j] <= 6);
+            }
+        }
+        // The first spread covers the whole range
+        assertEquals(6, lines[1], 0);
+        assertEquals(0, lines[3], 0);
+    }
+
+    @Test
+    public void leavesOutSamplesOutsideTheSpan() {
+        ChartPoints points = new ChartPoints(100);
+        long[] times = { -5, 10, 20, 200 };
+        float[] values = { 1, 2, 3, 4 };
+        assertEquals(4, points.prepare(times, values, 4, 0, 100, 0, 10, 0, 0, 100, 100));
+        assertEquals(2, points.getSamples());
+        assertEquals(0, points.prepare(times, values, 0, 0, 100, 0, 10, 0, 0, 100, 100));
+    }
+
+    @Test
+    public void roundsRangeToWholeSteps() {
+        float[] range = new float[2];
+        ChartPoints.niceRange(13, 87, 4, range);
+        assertEquals(0, range[0], 0);
+        assertEquals(100, range[1], 0);
+        ChartPoints.niceRange(-3.2f, 1.1f, 4, range);
+        assertEquals(-4, range[0], 0);
+        assertEquals(2, range[1], 0);
+        ChartPoints.niceRange(5, 5, 4, range);
+        assertTrue(range[0] <= 5 && range[1] > 5);
+    }
+
+    @Test
+    public void formatsNumbers() {
+        char[] text = new char[11];
+        int[] numbers = { 0, 7, -42, 12345, Integer.MIN_VALUE, Integer.MAX_VALUE };
+        for (int number : numbers) {
+            int n = ChartPoints.format(number, text);
+            assertEquals(Integer.toString(number), new String(text, 0, n));
+        }
+    }
+
+    /**
+     * Preparing a frame from a full buffer of samples must take a small part of a 60 fps
+     * frame, leaving the rest for drawing.
+     */
+    @Test
+    public void preparesFramesQuickly() {
+        int width = 1080;
+        int count = 4096;
+        long[] times = new long[count];
+        float[] values = new float[count];
+        Random random = new Random(1);
+        for (int i = 0; i < count; i++) {
+            times[i] = i * 2500000L; // 400 Hz for about 10 s
+            values[i] = 100 * (float) Math.sin(i / 100.0) + random.nextInt(10);
+        }
+        ChartPoints points = new ChartPoints(width);
+        long to = times[count - 1];
+        for (int i = 0; i < 200; i++) {
+            points.prepare(times, values, count, to - 10000000000L, to, -120, 120, 36, 6, width, 354);
+        }
+        int frames = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            points.prepare(times, values, count, to - 10000000000L, to, -120, 120, 36, 6, width, 354);
+        }
+        long mean = (System.nanoTime() - start) / frames;
+        assertTrue(points.getLineFloats() <= 8 * width);
+        // A frame is 16.7 ms. Allow for a slow build machine.
+        assertTrue("mean frame took " + mean / 1000 + " us", mean < 2000000);
+    }
+
+    private static float[] copy(float[] values, int count) {
+        float[] copy = new float[count];
+        System.arraycopy(values, 0, copy, 0, count);
+        return copy;
+    }
+}
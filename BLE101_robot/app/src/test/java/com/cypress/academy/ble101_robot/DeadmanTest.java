@@ -0,0 +1,114 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link Deadman} timer and its stop latency.
+ */
+public class DeadmanTest {
+
+    private static final long MS = 1000000L;
+
+    private static class CountingAction implements Deadman.Action {
+        volatile int mStops;
+        volatile long mStopTime;
+
+        @Override
+        public void stop() {
+            mStopTime = System.nanoTime();
+            mStops++;
+        }
+    }
+
+    @Test
+    public void stopsOnceAfterTimeout() throws Exception {
+        CountingAction action = new CountingAction();
+        Deadman deadman = new Deadman(100 * MS, action);
+        // Nothing to stop before the first input
+        deadman.tick(1000 * MS, 0.02);
+        assertEquals(0, action.mStops);
+
+        deadman.feed(1000 * MS);
+        deadman.tick(1080 * MS, 0.02);
+        deadman.feed(1090 * MS);
+        deadman.tick(1180 * MS, 0.02);
+        assertEquals(0, action.mStops);
+        deadman.tick(1200 * MS, 0.02);
+        assertEquals(1, action.mStops);
+        assertTrue(deadman.isStopped());
+        deadman.tick(1300 * MS, 0.02);
+        assertEquals(1, action.mStops);
+        // The latency is the lateness of the check
+        assertTrue(deadman.getLatency().getMax() >= 10 * MS);
+        assertTrue(deadman.getLatency().getMax() < 11 * MS);
+
+        // A stop done another way also counts
+        deadman.feed(2000 * MS);
+        deadman.clear();
+        deadman.tick(3000 * MS, 0.02);
+        assertEquals(1, action.mStops);
+    }
+
+    @Test
+    public void inputDuringTheStopComesAfterIt() throws Exception {
+        final Thread[] input = new Thread[1];
+        final boolean[] fedDuringStop = new boolean[1];
+        final Deadman[] deadman = new Deadman[1];
+        deadman[0] = new Deadman(100 * MS, new Deadman.Action() {
+            @Override
+            public void stop() {
+                input[0] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        deadman[0].feed(1300 * MS);
+                    }
+                });
+                input[0].start();
+                try {
+                    input[0].join(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                fedDuringStop[0] = !input[0].isAlive();
+            }
+        });
+        deadman[0].feed(1000 * MS);
+        deadman[0].tick(1200 * MS, 0.02);
+        input[0].join();
+        // The input waited for the stop and was not undone by it
+        assertFalse(fedDuringStop[0]);
+        assertFalse(deadman[0].isStopped());
+    }
+
+    @Test
+    public void worstCaseLatencyIsBoundedByTheCheckPeriod() throws Exception {
+        final long timeout = 50 * MS;
+        final long period = 10 * MS;
+        // Allowance for thread scheduling on a loaded test machine
+        final long slack = 40 * MS;
+
+        CountingAction action = new CountingAction();
+        Deadman deadman = new Deadman(timeout, action);
+        ControlLoop loop = new ControlLoop("Deadman", period, deadman);
+        loop.start();
+        try {
+            for (int i = 1; i <= 10; i++) {
+                long lastInput = System.nanoTime();
+                deadman.feed(lastInput);
+                long end = lastInput + timeout + period + slack;
+                while (action.mStops < i && System.nanoTime() - end < 0) {
+                    Thread.sleep(1);
+                }
+                assertEquals(i, action.mStops);
+                assertTrue(action.mStopTime - lastInput >= timeout);
+            }
+        } finally {
+            loop.stop();
+        }
+        TimingStats latency = deadman.getLatency();
+        assertEquals(10, latency.getCount());
+        assertTrue(latency.toString(), latency.getMax() <= period + slack);
+    }
+}
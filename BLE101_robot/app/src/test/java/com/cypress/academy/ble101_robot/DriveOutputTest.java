@@ -0,0 +1,174 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link DriveOutput} stage, including stops racing other threads.
+ */
+public class DriveOutputTest {
+
+    private static final PSoCBleRobotService.Motor LEFT = PSoCBleRobotService.Motor.LEFT;
+    private static final PSoCBleRobotService.Motor RIGHT = PSoCBleRobotService.Motor.RIGHT;
+
+    /**
+     * Records what would be written to the robot
+     */
+    private static class RecordingLink implements DriveOutput.Link {
+        final List<int[]> mFrames = new ArrayList<>();
+        final List<int[]> mSpeeds = new ArrayList<>();
+        boolean mFramesOnly;
+
+        @Override
+        public synchronized void sendDrive(int left, int right) {
+            mFrames.add(new int[] {left, right});
+        }
+
+        @Override
+        public synchronized boolean sendSpeed(PSoCBleRobotService.Motor motor, int speed) {
+            if (mFramesOnly) {
+                return false;
+            }
+            mSpeeds.add(new int[] {motor.ordinal(), speed});
+            return true;
+        }
+
+        synchronized int[] lastFrame() {
+            return mFrames.get(mFrames.size() - 1);
+        }
+    }
+
+    private static DriveOutput makeOutput(RecordingLink link) {
+        DriveOutput output = new DriveOutput(new SpeedShaper(), new SpeedController(1000),
+                new StallDetector(1000, 8), link);
+        output.setMotorState(LEFT, true);
+        output.setMotorState(RIGHT, true);
+        return output;
+    }
+
+    @Test
+    public void motorThatIsOffIsSentZero() throws Exception {
+        RecordingLink link = new RecordingLink();
+        DriveOutput output = new DriveOutput(new SpeedShaper(), new SpeedController(1000),
+                new StallDetector(1000, 8), link);
+        output.setMotorState(LEFT, true);
+        output.setDrive(40, 50);
+        assertArrayEquals(new int[] {40, 0}, link.lastFrame());
+        assertEquals(50, output.getSpeed(RIGHT));
+
+        // One motor at a time goes out on its own write unless only frames can be sent
+        output.setMotorSpeed(LEFT, 30);
+        assertArrayEquals(new int[] {LEFT.ordinal(), 30}, link.mSpeeds.get(link.mSpeeds.size() - 1));
+        link.mFramesOnly = true;
+        output.setMotorState(RIGHT, true);
+        assertArrayEquals(new int[] {30, 50}, link.lastFrame());
+    }
+
+    @Test
+    public void controlLoopSendsTheTargets() throws Exception {
+        RecordingLink link = new RecordingLink();
+        DriveOutput output = makeOutput(link);
+        output.setControlLoop(true);
+        int frames = link.mFrames.size();
+        output.setDrive(60, -60);
+        assertEquals(frames, link.mFrames.size());
+        output.tick(0, 0.05);
+        assertArrayEquals(new int[] {60, -60}, link.lastFrame());
+
+        // A cut motor is stopped at once and the other keeps going
+        output.cut(RIGHT);
+        assertArrayEquals(new int[] {60, 0}, link.lastFrame());
+        assertFalse(output.isOn(RIGHT));
+        output.tick(50000000L, 0.05);
+        assertArrayEquals(new int[] {60, 0}, link.lastFrame());
+    }
+
+    @Test
+    public void driverFromBeforeAStopIsDropped() throws Exception {
+        RecordingLink link = new RecordingLink();
+        DriveOutput output = makeOutput(link);
+        int stops = output.getStops();
+        assertTrue(output.setDrive(50, 50, stops));
+        assertEquals(stops + 1, output.stop());
+        assertArrayEquals(new int[] {0, 0}, link.lastFrame());
+
+        assertFalse(output.setDrive(50, 50, stops));
+        assertFalse(output.sendRaw(50, 50, stops));
+        assertFalse(output.halt(stops));
+        assertArrayEquals(new int[] {0, 0}, link.lastFrame());
+        assertEquals(0, output.getSpeed(LEFT));
+
+        // New input from the operator still gets through
+        output.setDrive(20, 30);
+        assertArrayEquals(new int[] {20, 30}, link.lastFrame());
+    }
+
+    @Test
+    public void stopWinsOverConcurrentSetDrive() throws Exception {
+        for (int run = 0; run < 20; run++) {
+            final RecordingLink link = new RecordingLink();
+            final DriveOutput output = makeOutput(link);
+            final int stops = output.getStops();
+            final CountDownLatch driving = new CountDownLatch(1);
+            final AtomicBoolean done = new AtomicBoolean();
+            // Stands in for a move sending its speed from the tach notifications
+            Thread driver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        output.setDrive(60, 60, stops);
+                        driving.countDown();
+                    }
+                }
+            });
+            driver.start();
+            driving.await();
+            output.stop();
+            Thread.sleep(5);
+            done.set(true);
+            driver.join();
+
+            assertArrayEquals(new int[] {0, 0}, link.lastFrame());
+            assertEquals(0, output.getSpeed(LEFT));
+            assertEquals(0, output.getSent(RIGHT));
+        }
+    }
+
+    @Test
+    public void stopWinsOverControlLoopTick() throws Exception {
+        for (int run = 0; run < 20; run++) {
+            final RecordingLink link = new RecordingLink();
+            final DriveOutput output = makeOutput(link);
+            output.setClosedLoop(true);
+            output.setControlLoop(true);
+            output.setDrive(80, 80);
+            final CountDownLatch ticking = new CountDownLatch(1);
+            final AtomicBoolean done = new AtomicBoolean();
+            Thread loop = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long now = 0;
+                    while (!done.get()) {
+                        now += 50000000L;
+                        output.tick(now, 0.05);
+                        ticking.countDown();
+                    }
+                }
+            });
+            loop.start();
+            ticking.await();
+            output.stop();
+            Thread.sleep(5);
+            done.set(true);
+            loop.join();
+
+            assertArrayEquals(new int[] {0, 0}, link.lastFrame());
+        }
+    }
+}
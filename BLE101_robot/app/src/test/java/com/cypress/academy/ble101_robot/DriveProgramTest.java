@@ -0,0 +1,156 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link DriveProgram} scripts and the {@link ProgramPlayer} timing.
+ */
+public class DriveProgramTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void parsesScript() throws Exception {
+        DriveProgram program = DriveProgram.parse("left 60 for 1.2 s, then both −40 for 0.8s");
+        assertEquals(2, program.size());
+        assertEquals(0, program.getTime(0));
+        assertEquals(60, program.getLeft(0));
+        assertEquals(0, program.getRight(0));
+        assertEquals(1200 * MS, program.getTime(1));
+        assertEquals(-40, program.getLeft(1));
+        assertEquals(-40, program.getRight(1));
+        assertEquals(2000 * MS, program.getDuration());
+    }
+
+    @Test
+    public void scriptRoundTrip() throws Exception {
+        DriveProgram program = new DriveProgram();
+        program.add(250 * MS, 30, -30);
+        program.add(1000 * MS, 100, 100);
+        program.setDuration(1500 * MS);
+        DriveProgram copy = DriveProgram.parse(program.toScript());
+        // The leading pause becomes a stop step
+        assertEquals(3, copy.size());
+        assertEquals(0, copy.getLeft(0));
+        assertEquals(250 * MS, copy.getTime(1));
+        assertEquals(-30, copy.getRight(1));
+        assertEquals(1000 * MS, copy.getTime(2));
+        assertEquals(1500 * MS, copy.getDuration());
+    }
+
+    @Test
+    public void rejectsBadSteps() throws Exception {
+        String[] scripts = { "left fast for 1 s", "both 120 for 1 s", "left 10 1 s", "spin 10 for 1 s", "stop for 1 s extra" };
+        for (String script : scripts) {
+            try {
+                DriveProgram.parse(script);
+                fail(script);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Cannot read step"));
+            }
+        }
+        try {
+            DriveProgram program = new DriveProgram();
+            program.add(10, 0, 0);
+            program.add(5, 0, 0);
+            fail("Steps out of order");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Simulated clock that moves on by exactly as long as the player waits
+     */
+    private static class FakeClock implements ProgramPlayer.Clock {
+        private long mNow = 1000 * MS;
+
+        @Override
+        public synchronized long nanoTime() {
+            return mNow;
+        }
+
+        @Override
+        public synchronized void park(Object blocker, long nanos) {
+            mNow += nanos;
+        }
+    }
+
+    /**
+     * Play a program on a simulated clock
+     *
+     * @return the time each drive command was issued, from the start of playback
+     */
+    private static long[] play(String script, long leadTime, final int[] speeds) throws Exception {
+        final FakeClock clock = new FakeClock();
+        final long start = clock.nanoTime();
+        final long[] times = new long[speeds.length];
+        final int[] count = new int[1];
+        ProgramPlayer player = new ProgramPlayer(DriveProgram.parse(script), new InputPipeline.Sink() {
+            @Override
+            public void drive(int left, int right) {
+                synchronized (count) {
+                    times[count[0]] = clock.nanoTime() - start;
+                    speeds[count[0]] = left;
+                    count[0]++;
+                }
+            }
+        }, leadTime, null, clock);
+        player.start();
+        while (player.isPlaying()) {
+            Thread.sleep(5);
+        }
+        assertTrue(player.isFinished());
+        assertEquals(player.getPlayed(), count[0]);
+        // Each step is issued no earlier than its due time
+        for (int step = 0; step < player.getPlayed(); step++) {
+            assertEquals(0, player.getError(step));
+        }
+        assertEquals(player.getPlayed(), player.getErrorStats().getCount());
+        return times;
+    }
+
+    @Test
+    public void playsStepsOnTimeAndStops() throws Exception {
+        int[] speeds = new int[4];
+        long[] times = play("both 50 for 0.05 s, drive 20 -20 for 0.05 s", 0, speeds);
+        assertArrayEquals(new int[] { 50, 20, 0, 0 }, speeds);
+        assertArrayEquals(new long[] { 0, 50 * MS, 100 * MS, 0 }, times);
+    }
+
+    @Test
+    public void laterStepsAreIssuedEarlyByTheLeadTime() throws Exception {
+        int[] speeds = new int[4];
+        // The first step goes out at once and takes effect 10 ms later, the rest on time
+        long[] times = play("both 50 for 0.05 s, drive 20 -20 for 0.05 s", 10 * MS, speeds);
+        assertArrayEquals(new int[] { 50, 20, 0, 0 }, speeds);
+        assertArrayEquals(new long[] { 0, 40 * MS, 90 * MS, 0 }, times);
+
+        // Nothing can go out before the start
+        times = play("both 50 for 0.05 s, drive 20 -20 for 0.05 s", 70 * MS, speeds);
+        assertArrayEquals(new long[] { 0, 0, 30 * MS, 0 }, times);
+    }
+
+    @Test
+    public void stopSendsStop() throws Exception {
+        final int[] last = { -1, 1 };
+        DriveProgram program = DriveProgram.parse("both 50 for 10 s");
+        ProgramPlayer player = new ProgramPlayer(program, new InputPipeline.Sink() {
+            @Override
+            public void drive(int left, int right) {
+                last[0] = left;
+                last[1]++;
+            }
+        }, 0, null);
+        player.start();
+        Thread.sleep(50);
+        assertEquals(50, last[0]);
+        player.stop();
+        Thread.sleep(50);
+        assertFalse(player.isPlaying());
+        assertFalse(player.isFinished());
+        assertEquals(0, last[0]);
+    }
+}
@@ -0,0 +1,182 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link FleetController} skew and throughput measurements.
+ */
+public class FleetControllerTest {
+
+    private static final long MS = 1000000L;
+
+    private static class FakeRobot implements FleetController.Robot {
+        final String mAddress;
+        boolean mReady = true;
+        int mLeft;
+        int mRight;
+        int mFrames;
+        long mOrder;
+        static long sNextOrder;
+        // Simulated write time, 0 if completions are given by the test itself
+        long mWriteTime;
+        long mDoneTime = -1;
+        int mInFlight;
+        int mMaxInFlight;
+        static long sNow;
+
+        FakeRobot(String address) {
+            mAddress = address;
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean writeDrive(int left, int right) {
+            if (!mReady) {
+                return false;
+            }
+            mLeft = left;
+            mRight = right;
+            mFrames++;
+            mOrder = sNextOrder++;
+            if (mWriteTime > 0) {
+                mInFlight++;
+                mMaxInFlight = Math.max(mMaxInFlight, mInFlight);
+                mDoneTime = sNow + mWriteTime;
+            }
+            return true;
+        }
+
+        void complete(FleetController fleet, long now) {
+            if (mDoneTime == now) {
+                mDoneTime = -1;
+                mInFlight--;
+                fleet.onWriteDone(this, now);
+            }
+        }
+    }
+
+    @Test
+    public void measuresSkewBetweenRobots() throws Exception {
+        FleetController fleet = new FleetController();
+        FakeRobot a = new FakeRobot("A");
+        FakeRobot b = new FakeRobot("B");
+        FakeRobot c = new FakeRobot("C");
+        fleet.add(a);
+        fleet.add(b);
+        fleet.add(c);
+        fleet.add(a);
+        assertEquals(3, fleet.size());
+
+        assertEquals(3, fleet.drive(40, -40, 1000 * MS));
+        assertEquals(40, b.mLeft);
+        assertEquals(-40, c.mRight);
+        fleet.onWriteDone(a, 1010 * MS);
+        fleet.onWriteDone(c, 1025 * MS);
+        assertEquals(0, fleet.getSkew().getCount());
+        fleet.onWriteDone(b, 1040 * MS);
+        assertEquals(1, fleet.getSkew().getCount());
+        assertEquals(30 * MS, fleet.getSkew().getLast());
+        assertEquals(40 * MS, fleet.getLatency(b).getLast());
+        // A second completion for the same frame is ignored
+        fleet.onWriteDone(b, 1050 * MS);
+        assertEquals(1, fleet.getCompleted(b));
+    }
+
+    @Test
+    public void robotsThatAreNotReadyAreNotWaitedFor() throws Exception {
+        FleetController fleet = new FleetController();
+        FakeRobot a = new FakeRobot("A");
+        FakeRobot b = new FakeRobot("B");
+        b.mReady = false;
+        fleet.add(a);
+        fleet.add(b);
+        assertEquals(1, fleet.drive(10, 10, 0));
+        fleet.onWriteDone(a, 5 * MS);
+        assertEquals(1, fleet.getSkew().getCount());
+        assertEquals(0, fleet.getSkew().getLast());
+
+        // Removing a robot that has not answered completes the frame
+        b.mReady = true;
+        fleet.drive(20, 20, 10 * MS);
+        fleet.onWriteDone(a, 15 * MS);
+        fleet.remove(b);
+        assertEquals(1, fleet.size());
+        fleet.drive(30, 30, 20 * MS);
+        assertEquals(0, fleet.getIncompleteFrames());
+    }
+
+    @Test
+    public void countsSupersededFramesAndThroughput() throws Exception {
+        FleetController fleet = new FleetController();
+        FakeRobot a = new FakeRobot("A");
+        FakeRobot b = new FakeRobot("B");
+        a.mWriteTime = 10 * MS;
+        b.mWriteTime = 70 * MS;
+        fleet.add(a);
+        fleet.add(b);
+        // A frame every 50 ms. B takes longer than that to write one, so its completions
+        // come in after the next frame has been issued.
+        for (long now = 0; now <= 700 * MS; now += 10 * MS) {
+            FakeRobot.sNow = now;
+            a.complete(fleet, now);
+            b.complete(fleet, now);
+            if (now % (50 * MS) == 0 && now <= 500 * MS) {
+                int frame = (int) (now / (50 * MS));
+                fleet.drive(frame, -frame, now);
+            }
+        }
+        // B never has two frames in flight, so every completion is booked to its own write
+        assertEquals(1, b.mMaxInFlight);
+        assertEquals(70 * MS, fleet.getLatency(b).getMax());
+        assertEquals(70 * MS, fleet.getLatency(b).getMean());
+        assertEquals(10 * MS, fleet.getLatency(a).getMax());
+        // Frames 3 and 7 were replaced while waiting, the latest frame still got through
+        assertEquals(11, fleet.getCompleted(a));
+        assertEquals(9, fleet.getCompleted(b));
+        assertEquals(0, fleet.getSuperseded(a));
+        assertEquals(2, fleet.getSuperseded(b));
+        assertEquals(10, b.mLeft);
+        assertEquals(-10, b.mRight);
+        assertEquals(10, fleet.getIncompleteFrames());
+        assertEquals(20.0, fleet.getThroughput(a), 0.01);
+        assertEquals(14.29, fleet.getThroughput(b), 0.01);
+        assertEquals(1, fleet.getSkew().getCount());
+        assertEquals(120 * MS, fleet.getSkew().getLast());
+    }
+
+    @Test
+    public void lostWriteDoesNotHoldUpTheRobot() throws Exception {
+        FleetController fleet = new FleetController();
+        FakeRobot a = new FakeRobot("A");
+        fleet.add(a);
+        fleet.drive(10, 10, 0);
+        fleet.drive(20, 20, 500 * MS);
+        assertEquals(1, a.mFrames);
+        fleet.drive(30, 30, 1000 * MS);
+        assertEquals(2, a.mFrames);
+        assertEquals(30, a.mLeft);
+        assertEquals(1, fleet.getLost(a));
+        assertEquals(1, fleet.getSuperseded(a));
+    }
+
+    @Test
+    public void slowestRobotIsSentFirst() throws Exception {
+        FleetController fleet = new FleetController();
+        FakeRobot fast = new FakeRobot("fast");
+        FakeRobot slow = new FakeRobot("slow");
+        fleet.add(fast);
+        fleet.add(slow);
+        fleet.drive(0, 0, 0);
+        fleet.onWriteDone(fast, 5 * MS);
+        fleet.onWriteDone(slow, 30 * MS);
+        fleet.drive(0, 0, 100 * MS);
+        assertTrue(slow.mOrder < fast.mOrder);
+        assertSame(slow, fleet.getRobot(0));
+    }
+}
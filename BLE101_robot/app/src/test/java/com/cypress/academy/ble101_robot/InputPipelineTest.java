@@ -0,0 +1,61 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for mixing and coalescing in {@link InputPipeline}.
+ */
+public class InputPipelineTest {
+
+    @Test
+    public void arcadeMixing() throws Exception {
+        int[] speeds = new int[2];
+        InputPipeline.mix(InputPipeline.Mixing.ARCADE, 0.5f, 0, speeds);
+        assertArrayEquals(new int[]{50, 50}, speeds);
+        InputPipeline.mix(InputPipeline.Mixing.ARCADE, 0, 0.5f, speeds);
+        assertArrayEquals(new int[]{50, -50}, speeds);
+        // Full throttle and half turn keeps the ratio between the wheels
+        InputPipeline.mix(InputPipeline.Mixing.ARCADE, 1, 0.5f, speeds);
+        assertArrayEquals(new int[]{100, 33}, speeds);
+        InputPipeline.mix(InputPipeline.Mixing.ARCADE, -2, Float.NaN, speeds);
+        assertArrayEquals(new int[]{-100, -100}, speeds);
+    }
+
+    @Test
+    public void tankMixing() throws Exception {
+        int[] speeds = new int[2];
+        InputPipeline.mix(InputPipeline.Mixing.TANK, 0.25f, -0.75f, speeds);
+        assertArrayEquals(new int[]{25, -75}, speeds);
+    }
+
+    @Test
+    public void fastInputIsCoalescedToTheCommandRate() throws Exception {
+        final int[] last = new int[2];
+        InputPipeline pipeline = new InputPipeline(20000000L, new InputPipeline.Sink() {
+            @Override
+            public void drive(int left, int right) {
+                last[0] = left;
+                last[1] = right;
+            }
+        });
+        pipeline.start();
+        long start = System.nanoTime();
+        // Sensor style input at about 1 kHz for 200 ms
+        for (int i = 0; i < 200; i++) {
+            pipeline.setInput((i % 100) / 100f, 0);
+            Thread.sleep(1);
+        }
+        pipeline.setInput(0.3f, 0.1f);
+        Thread.sleep(100);
+        pipeline.stop();
+        long ticks = (System.nanoTime() - start) / 20000000L + 1;
+
+        assertEquals(201, pipeline.getSamples());
+        assertTrue(pipeline.getCommands() > 0);
+        assertTrue(pipeline.getCommands() <= ticks);
+        // The latest input wins
+        assertArrayEquals(new int[]{40, 20}, last);
+    }
+}
@@ -0,0 +1,54 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link LatencyHistogram} percentiles.
+ */
+public class LatencyHistogramTest {
+
+    private static final long US = 1000L;
+    private static final long MS = 1000000L;
+
+    @Test
+    public void emptyHistogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("Test");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void percentilesAreClose() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("Test");
+        // 1 to 1000 ms
+        for (int i = 1; i <= 1000; i++) {
+            histogram.add(i * MS);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000 * MS, histogram.getMax());
+        assertEquals(500 * MS, histogram.getPercentile(0.5), 500 * MS * 0.07);
+        assertEquals(950 * MS, histogram.getPercentile(0.95), 950 * MS * 0.07);
+        assertEquals(990 * MS, histogram.getPercentile(0.99), 990 * MS * 0.07);
+        // Never more than the largest value
+        assertEquals(1000 * MS, histogram.getPercentile(1));
+        // The percentile is at or above the true value
+        assertTrue(histogram.getPercentile(0.5) >= 500 * MS);
+    }
+
+    @Test
+    public void smallAndHugeValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("Test");
+        histogram.add(3 * US);
+        histogram.add(-5);
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(3 * US, histogram.getPercentile(1));
+        histogram.add(Long.MAX_VALUE / 2);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getPercentile(1));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
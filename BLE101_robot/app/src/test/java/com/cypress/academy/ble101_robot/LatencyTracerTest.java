@@ -0,0 +1,61 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for following commands through the stages with {@link LatencyTracer}.
+ */
+public class LatencyTracerTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void followsCommandThroughStages() throws Exception {
+        LatencyTracer tracer = new LatencyTracer();
+        int id = tracer.start(LatencyTracer.Stage.INPUT, 1000 * MS);
+        assertEquals(id, tracer.command(1002 * MS));
+        tracer.mark(id, LatencyTracer.Stage.ENQUEUE, 1003 * MS);
+        tracer.mark(id, LatencyTracer.Stage.SUBMIT, 1010 * MS);
+        tracer.mark(id, LatencyTracer.Stage.WRITTEN, 1040 * MS);
+        // Only the first time a stage is reached counts
+        tracer.mark(id, LatencyTracer.Stage.WRITTEN, 1050 * MS);
+        tracer.mark(id, LatencyTracer.Stage.TACH, 1100 * MS);
+
+        assertEquals(2 * MS, tracer.getStats(LatencyTracer.Stage.COMMAND).getMax());
+        assertEquals(10 * MS, tracer.getStats(LatencyTracer.Stage.SUBMIT).getMax());
+        assertEquals(1, tracer.getStats(LatencyTracer.Stage.WRITTEN).getCount());
+        assertEquals(40 * MS, tracer.getStats(LatencyTracer.Stage.WRITTEN).getMax());
+        assertEquals(100 * MS, tracer.getStats(LatencyTracer.Stage.TACH).getMax());
+        assertEquals(5, tracer.toString().split("\n").length);
+    }
+
+    @Test
+    public void commandWithoutRecentInputStartsNewTrace() throws Exception {
+        LatencyTracer tracer = new LatencyTracer();
+        int input = tracer.start(LatencyTracer.Stage.INPUT, 0);
+        int first = tracer.command(500 * MS);
+        assertNotEquals(input, first);
+        // A second command for the same input is a new command too
+        int second = tracer.command(501 * MS);
+        assertNotEquals(first, second);
+        assertEquals(second, tracer.getCurrent());
+        assertEquals(0, tracer.getStats(LatencyTracer.Stage.COMMAND).getCount());
+    }
+
+    @Test
+    public void oldCommandsAreIgnored() throws Exception {
+        LatencyTracer tracer = new LatencyTracer();
+        int old = tracer.start(LatencyTracer.Stage.COMMAND, 0);
+        for (int i = 0; i < 64; i++) {
+            tracer.start(LatencyTracer.Stage.COMMAND, i);
+        }
+        tracer.mark(old, LatencyTracer.Stage.WRITTEN, 100 * MS);
+        tracer.mark(0, LatencyTracer.Stage.WRITTEN, 100 * MS);
+        assertEquals(0, tracer.getStats(LatencyTracer.Stage.WRITTEN).getCount());
+        // Commands that share a slot share a section name
+        assertSame(tracer.getSectionName(old, LatencyTracer.Stage.SUBMIT),
+                tracer.getSectionName(old + 64, LatencyTracer.Stage.SUBMIT));
+    }
+}
@@ -0,0 +1,192 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link MotorCalibration} and for learning one with a
+ * {@link CalibrationSweep} on the {@link RobotSimulator}.
+ */
+public class MotorCalibrationTest {
+
+    private static final PSoCBleRobotService.Motor LEFT = PSoCBleRobotService.Motor.LEFT;
+    private static final PSoCBleRobotService.Motor RIGHT = PSoCBleRobotService.Motor.RIGHT;
+    private static final long MS = 1000000L;
+    private static final long S = 1000000000L;
+
+    @Test
+    public void commandMatchesRates() throws Exception {
+        MotorCalibration calibration = new MotorCalibration();
+        calibration.set(LEFT, true, 12, 10);
+        calibration.set(RIGHT, true, 10, 5);
+        calibration.set(LEFT, false, 10, 0);
+        // Right forwards tops out at 950 counts/s, below left's 1080
+        assertEquals(950, calibration.getMaxRate(true), 1e-9);
+        for (int speed = 10; speed <= 100; speed += 10) {
+            double left = calibration.command(LEFT, speed);
+            double right = calibration.command(RIGHT, speed);
+            assertEquals(12 * (left - 10), 10 * (right - 5), 1e-9);
+        }
+        assertEquals(100, calibration.command(RIGHT, 100), 1e-9);
+        assertEquals(0, calibration.command(LEFT, 0), 1e-9);
+        assertEquals(-100, calibration.command(LEFT, -100), 1e-9);
+    }
+
+    @Test
+    public void encodeDecode() throws Exception {
+        MotorCalibration calibration = new MotorCalibration();
+        calibration.set(LEFT, false, 9.25, 12.5);
+        calibration.set(RIGHT, true, 11, 3);
+        MotorCalibration copy = MotorCalibration.decode(calibration.encode());
+        assertEquals(calibration.encode(), copy.encode());
+        assertEquals(9.25, copy.getGain(LEFT, false), 0);
+        assertEquals(12.5, copy.getOffset(LEFT, false), 0);
+        assertEquals(3, copy.getOffset(RIGHT, true), 0);
+        for (String bad : new String[] { "", "1,2,3", "x,0,1,0,1,0,1,0", "-1,0,1,0,1,0,1,0", "1,100,1,0,1,0,1,0" }) {
+            try {
+                MotorCalibration.decode(bad);
+                fail("Decoded " + bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Plays the part of the service: runs the sweep from the tach notifications
+     */
+    private static class Phone implements RobotSimulator.Listener {
+        final CalibrationSweep mSweep = new CalibrationSweep();
+        RobotSimulator mRobot;
+        int mLeft;
+        int mRight;
+
+        void drive(int left, int right) {
+            mRobot.writeCharacteristic(PSoCBleRobotService.driveCharUUID, new byte[] { (byte) left, (byte) right });
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        public void onCharacteristicWrite(String uuid, long now) {
+        }
+
+        @Override
+        public void onCharacteristicChanged(String uuid, byte[] value, long now) {
+            int count = (value[0] & 0xff) | (value[1] & 0xff) << 8 | (value[2] & 0xff) << 16 | value[3] << 24;
+            PSoCBleRobotService.Motor motor = uuid.equals(PSoCBleRobotService.tachLeftCharUUID) ? LEFT : RIGHT;
+            if (mSweep.onTach(motor, count, now)) {
+                drive(0, 0);
+            } else if (mSweep.isRunning() && (mSweep.getSpeed(LEFT) != mLeft || mSweep.getSpeed(RIGHT) != mRight)) {
+                drive(mSweep.getSpeed(LEFT), mSweep.getSpeed(RIGHT));
+            }
+        }
+    }
+
+    /**
+     * Drive forwards at half speed through the shaper and see how far the robot turns
+     */
+    private static double driveStraight(Phone phone, SpeedShaper shaper) {
+        RobotSimulator robot = phone.mRobot;
+        int left = robot.getTach(LEFT);
+        int right = robot.getTach(RIGHT);
+        phone.drive(shaper.shape(LEFT, 50), shaper.shape(RIGHT, 50));
+        robot.advance(3 * S);
+        phone.drive(0, 0);
+        robot.advance(500 * MS);
+        return (robot.getTach(LEFT) - left) - (robot.getTach(RIGHT) - right);
+    }
+
+    @Test
+    public void sweepRampsUpToTheFirstSpeed() throws Exception {
+        CalibrationSweep sweep = new CalibrationSweep();
+        sweep.start(0);
+        assertEquals(0, sweep.getSpeed(LEFT));
+        sweep.onTach(LEFT, 0, 150 * MS);
+        assertEquals(50, sweep.getSpeed(LEFT));
+        assertEquals(-50, sweep.getSpeed(RIGHT));
+        sweep.onTach(LEFT, 0, 300 * MS);
+        assertEquals(100, sweep.getSpeed(LEFT));
+        // Still on the first step, it only settles once the ramp is done
+        sweep.onTach(LEFT, 0, 900 * MS);
+        assertEquals(0, sweep.getProgress(), 1e-9);
+    }
+
+    @Test
+    public void sweepMovesOnWithoutTachSamples() throws Exception {
+        CalibrationSweep sweep = new CalibrationSweep();
+        sweep.start(0);
+        assertFalse(sweep.check(150 * MS));
+        assertEquals(50, sweep.getSpeed(LEFT));
+        // Neither wheel turns, so no tach samples come at all
+        long now = 150 * MS;
+        boolean done = false;
+        while (!done && now < 20 * S) {
+            now += 50 * MS;
+            done = sweep.check(now);
+        }
+        assertTrue(done);
+        assertFalse(sweep.hasTimedOut());
+        assertTrue(now < 9 * S);
+        assertNull(sweep.getResult());
+    }
+
+    @Test
+    public void sweepIsGivenUpOnAfterTimeout() throws Exception {
+        CalibrationSweep sweep = new CalibrationSweep();
+        sweep.start(0);
+        assertTrue(sweep.check(15 * S));
+        assertTrue(sweep.hasTimedOut());
+        assertFalse(sweep.isRunning());
+        assertEquals(0, sweep.getSpeed(LEFT));
+        assertNull(sweep.getResult());
+    }
+
+    @Test
+    public void sweepLearnsMotorDifference() throws Exception {
+        Phone phone = new Phone();
+        RobotSimulator robot = new RobotSimulator(phone, 5);
+        phone.mRobot = robot;
+        robot.setPackedDrive(true);
+        // The left gearbox drags
+        robot.setLoad(LEFT, 0.1);
+
+        SpeedShaper shaper = new SpeedShaper();
+        double before = driveStraight(phone, shaper);
+        assertTrue(before < -100);
+
+        phone.mSweep.start(robot.getTime());
+        for (int i = 0; i < 300 && phone.mSweep.isRunning(); i++) {
+            robot.advance(50 * MS);
+        }
+        assertFalse(phone.mSweep.isRunning());
+        assertEquals(1, phone.mSweep.getProgress(), 1e-9);
+        MotorCalibration calibration = phone.mSweep.getResult();
+        assertNotNull(calibration);
+        assertTrue(calibration.getOffset(LEFT, true) > calibration.getOffset(RIGHT, true));
+        assertTrue(calibration.getOffset(LEFT, false) > calibration.getOffset(RIGHT, false));
+        // Spinning on the spot leaves the robot where it was
+        phone.drive(0, 0);
+        robot.advance(500 * MS);
+
+        shaper.setCalibration(calibration);
+        double after = driveStraight(phone, shaper);
+        assertTrue(Math.abs(after) * 5 < Math.abs(before));
+    }
+
+    @Test
+    public void sweepFailsIfWheelDoesNotTurn() throws Exception {
+        Phone phone = new Phone();
+        RobotSimulator robot = new RobotSimulator(phone, 6);
+        phone.mRobot = robot;
+        robot.setPackedDrive(true);
+        robot.setBlocked(RIGHT, true);
+        phone.mSweep.start(robot.getTime());
+        for (int i = 0; i < 300 && phone.mSweep.isRunning(); i++) {
+            robot.advance(50 * MS);
+        }
+        assertFalse(phone.mSweep.isRunning());
+        assertNull(phone.mSweep.getResult());
+    }
+}
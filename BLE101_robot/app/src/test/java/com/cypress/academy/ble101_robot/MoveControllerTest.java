@@ -0,0 +1,181 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives moves on the {@link RobotSimulator} and checks how close they stop.
+ */
+public class MoveControllerTest {
+
+    private static final long MS = 1000000L;
+    private static final long S = 1000000000L;
+
+    /**
+     * Plays the part of the service: passes tach readings to the move and sends the speed
+     */
+    private static class Phone implements RobotSimulator.Listener {
+        final MoveController mMove = new MoveController(25, 0.3);
+        final TimingStats mWriteLatency = new TimingStats("Write latency");
+        RobotSimulator mRobot;
+        long mWriteTime;
+        int mSent;
+        int mTachLeft;
+        int mTachRight;
+        int mDone;
+
+        void drive(int speed) {
+            mWriteTime = mRobot.getTime();
+            mRobot.writeCharacteristic(PSoCBleRobotService.driveCharUUID, new byte[] { (byte) speed, (byte) speed });
+            mSent = speed;
+        }
+
+        void move(int counts, int speed) {
+            mMove.setLatency(mWriteLatency.getMean());
+            drive(mMove.start(counts, speed, mTachLeft, mTachRight, mRobot.getTime()));
+        }
+
+        @Override
+        public void onCharacteristicWrite(String uuid, long now) {
+            mWriteLatency.add(now - mWriteTime);
+        }
+
+        @Override
+        public void onCharacteristicChanged(String uuid, byte[] value, long now) {
+            int count = (value[0] & 0xff) | (value[1] & 0xff) << 8 | (value[2] & 0xff) << 16 | value[3] << 24;
+            PSoCBleRobotService.Motor motor = uuid.equals(PSoCBleRobotService.tachLeftCharUUID)
+                    ? PSoCBleRobotService.Motor.LEFT : PSoCBleRobotService.Motor.RIGHT;
+            if (motor == PSoCBleRobotService.Motor.LEFT) {
+                mTachLeft = count;
+            } else {
+                mTachRight = count;
+            }
+            if (mMove.onTach(motor, count, now)) {
+                mDone++;
+            }
+            if (mMove.getSpeed() != mSent) {
+                drive(mMove.getSpeed());
+            }
+        }
+    }
+
+    private static Phone newPhone(long seed) {
+        Phone phone = new Phone();
+        phone.mRobot = new RobotSimulator(phone, seed);
+        phone.mRobot.setPackedDrive(true);
+        // Measure the link latency before the first move
+        phone.drive(0);
+        phone.mRobot.advance(100 * MS);
+        return phone;
+    }
+
+    private static void runMove(Phone phone, int counts, int speed) {
+        int done = phone.mDone;
+        phone.move(counts, speed);
+        for (int i = 0; i < 200 && phone.mDone == done; i++) {
+            phone.mRobot.advance(50 * MS);
+        }
+        assertEquals(done + 1, phone.mDone);
+        assertFalse(phone.mMove.isActive());
+    }
+
+    @Test
+    public void stopsAtTargetWithoutPrediction() throws Exception {
+        Phone phone = newPhone(1);
+        phone.mMove.setPredictive(false);
+        runMove(phone, 720, 100);
+        // At full speed the robot runs on well past the target
+        assertTrue(phone.mMove.getLastOvershoot() > 20);
+        assertEquals(0, phone.mRobot.getSpeed(PSoCBleRobotService.Motor.LEFT));
+    }
+
+    @Test
+    public void predictionCutsOvershoot() throws Exception {
+        Phone naive = newPhone(2);
+        naive.mMove.setPredictive(false);
+        Phone predictive = newPhone(2);
+        for (int i = 0; i < 6; i++) {
+            runMove(naive, 720, 100);
+            runMove(predictive, 720, 100);
+        }
+        assertEquals(6, predictive.mMove.getMoves());
+        assertTrue(predictive.mMove.getMeanAbsOvershoot() * 3 < naive.mMove.getMeanAbsOvershoot());
+        // Once the coast time has been learned the robot stops close to the target
+        assertEquals(0, predictive.mMove.getLastOvershoot(), 20);
+        assertTrue(predictive.mMove.getCoastTime() > 0);
+    }
+
+    @Test
+    public void movesBackwards() throws Exception {
+        Phone phone = newPhone(3);
+        int start = phone.mRobot.getTach(PSoCBleRobotService.Motor.LEFT);
+        runMove(phone, -500, 80);
+        int moved = phone.mRobot.getTach(PSoCBleRobotService.Motor.LEFT) - start;
+        assertEquals(-500, moved, 60);
+        assertEquals(moved, -500 - phone.mMove.getLastOvershoot(), 10);
+    }
+
+    @Test
+    public void cancelStopsMove() throws Exception {
+        Phone phone = newPhone(4);
+        assertEquals(60, phone.mMove.start(1000, 60, 0, 0, 0));
+        assertTrue(phone.mMove.isActive());
+        phone.mMove.cancel();
+        assertFalse(phone.mMove.isActive());
+        assertEquals(0, phone.mMove.getSpeed());
+        assertFalse(phone.mMove.onTach(PSoCBleRobotService.Motor.LEFT, 10, 1 * S));
+        assertEquals(0, phone.mMove.getMoves());
+    }
+
+    @Test
+    public void settlesWithoutMoreTachSamples() throws Exception {
+        MoveController move = new MoveController(25, 0.3);
+        move.setPredictive(false);
+        move.start(100, 50, 0, 0, 0);
+        long time = 0;
+        for (int count = 10; count <= 100; count += 10) {
+            time += 20 * MS;
+            move.onTach(PSoCBleRobotService.Motor.LEFT, count, time);
+            move.onTach(PSoCBleRobotService.Motor.RIGHT, count, time);
+        }
+        assertEquals(0, move.getSpeed());
+        // The tach only reports changes, so nothing more arrives once the robot stops
+        assertFalse(move.check(time + 100 * MS));
+        assertTrue(move.check(time + 200 * MS));
+        assertFalse(move.hasTimedOut());
+        assertFalse(move.isActive());
+        assertEquals(1, move.getMoves());
+    }
+
+    @Test
+    public void stuckMoveIsGivenUp() throws Exception {
+        MoveController move = new MoveController(25, 0.3);
+        move.start(1000, 50, 0, 0, 0);
+        move.onTach(PSoCBleRobotService.Motor.LEFT, 20, 50 * MS);
+        move.onTach(PSoCBleRobotService.Motor.RIGHT, 20, 50 * MS);
+        // The motors were switched off so the counts stop changing
+        assertFalse(move.check(900 * MS));
+        assertTrue(move.isActive());
+        assertTrue(move.check(1050 * MS));
+        assertTrue(move.hasTimedOut());
+        assertFalse(move.isActive());
+        assertEquals(0, move.getSpeed());
+        assertEquals(0, move.getMoves());
+    }
+
+    @Test
+    public void slowMoveTimesOut() throws Exception {
+        MoveController move = new MoveController(25, 0.3);
+        move.setTimeout(2 * S);
+        move.start(100000, 50, 0, 0, 0);
+        for (long time = 20 * MS; time < 2 * S; time += 20 * MS) {
+            move.onTach(PSoCBleRobotService.Motor.LEFT, (int) (time / MS), time);
+            move.onTach(PSoCBleRobotService.Motor.RIGHT, (int) (time / MS), time);
+            assertFalse(move.check(time));
+        }
+        assertTrue(move.check(2 * S));
+        assertTrue(move.hasTimedOut());
+        assertFalse(move.isActive());
+    }
+}
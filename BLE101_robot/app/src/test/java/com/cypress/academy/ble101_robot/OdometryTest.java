@@ -0,0 +1,82 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link Odometry} using simulated tach traces.
+ */
+public class OdometryTest {
+
+    private static final double COUNTS_PER_REV = 360;
+    private static final double WHEEL_DIAMETER = 0.065;
+    private static final double TRACK_WIDTH = 0.13;
+    private static final double METERS_PER_COUNT = Math.PI * WHEEL_DIAMETER / COUNTS_PER_REV;
+    private static final long PERIOD = 20000000L; // 20 ms between samples of each wheel
+
+    /**
+     * Simulate both wheels running at a fixed speed. Each wheel sends a sample every
+     * 20 ms, the right wheel 10 ms after the left one.
+     */
+    private static void drive(Odometry odometry, double leftSpeed, double rightSpeed, double seconds,
+                              int startCount) {
+        int samples = (int) Math.round(seconds * 1e9 / PERIOD);
+        for (int i = 0; i <= samples; i++) {
+            long time = i * PERIOD;
+            double t = time / 1e9;
+            odometry.onTach(PSoCBleRobotService.Motor.LEFT,
+                    startCount + (int) Math.round(leftSpeed * t / METERS_PER_COUNT), time);
+            odometry.onTach(PSoCBleRobotService.Motor.RIGHT,
+                    startCount + (int) Math.round(rightSpeed * t / METERS_PER_COUNT), time + PERIOD / 2);
+        }
+    }
+
+    @Test
+    public void straightLine() throws Exception {
+        Odometry odometry = new Odometry(COUNTS_PER_REV, WHEEL_DIAMETER, TRACK_WIDTH);
+        drive(odometry, 0.2, 0.2, 5, 0);
+        Odometry.Pose pose = new Odometry.Pose();
+        odometry.getPose(pose, 5 * 1000000000L);
+        assertEquals(1.0, pose.x, 0.005);
+        assertEquals(0, pose.y, 0.005);
+        assertEquals(0, pose.heading, 0.02);
+        // 0.2 m/s on a 65 mm wheel
+        assertEquals(0.2 / (Math.PI * WHEEL_DIAMETER) * 60, pose.leftRpm, 1);
+        // Wheels that stop reporting are shown as stopped
+        odometry.getPose(pose, 7 * 1000000000L);
+        assertEquals(0, pose.leftRpm, 0);
+    }
+
+    @Test
+    public void circleMatchesTheGeometry() throws Exception {
+        Odometry odometry = new Odometry(COUNTS_PER_REV, WHEEL_DIAMETER, TRACK_WIDTH);
+        double left = 0.1;
+        double right = 0.2;
+        double seconds = 3;
+        drive(odometry, left, right, seconds, 0);
+
+        double omega = (right - left) / TRACK_WIDTH;
+        double radius = TRACK_WIDTH / 2 * (right + left) / (right - left);
+        double heading = omega * seconds;
+        Odometry.Pose pose = new Odometry.Pose();
+        odometry.getPose(pose);
+        assertEquals(heading, pose.heading, 0.05);
+        assertEquals(radius * Math.sin(heading), pose.x, 0.01);
+        assertEquals(radius * (1 - Math.cos(heading)), pose.y, 0.01);
+    }
+
+    @Test
+    public void counterWraparound() throws Exception {
+        Odometry odometry = new Odometry(COUNTS_PER_REV, WHEEL_DIAMETER, TRACK_WIDTH);
+        drive(odometry, 0.2, 0.2, 1, Integer.MAX_VALUE - 500);
+        Odometry.Pose pose = new Odometry.Pose();
+        odometry.getPose(pose);
+        assertEquals(0.2, pose.x, 0.005);
+        assertEquals(0, pose.heading, 0.02);
+
+        odometry.reset();
+        odometry.getPose(pose);
+        assertEquals(0, pose.x, 0);
+    }
+}
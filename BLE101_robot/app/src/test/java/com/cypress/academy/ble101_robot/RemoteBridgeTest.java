@@ -0,0 +1,216 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link RemoteBridge} protocol, using a loopback client and a fake robot.
+ */
+public class RemoteBridgeTest {
+
+    private static class FakeRobot implements RemoteBridge.Robot {
+        volatile int mLeft = 99;
+        volatile int mRight = 99;
+        volatile int mDrives;
+        volatile long mTelemetry;
+        volatile int mTachLeft;
+        volatile int mTachRight;
+
+        @Override
+        public void drive(int left, int right) {
+            mLeft = left;
+            mRight = right;
+            mDrives++;
+        }
+
+        @Override
+        public long getTelemetryCount() {
+            return mTelemetry;
+        }
+
+        @Override
+        public int getTach(PSoCBleRobotService.Motor motor) {
+            return (motor == PSoCBleRobotService.Motor.LEFT) ? mTachLeft : mTachRight;
+        }
+    }
+
+    private static SocketChannel connect(RemoteBridge bridge) throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", bridge.getPort()));
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    private static void waitFor(FakeRobot robot, int left, int right) throws Exception {
+        long end = System.currentTimeMillis() + 2000;
+        while ((robot.mLeft != left || robot.mRight != right) && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertEquals(left, robot.mLeft);
+        assertEquals(right, robot.mRight);
+    }
+
+    /**
+     * Read replies until one starting with the given byte arrives
+     */
+    private static ByteBuffer readReply(SocketChannel channel, byte type, int size) throws Exception {
+        ByteBuffer reply = ByteBuffer.allocate(size);
+        ByteBuffer skip = ByteBuffer.allocate(RemoteBridge.TACH_SIZE - 1);
+        ByteBuffer first = ByteBuffer.allocate(1);
+        while (true) {
+            first.clear();
+            while (first.hasRemaining()) {
+                assertTrue(channel.read(first) >= 0);
+            }
+            if (first.get(0) == type) {
+                break;
+            }
+            // Tach readings can come in between
+            skip.clear();
+            while (skip.hasRemaining()) {
+                channel.read(skip);
+            }
+        }
+        while (reply.hasRemaining()) {
+            assertTrue(channel.read(reply) >= 0);
+        }
+        reply.flip();
+        return reply;
+    }
+
+    @Test
+    public void drivesAndStopsWhenClientLeaves() throws Exception {
+        FakeRobot robot = new FakeRobot();
+        RemoteBridge bridge = new RemoteBridge(0, robot);
+        bridge.start();
+        try {
+            SocketChannel channel = connect(bridge);
+            channel.write(ByteBuffer.wrap(new byte[] { RemoteBridge.DRIVE, 50, -30 }));
+            waitFor(robot, 50, -30);
+            // A command split across writes is put back together
+            channel.write(ByteBuffer.wrap(new byte[] { RemoteBridge.DRIVE, -100 }));
+            Thread.sleep(20);
+            channel.write(ByteBuffer.wrap(new byte[] { 100 }));
+            waitFor(robot, -100, 100);
+            channel.write(ByteBuffer.wrap(new byte[] { RemoteBridge.STOP }));
+            waitFor(robot, 0, 0);
+
+            channel.write(ByteBuffer.wrap(new byte[] { RemoteBridge.DRIVE, 10, 10 }));
+            waitFor(robot, 10, 10);
+            assertEquals(1, bridge.getClients());
+            channel.close();
+            waitFor(robot, 0, 0);
+        } finally {
+            bridge.stop();
+        }
+        assertFalse(bridge.isRunning());
+    }
+
+    @Test
+    public void stopsWhenClientGoesSilent() throws Exception {
+        FakeRobot robot = new FakeRobot();
+        RemoteBridge bridge = new RemoteBridge(0, robot);
+        bridge.setInputTimeout(300);
+        bridge.start();
+        try {
+            SocketChannel channel = connect(bridge);
+            // Repeating the command keeps the robot going
+            for (int i = 0; i < 5; i++) {
+                channel.write(ByteBuffer.wrap(new byte[] { RemoteBridge.DRIVE, 40, 40 }));
+                Thread.sleep(50);
+            }
+            assertEquals(40, robot.mLeft);
+            assertEquals(0, bridge.getTimeouts());
+
+            // The client is still connected but has stopped sending
+            waitFor(robot, 0, 0);
+            assertEquals(1, bridge.getTimeouts());
+            assertEquals(1, bridge.getClients());
+
+            channel.write(ByteBuffer.wrap(new byte[] { RemoteBridge.DRIVE, 20, -20 }));
+            waitFor(robot, 20, -20);
+            channel.close();
+        } finally {
+            bridge.stop();
+        }
+    }
+
+    @Test
+    public void coalescesToLatestCommand() throws Exception {
+        FakeRobot robot = new FakeRobot();
+        RemoteBridge bridge = new RemoteBridge(0, robot);
+        bridge.start();
+        try {
+            SocketChannel channel = connect(bridge);
+            // Many commands in one packet only drive the robot once
+            ByteBuffer burst = ByteBuffer.allocate(3 * 50);
+            for (int i = 1; i <= 50; i++) {
+                burst.put(RemoteBridge.DRIVE).put((byte) i).put((byte) -i);
+            }
+            burst.flip();
+            channel.write(burst);
+            waitFor(robot, 50, -50);
+            long end = System.currentTimeMillis() + 2000;
+            while (bridge.getCommands() < 50 && System.currentTimeMillis() < end) {
+                Thread.sleep(1);
+            }
+            assertEquals(50, bridge.getCommands());
+            assertTrue(bridge.getDriven() < 50);
+            assertEquals(bridge.getDriven(), robot.mDrives);
+            channel.close();
+        } finally {
+            bridge.stop();
+        }
+    }
+
+    @Test
+    public void sendsTelemetryAndPings() throws Exception {
+        FakeRobot robot = new FakeRobot();
+        RemoteBridge bridge = new RemoteBridge(0, robot);
+        bridge.start();
+        try {
+            SocketChannel channel = connect(bridge);
+            ByteBuffer ping = ByteBuffer.allocate(5);
+            ping.put(RemoteBridge.PING).putInt(0x12345678).flip();
+            channel.write(ping);
+            assertEquals(0x12345678, readReply(channel, RemoteBridge.PING, 4).getInt());
+
+            robot.mTachLeft = 1234;
+            robot.mTachRight = -5;
+            robot.mTelemetry = 1;
+            ByteBuffer tach = readReply(channel, RemoteBridge.TACH, RemoteBridge.TACH_SIZE - 1);
+            assertTrue(tach.getLong() > 0);
+            assertEquals(1234, tach.getInt());
+            assertEquals(-5, tach.getInt());
+            channel.close();
+        } finally {
+            bridge.stop();
+        }
+    }
+
+    @Test
+    public void disconnectsOnBadCommand() throws Exception {
+        FakeRobot robot = new FakeRobot();
+        RemoteBridge bridge = new RemoteBridge(0, robot);
+        bridge.start();
+        try {
+            SocketChannel channel = connect(bridge);
+            channel.write(ByteBuffer.wrap(new byte[] { 'X' }));
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            int read;
+            do {
+                buffer.clear();
+                read = channel.read(buffer);
+            } while (read > 0);
+            assertEquals(-1, read);
+            waitFor(robot, 0, 0);
+            assertEquals(0, bridge.getClients());
+        } finally {
+            bridge.stop();
+        }
+    }
+}
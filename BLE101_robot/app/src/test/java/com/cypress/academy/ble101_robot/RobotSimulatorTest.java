@@ -0,0 +1,175 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the robot code against the {@link RobotSimulator} faster than real time.
+ */
+public class RobotSimulatorTest {
+
+    private static final long MS = 1000000L;
+    private static final long S = 1000000000L;
+
+    /**
+     * Plays the part of the service: decodes notifications and feeds the robot code
+     */
+    private static class Phone implements RobotSimulator.Listener {
+        final SpeedController mController = new SpeedController(1000);
+        final Odometry mOdometry = new Odometry(360, 0.065, 0.13);
+        final StallDetector mStallDetector = new StallDetector(1000, 8);
+        final TimingStats mWriteLatency = new TimingStats("Write latency");
+        long mWriteTime;
+        int mTachLeft;
+        int mTachRight;
+        int mNotifications;
+        boolean mStalled;
+
+        @Override
+        public void onCharacteristicWrite(String uuid, long now) {
+            mWriteLatency.add(now - mWriteTime);
+        }
+
+        @Override
+        public void onCharacteristicChanged(String uuid, byte[] value, long now) {
+            int count = (value[0] & 0xff) | (value[1] & 0xff) << 8 | (value[2] & 0xff) << 16 | value[3] << 24;
+            PSoCBleRobotService.Motor motor = uuid.equals(PSoCBleRobotService.tachLeftCharUUID)
+                    ? PSoCBleRobotService.Motor.LEFT : PSoCBleRobotService.Motor.RIGHT;
+            if (motor == PSoCBleRobotService.Motor.LEFT) {
+                mTachLeft = count;
+            } else {
+                mTachRight = count;
+            }
+            mNotifications++;
+            mController.onTach(motor, count, now);
+            mOdometry.onTach(motor, count, now);
+            mStalled |= mStallDetector.onTach(motor, count, now);
+        }
+    }
+
+    private static void drive(RobotSimulator robot, Phone phone, int left, int right) {
+        phone.mWriteTime = robot.getTime();
+        robot.writeCharacteristic(PSoCBleRobotService.speedLeftCharUUID, new byte[] { (byte) left });
+        robot.writeCharacteristic(PSoCBleRobotService.speedRightCharUUID, new byte[] { (byte) right });
+        phone.mStallDetector.setCommand(PSoCBleRobotService.Motor.LEFT, left, robot.getTime());
+        phone.mStallDetector.setCommand(PSoCBleRobotService.Motor.RIGHT, right, robot.getTime());
+    }
+
+    @Test
+    public void reachesFullSpeedWithMotorLag() throws Exception {
+        Phone phone = new Phone();
+        RobotSimulator robot = new RobotSimulator(phone, 1);
+        drive(robot, phone, 100, 100);
+        // Nothing happens until the writes cross the link
+        assertEquals(0, robot.getSpeed(PSoCBleRobotService.Motor.LEFT));
+        robot.advance(5 * MS);
+        assertEquals(100, robot.getSpeed(PSoCBleRobotService.Motor.LEFT));
+        double early = robot.getTachRate(PSoCBleRobotService.Motor.LEFT);
+        robot.advance(1 * S);
+        double rate = robot.getTachRate(PSoCBleRobotService.Motor.LEFT);
+        assertTrue(early < rate / 2);
+        assertEquals(1000, rate, 150);
+        assertTrue(robot.getBatteryVoltage() < 6.0);
+        // About 20 notifications per second per wheel
+        assertEquals(2 * 21, phone.mNotifications, 4);
+        assertEquals(robot.getTach(PSoCBleRobotService.Motor.LEFT), phone.mTachLeft, 100);
+        assertEquals(2, phone.mWriteLatency.getCount());
+    }
+
+    @Test
+    public void drivesStraightAndTurns() throws Exception {
+        Phone phone = new Phone();
+        RobotSimulator robot = new RobotSimulator(phone, 2);
+        Odometry.Pose pose = new Odometry.Pose();
+        // Separate speed writes reach the wheels at different connection events, which
+        // turns the robot a little, so both speeds are sent together
+        robot.setPackedDrive(true);
+        robot.writeCharacteristic(PSoCBleRobotService.driveCharUUID, new byte[] { 60, 60 });
+        robot.advance(2 * S);
+        phone.mOdometry.getPose(pose);
+        assertTrue(pose.x > 0.3);
+        assertEquals(0, pose.y, 0.01);
+        assertEquals(0, pose.heading, 0.05);
+
+        robot.writeCharacteristic(PSoCBleRobotService.driveCharUUID, new byte[] { -50, 50 });
+        robot.advance(1 * S);
+        phone.mOdometry.getPose(pose);
+        // Turning left on the spot
+        assertTrue(pose.heading > 1);
+    }
+
+    @Test
+    public void closedLoopHoldsSpeedOnWeakBattery() throws Exception {
+        double[] rates = new double[2];
+        for (int closed = 0; closed < 2; closed++) {
+            Phone phone = new Phone();
+            RobotSimulator robot = new RobotSimulator(phone, 3);
+            robot.setCharge(0.1);
+            robot.setLoad(PSoCBleRobotService.Motor.LEFT, 0.05);
+            phone.mController.setTarget(PSoCBleRobotService.Motor.LEFT, 50);
+            drive(robot, phone, 50, 0);
+            int sent = 50;
+            for (int tick = 0; tick < 100; tick++) {
+                robot.advance(50 * MS);
+                if (closed == 1) {
+                    phone.mController.update(robot.getTime(), 0.05);
+                    int output = phone.mController.getOutput(PSoCBleRobotService.Motor.LEFT);
+                    if (output != sent) {
+                        robot.writeCharacteristic(PSoCBleRobotService.speedLeftCharUUID, new byte[] { (byte) output });
+                        sent = output;
+                    }
+                }
+            }
+            rates[closed] = robot.getTachRate(PSoCBleRobotService.Motor.LEFT);
+        }
+        // Open loop falls well short of half speed, closed loop gets there
+        assertTrue(rates[0] < 400);
+        assertEquals(500, rates[1], 60);
+    }
+
+    @Test
+    public void blockedWheelIsDetectedAsStalled() throws Exception {
+        Phone phone = new Phone();
+        RobotSimulator robot = new RobotSimulator(phone, 4);
+        drive(robot, phone, 80, 80);
+        robot.advance(2 * S);
+        assertFalse(phone.mStalled);
+        robot.setBlocked(PSoCBleRobotService.Motor.RIGHT, true);
+        robot.advance(1 * S);
+        assertTrue(phone.mStalled);
+        assertTrue(phone.mStallDetector.isStalled(PSoCBleRobotService.Motor.RIGHT));
+        assertFalse(phone.mStallDetector.isStalled(PSoCBleRobotService.Motor.LEFT));
+    }
+
+    @Test
+    public void lossyLinkDelaysButKeepsOrder() throws Exception {
+        Phone phone = new Phone();
+        RobotSimulator robot = new RobotSimulator(phone, 5);
+        robot.setLink(15 * MS, 0.3, 20 * MS);
+        drive(robot, phone, 100, 100);
+        robot.advance(3 * S);
+        assertTrue(robot.getLost() > 0);
+        // Write and acknowledgement take at least two connection events
+        assertTrue(phone.mWriteLatency.getMax() >= 15 * MS);
+        // Every notification still arrives, and the last ones are up to date
+        long expected = 2 * (3 * S / (20 * MS));
+        assertTrue(robot.getNotifications() > expected - 20);
+        assertEquals(robot.getTach(PSoCBleRobotService.Motor.LEFT), phone.mTachLeft, 200);
+    }
+
+    @Test
+    public void packedDriveWritesBothWheels() throws Exception {
+        Phone phone = new Phone();
+        RobotSimulator robot = new RobotSimulator(phone, 6);
+        robot.writeCharacteristic(PSoCBleRobotService.driveCharUUID, new byte[] { 40, -40 });
+        robot.advance(100 * MS);
+        // Ignored by firmware without the packed characteristic
+        assertEquals(0, robot.getSpeed(PSoCBleRobotService.Motor.LEFT));
+        robot.setPackedDrive(true);
+        robot.writeCharacteristic(PSoCBleRobotService.driveCharUUID, new byte[] { 40, -40 });
+        robot.advance(100 * MS);
+        assertEquals(40, robot.getSpeed(PSoCBleRobotService.Motor.LEFT));
+        assertEquals(-40, robot.getSpeed(PSoCBleRobotService.Motor.RIGHT));
+    }
+}
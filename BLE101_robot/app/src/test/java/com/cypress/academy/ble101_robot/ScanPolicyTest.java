@@ -0,0 +1,85 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the adaptive scan duty cycle in {@link ScanPolicy}.
+ */
+public class ScanPolicyTest {
+
+    @Test
+    public void fixedPolicyStaysInLowLatency() throws Exception {
+        ScanPolicy policy = new ScanPolicy(false);
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.start(0));
+        policy.onResult("A", 100);
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.update(10000));
+        policy.stop(10000);
+        assertEquals(10000, policy.getRadioOnTime());
+        assertEquals(0, policy.getModeChanges());
+    }
+
+    @Test
+    public void adaptivePolicyStepsDownWhenStable() throws Exception {
+        ScanPolicy policy = new ScanPolicy(true);
+        policy.start(0);
+        policy.onResult("A", 500);
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.update(2000));
+        assertEquals(ScanPolicy.Mode.BALANCED, policy.update(3000));
+        assertEquals(ScanPolicy.Mode.BALANCED, policy.update(5000));
+        assertEquals(ScanPolicy.Mode.LOW_POWER, policy.update(6000));
+        // Devices seen before do not change the mode
+        assertEquals(ScanPolicy.Mode.LOW_POWER, policy.onResult("A", 7000));
+        policy.stop(10000);
+        assertEquals(3000, policy.getModeTime(ScanPolicy.Mode.LOW_LATENCY));
+        assertEquals(3000, policy.getModeTime(ScanPolicy.Mode.BALANCED));
+        assertEquals(4000, policy.getModeTime(ScanPolicy.Mode.LOW_POWER));
+        assertEquals(3000 + 750 + 400, policy.getRadioOnTime());
+        assertEquals(2, policy.getResults());
+    }
+
+    @Test
+    public void newDeviceAndBoostStepBackUp() throws Exception {
+        ScanPolicy policy = new ScanPolicy(true);
+        policy.start(0);
+        policy.update(3000);
+        policy.update(6000);
+        assertEquals(ScanPolicy.Mode.BALANCED, policy.onResult("B", 6500));
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.boost(7000));
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.update(9000));
+        assertEquals(4, policy.getModeChanges());
+    }
+
+    @Test
+    public void holdsBackRestartsOverTheAndroidLimit() throws Exception {
+        ScanPolicy policy = new ScanPolicy(true);
+        policy.start(0);
+        policy.update(3000);
+        policy.update(6000);
+        policy.onResult("A", 6500);
+        assertEquals(4, policy.getStarts(6500));
+        // A fifth start is still allowed, the sixth waits
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.onResult("B", 7000));
+        assertEquals(5, policy.getStarts(7000));
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.update(10000));
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.update(29000));
+        assertEquals(1, policy.getDeferred());
+        // The first start has left the window
+        assertEquals(ScanPolicy.Mode.BALANCED, policy.update(30000));
+        assertEquals(5, policy.getStarts(30000));
+    }
+
+    @Test
+    public void countsStartsAcrossScans() throws Exception {
+        ScanPolicy policy = new ScanPolicy(true);
+        for (int i = 0; i < 5; i++) {
+            policy.start(i * 1000);
+            policy.stop(i * 1000 + 500);
+        }
+        policy.start(5000);
+        assertEquals(ScanPolicy.Mode.LOW_LATENCY, policy.update(9000));
+        assertEquals(1, policy.getDeferred());
+        assertEquals(ScanPolicy.Mode.BALANCED, policy.update(31000));
+    }
+}
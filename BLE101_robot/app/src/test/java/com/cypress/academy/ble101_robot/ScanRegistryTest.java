@@ -0,0 +1,100 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the RSSI filtering and nearest device selection in {@link ScanRegistry}.
+ */
+public class ScanRegistryTest {
+    private static final String NEAR = "00:A0:50:00:00:01";
+    private static final String FAR = "00:A0:50:00:00:02";
+
+    @Test
+    public void devicesKeepTheirListPosition() throws Exception {
+        ScanRegistry registry = new ScanRegistry();
+        assertEquals(0, registry.update(NEAR, "robot", -50, 0));
+        assertEquals(1, registry.update(FAR, "robot", -80, 0));
+        assertEquals(0, registry.update(NEAR, null, -52, 0));
+        assertEquals(2, registry.size());
+        assertEquals("robot", registry.get(0).getName());
+        assertEquals(2, registry.get(0).getSamples());
+    }
+
+    @Test
+    public void filterSmoothsNoisyReadings() throws Exception {
+        ScanRegistry registry = new ScanRegistry();
+        int[] readings = {-60, -48, -71, -55, -66, -52, -63, -58, -61, -57};
+        for (int rssi : readings) {
+            registry.update(NEAR, "robot", rssi, 0);
+        }
+        assertEquals(-59.0, registry.get(0).getRssi(), 3.0);
+        assertTrue(registry.get(0).isSettled());
+    }
+
+    @Test
+    public void nearestIsSelectedOnlyOnceSettled() throws Exception {
+        ScanRegistry registry = new ScanRegistry();
+        registry.update(FAR, "robot", -85, 0);
+        for (int i = 0; i < 4; i++) {
+            registry.update(NEAR, "robot", -50, 0);
+            assertNull(registry.getNearest(0));
+        }
+        registry.update(NEAR, "robot", -50, 0);
+        assertEquals(NEAR, registry.getNearest(0).getAddress());
+    }
+
+    @Test
+    public void noSelectionWithoutClearMargin() throws Exception {
+        ScanRegistry registry = new ScanRegistry();
+        for (int i = 0; i < 10; i++) {
+            registry.update(NEAR, "robot", -60, 0);
+            registry.update(FAR, "robot", -63, 0);
+        }
+        assertNull(registry.getNearest(0));
+        assertEquals(NEAR, registry.getStrongest(0).getAddress());
+    }
+
+    @Test
+    public void candidateHasHysteresis() throws Exception {
+        ScanRegistry registry = new ScanRegistry();
+        assertNull(registry.getCandidate(null, 0));
+        for (int i = 0; i < 10; i++) {
+            registry.update(NEAR, "robot", -60, 0);
+            registry.update(FAR, "robot", -70, 0);
+        }
+        assertEquals(NEAR, registry.getCandidate(null, 0).getAddress());
+        // FAR gets a little stronger than NEAR, but not by enough to switch
+        for (int i = 0; i < 20; i++) {
+            registry.update(FAR, "robot", -57, 0);
+        }
+        assertEquals(NEAR, registry.getCandidate(NEAR, 0).getAddress());
+        for (int i = 0; i < 30; i++) {
+            registry.update(FAR, "robot", -45, 0);
+        }
+        assertEquals(FAR, registry.getCandidate(NEAR, 0).getAddress());
+    }
+
+    @Test
+    public void staleDevicesAreIgnoredAndExpire() throws Exception {
+        ScanRegistry registry = new ScanRegistry();
+        for (int i = 0; i < 10; i++) {
+            registry.update(NEAR, "robot", -50, i * 100);
+        }
+        registry.update(FAR, "robot", -80, ScanRegistry.STALE_AGE);
+        long now = 900 + ScanRegistry.STALE_AGE + 1;
+        assertTrue(registry.get(0).isStale(now));
+        assertFalse(registry.get(1).isStale(now));
+        assertEquals(FAR, registry.getStrongest(now).getAddress());
+
+        // A stale device starts a new estimate when it is seen again
+        registry.update(NEAR, "robot", -70, now);
+        assertEquals(-70.0, registry.get(0).getRssi(), 0.001);
+        assertFalse(registry.get(0).isSettled());
+
+        assertFalse(registry.evict(now + ScanRegistry.EXPIRE_AGE - ScanRegistry.STALE_AGE));
+        assertTrue(registry.evict(now + ScanRegistry.EXPIRE_AGE + 1));
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,69 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SlidingWindow}, against a plain scan of the window.
+ */
+public class SlidingWindowTest {
+
+    @Test
+    public void emptyWindow() {
+        SlidingWindow window = new SlidingWindow(8, 100);
+        assertTrue(window.isEmpty());
+        assertEquals(0, window.getMin(), 0);
+        assertEquals(0, window.getMax(), 0);
+        window.add(0, 5);
+        window.clear();
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void dropsOldReadingsByTime() {
+        SlidingWindow window = new SlidingWindow(16, 100);
+        window.add(0, 30);
+        window.add(50, 10);
+        window.add(100, 20);
+        assertEquals(10, window.getMin(), 0);
+        assertEquals(30, window.getMax(), 0);
+        window.add(101, 20);
+        assertEquals(3, window.getCount());
+        assertEquals(20, window.getMax(), 0);
+        window.add(200, 25);
+        assertEquals(20, window.getMin(), 0);
+        assertEquals(25, window.getMax(), 0);
+    }
+
+    @Test
+    public void matchesScanWhenFull() {
+        Random random = new Random(7);
+        int capacity = 64;
+        long span = 500;
+        SlidingWindow window = new SlidingWindow(capacity, span);
+        long[] times = new long[20000];
+        float[] values = new float[times.length];
+        long time = 0;
+        for (int i = 0; i < times.length; i++) {
+            time += random.nextInt(20);
+            times[i] = time;
+            values[i] = random.nextInt(100);
+            window.add(time, values[i]);
+
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            int count = 0;
+            for (int j = i; j >= 0 && j > i - capacity && times[j] >= time - span; j--) {
+                min = Math.min(min, values[j]);
+                max = Math.max(max, values[j]);
+                count++;
+            }
+            assertEquals(count, window.getCount());
+            assertEquals(min, window.getMin(), 0);
+            assertEquals(max, window.getMax(), 0);
+        }
+    }
+}
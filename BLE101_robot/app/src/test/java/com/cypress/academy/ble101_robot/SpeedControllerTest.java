@@ -0,0 +1,80 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SpeedController} running against a simulated motor.
+ */
+public class SpeedControllerTest {
+
+    private static final double MAX_RATE = 1000;
+    private static final long STEP = 10000000L; // 10 ms simulation step
+    private static final long CONTROL_PERIOD = 50000000L;
+
+    /**
+     * Run a single loaded motor for a while and return the final tach rate in counts/s.
+     * The motor reaches {@code load} of the free running rate for a given speed with a
+     * time constant of 200 ms.
+     */
+    private static double run(SpeedController controller, int target, double load, int startCount) {
+        PSoCBleRobotService.Motor motor = PSoCBleRobotService.Motor.LEFT;
+        controller.setTarget(motor, target);
+        double rate = 0;
+        double count = startCount;
+        long now = 0;
+        for (int i = 0; i < 500; i++) {
+            now += STEP;
+            double speed = controller.getOutput(motor);
+            rate += (load * speed / 100 * MAX_RATE - rate) * 0.01 / 0.2;
+            count += rate * 0.01;
+            if (now % CONTROL_PERIOD == 0) {
+                // Tach notification followed by a controller tick
+                controller.onTach(motor, (int) (long) count, now);
+                controller.update(now, CONTROL_PERIOD / 1e9);
+            }
+        }
+        return rate;
+    }
+
+    @Test
+    public void openLoopSagsUnderLoad() throws Exception {
+        SpeedController controller = new SpeedController(MAX_RATE);
+        controller.setGains(0, 0, 0);
+        assertEquals(300, run(controller, 50, 0.6, 0), 10);
+    }
+
+    @Test
+    public void closedLoopHoldsSpeedUnderLoad() throws Exception {
+        SpeedController controller = new SpeedController(MAX_RATE);
+        assertEquals(500, run(controller, 50, 0.6, 0), 25);
+        assertEquals(-500, run(new SpeedController(MAX_RATE), -50, 0.6, 0), 25);
+    }
+
+    @Test
+    public void tachWraparoundGivesTheRightRate() throws Exception {
+        SpeedController controller = new SpeedController(MAX_RATE);
+        assertEquals(500, run(controller, 50, 0.6, Integer.MAX_VALUE - 1000), 25);
+        PSoCBleRobotService.Motor motor = PSoCBleRobotService.Motor.LEFT;
+        controller.onTach(motor, Integer.MAX_VALUE - 10, 6000000000L);
+        controller.onTach(motor, Integer.MIN_VALUE + 40, 6100000000L);
+        assertEquals(510, controller.getRate(motor), 0.001);
+    }
+
+    @Test
+    public void outputIsLimitedAndStopsAtZero() throws Exception {
+        SpeedController controller = new SpeedController(MAX_RATE);
+        PSoCBleRobotService.Motor motor = PSoCBleRobotService.Motor.RIGHT;
+        controller.setTarget(motor, 90);
+        controller.onTach(motor, 0, 0);
+        controller.onTach(motor, 0, 50000000L);
+        for (int i = 0; i < 100; i++) {
+            controller.update(50000000L * (i + 2), 0.05);
+        }
+        assertEquals(100, controller.getOutput(motor));
+        controller.setTarget(motor, 0);
+        controller.update(60000000000L, 0.05);
+        assertEquals(0, controller.getOutput(motor));
+    }
+}
@@ -0,0 +1,90 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the response curve, trim and slew limiting in {@link SpeedShaper}.
+ */
+public class SpeedShaperTest {
+
+    private static final PSoCBleRobotService.Motor LEFT = PSoCBleRobotService.Motor.LEFT;
+    private static final PSoCBleRobotService.Motor RIGHT = PSoCBleRobotService.Motor.RIGHT;
+
+    @Test
+    public void defaultIsPassThrough() throws Exception {
+        SpeedShaper shaper = new SpeedShaper();
+        for (int speed = -100; speed <= 100; speed += 10) {
+            assertEquals(speed, shaper.shape(LEFT, speed));
+            assertEquals(speed, shaper.slew(RIGHT, speed, 0.05));
+        }
+        assertEquals(100, shaper.shape(LEFT, 150));
+        assertFalse(shaper.isSlewLimited());
+    }
+
+    @Test
+    public void deadbandExpoAndTrim() throws Exception {
+        SpeedShaper shaper = new SpeedShaper();
+        shaper.configure(10, 1, 20, 0);
+        assertEquals(0, shaper.shape(RIGHT, 10));
+        assertEquals(0, shaper.shape(RIGHT, -5));
+        // Cubic curve: half way through the range gives an eighth of full speed
+        assertEquals(13, shaper.shape(RIGHT, 55));
+        assertEquals(-13, shaper.shape(RIGHT, -55));
+        assertEquals(100, shaper.shape(RIGHT, 100));
+        // Positive trim slows the left motor
+        assertEquals(80, shaper.shape(LEFT, 100));
+        shaper.configure(0, 0, -20, 0);
+        assertEquals(100, shaper.shape(LEFT, 100));
+        assertEquals(80, shaper.shape(RIGHT, 100));
+    }
+
+    @Test
+    public void trimNeverReversesAWheel() throws Exception {
+        SpeedShaper shaper = new SpeedShaper();
+        shaper.configure(0, 0, 150, 0);
+        assertEquals(0, shaper.shape(LEFT, 100));
+        assertEquals(100, shaper.shape(RIGHT, 100));
+        shaper.configure(0, 0, -150, 0);
+        assertEquals(0, shaper.shape(RIGHT, -100));
+        assertEquals(-100, shaper.shape(LEFT, -100));
+    }
+
+    @Test
+    public void slewLimitsTheStep() throws Exception {
+        SpeedShaper shaper = new SpeedShaper();
+        shaper.configure(0, 0, 0, 200);
+        assertTrue(shaper.isSlewLimited());
+        assertEquals(10, shaper.slew(LEFT, 100, 0.05));
+        assertEquals(20, shaper.slew(LEFT, 100, 0.05));
+        assertEquals(15, shaper.slew(LEFT, 15, 0.05));
+        shaper.reset(LEFT, -100);
+        assertEquals(-90, shaper.slew(LEFT, 100, 0.05));
+    }
+
+    @Test
+    public void calibrationIsBuiltIntoTable() throws Exception {
+        SpeedShaper shaper = new SpeedShaper();
+        MotorCalibration calibration = new MotorCalibration();
+        // The left motor starts at 20 and is slower
+        calibration.set(LEFT, true, 8, 20);
+        calibration.set(RIGHT, true, 10, 0);
+        shaper.setCalibration(calibration);
+        assertSame(calibration, shaper.getCalibration());
+        // Full speed is the slower motor's top rate of 640 counts/s
+        assertEquals(100, shaper.shape(LEFT, 100));
+        assertEquals(64, shaper.shape(RIGHT, 100));
+        assertEquals(60, shaper.shape(LEFT, 50));
+        assertEquals(32, shaper.shape(RIGHT, 50));
+        assertEquals(0, shaper.shape(LEFT, 0));
+        // Backwards is still uncalibrated
+        assertEquals(-50, shaper.shape(RIGHT, -50));
+        // The curve is applied before the calibration
+        shaper.configure(10, 0, 0, 0);
+        assertEquals(0, shaper.shape(LEFT, 10));
+        assertEquals(60, shaper.shape(LEFT, 55));
+        shaper.setCalibration(null);
+        assertEquals(50, shaper.shape(LEFT, 55));
+    }
+}
@@ -0,0 +1,106 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link StallDetector}.
+ */
+public class StallDetectorTest {
+
+    private static final PSoCBleRobotService.Motor LEFT = PSoCBleRobotService.Motor.LEFT;
+    private static final long MS = 1000000L;
+
+    /**
+     * Send tach samples every 20 ms for a wheel turning at the given rate
+     *
+     * @return the first time a stall was reported, or -1
+     */
+    private static long run(StallDetector detector, double rate, long start, long end) {
+        long stalledAt = -1;
+        for (long time = start; time <= end; time += 20 * MS) {
+            int count = (int) Math.round(rate * time / 1e9);
+            if (detector.onTach(LEFT, count, time) && stalledAt < 0) {
+                stalledAt = time;
+            }
+        }
+        return stalledAt;
+    }
+
+    @Test
+    public void turningWheelIsNotStalled() throws Exception {
+        StallDetector detector = new StallDetector(1000, 8);
+        detector.setCommand(LEFT, 50, 0);
+        assertEquals(-1, run(detector, 480, 0, 3000 * MS));
+        assertFalse(detector.isStalled(LEFT));
+    }
+
+    @Test
+    public void stoppedWheelStallsOnceAfterGrace() throws Exception {
+        StallDetector detector = new StallDetector(1000, 8);
+        detector.setCommand(LEFT, 50, 0);
+        long stalledAt = run(detector, 0, 0, 3000 * MS);
+        // The grace time is 500 ms and the window needs 8 samples
+        assertTrue(stalledAt >= 500 * MS && stalledAt <= 700 * MS);
+        assertTrue(detector.isStalled(LEFT));
+        // Only reported once until the command changes
+        assertEquals(-1, run(detector, 0, 3020 * MS, 4000 * MS));
+        detector.setCommand(LEFT, 0, 4000 * MS);
+        assertFalse(detector.isStalled(LEFT));
+    }
+
+    @Test
+    public void wheelTurningBackwardsIsStalled() throws Exception {
+        StallDetector detector = new StallDetector(1000, 8);
+        detector.setCommand(LEFT, -60, 0);
+        assertEquals(-1, run(detector, -550, 0, 2000 * MS));
+        detector.setCommand(LEFT, 60, 2000 * MS);
+        assertTrue(run(detector, -550, 2020 * MS, 4000 * MS) > 0);
+    }
+
+    @Test
+    public void silentWheelIsStalled() throws Exception {
+        StallDetector detector = new StallDetector(1000, 8);
+        detector.setCommand(LEFT, 50, 0);
+        assertFalse(detector.check(LEFT, 1000 * MS));
+        assertTrue(detector.check(LEFT, 1600 * MS));
+        // Slow commands are not checked
+        detector.setCommand(LEFT, 10, 2000 * MS);
+        assertFalse(detector.check(LEFT, 9000 * MS));
+    }
+
+    @Test
+    public void changingCommandDoesNotPutOffTheCheck() throws Exception {
+        StallDetector detector = new StallDetector(1000, 8);
+        detector.setCommand(LEFT, 50, 0);
+        long stalledAt = -1;
+        // A controller winding up against a stalled wheel changes the command every tick
+        for (long time = 0; time <= 3000 * MS && stalledAt < 0; time += 20 * MS) {
+            detector.setCommand(LEFT, 50 + (int) (time / (100 * MS)), time);
+            if (detector.onTach(LEFT, 0, time)) {
+                stalledAt = time;
+            }
+        }
+        assertTrue(stalledAt >= 500 * MS && stalledAt <= 700 * MS);
+    }
+
+    @Test
+    public void onlyLargeChangesGiveTimeAgain() throws Exception {
+        StallDetector detector = new StallDetector(1000, 8);
+        detector.setCommand(LEFT, 50, 0);
+        detector.setCommand(LEFT, 60, 900 * MS);
+        assertTrue(detector.check(LEFT, 1600 * MS));
+
+        detector = new StallDetector(1000, 8);
+        detector.setCommand(LEFT, 50, 0);
+        detector.setCommand(LEFT, 100, 900 * MS);
+        assertFalse(detector.check(LEFT, 1600 * MS));
+        assertTrue(detector.check(LEFT, 2500 * MS));
+
+        // Reversing always gives time again
+        detector.setCommand(LEFT, -100, 2600 * MS);
+        assertFalse(detector.isStalled(LEFT));
+        assertFalse(detector.check(LEFT, 3500 * MS));
+    }
+}
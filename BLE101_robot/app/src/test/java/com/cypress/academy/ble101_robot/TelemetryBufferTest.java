@@ -0,0 +1,102 @@
+package com.cypress.academy.ble101_robot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@link TelemetryBuffer} ring and its lock free readers.
+ */
+public class TelemetryBufferTest {
+
+    @Test
+    public void keepsLatestSamples() throws Exception {
+        TelemetryBuffer buffer = new TelemetryBuffer(5);
+        assertEquals(8, buffer.getCapacity());
+        long[] times = new long[16];
+        int[] values = new int[16];
+        assertEquals(0, buffer.copyLatest(times, values, 16));
+
+        for (int i = 0; i < 20; i++) {
+            buffer.add(i * 10, -i);
+        }
+        assertEquals(20, buffer.getCount());
+        assertEquals(8, buffer.copyLatest(times, values, 16));
+        assertEquals(120, times[0]);
+        assertEquals(-12, values[0]);
+        assertEquals(190, times[7]);
+        assertEquals(-19, values[7]);
+
+        assertEquals(3, buffer.copyLatest(times, values, 3));
+        assertEquals(170, times[0]);
+
+        assertEquals(4, buffer.copyFrom(155, times, values, 16));
+        assertEquals(160, times[0]);
+        assertEquals(-19, values[3]);
+
+        buffer.clear();
+        assertEquals(0, buffer.copyLatest(times, values, 16));
+    }
+
+    @Test
+    public void followsWithCopySince() throws Exception {
+        TelemetryBuffer buffer = new TelemetryBuffer(16);
+        long[] times = new long[4];
+        int[] values = new int[4];
+        long count = buffer.getCount();
+        buffer.add(1, 1);
+        buffer.add(2, 2);
+        assertEquals(2, buffer.copySince(count, times, values, 4));
+        count = buffer.getCount();
+        assertEquals(0, buffer.copySince(count, times, values, 4));
+        for (int i = 3; i <= 9; i++) {
+            buffer.add(i, i);
+        }
+        // Only the latest samples fit
+        assertEquals(4, buffer.copySince(count, times, values, 4));
+        assertEquals(6, values[0]);
+        assertEquals(9, values[3]);
+    }
+
+    @Test
+    public void readersNeverSeeTornSamples() throws Exception {
+        final TelemetryBuffer buffer = new TelemetryBuffer(64);
+        final int samples = 2000000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= samples; i++) {
+                    buffer.add(i * 3L, i);
+                }
+            }
+        });
+        writer.start();
+        long[] times = new long[64];
+        int[] values = new int[64];
+        long reads = 0;
+        while (writer.isAlive() || reads == 0) {
+            int copied = buffer.copyLatest(times, values, 64);
+            for (int i = 0; i < copied; i++) {
+                // Each value must go with its own time and the samples must be in order
+                assertEquals(values[i] * 3L, times[i]);
+                if (i > 0) {
+                    assertEquals(values[i - 1] + 1, values[i]);
+                }
+            }
+            reads++;
+        }
+        writer.join();
+        assertEquals(samples, buffer.getCount());
+        assertTrue(reads > 0);
+    }
+
+    @Test
+    public void rejectsBadCapacity() throws Exception {
+        try {
+            new TelemetryBuffer(0);
+            fail("Capacity of 0");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+/**
+ * Turns samples into the line segments that {@link ChartView} draws, without allocating.
+ *
+ * The samples that land in each pixel column are reduced to the first, last, lowest and
+ * highest of them. Drawing a line down the column from the lowest to the highest and
+ * joining the last of one column to the first of the next lights the same pixels as
+ * drawing every sample, but there are never more than two segments per column however
+ * many samples there are. The segments are written to a float buffer in the form
+ * {@code Canvas.drawLines()} takes.
+ */
+public class ChartPoints {
+
+    private final int mColumns;
+    // The samples in each column. A column is empty if its count is 0.
+    private final float[] mFirst;
+    private final float[] mLast;
+    private final float[] mLow;
+    private final float[] mHigh;
+    private final int[] mCount;
+    // Two segments of four floats per column
+    private final float[] mLines;
+    private int mLineFloats;
+    private int mSamples;
+
+    /**
+     * @param columns most pixel columns to prepare, usually the width of the view
+     */
+    public ChartPoints(int columns) {
+        mColumns = Math.max(1, columns);
+        mFirst = new float[mColumns];
+        mLast = new float[mColumns];
+        mLow = new float[mColumns];
+        mHigh = new float[mColumns];
+        mCount = new int[mColumns];
+        mLines = new float[8 * mColumns];
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Prepare the segments for one line. Samples outside the time range are left out.
+     *
+     * @param times times of the samples, in order
+     * @param values the samples
+     * @param count number of samples
+     * @param from time at the left edge
+     * @param to time at the right edge
+     * @param low value at the bottom edge
+     * @param high value at the top edge
+     * @param left x of the left edge in pixels
+     * @param top y of the top edge in pixels
+     * @param right x of the right edge in pixels
+     * @param bottom y of the bottom edge in pixels
+     * @return number of floats in {@link #getLines()}
+     */
+    public int prepare(long[] times, float[] values, int count, long from, long to, float low, float high,
+                       float left, float top, float right, float bottom) {
+        int columns = Math.min(mColumns, Math.max(1, (int) (right - left)));
+        for (int i = 0; i < columns; i++) {
+            mCount[i] = 0;
+        }
+        mSamples = 0;
+        double xScale = to > from ? (double) columns / (to - from) : 0;
+        for (int i = 0; i < count; i++) {
+            long time = times[i];
+            if (time < from || time > to) {
+                continue;
+            }
+            int column = Math.min(columns - 1, (int) ((time - from) * xScale));
+            float value = values[i];
+            if (mCount[column]++ == 0) {
+                mFirst[column] = value;
+                mLow[column] = value;
+                mHigh[column] = value;
+            } else if (value < mLow[column]) {
+                mLow[column] = value;
+            } else if (value > mHigh[column]) {
+                mHigh[column] = value;
+            }
+            mLast[column] = value;
+            mSamples++;
+        }
+
+        float yScale = high > low ? (bottom - top) / (high - low) : 0;
+        int n = 0;
+        boolean joined = false;
+        float lastY = 0;
+        float lastX = 0;
+        for (int i = 0; i < columns; i++) {
+            if (mCount[i] == 0) {
+                continue;
+            }
+            float x = left + i + 0.5f;
+            if (joined) {
+                n = segment(n, lastX, lastY, x, bottom - (mFirst[i] - low) * yScale);
+            }
+            if (mCount[i] > 1 && mHigh[i] > mLow[i]) {
+                n = segment(n, x, bottom - (mLow[i] - low) * yScale, x, bottom - (mHigh[i] - low) * yScale);
+            }
+            lastX = x;
+            lastY = bottom - (mLast[i] - low) * yScale;
+            joined = true;
+        }
+        mLineFloats = n;
+        return n;
+    }
+
+    private int segment(int n, float x0, float y0, float x1, float y1) {
+        mLines[n] = x0;
+        mLines[n + 1] = y0;
+        mLines[n + 2] = x1;
+        mLines[n + 3] = y1;
+        return n + 4;
+    }
+
+    /**
+     * @return the segments from the last {@link #prepare}, as x0, y0, x1, y1 for each
+     */
+    public float[] getLines() {
+        return mLines;
+    }
+
+    /**
+     * @return number of floats in {@link #getLines()} that are in use
+     */
+    public int getLineFloats() {
+        return mLineFloats;
+    }
+
+    /**
+     * @return number of samples that were in the time range of the last {@link #prepare}
+     */
+    public int getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * Round a range of values out to a whole number of steps, where a step is 1, 2 or 5
+     * times a power of ten. The scale then only changes when the values move a whole step
+     * out of it, rather than with every new sample.
+     *
+     * @param low lowest value
+     * @param high highest value
+     * @param steps about how many steps the range should have
+     * @param out receives the low and high end of the range
+     */
+    public static void niceRange(float low, float high, int steps, float[] out) {
+        if (high <= low) {
+            high = low + 1;
+        }
+        double raw = (high - low) / Math.max(1, steps);
+        double power = Math.pow(10, Math.floor(Math.log10(raw)));
+        double step = raw / power <= 1 ? power : raw / power <= 2 ? 2 * power : raw / power <= 5 ? 5 * power : 10 * power;
+        out[0] = (float) (Math.floor(low / step) * step);
+        out[1] = (float) (Math.ceil(high / step) * step);
+    }
+
+    /**
+     * Write a number as text without making a String
+     *
+     * @param value the number
+     * @param out receives the characters. It must hold at least 11.
+     * @return the number of characters
+     */
+    public static int format(int value, char[] out) {
+        long rest = Math.abs((long) value);
+        int n = 0;
+        do {
+            out[n++] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest > 0);
+        if (value < 0) {
+            out[n++] = '-';
+        }
+        // The digits went in backwards
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            char c = out[i];
+            out[i] = out[j];
+            out[j] = c;
+        }
+        return n;
+    }
+}
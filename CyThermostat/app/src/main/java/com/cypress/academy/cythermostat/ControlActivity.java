@@ -37,13 +37,16 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * This Activity provides the user interface to interact with the thermostat.  The Activity
@@ -57,11 +60,25 @@ public class ControlActivity extends AppCompatActivity {
     private static TextView mSetTempText;
     private static Button mSetTempUp;
     private static Button mSetTempDown;
+    private static ChartView mTempChart;
+
+    // Time spans the temperature chart steps through when tapped: an hour, a day, a week,
+    // a month and a year (ms)
+    private static final long HOUR = 3600000L;
+    private static final long[] CHART_SPANS = { HOUR, 24 * HOUR, 7 * 24 * HOUR, 30 * 24 * HOUR, 365 * 24 * HOUR };
 
     // This tag is used for debug messages
     private static final String TAG = ControlActivity.class.getSimpleName();
 
     private static String mDeviceAddress;
+
+    // When launched directly with the last device, go back to scanning if the
+    // device is not connected and ready within this time
+    private static final long FAST_PATH_TIMEOUT = 5000;
+    private static Handler mHandler;
+
+    // Launch time of the app, used to log the time to the first telemetry
+    private static long mLaunchTime;
     private static PSoCBleThermostatService mPSoCBleThermostatService;
 
     /**
@@ -80,6 +97,7 @@ public class ControlActivity extends AppCompatActivity {
             }
             // Automatically connects to the thermostat database upon successful start-up initialization.
             mPSoCBleThermostatService.connect(mDeviceAddress);
+            mPSoCBleThermostatService.adopt();
         }
 
         @Override
@@ -98,9 +116,48 @@ public class ControlActivity extends AppCompatActivity {
         mSetTempText = (TextView) findViewById(R.id.set_temp);
         mSetTempUp = (Button) findViewById(R.id.set_temp_up);
         mSetTempDown = (Button) findViewById(R.id.set_temp_down);
+        mTempChart = (ChartView) findViewById(R.id.temp_chart);
+        mTempChart.setSource(new ChartView.Source() {
+            // The history is downsampled to one point per pixel column of the chart. The
+            // series is made again when the width of the chart changes.
+            private Series mSeries;
+
+            @Override
+            public long getTime() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public int getSeriesCount() {
+                return 2;
+            }
+
+            @Override
+            public int copy(int series, long from, long[] times, float[] values, int max) {
+                HistoryQuery history = series == 0 ? PSoCBleThermostatService.getMeasTempHistory()
+                        : PSoCBleThermostatService.getSetTempHistory();
+                if (history == null) {
+                    return 0;
+                }
+                int width = Math.max(1, Math.min(max, mTempChart.getWidth()));
+                if (mSeries == null || mSeries.getCapacity() != width) {
+                    mSeries = new Series(width);
+                }
+                int count = history.query(from, getTime(), mSeries);
+                System.arraycopy(mSeries.getTimes(), 0, times, 0, count);
+                System.arraycopy(mSeries.getValues(), 0, values, 0, count);
+                return count;
+            }
+        }, CHART_SPANS);
 
         final Intent intent = getIntent();
         mDeviceAddress = intent.getStringExtra(ScanActivity.EXTRAS_BLE_ADDRESS);
+        mLaunchTime = ScanActivity.takeLaunchTime();
+
+        mHandler = new Handler();
+        if (intent.getBooleanExtra(ScanActivity.EXTRAS_FAST_PATH, false)) {
+            mHandler.postDelayed(mFastPathCheck, FAST_PATH_TIMEOUT);
+        }
 
         // Bind to the BLE service
         Log.i(TAG, "Binding Service");
@@ -112,6 +169,8 @@ public class ControlActivity extends AppCompatActivity {
             public boolean onTouch(View v, MotionEvent event) {
                 if (event.getAction() == MotionEvent.ACTION_DOWN) {
                     mPSoCBleThermostatService.changeSetTemp(PSoCBleThermostatService.Dir.UP);
+                    // Show the new set point without waiting for the thermostat
+                    mSetTempText.setText(String.format("%d", mPSoCBleThermostatService.getTargetTemp()));
                 } else {
                     mPSoCBleThermostatService.changeSetTemp(PSoCBleThermostatService.Dir.STOP);
                 }
@@ -124,6 +183,7 @@ public class ControlActivity extends AppCompatActivity {
             public boolean onTouch(View v, MotionEvent event) {
                 if(event.getAction() == MotionEvent.ACTION_DOWN) {
                     mPSoCBleThermostatService.changeSetTemp(PSoCBleThermostatService.Dir.DOWN);
+                    mSetTempText.setText(String.format("%d", mPSoCBleThermostatService.getTargetTemp()));
                 } else {
                     mPSoCBleThermostatService.changeSetTemp(PSoCBleThermostatService.Dir.STOP);
                 }
@@ -141,9 +201,11 @@ public class ControlActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         registerReceiver(mThermostatUpdateReceiver, makeThermostatUpdateIntentFilter());
+        mTempChart.onData();
         if (mPSoCBleThermostatService != null) {
             final boolean result = mPSoCBleThermostatService.connect(mDeviceAddress);
             Log.i(TAG, "Connect request result=" + result);
+            mPSoCBleThermostatService.adopt();
         }
     }
 
@@ -151,15 +213,34 @@ public class ControlActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mThermostatUpdateReceiver);
+        if (mPSoCBleThermostatService != null) {
+            Log.i(TAG, mPSoCBleThermostatService.getSetPointReconciler().toString());
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mFastPathCheck);
         unbindService(mServiceConnection);
         mPSoCBleThermostatService = null;
     }
 
+    /**
+     * This checks that the direct connection to the last device worked. If it did not,
+     * we finish so that the scan activity can look for devices instead.
+     */
+    private final Runnable mFastPathCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mPSoCBleThermostatService == null || !mPSoCBleThermostatService.isReady()) {
+                Log.w(TAG, "Could not reach the last device, going back to scanning");
+                Toast.makeText(ControlActivity.this, R.string.fast_path_failed, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        }
+    };
+
     /**
      * Handle broadcasts from the Thermostat service object. The events are:
      * ACTION_CONNECTED: connected to the device.
@@ -180,8 +261,13 @@ public class ControlActivity extends AppCompatActivity {
                     break;
                 case PSoCBleThermostatService.ACTION_DATA_AVAILABLE:
                     // This is called after a Notify completes
+                    if (mLaunchTime != 0) {
+                        Log.i(TAG, "First telemetry " + (SystemClock.elapsedRealtime() - mLaunchTime) + " ms after launch");
+                        mLaunchTime = 0;
+                    }
                     mMeasTempText.setText(String.format("%d", PSoCBleThermostatService.getMeasTemp()));
-                    mSetTempText.setText(String.format("%d", PSoCBleThermostatService.getSetTemp()));
+                    mSetTempText.setText(String.format("%d", mPSoCBleThermostatService.getTargetTemp()));
+                    mTempChart.onData();
                     break;
             }
         }
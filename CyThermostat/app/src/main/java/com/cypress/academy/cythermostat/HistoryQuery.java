@@ -0,0 +1,278 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+import java.io.IOException;
+
+/**
+ * Answers "what should the chart show between these times" from a {@link TimeSeriesStore}
+ * quickly enough to redo for every scroll or zoom, however long the history is.
+ *
+ * Rollups of the readings into 10 minute, 1 hour, 6 hour and 1 day buckets, each with the
+ * lowest, highest and mean reading, are built once when the query is made and kept up to
+ * date as readings are appended. A query for a short range reads the readings themselves
+ * from the store and, if there are more than the plot is wide, downsamples them with
+ * {@link Lttb}. A longer range is answered from the finest rollup with no more buckets in
+ * the range than the plot is wide, merging buckets further if even the day buckets are
+ * too many. So a query never touches more than a few thousand readings or buckets.
+ */
+public class HistoryQuery {
+
+    private static final long MINUTE = 60000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long[] WIDTHS = { 10 * MINUTE, HOUR, 6 * HOUR, DAY };
+
+    // Read the readings themselves when there are no more than this many per point
+    private static final int RAW_PER_POINT = 16;
+
+    /**
+     * Buckets of one width, indexed by (time / width) - origin
+     */
+    private static class Level {
+        final long mWidth;
+        long mOrigin = -1;
+        int mSize;
+        short[] mMin = new short[64];
+        short[] mMax = new short[64];
+        long[] mSum = new long[64];
+        int[] mCount = new int[64];
+
+        Level(long width) {
+            mWidth = width;
+        }
+
+        void add(long time, int value) {
+            long index = time / mWidth;
+            if (mOrigin < 0) {
+                mOrigin = index;
+            }
+            int bucket = (int) (index - mOrigin);
+            if (bucket < 0) {
+                return; // before the first reading, which the store does not allow
+            }
+            if (bucket >= mMin.length) {
+                grow(bucket + 1);
+            }
+            if (bucket >= mSize) {
+                mSize = bucket + 1;
+            }
+            if (mCount[bucket] == 0 || value < mMin[bucket]) {
+                mMin[bucket] = (short) value;
+            }
+            if (mCount[bucket] == 0 || value > mMax[bucket]) {
+                mMax[bucket] = (short) value;
+            }
+            mSum[bucket] += value;
+            mCount[bucket]++;
+        }
+
+        private void grow(int size) {
+            int capacity = Math.max(size, 2 * mMin.length);
+            short[] min = new short[capacity];
+            short[] max = new short[capacity];
+            long[] sum = new long[capacity];
+            int[] count = new int[capacity];
+            System.arraycopy(mMin, 0, min, 0, mSize);
+            System.arraycopy(mMax, 0, max, 0, mSize);
+            System.arraycopy(mSum, 0, sum, 0, mSize);
+            System.arraycopy(mCount, 0, count, 0, mSize);
+            mMin = min;
+            mMax = max;
+            mSum = sum;
+            mCount = count;
+        }
+
+        /**
+         * @return index of the bucket holding a time, which may be outside the buckets
+         */
+        long bucketOf(long time) {
+            return time / mWidth - mOrigin;
+        }
+
+        /**
+         * Count the readings in a range, stopping once there are more than a limit
+         */
+        long countReadings(long from, long to, long limit) {
+            long first = Math.max(0, bucketOf(from));
+            long last = Math.min(mSize - 1, bucketOf(to));
+            long count = 0;
+            for (long bucket = first; bucket <= last && count <= limit; bucket++) {
+                count += mCount[(int) bucket];
+            }
+            return count;
+        }
+    }
+
+    private final TimeSeriesStore mStore;
+    private final Level[] mLevels = new Level[WIDTHS.length];
+
+    // Readings read from the store for a short range. The arrays grow as needed.
+    private long[] mRawTimes = new long[1024];
+    private float[] mRawValues = new float[1024];
+    private int mRawCount;
+    private final TimeSeriesStore.Visitor mCollector = new TimeSeriesStore.Visitor() {
+        @Override
+        public void sample(long time, int value) {
+            if (mRawCount == mRawTimes.length) {
+                long[] times = new long[2 * mRawCount];
+                float[] values = new float[2 * mRawCount];
+                System.arraycopy(mRawTimes, 0, times, 0, mRawCount);
+                System.arraycopy(mRawValues, 0, values, 0, mRawCount);
+                mRawTimes = times;
+                mRawValues = values;
+            }
+            mRawTimes[mRawCount] = time;
+            mRawValues[mRawCount++] = value;
+        }
+    };
+
+    /**
+     * Build the rollups of the readings in a store
+     *
+     * @param store the store. Readings must be appended through this query from now on so
+     *              that the rollups stay up to date.
+     */
+    public HistoryQuery(TimeSeriesStore store) {
+        mStore = store;
+        for (int i = 0; i < WIDTHS.length; i++) {
+            mLevels[i] = new Level(WIDTHS[i]);
+        }
+        store.read(Long.MIN_VALUE, Long.MAX_VALUE, new TimeSeriesStore.Visitor() {
+            @Override
+            public void sample(long time, int value) {
+                addToLevels(time, value);
+            }
+        });
+    }
+
+    private void addToLevels(long time, int value) {
+        for (Level level : mLevels) {
+            level.add(time, value);
+        }
+    }
+
+    public TimeSeriesStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Append a reading to the store and the rollups
+     *
+     * @param time time of the reading in ms
+     * @param value the reading
+     * @throws IOException if the store cannot take it
+     */
+    public synchronized void append(long time, int value) throws IOException {
+        mStore.append(time, value);
+        // The store may have changed the time or value to fit, so use what it kept
+        addToLevels(mStore.getLastTime(), mStore.getLastValue());
+    }
+
+    /**
+     * Get the points to plot for a time range. There are at most as many points as the
+     * capacity of the series.
+     *
+     * @param from start of the range in ms
+     * @param to end of the range in ms
+     * @param out receives the points
+     * @return the number of points
+     */
+    public synchronized int query(long from, long to, Series out) {
+        int width = out.getCapacity();
+        if (to < from || width == 0) {
+            out.clear(false);
+            return 0;
+        }
+        long limit = (long) RAW_PER_POINT * width;
+        if (mLevels[0].countReadings(from, to, limit) <= limit) {
+            queryReadings(from, to, out);
+        } else {
+            queryBuckets(from, to, out);
+        }
+        return out.getCount();
+    }
+
+    /**
+     * Fill the series with the readings in the range, downsampled to fit
+     */
+    private void queryReadings(long from, long to, Series out) {
+        out.clear(false);
+        mRawCount = 0;
+        mStore.read(from, to, mCollector);
+        // Downsample straight into the series, then fill in the spreads
+        int count = Lttb.downsample(mRawTimes, mRawValues, mRawCount, out.getCapacity(),
+                out.getTimes(), out.getValues());
+        float[] values = out.getValues();
+        for (int i = 0; i < count; i++) {
+            out.add(out.getTimes()[i], values[i], values[i], values[i]);
+        }
+    }
+
+    /**
+     * Fill the series with buckets from the finest rollup that fits
+     */
+    private void queryBuckets(long from, long to, Series out) {
+        out.clear(true);
+        int width = out.getCapacity();
+        Level level = mLevels[mLevels.length - 1];
+        for (Level candidate : mLevels) {
+            if (candidate.bucketOf(to) - candidate.bucketOf(from) + 1 <= width) {
+                level = candidate;
+                break;
+            }
+        }
+        long first = Math.max(0, level.bucketOf(from));
+        long last = Math.min(level.mSize - 1, level.bucketOf(to));
+        // Merge buckets if there are still too many
+        long merge = Math.max(1, (last - first + width) / width);
+        for (long start = first; start <= last; start += merge) {
+            long end = Math.min(last, start + merge - 1);
+            int count = 0;
+            long sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int bucket = (int) start; bucket <= end; bucket++) {
+                if (level.mCount[bucket] > 0) {
+                    count += level.mCount[bucket];
+                    sum += level.mSum[bucket];
+                    min = Math.min(min, level.mMin[bucket]);
+                    max = Math.max(max, level.mMax[bucket]);
+                }
+            }
+            if (count > 0) {
+                // Plot the bucket at its middle
+                long time = (level.mOrigin + start) * level.mWidth + (end - start + 1) * level.mWidth / 2;
+                out.add(time, (float) sum / count, min, max);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling. The points are split into as many buckets
+ * as there are points to keep and from each bucket the point that makes the largest
+ * triangle with the point kept from the bucket before and the average of the bucket after
+ * is kept. This keeps the peaks and the shape of the line, which plain averaging or
+ * taking every nth point loses.
+ */
+public class Lttb {
+
+    private Lttb() {
+    }
+
+    /**
+     * Downsample a line. The first and last points are always kept.
+     *
+     * @param times times of the points, in order
+     * @param values values of the points
+     * @param count number of points
+     * @param threshold number of points to keep
+     * @param outTimes receives the times of the points kept
+     * @param outValues receives the values of the points kept
+     * @return the number of points kept
+     */
+    public static int downsample(long[] times, float[] values, int count, int threshold,
+                                 long[] outTimes, float[] outValues) {
+        if (threshold >= count || threshold < 3) {
+            int n = Math.min(count, outTimes.length);
+            System.arraycopy(times, 0, outTimes, 0, n);
+            System.arraycopy(values, 0, outValues, 0, n);
+            return n;
+        }
+        // Times relative to the first point keep the precision of the areas
+        long origin = times[0];
+        double every = (double) (count - 2) / (threshold - 2);
+        int kept = 0;
+        int a = 0;
+        outTimes[kept] = times[0];
+        outValues[kept++] = values[0];
+        for (int i = 0; i < threshold - 2; i++) {
+            // Average of the next bucket
+            int avgStart = (int) ((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) ((i + 2) * every) + 1, count);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += times[j] - origin;
+                avgY += values[j];
+            }
+            avgX /= (avgEnd - avgStart);
+            avgY /= (avgEnd - avgStart);
+
+            // The point of this bucket with the largest triangle
+            int rangeStart = (int) (i * every) + 1;
+            int rangeEnd = (int) ((i + 1) * every) + 1;
+            double ax = times[a] - origin;
+            double ay = values[a];
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((ax - avgX) * (values[j] - ay) - (ax - (times[j] - origin)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            outTimes[kept] = times[next];
+            outValues[kept++] = values[next];
+            a = next;
+        }
+        outTimes[kept] = times[count - 1];
+        outValues[kept++] = values[count - 1];
+        return kept;
+    }
+}
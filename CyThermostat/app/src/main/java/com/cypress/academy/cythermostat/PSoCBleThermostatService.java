@@ -43,11 +43,19 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Service for managing connection and data communication with the BLE thermostat
@@ -62,9 +70,27 @@ public class PSoCBleThermostatService extends Service {
     private static BluetoothAdapter mBluetoothAdapter;
     private static String mBluetoothDeviceAddress;
     private static BluetoothGatt mBluetoothGatt;
+    private static boolean mConnected;
+
+    // Times (in ms) when the current connection was started and when it was ready for use.
+    // These are used to report how much time a speculative connection saved.
+    private static long mConnectStartTime;
+    private static long mReadyTime;
+
+    // True once the GATT cache has been refreshed on this connection because the services
+    // found did not match the last connection
+    private static boolean mGattRefreshed;
+
+    // Services found on this connection, and whether the user picked its device. Only a
+    // device the user picked is remembered for the next launch, not one connected to
+    // speculatively while scanning.
+    private static volatile List<UUID> mLayout;
+    private static volatile boolean mAdopted;
 
     //  Queue for BLE events
-    //  This is needed so that rapid BLE events don't get dropped
+    //  This is needed so that rapid BLE events don't get dropped. It is used from the GATT
+    //  callback thread and the main thread, so every use is synchronized on it. The set
+    //  point writer is only called outside of that lock.
     private static final Queue<Object> BleQueue = new LinkedList<>();
 
     // UUID for the custom motor characteristics
@@ -80,13 +106,54 @@ public class PSoCBleThermostatService extends Service {
     private static BluetoothGattCharacteristic mMeasTempCharacteristic;
     private static BluetoothGattCharacteristic mSetTempCharacteristic;
 
-    // Temporary characteristic used in the queue
-    private static BluetoothGattCharacteristic mCharacteristic;
+    // Moves the set point to the target the user wants
+    private final SetPointWriter mSetPointWriter = new SetPointWriter(new SetPointWriter.Link() {
+        @Override
+        public void writeSetPoint(int value) {
+            mSetTempCharacteristic.setValue(value, BluetoothGattCharacteristic.FORMAT_SINT16, 0);
+            writeCharacteristic(mSetTempCharacteristic);
+        }
+
+        @Override
+        public void writeChange(int change) {
+            mTempChangeCharacteristic.setValue(change, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+            writeCharacteristic(mTempChangeCharacteristic);
+        }
+    });
+
+    // The set point is shown as soon as it is asked for and checked against the set point
+    // the thermostat reports. Times are in ms.
+    private static final long CONFIRM_TIMEOUT = 3000;
+    private static final long RECONCILE_PERIOD = 500;
+    private final SetPointReconciler mReconciler = new SetPointReconciler(CONFIRM_TIMEOUT);
+    private final Handler mHandler = new Handler();
+
+    /**
+     * A read in the BLE queue. Characteristics in the queue on their own are written.
+     */
+    private static class Read {
+        final BluetoothGattCharacteristic mCharacteristic;
+
+        Read(BluetoothGattCharacteristic characteristic) {
+            mCharacteristic = characteristic;
+        }
+    }
 
     // Variables for measured and set temperatures
     private static int measTemp;
     private static int setTemp;
 
+    // History of the readings. A reading is stored when it changes and at least once a
+    // minute while notifications keep coming. The queries keep rollups of the stores so
+    // that any range can be plotted quickly. Building the rollups reads the whole history,
+    // so the stores are opened and closed on a thread of their own, one at a time. Until
+    // a store is open its readings are not stored.
+    private static final String HISTORY_DIR = "history";
+    private static final long HISTORY_INTERVAL = 60000; // ms
+    private static final ExecutorService mHistoryExecutor = Executors.newSingleThreadExecutor();
+    private static volatile HistoryQuery mMeasTempHistory;
+    private static volatile HistoryQuery mSetTempHistory;
+
     // Actions used during broadcasts to the activity
     public static final String ACTION_CONNECTED =
             "com.cypress.academy.cythermostat.ACTION_GATT_CONNECTED";
@@ -104,6 +171,39 @@ public class PSoCBleThermostatService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        final File history = new File(getFilesDir(), HISTORY_DIR);
+        mHistoryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMeasTempHistory = openHistory(new File(history, "measTemp"));
+                mSetTempHistory = openHistory(new File(history, "setTemp"));
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHistoryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HistoryQuery measTemp = mMeasTempHistory;
+                HistoryQuery setTemp = mSetTempHistory;
+                mMeasTempHistory = null;
+                mSetTempHistory = null;
+                if (measTemp != null) {
+                    measTemp.getStore().close();
+                }
+                if (setTemp != null) {
+                    setTemp.getStore().close();
+                }
+            }
+        });
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -132,6 +232,7 @@ public class PSoCBleThermostatService extends Service {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnected = true;
                 broadcastUpdate(ACTION_CONNECTED);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
@@ -139,6 +240,9 @@ public class PSoCBleThermostatService extends Service {
                         mBluetoothGatt.discoverServices());
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mConnected = false;
+                mSetPointWriter.reset();
+                mReconciler.reset();
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(ACTION_DISCONNECTED);
             }
@@ -158,10 +262,34 @@ public class PSoCBleThermostatService extends Service {
                 // Get the characteristics for the thermostat service
                 BluetoothGattService gattService = mBluetoothGatt.getService(UUID.fromString(thermostatServiceUUID));
                 if (gattService == null) return; // return if the thermostat service is not supported
+
+                // A characteristic that was there the last time but is missing now usually
+                // means that Android's cache of the services is stale. Drop it and look again.
+                List<UUID> layout = new ArrayList<>();
+                for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
+                    layout.add(characteristic.getUuid());
+                }
+                LastDevice lastDevice = LastDevice.load(PSoCBleThermostatService.this);
+                if (lastDevice != null && !mGattRefreshed
+                        && lastDevice.getAddress().equals(mBluetoothDeviceAddress)
+                        && !lastDevice.matchesLayout(layout)) {
+                    Log.w(TAG, "Services differ from the last connection, discovering again");
+                    mGattRefreshed = true;
+                    if (refreshGattCache(gatt) && gatt.discoverServices()) {
+                        return;
+                    }
+                }
                 mTempChangeCharacteristic = gattService.getCharacteristic(UUID.fromString(tempChangeCharUUID));
                 mMeasTempCharacteristic = gattService.getCharacteristic(UUID.fromString(measTempCharUUID));
                 mSetTempCharacteristic = gattService.getCharacteristic(UUID.fromString(setTempCharUUID));
 
+                // Newer firmware lets the set point be written directly
+                mSetPointWriter.reset();
+                int writable = BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+                mSetPointWriter.setAbsolute(mSetTempCharacteristic != null
+                        && (mSetTempCharacteristic.getProperties() & writable) != 0);
+                Log.i(TAG, "Set point is " + (mSetPointWriter.isAbsolute() ? "written directly" : "stepped"));
+
                  // Set the CCCD to notify us for the two temperature readings
                 setCharacteristicNotification(mMeasTempCharacteristic, true);
                 setCharacteristicNotification(mSetTempCharacteristic, true);
@@ -170,6 +298,13 @@ public class PSoCBleThermostatService extends Service {
                 readCharacteristic(mSetTempCharacteristic);
                 readCharacteristic(mMeasTempCharacteristic);
 
+                mReadyTime = SystemClock.elapsedRealtime();
+                Log.i(TAG, "Ready for control " + (mReadyTime - mConnectStartTime) + " ms after connecting");
+
+                // Remember this device so the next launch can connect to it directly
+                mLayout = layout;
+                saveLastDevice();
+
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
@@ -177,23 +312,17 @@ public class PSoCBleThermostatService extends Service {
 
         /**
          * This handles the BLE Queue. If the queue is not empty, it starts the next event.
+         * The caller must hold the BleQueue lock.
          */
         private void handleBleQueue() {
             if(BleQueue.size() > 0) {
                 // Determine which type of event is next and fire it off
                 if (BleQueue.element() instanceof BluetoothGattDescriptor) {
                     mBluetoothGatt.writeDescriptor((BluetoothGattDescriptor) BleQueue.element());
+                } else if (BleQueue.element() instanceof Read) {
+                    mBluetoothGatt.readCharacteristic(((Read) BleQueue.element()).mCharacteristic);
                 } else if (BleQueue.element() instanceof BluetoothGattCharacteristic) {
-                    // Need to determine if this is a read or a write
-                    // For the temperature values, we will read the value
-                    // For the buttons, we will write the value
-                    mCharacteristic = (BluetoothGattCharacteristic) BleQueue.element();
-                    if((mCharacteristic.getUuid() ==  mMeasTempCharacteristic.getUuid()) ||
-                            (mCharacteristic.getUuid() ==  mSetTempCharacteristic.getUuid())) {
-                        mBluetoothGatt.readCharacteristic((BluetoothGattCharacteristic) BleQueue.element());
-                    } else {
-                        mBluetoothGatt.writeCharacteristic((BluetoothGattCharacteristic) BleQueue.element());
-                    }
+                    mBluetoothGatt.writeCharacteristic((BluetoothGattCharacteristic) BleQueue.element());
                 }
             }
         }
@@ -211,18 +340,24 @@ public class PSoCBleThermostatService extends Service {
             // Get the UUID of the characteristic that was read
             String uuid = characteristic.getUuid().toString();
 
-            // Pop the item that was written from the queue
-            BleQueue.remove();
-            // See if there are more items in the BLE queues
-            handleBleQueue();
+            synchronized (BleQueue) {
+                // Pop the item that was written from the queue
+                BleQueue.remove();
+                // See if there are more items in the BLE queues
+                handleBleQueue();
+            }
 
             // Update the appropriate variable with the new value.
             switch (uuid) {
                 case measTempCharUUID:
                     measTemp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16,0);
+                    record(mMeasTempHistory, measTemp);
                     break;
                 case setTempCharUUID:
                     setTemp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16,0);
+                    mSetPointWriter.onSetPoint(setTemp);
+                    mReconciler.onConfirmed(setTemp, SystemClock.elapsedRealtime());
+                    record(mSetTempHistory, setTemp);
                     break;
             }
             // Tell the activity that new temperature data is available
@@ -241,10 +376,16 @@ public class PSoCBleThermostatService extends Service {
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
-            // Pop the item that was written from the queue
-            BleQueue.remove();
-            // See if there are more items in the BLE queues
-            handleBleQueue();
+            synchronized (BleQueue) {
+                // Pop the item that was written from the queue
+                BleQueue.remove();
+                // See if there are more items in the BLE queues
+                handleBleQueue();
+            }
+
+            if (characteristic == mSetTempCharacteristic || characteristic == mTempChangeCharacteristic) {
+                mSetPointWriter.onWriteDone(status == BluetoothGatt.GATT_SUCCESS);
+            }
         }
 
         /**
@@ -258,10 +399,12 @@ public class PSoCBleThermostatService extends Service {
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
                                       int status) {
-            // Pop the item that was written from the queue
-            BleQueue.remove();
-            // See if there are more items in the BLE queues
-            handleBleQueue();
+            synchronized (BleQueue) {
+                // Pop the item that was written from the queue
+                BleQueue.remove();
+                // See if there are more items in the BLE queues
+                handleBleQueue();
+            }
         }
 
         /**
@@ -281,9 +424,13 @@ public class PSoCBleThermostatService extends Service {
             switch (uuid) {
                 case measTempCharUUID:
                     measTemp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16,0);
+                    record(mMeasTempHistory, measTemp);
                     break;
                 case setTempCharUUID:
                     setTemp = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT16,0);
+                    mSetPointWriter.onSetPoint(setTemp);
+                    mReconciler.onConfirmed(setTemp, SystemClock.elapsedRealtime());
+                    record(mSetTempHistory, setTemp);
                     break;
             }
             // Tell the activity that new temperature data is available
@@ -291,6 +438,68 @@ public class PSoCBleThermostatService extends Service {
         }
     };
 
+    /**
+     * Open the store for the history of one reading and build its rollups. This reads the
+     * whole store, so it is not done on the main thread.
+     *
+     * @param directory directory of the store
+     * @return the query over the store, or null if it cannot be opened
+     */
+    private static HistoryQuery openHistory(File directory) {
+        try {
+            long start = SystemClock.elapsedRealtime();
+            TimeSeriesStore store = new TimeSeriesStore(directory);
+            HistoryQuery query = new HistoryQuery(store);
+            Log.i(TAG, "Opened " + directory + " with " + store.getCount() + " readings in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+            if (store.getRecovered() > 0) {
+                Log.w(TAG, "Cleared a partly written reading from " + directory);
+            }
+            return query;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + directory, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a reading if it has changed or the last one stored is a minute old
+     *
+     * @param history the history of the reading, or null if there is none
+     * @param value the reading
+     */
+    private static void record(HistoryQuery history, int value) {
+        if (history == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        TimeSeriesStore store = history.getStore();
+        if (store.getCount() > 0 && value == store.getLastValue() && now - store.getLastTime() < HISTORY_INTERVAL) {
+            return;
+        }
+        try {
+            history.append(now, value);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot store reading", e);
+        }
+    }
+
+    /**
+     * Drop Android's cached copy of the services of the connected device so that the next
+     * discovery reads them from the device. There is no public API for this.
+     *
+     * @param gatt the connection
+     * @return true if the cache was dropped
+     */
+    private static boolean refreshGattCache(BluetoothGatt gatt) {
+        try {
+            return (Boolean) gatt.getClass().getMethod("refresh").invoke(gatt);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot refresh the GATT cache", e);
+            return false;
+        }
+    }
+
     /**
      * Sends a broadcast to the listener in the main activity.
      *
@@ -345,6 +554,11 @@ public class PSoCBleThermostatService extends Service {
         // Previously connected device.  Try to reconnect.
         if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
                 && mBluetoothGatt != null) {
+            if (mConnected) {
+                // This happens when the connection was already made while scanning
+                Log.i(TAG, "Already connected.");
+                return true;
+            }
             Log.i(TAG, "Trying to use an existing mBluetoothGatt for connection.");
             return mBluetoothGatt.connect();
         }
@@ -356,6 +570,11 @@ public class PSoCBleThermostatService extends Service {
         }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
+        mConnectStartTime = SystemClock.elapsedRealtime();
+        mReadyTime = 0;
+        mGattRefreshed = false;
+        mLayout = null;
+        mAdopted = false;
         mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
         Log.i(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
@@ -382,27 +601,78 @@ public class PSoCBleThermostatService extends Service {
      * released properly.
      */
     public void close() {
+        mHandler.removeCallbacks(mReconcile);
         if (mBluetoothGatt == null) {
             return;
         }
         mBluetoothGatt.close();
         mBluetoothGatt = null;
+        mConnected = false;
+        mLayout = null;
+        mAdopted = false;
     }
 
     /**
-     * Request a write on a given {@code BluetoothGattCharacteristic}.
+     * Mark the connection as the one to the device the user picked, for example when the
+     * control activity takes over a connection made while scanning. The device is then
+     * remembered for the next launch once its services have been found.
+     */
+    public void adopt() {
+        mAdopted = true;
+        saveLastDevice();
+    }
+
+    /**
+     * Remember the device of this connection if the user picked it and its services are known
+     */
+    private void saveLastDevice() {
+        List<UUID> layout = mLayout;
+        if (mAdopted && layout != null && mBluetoothDeviceAddress != null) {
+            LastDevice.save(this, mBluetoothDeviceAddress, UUID.fromString(thermostatServiceUUID), layout);
+        }
+    }
+
+    /**
+     * @return true if the device is connected and its services have been discovered
+     */
+    public boolean isReady() {
+        return mConnected && mReadyTime != 0;
+    }
+
+    /**
+     * Get how much of the connection setup had already been done when the user selected
+     * the device. This is the time saved by connecting speculatively while scanning.
      *
-     * @param characteristic The characteristic to write.
+     * @param selectTime time of the selection from {@code SystemClock.elapsedRealtime()}
+     * @return time saved in ms
+     */
+    public long getConnectTimeSaved(long selectTime) {
+        if (mBluetoothGatt == null || mConnectStartTime == 0) {
+            return 0;
+        }
+        long doneTime = selectTime;
+        if (mReadyTime != 0 && mReadyTime < selectTime) {
+            doneTime = mReadyTime;
+        }
+        return Math.max(0, doneTime - mConnectStartTime);
+    }
+
+    /**
+     * Request a read on a given {@code BluetoothGattCharacteristic}.
+     *
+     * @param characteristic The characteristic to read.
      */
     private void readCharacteristic(BluetoothGattCharacteristic characteristic) {
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        BleQueue.add(characteristic);
-        if (BleQueue.size() == 1) {
-            mBluetoothGatt.readCharacteristic(characteristic);
-            Log.i(TAG, "Reading Characteristic");
+        synchronized (BleQueue) {
+            BleQueue.add(new Read(characteristic));
+            if (BleQueue.size() == 1) {
+                mBluetoothGatt.readCharacteristic(characteristic);
+                Log.i(TAG, "Reading Characteristic");
+            }
         }
     }
 
@@ -416,10 +686,12 @@ public class PSoCBleThermostatService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        BleQueue.add(characteristic);
-        if (BleQueue.size() == 1) {
-            mBluetoothGatt.writeCharacteristic(characteristic);
-            Log.i(TAG, "Writing Characteristic");
+        synchronized (BleQueue) {
+            BleQueue.add(characteristic);
+            if (BleQueue.size() == 1) {
+                mBluetoothGatt.writeCharacteristic(characteristic);
+                Log.i(TAG, "Writing Characteristic");
+            }
         }
     }
 
@@ -447,38 +719,107 @@ public class PSoCBleThermostatService extends Service {
         } else {
             descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
         }
-        // Put the descriptor into the write queue
-        BleQueue.add(descriptor);
-        // If there is only 1 item in the queue, then write it. If more than one, then the callback
-        // will handle it
-        if (BleQueue.size() == 1) {
-            mBluetoothGatt.writeDescriptor(descriptor);
-            Log.i(TAG, "Writing Notification");
+        synchronized (BleQueue) {
+            // Put the descriptor into the write queue
+            BleQueue.add(descriptor);
+            // If there is only 1 item in the queue, then write it. If more than one, then the callback
+            // will handle it
+            if (BleQueue.size() == 1) {
+                mBluetoothGatt.writeDescriptor(descriptor);
+                Log.i(TAG, "Writing Notification");
+            }
         }
     }
 
     /**
-     * Change desired temperature
+     * Change desired temperature by one degree. UP and DOWN move the target of
+     * setTargetTemp. The button is let go of by the service so STOP does nothing. Nothing
+     * is changed until the set temperature of the thermostat has been read.
      *
      * @param direction to write (UP, DOWN, or STOP)
      */
     public void changeSetTemp(Dir direction) {
-        if (mTempChangeCharacteristic != null) {
-            /* Increase set temperature */
-            if (direction == Dir.UP) {
-                mTempChangeCharacteristic.setValue(1, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            }
-            /* Decrease set temperature */
-            else if (direction == Dir.DOWN) {
-                mTempChangeCharacteristic.setValue(2, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+        if (direction == Dir.UP) {
+            setTargetTemp(getTargetTemp() + 1);
+        } else if (direction == Dir.DOWN) {
+            setTargetTemp(getTargetTemp() - 1);
+        }
+    }
+
+    /**
+     * Move the set temperature to a target. The target is written directly if the firmware
+     * allows it, otherwise the set temperature is stepped to it one degree at a time. A new
+     * target replaces one that has not been reached yet. The target is refused until the
+     * set temperature of the thermostat has been read, since the steps are worked out from
+     * it.
+     *
+     * @param target the set temperature wanted
+     */
+    public void setTargetTemp(int target) {
+        if ((mSetPointWriter.isAbsolute() ? mSetTempCharacteristic : mTempChangeCharacteristic) == null) {
+            Log.w(TAG, "Not connected to a thermostat");
+            return;
+        }
+        if (!mReconciler.hasConfirmed()) {
+            Log.w(TAG, "Set temperature not read yet");
+            return;
+        }
+        boolean checking = mReconciler.isPending();
+        mReconciler.request(target, SystemClock.elapsedRealtime());
+        mSetPointWriter.setTarget(target);
+        if (!checking && mReconciler.isPending()) {
+            mHandler.postDelayed(mReconcile, RECONCILE_PERIOD);
+        }
+    }
+
+    /**
+     * Get the set temperature to show. This is the last target asked for until the
+     * thermostat has had time to confirm it, then what the thermostat reports.
+     *
+     * @return the set temperature to show
+     */
+    public int getTargetTemp() {
+        return mReconciler.getDisplayed();
+    }
+
+    /**
+     * @return the statistics of how long set temperature changes take to be confirmed
+     */
+    public SetPointReconciler getSetPointReconciler() {
+        return mReconciler;
+    }
+
+    /**
+     * Checks that the set temperature asked for is confirmed by the thermostat. If it is
+     * not it is sent again, then the display goes back to what the thermostat reports.
+     */
+    private final Runnable mReconcile = new Runnable() {
+        @Override
+        public void run() {
+            switch (mReconciler.check(SystemClock.elapsedRealtime())) {
+                case SetPointReconciler.RESEND:
+                    Log.w(TAG, "Set temperature " + mReconciler.getDisplayed() + " not confirmed, sending again");
+                    // Start again from what the thermostat has
+                    mSetPointWriter.onSetPoint(mReconciler.getConfirmed());
+                    mSetPointWriter.setTarget(mReconciler.getDisplayed());
+                    break;
+                case SetPointReconciler.REVERT:
+                    Log.w(TAG, "Set temperature not confirmed, showing " + mReconciler.getDisplayed());
+                    mSetPointWriter.clearTarget();
+                    broadcastUpdate(ACTION_DATA_AVAILABLE);
+                    break;
             }
-            /* Reset the characteristic for the next button press */
-            else if (direction == Dir.STOP) {
-                mTempChangeCharacteristic.setValue(0, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+            if (mReconciler.isPending()) {
+                mHandler.postDelayed(this, RECONCILE_PERIOD);
             }
-            writeCharacteristic(mTempChangeCharacteristic);
-
         }
+    };
+
+    /**
+     * @return the number of writes sent to change the set temperature
+     */
+    public long getSetTempWrites() {
+        return mSetPointWriter.getWrites();
     }
 
     /**
@@ -499,6 +840,22 @@ public class PSoCBleThermostatService extends Service {
         return setTemp;
     }
 
+    /**
+     * @return the history of the measured temperature, or null if it is not open yet or
+     * could not be opened
+     */
+    public static HistoryQuery getMeasTempHistory() {
+        return mMeasTempHistory;
+    }
+
+    /**
+     * @return the history of the set temperature, or null if it is not open yet or could
+     * not be opened
+     */
+    public static HistoryQuery getSetTempHistory() {
+        return mSetTempHistory;
+    }
+
     /**
      * This function returns the UUID of the motor service
      *
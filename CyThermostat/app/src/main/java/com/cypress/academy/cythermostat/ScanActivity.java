@@ -42,18 +42,25 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -74,6 +81,12 @@ public class ScanActivity extends AppCompatActivity {
     // This  tag that allows us to pass the address of the selected
     // BLE device to the control activity
     public static final String EXTRAS_BLE_ADDRESS = "BLE_ADDRESS";
+    // This tag tells the control activity that it was launched directly with the last
+    // device, so it has to come back here if the device cannot be reached
+    public static final String EXTRAS_FAST_PATH = "FAST_PATH";
+
+    // Time the app was launched. Used to measure the time to the first telemetry.
+    private static long mLaunchTime;
 
     // BLE related objects
     private static BluetoothAdapter mBluetoothAdapter;
@@ -84,18 +97,51 @@ public class ScanActivity extends AppCompatActivity {
     private static final int REQUEST_ENABLE_BLE = 1;
     // Scan for 10 seconds.
     private static final long SCAN_TIMEOUT = 10000;
+    // How often the list is refreshed to mark stale devices and remove expired ones
+    private static final long LIST_REFRESH_INTERVAL = 1000;
+    // How often the scan policy is checked for a change of scan mode
+    private static final long SCAN_POLICY_INTERVAL = 1000;
+
+    // Decides the scan mode and keeps power counters for the current scan
+    private static ScanPolicy mScanPolicy;
+    private static ScanPolicy.Mode mCurrentScanMode;
 
     //This is required for Android 6.0 (Marshmallow)
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 1;
 
+    // Preferences used to remember the scan options from the menu
+    private static final String PREFS_NAME = "ScanPrefs";
+    private static final String PREF_AUTO_SELECT = "AutoSelect";
+    private static final String PREF_SPECULATIVE = "Speculative";
+    private static final String PREF_ADAPTIVE_SCAN = "AdaptiveScan";
+    private static final String PREF_REOPEN_LAST = "ReopenLast";
+
+    // If true, connect to the nearest device automatically once its RSSI has settled
+    private static boolean mAutoSelect;
+
+    // If true, connect to the most likely device while still scanning so that the
+    // connection is already up when the user picks it
+    private static boolean mSpeculative;
+    private static PSoCBleThermostatService mPSoCBleThermostatService;
+    private static String mSpeculativeAddress;
+
+    // If true, step the scan mode down from low latency once the device list is stable
+    private static boolean mAdaptiveScan;
+
+    // If true, go straight to the last device when the app is launched
+    private static boolean mReopenLast;
+    private static boolean mFastPathPending;
+
      // This allows rescanning when we swipe down from the top of the screen
     private static SwipeRefreshLayout mSwipeRefreshLayout;
 
     // This is the list view in the layout that holds the items
     ListView BleDeviceList;
 
-    // These lists hold the BLE devices found during scanning and their names
-    List<BluetoothDevice> mBluetoothDevice;
+    // The registry holds the BLE devices found during scanning and their filtered RSSI.
+    // It is kept for the whole process so that the list can be shown right away when we
+    // come back to this activity. The list holds the text shown for each device.
+    private static final ScanRegistry mScanRegistry = new ScanRegistry();
     List<String> mBleName;
 
      // The array adapter will be used to display the list of devices found during scanning
@@ -107,12 +153,25 @@ public class ScanActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_scan);
 
+        if (mLaunchTime == 0) {
+            mLaunchTime = SystemClock.elapsedRealtime();
+        }
+
         // This is the list view in the layout that holds the items
         BleDeviceList = (ListView) findViewById(R.id.BlelistItems);
 
         // This is used once scanning is started in a new thread
         mHandler = new Handler();
 
+        // Restore the scan options
+        mAutoSelect = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_AUTO_SELECT, false);
+        mSpeculative = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_SPECULATIVE, false);
+        mAdaptiveScan = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_ADAPTIVE_SCAN, true);
+        mReopenLast = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_REOPEN_LAST, false);
+
+        // On a fresh launch, go straight to the last device instead of scanning (see onResume)
+        mFastPathPending = (savedInstanceState == null) && mReopenLast;
+
         // Check to see if the device supports BLE. If not, just exit right away.
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Toast.makeText(this, R.string.no_ble, Toast.LENGTH_SHORT).show();
@@ -172,6 +231,52 @@ public class ScanActivity extends AppCompatActivity {
         }
     } //End of section for Android 6.0 (Marshmallow)
 
+    /**
+     * This manages the lifecycle of the BLE service used for speculative connections.
+     */
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            Log.i(TAG, "onServiceConnected");
+            mPSoCBleThermostatService = ((PSoCBleThermostatService.LocalBinder) service).getService();
+            if (!mPSoCBleThermostatService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                mPSoCBleThermostatService = null;
+                return;
+            }
+            // Drop any connection left over from the control activity so we start clean
+            mPSoCBleThermostatService.disconnect();
+            mPSoCBleThermostatService.close();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mPSoCBleThermostatService = null;
+        }
+    };
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // The service is bound from onStart to onStop rather than onResume to onPause.
+        // This keeps it alive until the control activity has bound to it and taken over
+        // the speculative connection.
+        if (mSpeculative) {
+            bindService(new Intent(this, PSoCBleThermostatService.class), mServiceConnection, BIND_AUTO_CREATE);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        cancelSpeculativeConnect();
+        if (mSpeculative) {
+            unbindService(mServiceConnection);
+            mPSoCBleThermostatService = null;
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -184,11 +289,12 @@ public class ScanActivity extends AppCompatActivity {
         }
 
         // Create arrays to hold BLE info found during scanning
-        mBluetoothDevice = new ArrayList<>();
         mBleName = new ArrayList<>();
         // Create an array adapter and associate it with the list in the layout that displays the values
         mBleArrayAdapter = new ArrayAdapter<>(this, R.layout.ble_device_list, R.id.ble_name, mBleName);
         BleDeviceList.setAdapter(mBleArrayAdapter);
+        // Show the devices found during earlier scans and keep their state up to date
+        mListRefresher.run();
         // Setup the SwipeRefreshLayout and add a listener to refresh when the user
         // swipes down from the top of the screen.
         mSwipeRefreshLayout = (SwipeRefreshLayout) findViewById(R.id.swipeRefreshId);
@@ -198,10 +304,12 @@ public class ScanActivity extends AppCompatActivity {
             @Override
             public void onRefresh() {
                 if (!mScanning) {
-                    mBluetoothDevice.clear(); // Remove all existing devices
-                    mBleArrayAdapter.clear();
+                    // Devices that are no longer around will go stale and expire
                     scanLeDevice(true); // Start a scan if not already running
                     Log.i(TAG, "Rescanning");
+                } else {
+                    // Go back to the fastest scan mode if the scan has already stepped down
+                    setScanMode(mScanPolicy.boost(SystemClock.elapsedRealtime()));
                 }
                 mSwipeRefreshLayout.setRefreshing(false);
             }
@@ -213,18 +321,40 @@ public class ScanActivity extends AppCompatActivity {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 Log.i(TAG, "Item Selected");
-                final Intent intent = new Intent(ScanActivity.this, ControlActivity.class);
-                // Send the address of the device that was selected so that the control activity
-                // knows which device to connect with
-                intent.putExtra(EXTRAS_BLE_ADDRESS, mBluetoothDevice.get(position).getAddress());
-                scanLeDevice(false); // Stop scanning
-                startActivity(intent);
+                startControlActivity(mScanRegistry.get(position).getAddress());
             }
         });
 
+        LastDevice lastDevice = LastDevice.load(this);
+        if (mFastPathPending && lastDevice != null && mBluetoothAdapter.isEnabled()
+                && lastDevice.getProfile().equals(PSoCBleThermostatService.getThermostatServiceUUID())) {
+            // Connect to the last device directly. If that fails, the control activity
+            // finishes and we come back here and scan as usual.
+            mFastPathPending = false;
+            Log.i(TAG, "Reopening last device " + lastDevice.getAddress());
+            final Intent intent = new Intent(ScanActivity.this, ControlActivity.class);
+            intent.putExtra(EXTRAS_BLE_ADDRESS, lastDevice.getAddress());
+            intent.putExtra(EXTRAS_FAST_PATH, true);
+            startActivity(intent);
+            return;
+        }
+        mFastPathPending = false;
+
         scanLeDevice(true); // Start scanning automatically when we first start up
     }
 
+    /**
+     * Get the time the app was launched. This can only be read once so that the time
+     * to the first telemetry is only measured after a launch.
+     *
+     * @return launch time from {@code SystemClock.elapsedRealtime()} or 0 if already read
+     */
+    public static long takeLaunchTime() {
+        long launchTime = mLaunchTime;
+        mLaunchTime = -1; // Do not set it again when the activity is recreated
+        return Math.max(launchTime, 0);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         // User chose not to enable Bluetooth so we will exit.
@@ -239,11 +369,167 @@ public class ScanActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
-        mBluetoothDevice.clear();
-        mBleArrayAdapter.clear();
+        mHandler.removeCallbacks(mListRefresher);
         mSwipeRefreshLayout.setRefreshing(false);
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_scan, menu);
+        menu.findItem(R.id.auto_select).setChecked(mAutoSelect);
+        menu.findItem(R.id.speculative).setChecked(mSpeculative);
+        menu.findItem(R.id.adaptive_scan).setChecked(mAdaptiveScan);
+        menu.findItem(R.id.reopen_last).setChecked(mReopenLast);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.auto_select:
+                mAutoSelect = !item.isChecked();
+                item.setChecked(mAutoSelect);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_AUTO_SELECT, mAutoSelect).apply();
+                return true;
+            case R.id.speculative:
+                mSpeculative = !item.isChecked();
+                item.setChecked(mSpeculative);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_SPECULATIVE, mSpeculative).apply();
+                if (mSpeculative) {
+                    bindService(new Intent(this, PSoCBleThermostatService.class), mServiceConnection, BIND_AUTO_CREATE);
+                } else {
+                    cancelSpeculativeConnect();
+                    unbindService(mServiceConnection);
+                    mPSoCBleThermostatService = null;
+                }
+                return true;
+            case R.id.adaptive_scan:
+                mAdaptiveScan = !item.isChecked();
+                item.setChecked(mAdaptiveScan);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_ADAPTIVE_SCAN, mAdaptiveScan).apply();
+                return true;
+            case R.id.reopen_last:
+                mReopenLast = !item.isChecked();
+                item.setChecked(mReopenLast);
+                getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                        .putBoolean(PREF_REOPEN_LAST, mReopenLast).apply();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Stop scanning and launch the control activity for the selected device
+     *
+     * @param address Bluetooth address of the device to control
+     */
+    private void startControlActivity(String address) {
+        if (address.equals(mSpeculativeAddress)) {
+            Log.i(TAG, "Using speculative connection, saved "
+                    + mPSoCBleThermostatService.getConnectTimeSaved(SystemClock.elapsedRealtime()) + " ms");
+            mSpeculativeAddress = null; // The control activity takes over the connection
+        } else {
+            cancelSpeculativeConnect();
+        }
+        final Intent intent = new Intent(ScanActivity.this, ControlActivity.class);
+        // Send the address of the device that was selected so that the control activity
+        // knows which device to connect with
+        intent.putExtra(EXTRAS_BLE_ADDRESS, address);
+        scanLeDevice(false); // Stop scanning
+        startActivity(intent);
+    }
+
+    /**
+     * Disconnect from the device that was connected speculatively, if any
+     */
+    private void cancelSpeculativeConnect() {
+        if (mSpeculativeAddress != null && mPSoCBleThermostatService != null) {
+            Log.i(TAG, "Cancelling speculative connection to " + mSpeculativeAddress);
+            mPSoCBleThermostatService.disconnect();
+            mPSoCBleThermostatService.close();
+        }
+        mSpeculativeAddress = null;
+    }
+
+    /**
+     * Get the text shown in the list for a device
+     *
+     * @param device the device to show
+     * @param now current time
+     * @return text for the list
+     */
+    private String getDeviceText(ScanRegistry.Device device, long now) {
+        // Devices that do not advertise a name are shown by address
+        String name = device.getName() != null ? device.getName() : device.getAddress();
+        if (device.isStale(now)) {
+            return String.format("%s  (not seen for %d s)", name,
+                    (now - device.getLastSeen()) / 1000);
+        }
+        return String.format("%s  (%d dBm)", name, Math.round(device.getRssi()));
+    }
+
+    /**
+     * This periodically rebuilds the list from the registry so that devices which are no
+     * longer advertising are marked as stale and eventually removed.
+     */
+    private final Runnable mListRefresher = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            mScanRegistry.evict(now);
+            mBleName.clear();
+            for (int i = 0; i < mScanRegistry.size(); i++) {
+                mBleName.add(getDeviceText(mScanRegistry.get(i), now));
+            }
+            mBleArrayAdapter.notifyDataSetChanged();
+            mHandler.postDelayed(this, LIST_REFRESH_INTERVAL);
+        }
+    };
+
+    /**
+     * Add an advertisement to the registry and update the list on the screen.
+     * If speculative connection is on, the most likely device is connected in the background.
+     * If auto selection is on, the nearest device is launched as soon as it is known.
+     *
+     * @param device the device that was found
+     * @param rssi the RSSI of the advertisement
+     */
+    private void addScanResult(BluetoothDevice device, int rssi) {
+        long now = SystemClock.elapsedRealtime();
+        int position = mScanRegistry.update(device.getAddress(), device.getName(), rssi, now);
+        if (mScanning) {
+            setScanMode(mScanPolicy.onResult(device.getAddress(), now));
+        }
+        String text = getDeviceText(mScanRegistry.get(position), now);
+        if (position == mBleName.size()) { // New device
+            mBleName.add(text);
+        } else {
+            mBleName.set(position, text);
+        }
+        mBleArrayAdapter.notifyDataSetChanged(); // Update the list on the screen
+
+        if (mSpeculative && mScanning && mPSoCBleThermostatService != null) {
+            ScanRegistry.Device candidate = mScanRegistry.getCandidate(mSpeculativeAddress, now);
+            if (candidate != null && !candidate.getAddress().equals(mSpeculativeAddress)) {
+                cancelSpeculativeConnect();
+                Log.i(TAG, "Speculatively connecting to " + candidate.getAddress());
+                mSpeculativeAddress = candidate.getAddress();
+                mPSoCBleThermostatService.connect(mSpeculativeAddress);
+            }
+        }
+
+        if (mAutoSelect && mScanning) {
+            ScanRegistry.Device nearest = mScanRegistry.getNearest(now);
+            if (nearest != null) {
+                Log.i(TAG, "Auto selecting " + nearest.getAddress() + " at " + Math.round(nearest.getRssi()) + " dBm");
+                startControlActivity(nearest.getAddress());
+            }
+        }
+    }
+
     /**
      * Start or stop BLE scanning
      *
@@ -263,30 +549,33 @@ public class ScanActivity extends AppCompatActivity {
                         } else {
                             mLEScanner.stopScan(mScanCallback);
                         }
+                        mHandler.removeCallbacks(mScanPolicyUpdater);
+                        mScanPolicy.stop(SystemClock.elapsedRealtime());
+                        Log.i(TAG, mScanPolicy.toString());
                         invalidateOptionsMenu();
                     }
                 }
             }, SCAN_TIMEOUT);
 
             mScanning = true;
-            UUID[] thermostatServiceArray = {PSoCBleThermostatService.getThermostatServiceUUID()};
+            // The policy is kept from scan to scan so that it can count the scan starts.
+            // Before LOLLIPOP there is no scan mode to change.
+            boolean adaptive = mAdaptiveScan && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            if (mScanPolicy == null) {
+                mScanPolicy = new ScanPolicy(adaptive);
+            } else {
+                mScanPolicy.setAdaptive(adaptive);
+            }
+            ScanPolicy.Mode mode = mScanPolicy.start(SystemClock.elapsedRealtime());
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                UUID[] thermostatServiceArray = {PSoCBleThermostatService.getThermostatServiceUUID()};
                 //noinspection deprecation
                 mBluetoothAdapter.startLeScan(thermostatServiceArray, mLeScanCallback);
             } else { // New BLE scanning introduced in LOLLIPOP
-                ScanSettings settings;
-                List<ScanFilter> filters;
                 mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
-                settings = new ScanSettings.Builder()
-                        .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                        .build();
-                filters = new ArrayList<>();
-                // We will scan just for the Thermostat's UUID
-                ParcelUuid PUuid = new ParcelUuid(PSoCBleThermostatService.getThermostatServiceUUID());
-                ScanFilter filter = new ScanFilter.Builder().setServiceUuid(PUuid).build();
-                filters.add(filter);
-                mLEScanner.startScan(filters, settings, mScanCallback);
+                startLeScanner(mode);
             }
+            mHandler.postDelayed(mScanPolicyUpdater, SCAN_POLICY_INTERVAL);
         } else { // enable set to stop scanning
             if(mScanning) {
                 mScanning = false;
@@ -296,26 +585,85 @@ public class ScanActivity extends AppCompatActivity {
                 } else {
                     mLEScanner.stopScan(mScanCallback);
                 }
+                mHandler.removeCallbacks(mScanPolicyUpdater);
+                mScanPolicy.stop(SystemClock.elapsedRealtime());
+                Log.i(TAG, mScanPolicy.toString());
             }
         }
         invalidateOptionsMenu();
     }
 
+    /**
+     * Start the LOLLIPOP and later BLE scanner in the given scan mode
+     *
+     * @param mode the scan mode to use
+     */
+    private void startLeScanner(ScanPolicy.Mode mode) {
+        mCurrentScanMode = mode;
+        int scanMode;
+        switch (mode) {
+            case BALANCED:
+                scanMode = ScanSettings.SCAN_MODE_BALANCED;
+                break;
+            case LOW_POWER:
+                scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+                break;
+            default:
+                scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+                break;
+        }
+        ScanSettings settings;
+        List<ScanFilter> filters;
+        settings = new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .build();
+        filters = new ArrayList<>();
+        // We will scan just for the Thermostat's UUID
+        ParcelUuid PUuid = new ParcelUuid(PSoCBleThermostatService.getThermostatServiceUUID());
+        ScanFilter filter = new ScanFilter.Builder().setServiceUuid(PUuid).build();
+        filters.add(filter);
+        mLEScanner.startScan(filters, settings, mScanCallback);
+    }
+
+    /**
+     * Change the scan mode of a running scan. The LOLLIPOP scanner has to be restarted
+     * with new settings for this. Older versions of Android do not have scan modes.
+     *
+     * @param mode the new scan mode
+     */
+    private void setScanMode(ScanPolicy.Mode mode) {
+        if (mode == mCurrentScanMode || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        Log.i(TAG, "Changing scan mode to " + mode);
+        mLEScanner.stopScan(mScanCallback);
+        startLeScanner(mode);
+    }
+
+    /**
+     * This periodically lets the scan policy step the scan mode down while scanning
+     */
+    private final Runnable mScanPolicyUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanning) {
+                setScanMode(mScanPolicy.update(SystemClock.elapsedRealtime()));
+                mHandler.postDelayed(this, SCAN_POLICY_INTERVAL);
+            }
+        }
+    };
+
     /**
      * This is the callback for BLE scanning on versions prior to LOLLIPOP
-     * It is called each time a device is found so we need to add it to the list
+     * It is called for each advertisement so we need to add or update the device in the list
      */
     private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+        public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    if(!mBluetoothDevice.contains(device)) { // only add new devices
-                        mBluetoothDevice.add(device);
-                        mBleName.add(device.getName());
-                        mBleArrayAdapter.notifyDataSetChanged(); // Update the list on the screen
-                    }
+                    addScanResult(device, rssi);
                 }
             });
         }
@@ -323,17 +671,12 @@ public class ScanActivity extends AppCompatActivity {
 
     /**
      * This is the callback for BLE scanning for LOLLIPOP and later
-     * It is called each time a device is found so we need to add it to the list
+     * It is called for each advertisement so we need to add or update the device in the list
      */
     private final ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            if(!mBluetoothDevice.contains(result.getDevice())) { // only add new devices
-                mBluetoothDevice.add(result.getDevice());
-                mBleName.add(result.getDevice().getName());
-                mBleArrayAdapter.notifyDataSetChanged(); // Update the list on the screen
-            }
-
+            addScanResult(result.getDevice(), result.getRssi());
         }
     };
 }
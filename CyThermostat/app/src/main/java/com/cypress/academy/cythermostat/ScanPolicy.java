@@ -0,0 +1,285 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which scan mode to use while scanning.
+ *
+ * The low latency scan mode keeps the radio listening all the time, which is the fastest
+ * way to find devices but also uses the most power. An adaptive policy starts out in low
+ * latency mode and then steps down to balanced and low power mode once no new devices
+ * have shown up for a while. A new device steps the mode back up one level, and a refresh
+ * by the user goes straight back to low latency. A fixed policy stays in low latency mode.
+ * Android before LOLLIPOP has no scan modes, so scans there should use the fixed policy.
+ *
+ * Android stops delivering results to an app that starts scanning more than 5 times in
+ * 30 s, without any error. Every mode change is a restart, so the policy counts the scan
+ * starts over the last 30 s, including the ones for new scans, and holds back a mode
+ * change that would go over the limit until {@link #update} finds room for it. The same
+ * policy should therefore be used for all scans.
+ *
+ * The policy also keeps counters (results delivered, scan restarts, time spent in each
+ * mode and the estimated radio on time) so that the two policies can be compared.
+ * All times are in ms and are passed in by the caller.
+ */
+public class ScanPolicy {
+
+    public enum Mode { LOW_LATENCY, BALANCED, LOW_POWER }
+
+    // Fraction of time the radio listens in each mode (scan window / scan interval).
+    // These are the values used by the Android Bluetooth stack.
+    private static final double[] DUTY_CYCLE = { 4096.0 / 4096.0, 1024.0 / 4096.0, 512.0 / 5120.0 };
+
+    // Minimum time to stay in a mode before stepping down
+    private static final long MIN_MODE_TIME = 3000;
+    // Time without any new device after which the candidate set is considered stable
+    private static final long STABLE_TIME = 2000;
+
+    // Most scan starts Android allows in the window
+    private static final int MAX_STARTS = 5;
+    private static final long START_WINDOW = 30000;
+
+    private boolean mAdaptive;
+    private final Set<String> mSeen = new HashSet<>();
+    private Mode mMode;
+    private long mModeStartTime;
+    private long mLastNewDeviceTime;
+    private long mStartTime;
+    private long mStopTime;
+    // Mode waiting for room to restart the scan, or null
+    private Mode mPending;
+    // Times of the latest scan starts, as a ring
+    private final long[] mStarts = new long[MAX_STARTS];
+    private int mStartCount;
+
+    // Counters used to compare policies
+    private int mResults;
+    private int mModeChanges;
+    private int mDeferred;
+    private final long[] mModeTime = new long[Mode.values().length];
+
+    /**
+     * @param adaptive true for the adaptive policy, false to always use low latency mode
+     */
+    public ScanPolicy(boolean adaptive) {
+        mAdaptive = adaptive;
+    }
+
+    /**
+     * Change the policy used by the next scan
+     *
+     * @param adaptive true for the adaptive policy, false to always use low latency mode
+     */
+    public void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+    }
+
+    /**
+     * Start a new scan. This resets all counters but not the count of scan starts.
+     *
+     * @param now current time
+     * @return the mode to start scanning with
+     */
+    public Mode start(long now) {
+        mSeen.clear();
+        mResults = 0;
+        mModeChanges = 0;
+        mDeferred = 0;
+        mPending = null;
+        for (int i = 0; i < mModeTime.length; i++) {
+            mModeTime[i] = 0;
+        }
+        mStartTime = now;
+        mStopTime = 0;
+        mLastNewDeviceTime = now;
+        mMode = Mode.LOW_LATENCY;
+        mModeStartTime = now;
+        countStart(now);
+        return mMode;
+    }
+
+    /**
+     * Stop the scan and close out the counters
+     *
+     * @param now current time
+     */
+    public void stop(long now) {
+        mModeTime[mMode.ordinal()] += now - mModeStartTime;
+        mModeStartTime = now;
+        mStopTime = now;
+    }
+
+    /**
+     * Go back to low latency mode, for example when the user asks for a refresh
+     *
+     * @param now current time
+     * @return the new mode
+     */
+    public Mode boost(long now) {
+        mLastNewDeviceTime = now;
+        setMode(Mode.LOW_LATENCY, now);
+        return mMode;
+    }
+
+    /**
+     * Count a scan result. A device that was not seen before during this scan steps
+     * the mode up by one level.
+     *
+     * @param address address of the device that was found
+     * @param now current time
+     * @return the mode to scan with from now on
+     */
+    public Mode onResult(String address, long now) {
+        mResults++;
+        if (mSeen.add(address)) {
+            mLastNewDeviceTime = now;
+            if (mAdaptive && mMode != Mode.LOW_LATENCY) {
+                setMode(Mode.values()[mMode.ordinal() - 1], now);
+            }
+        }
+        return mMode;
+    }
+
+    /**
+     * Step the mode down if the set of devices has been stable for long enough, or make
+     * a mode change that was held back once there is room for it. This should be called
+     * periodically while scanning.
+     *
+     * @param now current time
+     * @return the mode to scan with from now on
+     */
+    public Mode update(long now) {
+        if (mPending != null) {
+            setMode(mPending, now);
+            return mMode;
+        }
+        if (mAdaptive && mMode != Mode.LOW_POWER
+                && now - mModeStartTime >= MIN_MODE_TIME
+                && now - mLastNewDeviceTime >= STABLE_TIME) {
+            setMode(Mode.values()[mMode.ordinal() + 1], now);
+        }
+        return mMode;
+    }
+
+    private void setMode(Mode mode, long now) {
+        if (mode == mMode) {
+            mPending = null;
+        } else if (getStarts(now) >= MAX_STARTS) {
+            if (mPending == null) {
+                mDeferred++;
+            }
+            mPending = mode;
+        } else {
+            mModeTime[mMode.ordinal()] += now - mModeStartTime;
+            mModeStartTime = now;
+            mMode = mode;
+            mModeChanges++;
+            mPending = null;
+            countStart(now);
+        }
+    }
+
+    private void countStart(long now) {
+        mStarts[mStartCount++ % MAX_STARTS] = now;
+    }
+
+    /**
+     * @param now current time
+     * @return number of scan starts in the last 30 s
+     */
+    public int getStarts(long now) {
+        int starts = 0;
+        for (int i = 0; i < Math.min(mStartCount, MAX_STARTS); i++) {
+            if (now - mStarts[i] < START_WINDOW) {
+                starts++;
+            }
+        }
+        return starts;
+    }
+
+    /**
+     * @return the current scan mode
+     */
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return number of scan results delivered. Each one wakes up the app.
+     */
+    public int getResults() {
+        return mResults;
+    }
+
+    /**
+     * @return number of times the scan had to be restarted to change mode
+     */
+    public int getModeChanges() {
+        return mModeChanges;
+    }
+
+    /**
+     * @return number of mode changes that were held back to stay under the scan start limit
+     */
+    public int getDeferred() {
+        return mDeferred;
+    }
+
+    /**
+     * @param mode the mode to look up
+     * @return time spent in the given mode in ms
+     */
+    public long getModeTime(Mode mode) {
+        return mModeTime[mode.ordinal()];
+    }
+
+    /**
+     * @return estimated time the radio was listening in ms
+     */
+    public long getRadioOnTime() {
+        double radioOnTime = 0;
+        for (Mode mode : Mode.values()) {
+            radioOnTime += mModeTime[mode.ordinal()] * DUTY_CYCLE[mode.ordinal()];
+        }
+        return Math.round(radioOnTime);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s scan: %d ms, %d results, %d mode changes (%d held back), radio on %d ms (%d/%d/%d ms low latency/balanced/low power)",
+                mAdaptive ? "Adaptive" : "Fixed", mStopTime - mStartTime, mResults, mModeChanges, mDeferred,
+                getRadioOnTime(), getModeTime(Mode.LOW_LATENCY), getModeTime(Mode.BALANCED),
+                getModeTime(Mode.LOW_POWER));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+/**
+ * Points to plot, as filled in by a {@link HistoryQuery}. The arrays are made once with
+ * the capacity and reused by every query, so they must not be kept between queries.
+ *
+ * Each point has a value and, when it stands for a bucket of readings, the lowest and
+ * highest reading in the bucket so that the chart can show the spread.
+ */
+public class Series {
+
+    private final long[] mTimes;
+    private final float[] mValues;
+    private final float[] mMins;
+    private final float[] mMaxs;
+    private int mCount;
+    private boolean mBuckets;
+
+    /**
+     * @param capacity most points the series can hold, usually the plot width in pixels
+     */
+    public Series(int capacity) {
+        mTimes = new long[capacity];
+        mValues = new float[capacity];
+        mMins = new float[capacity];
+        mMaxs = new float[capacity];
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return true if the points are buckets with a spread, false if they are readings
+     */
+    public boolean hasBuckets() {
+        return mBuckets;
+    }
+
+    public long[] getTimes() {
+        return mTimes;
+    }
+
+    public float[] getValues() {
+        return mValues;
+    }
+
+    public float[] getMins() {
+        return mMins;
+    }
+
+    public float[] getMaxs() {
+        return mMaxs;
+    }
+
+    void clear(boolean buckets) {
+        mCount = 0;
+        mBuckets = buckets;
+    }
+
+    void add(long time, float value, float min, float max) {
+        mTimes[mCount] = time;
+        mValues[mCount] = value;
+        mMins[mCount] = min;
+        mMaxs[mCount] = max;
+        mCount++;
+    }
+}
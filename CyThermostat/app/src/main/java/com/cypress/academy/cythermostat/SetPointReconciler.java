@@ -0,0 +1,226 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+/**
+ * Keeps the set point shown to the user in line with the one the thermostat confirms.
+ *
+ * A new set point is shown as soon as it is asked for, without waiting for the thermostat.
+ * The set point notifications from the thermostat then either confirm it or, while the
+ * writes are still under way, are passed over. If the requested set point has not been
+ * confirmed within the timeout it is sent again once, and if that does not work either
+ * the display goes back to what the thermostat says, for example because the firmware
+ * limited the set point to its range. Each notification that moves the set point closer
+ * to the request restarts the timeout, so a set point that is stepped a degree at a time
+ * over a slow link is given as long as it keeps moving.
+ *
+ * The time from a request to its confirmation is kept as a measure of how responsive the
+ * link is. All times are in ms.
+ */
+public class SetPointReconciler {
+
+    // What to do after check
+    public static final int NONE = 0;
+    public static final int RESEND = 1;
+    public static final int REVERT = 2;
+
+    private static final int MAX_RESENDS = 1;
+
+    private final long mTimeout;
+    private boolean mHaveConfirmed;
+    private int mConfirmed;
+    private int mDisplayed;
+    private boolean mPending;
+    private long mRequestTime;
+    private long mDeadline;
+    private int mResends;
+
+    // Confirmation statistics
+    private long mConfirmations;
+    private long mLatencySum;
+    private long mLastLatency;
+    private long mMaxLatency;
+    private long mCorrections;
+
+    /**
+     * @param timeout time to wait for a request to be confirmed before acting
+     */
+    public SetPointReconciler(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * Show a new set point straight away
+     *
+     * @param value the set point asked for
+     * @param now the current time
+     */
+    public synchronized void request(int value, long now) {
+        mDisplayed = value;
+        if (mHaveConfirmed && value == mConfirmed) {
+            // Back to where the thermostat already is
+            mPending = false;
+            return;
+        }
+        mPending = true;
+        mRequestTime = now;
+        mDeadline = now + mTimeout;
+        mResends = 0;
+    }
+
+    /**
+     * Handle a set point read from or notified by the thermostat
+     *
+     * @param value the set point of the thermostat
+     * @param now the current time
+     * @return true if the set point shown has changed
+     */
+    public synchronized boolean onConfirmed(int value, long now) {
+        boolean closer = mHaveConfirmed
+                && Math.abs(mDisplayed - value) < Math.abs(mDisplayed - mConfirmed);
+        mConfirmed = value;
+        mHaveConfirmed = true;
+        if (mPending) {
+            if (value != mDisplayed) {
+                // Still on its way
+                if (closer) {
+                    mDeadline = now + mTimeout;
+                }
+                return false;
+            }
+            mPending = false;
+            mLastLatency = now - mRequestTime;
+            mLatencySum += mLastLatency;
+            mMaxLatency = Math.max(mMaxLatency, mLastLatency);
+            mConfirmations++;
+            return false;
+        }
+        boolean changed = (value != mDisplayed);
+        mDisplayed = value;
+        return changed;
+    }
+
+    /**
+     * See if a request has gone unconfirmed for too long. This is called regularly while
+     * a request is pending.
+     *
+     * @param now the current time
+     * @return NONE, RESEND if the set point shown should be sent again, or REVERT if the
+     * set point shown has gone back to the one the thermostat has
+     */
+    public synchronized int check(long now) {
+        if (!mPending || now < mDeadline) {
+            return NONE;
+        }
+        if (mResends < MAX_RESENDS) {
+            mResends++;
+            mDeadline = now + mTimeout;
+            return RESEND;
+        }
+        mPending = false;
+        mDisplayed = mConfirmed;
+        mCorrections++;
+        return REVERT;
+    }
+
+    /**
+     * @return the set point to show the user
+     */
+    public synchronized int getDisplayed() {
+        return mDisplayed;
+    }
+
+    /**
+     * @return the last set point the thermostat reported
+     */
+    public synchronized int getConfirmed() {
+        return mConfirmed;
+    }
+
+    /**
+     * @return true once the thermostat has reported its set point
+     */
+    public synchronized boolean hasConfirmed() {
+        return mHaveConfirmed;
+    }
+
+    /**
+     * @return true while the set point shown has not been confirmed
+     */
+    public synchronized boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * Drop the request that is pending, for example when the connection is lost. The set
+     * point of the thermostat has to be reported again before it is relied on.
+     */
+    public synchronized void reset() {
+        mPending = false;
+        mDisplayed = mConfirmed;
+        mHaveConfirmed = false;
+    }
+
+    public synchronized long getConfirmations() {
+        return mConfirmations;
+    }
+
+    /**
+     * @return the time from the last confirmed request to its confirmation
+     */
+    public synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    /**
+     * @return the mean time from a request to its confirmation
+     */
+    public synchronized long getMeanLatency() {
+        return (mConfirmations == 0) ? 0 : mLatencySum / mConfirmations;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /**
+     * @return the number of times the set point shown had to go back to the thermostat's
+     */
+    public synchronized long getCorrections() {
+        return mCorrections;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Set point confirmations: %d, latency last %d mean %d max %d ms, corrections %d",
+                mConfirmations, mLastLatency, getMeanLatency(), mMaxLatency, mCorrections);
+    }
+}
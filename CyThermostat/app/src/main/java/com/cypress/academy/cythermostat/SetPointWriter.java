@@ -0,0 +1,232 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+/**
+ * Moves the thermostat set point to a target with as few BLE writes as possible.
+ *
+ * If the firmware lets the set temperature characteristic be written, the target is
+ * written to it directly. Otherwise the set point is stepped one degree at a time with
+ * presses (UP or DOWN followed by STOP) of the temperature change characteristic, which
+ * is how the buttons on the thermostat work.
+ *
+ * Only one write is in flight at a time and the next one is worked out when it completes,
+ * from the latest target. So a burst of target changes while the link is busy collapses
+ * into the writes for the net change, a change of mind cancels steps that have not been
+ * sent yet, and a write is never queued behind another one of the same characteristic
+ * with a different value.
+ */
+public class SetPointWriter {
+
+    // Values of the temperature change characteristic
+    public static final int CHANGE_STOP = 0;
+    public static final int CHANGE_UP = 1;
+    public static final int CHANGE_DOWN = 2;
+
+    /**
+     * Sends the writes. Each write must be followed by a call to onWriteDone. The writes
+     * are started with the writer's lock held, from whichever thread changed the target or
+     * reported a completion, so the link must queue them safely across threads and must
+     * not call back into the writer.
+     */
+    public interface Link {
+        /**
+         * Write the set temperature characteristic
+         *
+         * @param value the set point
+         */
+        void writeSetPoint(int value);
+
+        /**
+         * Write the temperature change characteristic
+         *
+         * @param change CHANGE_UP, CHANGE_DOWN or CHANGE_STOP
+         */
+        void writeChange(int change);
+    }
+
+    private final Link mLink;
+    private boolean mAbsolute;
+
+    private boolean mHaveTarget;
+    private int mTarget;
+    // What the set point is once the writes done so far have taken effect
+    private int mSetPoint;
+    private boolean mInFlight;
+    // Value of the absolute write in flight
+    private int mWriting;
+    // Direction of the button that is pressed (1 or -1) or 0 if none is
+    private int mPressed;
+    private boolean mPressDone;
+    private long mWrites;
+
+    /**
+     * @param link sends the writes
+     */
+    public SetPointWriter(Link link) {
+        mLink = link;
+    }
+
+    /**
+     * @param absolute true if the set temperature characteristic can be written
+     */
+    public synchronized void setAbsolute(boolean absolute) {
+        mAbsolute = absolute;
+    }
+
+    public synchronized boolean isAbsolute() {
+        return mAbsolute;
+    }
+
+    /**
+     * Move the set point to a target. Any target that has not been reached yet is replaced.
+     *
+     * @param target the set point wanted
+     */
+    public synchronized void setTarget(int target) {
+        mTarget = target;
+        mHaveTarget = true;
+        next();
+    }
+
+    /**
+     * @return the target, or the set point if there is no target
+     */
+    public synchronized int getTarget() {
+        return mHaveTarget ? mTarget : mSetPoint;
+    }
+
+    /**
+     * @return true while the set point is being moved to the target
+     */
+    public synchronized boolean isBusy() {
+        return mInFlight || mPressed != 0 || (mHaveTarget && mSetPoint != mTarget);
+    }
+
+    /**
+     * Handle the set point read from or notified by the thermostat. It is only taken as
+     * the starting point when no writes are under way, since it lags behind them.
+     *
+     * @param value the set point of the thermostat
+     */
+    public synchronized void onSetPoint(int value) {
+        if (!mInFlight && mPressed == 0) {
+            mSetPoint = value;
+            next();
+        }
+    }
+
+    /**
+     * Handle the completion of a write
+     *
+     * @param success true if the write worked
+     */
+    public synchronized void onWriteDone(boolean success) {
+        if (!mInFlight) {
+            return;
+        }
+        mInFlight = false;
+        if (mPressed != 0) {
+            if (!mPressDone) {
+                // The button press has been sent, so the thermostat has taken a step
+                mPressDone = true;
+                if (success) {
+                    mSetPoint += mPressed;
+                }
+            } else {
+                mPressed = 0; // released
+            }
+        } else if (success) {
+            mSetPoint = mWriting;
+        } else {
+            // The firmware does not take the set point after all, so step instead
+            mAbsolute = false;
+        }
+        next();
+    }
+
+    /**
+     * Forget the target. A button that is pressed is still let go of, so the thermostat
+     * is left with the button up.
+     */
+    public synchronized void clearTarget() {
+        mHaveTarget = false;
+    }
+
+    /**
+     * Forget the target and any writes in flight, for example when the connection is lost
+     */
+    public synchronized void reset() {
+        mHaveTarget = false;
+        mInFlight = false;
+        mPressed = 0;
+    }
+
+    /**
+     * @return the number of writes sent
+     */
+    public synchronized long getWrites() {
+        return mWrites;
+    }
+
+    /**
+     * Send the next write if there is one to send and nothing is in flight
+     */
+    private void next() {
+        if (mInFlight) {
+            return;
+        }
+        if (mPressed != 0) {
+            // Let go of the button
+            mInFlight = true;
+            mWrites++;
+            mLink.writeChange(CHANGE_STOP);
+            return;
+        }
+        if (!mHaveTarget) {
+            return;
+        }
+        if (mSetPoint == mTarget) {
+            mHaveTarget = false; // done
+            return;
+        }
+        mInFlight = true;
+        mWrites++;
+        if (mAbsolute) {
+            mWriting = mTarget;
+            mLink.writeSetPoint(mTarget);
+        } else {
+            mPressed = (mTarget > mSetPoint) ? 1 : -1;
+            mPressDone = false;
+            mLink.writeChange((mPressed > 0) ? CHANGE_UP : CHANGE_DOWN);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+Copyright (c) 2016, Cypress Semiconductor Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+For more information on Cypress BLE products visit:
+http://www.cypress.com/products/bluetooth-low-energy-ble
+ */
+
+package com.cypress.academy.cythermostat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only store of one series of timestamped 16 bit readings, such as the measured
+ * temperature.
+ *
+ * The samples are kept in a directory of fixed size segment files that are memory mapped,
+ * so appending is a few byte writes to memory and the operating system writes the pages
+ * out. Each sample is stored as the change in time (ms) and the change in value from the
+ * sample before it, both as variable length integers, followed by a check byte. A reading
+ * a minute that does not change takes 5 bytes, so a year of them fits in under 3 MB.
+ *
+ * Each segment starts with a header that holds the time and value the deltas start from,
+ * so every segment can be read on its own. A full segment is sealed by writing its sample
+ * count, end and last sample into the header, and a new one is started. When there are
+ * more segments than the limit the oldest is deleted.
+ *
+ * Opening the store reads the headers of the sealed segments and decodes only the last
+ * segment, to find where its samples end. The end of the file is zero filled, and a
+ * sample that was only partly written when the app or phone died fails its check byte,
+ * so the store carries on from the last whole sample and clears anything after it.
+ *
+ * Times must not go backwards. A sample older than the last one is stored at the time of
+ * the last one.
+ */
+public class TimeSeriesStore {
+
+    private static final String SUFFIX = ".seg";
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 32;
+
+    // Header layout
+    private static final int MAGIC = 0x43795453; // "CyTS"
+    private static final int VERSION = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SEALED_OFFSET = 5;
+    private static final int BASE_TIME_OFFSET = 8;
+    private static final int BASE_VALUE_OFFSET = 16;
+    private static final int COUNT_OFFSET = 20;
+    private static final int END_OFFSET = 24;
+    private static final int LAST_VALUE_OFFSET = 28;
+    private static final int LAST_TIME_OFFSET = 32;
+    private static final int FIRST_TIME_OFFSET = 40;
+    private static final int HEADER_SIZE = 64;
+
+    // Longest sample: a 64 bit and a 32 bit varint and the check byte
+    private static final int MAX_RECORD = 10 + 5 + 1;
+
+    /**
+     * Receives the samples read from the store
+     */
+    public interface Visitor {
+        /**
+         * @param time time of the sample in ms
+         * @param value the reading
+         */
+        void sample(long time, int value);
+    }
+
+    /**
+     * One segment file. Only the last segment is written to.
+     */
+    private static class Segment {
+        final File mFile;
+        final long mSequence;
+        ByteBuffer mBuffer;
+        long mBaseTime;
+        int mBaseValue;
+        long mFirstTime;
+        long mLastTime;
+        int mLastValue;
+        int mCount;
+        int mEnd;
+
+        Segment(File file, long sequence) {
+            mFile = file;
+            mSequence = sequence;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final List<Segment> mSegments = new ArrayList<>();
+    private Segment mTail;
+    private long mCount;
+    private long mRecovered;
+    private int mDecoded;
+
+    /**
+     * Open a store with the default segment size and count
+     *
+     * @param directory directory for the segment files. It is made if it does not exist.
+     * @throws IOException if the store cannot be opened
+     */
+    public TimeSeriesStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Open a store
+     *
+     * @param directory directory for the segment files. It is made if it does not exist.
+     * @param segmentSize size of each segment file in bytes
+     * @param maxSegments most segments to keep. The oldest is deleted when there are more.
+     * @throws IOException if the store cannot be opened
+     */
+    public TimeSeriesStore(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < HEADER_SIZE + MAX_RECORD || maxSegments < 1) {
+            throw new IllegalArgumentException("Segments too small or too few");
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot make " + directory);
+        }
+        open();
+    }
+
+    /**
+     * Find the segments, read their headers and recover the end of the last one
+     */
+    private void open() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + mDirectory);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(file, sequence);
+            segment.mBuffer = map(file);
+            if (segment.mBuffer.getInt(MAGIC_OFFSET) != MAGIC || segment.mBuffer.get(VERSION_OFFSET) != VERSION) {
+                continue; // not a segment, or one whose header was never finished
+            }
+            readHeader(segment);
+            mSegments.add(segment);
+        }
+        // Only the last segment is written to. Any other one that was not sealed is from
+        // a crash during rotation.
+        for (int i = 0; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            if (segment.mBuffer.get(SEALED_OFFSET) == 0) {
+                recover(segment);
+                if (i < mSegments.size() - 1) {
+                    seal(segment);
+                }
+            }
+            mCount += segment.mCount;
+        }
+        if (mSegments.isEmpty()) {
+            mTail = create(0, 0, 0);
+        } else {
+            mTail = mSegments.get(mSegments.size() - 1);
+            if (mTail.mBuffer.get(SEALED_OFFSET) != 0) {
+                mTail = create(mTail.mSequence + 1, mTail.mLastTime, mTail.mLastValue);
+            }
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                raf.setLength(mSegmentSize); // a new segment, which is zero filled
+            }
+            // Map an existing file at the size it was made with
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+    }
+
+    private static void readHeader(Segment segment) {
+        ByteBuffer buffer = segment.mBuffer;
+        segment.mBaseTime = buffer.getLong(BASE_TIME_OFFSET);
+        segment.mBaseValue = buffer.getInt(BASE_VALUE_OFFSET);
+        segment.mCount = buffer.getInt(COUNT_OFFSET);
+        segment.mEnd = buffer.getInt(END_OFFSET);
+        segment.mLastValue = buffer.getInt(LAST_VALUE_OFFSET);
+        segment.mLastTime = buffer.getLong(LAST_TIME_OFFSET);
+        segment.mFirstTime = buffer.getLong(FIRST_TIME_OFFSET);
+    }
+
+    /**
+     * Decode an unsealed segment to find its last whole sample, then clear anything after it
+     */
+    private void recover(final Segment segment) {
+        segment.mCount = 0;
+        segment.mLastTime = segment.mBaseTime;
+        segment.mLastValue = segment.mBaseValue;
+        segment.mEnd = decode(segment, segment.mBuffer.capacity(), Long.MIN_VALUE, Long.MAX_VALUE, new Visitor() {
+            @Override
+            public void sample(long time, int value) {
+                if (segment.mCount == 0) {
+                    segment.mFirstTime = time;
+                }
+                segment.mCount++;
+                segment.mLastTime = time;
+                segment.mLastValue = value;
+            }
+        });
+        ByteBuffer buffer = segment.mBuffer;
+        int cleared = 0;
+        for (int i = segment.mEnd; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                cleared++;
+            }
+        }
+        mRecovered += cleared;
+    }
+
+    /**
+     * Start a new segment
+     *
+     * @param sequence number of the segment, which orders the segment files
+     * @param baseTime time the first delta is from
+     * @param baseValue value the first delta is from
+     * @return the segment
+     */
+    private Segment create(long sequence, long baseTime, int baseValue) throws IOException {
+        File file = new File(mDirectory, String.format("%019d%s", sequence, SUFFIX));
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        Segment segment = new Segment(file, sequence);
+        segment.mBuffer = map(file);
+        ByteBuffer buffer = segment.mBuffer;
+        buffer.putLong(BASE_TIME_OFFSET, baseTime);
+        buffer.putInt(BASE_VALUE_OFFSET, baseValue);
+        buffer.put(VERSION_OFFSET, (byte) VERSION);
+        // The magic number goes last so a half made header is not taken for a segment
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        segment.mBaseTime = baseTime;
+        segment.mBaseValue = baseValue;
+        segment.mLastTime = baseTime;
+        segment.mLastValue = baseValue;
+        segment.mEnd = HEADER_SIZE;
+        mSegments.add(segment);
+        // Keep to the limit on the number of segments
+        while (mSegments.size() > mMaxSegments) {
+            Segment oldest = mSegments.remove(0);
+            mCount -= oldest.mCount;
+            oldest.mBuffer = null;
+            if (!oldest.mFile.delete()) {
+                throw new IOException("Cannot delete " + oldest.mFile);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Write the summary of a full segment into its header and mark it sealed
+     */
+    private static void seal(Segment segment) {
+        ByteBuffer buffer = segment.mBuffer;
+        buffer.putInt(COUNT_OFFSET, segment.mCount);
+        buffer.putInt(END_OFFSET, segment.mEnd);
+        buffer.putInt(LAST_VALUE_OFFSET, segment.mLastValue);
+        buffer.putLong(LAST_TIME_OFFSET, segment.mLastTime);
+        buffer.putLong(FIRST_TIME_OFFSET, segment.mFirstTime);
+        buffer.put(SEALED_OFFSET, (byte) 1);
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param time time of the sample in ms
+     * @param value the reading. Only the low 16 bits are kept, as a signed value.
+     * @throws IOException if a new segment cannot be made
+     */
+    public synchronized void append(long time, int value) throws IOException {
+        value = (short) value;
+        Segment segment = mTail;
+        if (segment.mEnd + MAX_RECORD > segment.mBuffer.capacity()) {
+            seal(segment);
+            segment = create(segment.mSequence + 1, segment.mLastTime, segment.mLastValue);
+            mTail = segment;
+        }
+        time = Math.max(time, segment.mLastTime);
+        ByteBuffer buffer = segment.mBuffer;
+        int start = segment.mEnd;
+        int position = putVarLong(buffer, start, time - segment.mLastTime + 1);
+        position = putVarLong(buffer, position, zigZag(value - segment.mLastValue));
+        buffer.put(position, check(buffer, start, position));
+        segment.mEnd = position + 1;
+        if (segment.mCount == 0) {
+            segment.mFirstTime = time;
+        }
+        segment.mCount++;
+        segment.mLastTime = time;
+        segment.mLastValue = value;
+        mCount++;
+    }
+
+    /**
+     * Read the samples in a time range, oldest first
+     *
+     * @param from earliest time to read, in ms
+     * @param to latest time to read, in ms
+     * @param visitor receives the samples
+     * @return the number of samples read
+     */
+    public synchronized int read(long from, long to, Visitor visitor) {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            if (segment.mCount == 0 || segment.mLastTime < from || segment.mFirstTime > to) {
+                continue; // skipped using the header alone
+            }
+            decode(segment, segment.mEnd, from, to, visitor);
+            count += mDecoded;
+        }
+        return count;
+    }
+
+    /**
+     * Decode the samples of a segment. The number passed to the visitor is left in
+     * mDecoded.
+     *
+     * @param segment the segment
+     * @param limit offset to stop decoding at
+     * @param from earliest time to pass on
+     * @param to latest time to pass on. Decoding stops after it.
+     * @param visitor receives the samples in the range
+     * @return the offset just after the last whole sample
+     */
+    private int decode(Segment segment, int limit, long from, long to, Visitor visitor) {
+        ByteBuffer buffer = segment.mBuffer;
+        long time = segment.mBaseTime;
+        int value = segment.mBaseValue;
+        int[] position = { HEADER_SIZE };
+        mDecoded = 0;
+        while (position[0] < limit) {
+            int start = position[0];
+            long delta = getVarLong(buffer, position, limit);
+            if (delta <= 0) {
+                return start; // the zero fill, or a sample that was cut off
+            }
+            long change = getVarLong(buffer, position, limit);
+            if (change < 0 || position[0] >= limit || buffer.get(position[0]) != check(buffer, start, position[0])) {
+                return start;
+            }
+            position[0]++;
+            time += delta - 1;
+            value += (int) unZigZag(change);
+            if (time > to) {
+                return position[0];
+            }
+            if (time >= from) {
+                visitor.sample(time, value);
+                mDecoded++;
+            }
+        }
+        return position[0];
+    }
+
+    /**
+     * @return number of samples in the store
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return time of the oldest sample, or 0 if there are none
+     */
+    public synchronized long getFirstTime() {
+        for (Segment segment : mSegments) {
+            if (segment.mCount > 0) {
+                return segment.mFirstTime;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return time of the newest sample, or 0 if there are none
+     */
+    public synchronized long getLastTime() {
+        return (mCount == 0) ? 0 : mTail.mLastTime;
+    }
+
+    /**
+     * @return the newest reading, or 0 if there are none
+     */
+    public synchronized int getLastValue() {
+        return (mCount == 0) ? 0 : mTail.mLastValue;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * @return bytes used by the samples, not counting the headers and unused space
+     */
+    public synchronized long getDataSize() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.mEnd - HEADER_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * @return number of bytes of partly written samples cleared when the store was opened
+     */
+    public synchronized long getRecovered() {
+        return mRecovered;
+    }
+
+    /**
+     * Make sure the samples so far are written to storage
+     */
+    public synchronized void flush() {
+        if (mTail.mBuffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) mTail.mBuffer).force();
+        }
+    }
+
+    /**
+     * Write out the samples and let go of the segments. The store cannot be used after.
+     */
+    public synchronized void close() {
+        flush();
+        mSegments.clear();
+    }
+
+    /**
+     * Read a variable length integer
+     *
+     * @param buffer the buffer
+     * @param position offset to read from, moved past the integer
+     * @param limit offset the integer must end before
+     * @return the integer, or -1 if it runs past the limit or is too long
+     */
+    private static long getVarLong(ByteBuffer buffer, int[] position, int limit) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= limit) {
+                return -1;
+            }
+            byte b = buffer.get(position[0]++);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static int putVarLong(ByteBuffer buffer, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put(position++, (byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(position++, (byte) value);
+        return position;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return the check byte of a sample, which is never 0 so that a sample cut off by
+     * the zero fill fails it
+     */
+    private static byte check(ByteBuffer buffer, int start, int end) {
+        int hash = 0x5a;
+        for (int i = start; i < end; i++) {
+            hash = (hash * 31 + (buffer.get(i) & 0xff)) & 0xff;
+        }
+        return (byte) ((hash == 0) ? 1 : hash);
+    }
+}
@@ -0,0 +1,144 @@
+package com.cypress.academy.cythermostat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link HistoryQuery}, using a temporary directory.
+ */
+public class HistoryQueryTest {
+
+    private static final long MINUTE = 60000;
+    private static final long DAY = 24 * 60 * MINUTE;
+    private static final long START = 1475280000000L; // 1 Oct 2016
+
+    private File mDirectory;
+
+    @Before
+    public void makeDirectory() throws IOException {
+        mDirectory = File.createTempFile("history", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * A daily swing of the temperature in tenths of a degree
+     */
+    private static int temperature(int minute) {
+        return 200 + (int) Math.round(30 * Math.sin(2 * Math.PI * minute / (24 * 60)));
+    }
+
+    private HistoryQuery fill(int minutes) throws IOException {
+        HistoryQuery query = new HistoryQuery(new TimeSeriesStore(mDirectory));
+        for (int i = 0; i < minutes; i++) {
+            query.append(START + i * MINUTE, temperature(i));
+        }
+        return query;
+    }
+
+    @Test
+    public void shortRangeGivesReadings() throws Exception {
+        HistoryQuery query = fill(100);
+        Series series = new Series(200);
+        assertEquals(100, query.query(START, START + DAY, series));
+        assertFalse(series.hasBuckets());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(START + i * MINUTE, series.getTimes()[i]);
+            assertEquals(temperature(i), series.getValues()[i], 0);
+            assertEquals(temperature(i), series.getMins()[i], 0);
+            assertEquals(temperature(i), series.getMaxs()[i], 0);
+        }
+        assertEquals(11, query.query(START + 10 * MINUTE, START + 20 * MINUTE, series));
+        assertEquals(0, query.query(START + DAY, START + 2 * DAY, series));
+    }
+
+    @Test
+    public void downsamplesToWidth() throws Exception {
+        HistoryQuery query = fill(1000);
+        Series series = new Series(100);
+        assertEquals(100, query.query(START, START + DAY, series));
+        assertFalse(series.hasBuckets());
+        assertEquals(START, series.getTimes()[0]);
+        assertEquals(START + 999 * MINUTE, series.getTimes()[99]);
+    }
+
+    @Test
+    public void longRangeGivesBuckets() throws Exception {
+        HistoryQuery query = fill(30 * 24 * 60);
+        Series series = new Series(300);
+        int count = query.query(START, START + 30 * DAY, series);
+        assertTrue(series.hasBuckets());
+        assertTrue(count > 100 && count <= 300);
+        float lowest = Float.MAX_VALUE;
+        float highest = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            assertTrue(series.getMins()[i] <= series.getValues()[i]);
+            assertTrue(series.getValues()[i] <= series.getMaxs()[i]);
+            if (i > 0) {
+                assertTrue(series.getTimes()[i] > series.getTimes()[i - 1]);
+            }
+            lowest = Math.min(lowest, series.getMins()[i]);
+            highest = Math.max(highest, series.getMaxs()[i]);
+        }
+        assertEquals(170, lowest, 0);
+        assertEquals(230, highest, 0);
+    }
+
+    @Test
+    public void rebuildsRollupsFromStore() throws Exception {
+        HistoryQuery query = fill(10 * 24 * 60);
+        Series before = new Series(50);
+        int count = query.query(START, START + 10 * DAY, before);
+        query.getStore().close();
+
+        HistoryQuery reopened = new HistoryQuery(new TimeSeriesStore(mDirectory));
+        Series after = new Series(50);
+        assertEquals(count, reopened.query(START, START + 10 * DAY, after));
+        for (int i = 0; i < count; i++) {
+            assertEquals(before.getTimes()[i], after.getTimes()[i]);
+            assertEquals(before.getValues()[i], after.getValues()[i], 0);
+        }
+        reopened.getStore().close();
+    }
+
+    @Test
+    public void queriesAYearQuickly() throws Exception {
+        HistoryQuery query = fill(365 * 24 * 60);
+        Series series = new Series(1080);
+        long[] spans = { 60 * MINUTE, DAY, 7 * DAY, 30 * DAY, 365 * DAY };
+        // Warm up, then time every span from a few places in the year
+        for (long span : spans) {
+            query.query(START, START + span, series);
+        }
+        int queries = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            for (long span : spans) {
+                long from = START + i * (365 * DAY - span) / 10;
+                assertTrue(query.query(from, from + span, series) > 0);
+                queries++;
+            }
+        }
+        long mean = (System.nanoTime() - start) / queries / 1000000;
+        // Single digit milliseconds on a phone, with room for a slow build machine
+        assertTrue("mean query took " + mean + " ms", mean < 20);
+        query.getStore().close();
+    }
+}
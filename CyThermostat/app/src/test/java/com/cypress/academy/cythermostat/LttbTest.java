@@ -0,0 +1,52 @@
+package com.cypress.academy.cythermostat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link Lttb}.
+ */
+public class LttbTest {
+
+    @Test
+    public void keepsAllPointsUnderThreshold() {
+        long[] times = { 0, 10, 20, 30 };
+        float[] values = { 1, 2, 3, 4 };
+        long[] outTimes = new long[10];
+        float[] outValues = new float[10];
+        assertEquals(4, Lttb.downsample(times, values, 4, 10, outTimes, outValues));
+        assertEquals(30, outTimes[3]);
+        assertEquals(4, outValues[3], 0);
+    }
+
+    @Test
+    public void keepsEndsAndPeaks() {
+        int count = 10000;
+        long[] times = new long[count];
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = 1000L * i;
+            values[i] = (float) Math.sin(i / 500.0);
+        }
+        values[1234] = 50;
+        values[7777] = -50;
+        long[] outTimes = new long[100];
+        float[] outValues = new float[100];
+        int kept = Lttb.downsample(times, values, count, 100, outTimes, outValues);
+        assertEquals(100, kept);
+        assertEquals(0, outTimes[0]);
+        assertEquals(times[count - 1], outTimes[kept - 1]);
+        boolean high = false;
+        boolean low = false;
+        for (int i = 0; i < kept; i++) {
+            if (i > 0) {
+                assertTrue(outTimes[i] > outTimes[i - 1]);
+            }
+            high |= outValues[i] == 50;
+            low |= outValues[i] == -50;
+        }
+        assertTrue(high);
+        assertTrue(low);
+    }
+}
@@ -0,0 +1,100 @@
+package com.cypress.academy.cythermostat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SetPointReconciler}.
+ */
+public class SetPointReconcilerTest {
+
+    @Test
+    public void showsRequestUntilConfirmed() throws Exception {
+        SetPointReconciler reconciler = new SetPointReconciler(3000);
+        assertFalse(reconciler.hasConfirmed());
+        assertTrue(reconciler.onConfirmed(20, 0));
+        assertTrue(reconciler.hasConfirmed());
+        assertEquals(20, reconciler.getDisplayed());
+
+        reconciler.request(23, 1000);
+        assertEquals(23, reconciler.getDisplayed());
+        assertTrue(reconciler.isPending());
+        // The steps on the way are not shown
+        assertFalse(reconciler.onConfirmed(21, 1200));
+        assertFalse(reconciler.onConfirmed(22, 1400));
+        assertEquals(23, reconciler.getDisplayed());
+        assertFalse(reconciler.onConfirmed(23, 1600));
+        assertFalse(reconciler.isPending());
+        assertEquals(1, reconciler.getConfirmations());
+        assertEquals(600, reconciler.getLastLatency());
+        assertEquals(SetPointReconciler.NONE, reconciler.check(10000));
+    }
+
+    @Test
+    public void latencyIsFromLastRequest() throws Exception {
+        SetPointReconciler reconciler = new SetPointReconciler(3000);
+        reconciler.onConfirmed(20, 0);
+        reconciler.request(21, 100);
+        reconciler.request(22, 300);
+        reconciler.onConfirmed(22, 500);
+        reconciler.request(23, 1000);
+        reconciler.onConfirmed(23, 1400);
+        assertEquals(2, reconciler.getConfirmations());
+        assertEquals(300, reconciler.getMeanLatency());
+        assertEquals(400, reconciler.getMaxLatency());
+        // Asking for what the thermostat already has needs no confirmation
+        reconciler.request(23, 2000);
+        assertFalse(reconciler.isPending());
+    }
+
+    @Test
+    public void resendsThenReverts() throws Exception {
+        SetPointReconciler reconciler = new SetPointReconciler(3000);
+        reconciler.onConfirmed(30, 0);
+        // The firmware will not go above 30
+        reconciler.request(31, 1000);
+        assertEquals(SetPointReconciler.NONE, reconciler.check(3500));
+        assertEquals(SetPointReconciler.RESEND, reconciler.check(4000));
+        assertEquals(31, reconciler.getDisplayed());
+        assertEquals(SetPointReconciler.NONE, reconciler.check(6500));
+        assertEquals(SetPointReconciler.REVERT, reconciler.check(7000));
+        assertEquals(30, reconciler.getDisplayed());
+        assertFalse(reconciler.isPending());
+        assertEquals(1, reconciler.getCorrections());
+        assertEquals(0, reconciler.getConfirmations());
+    }
+
+    @Test
+    public void stepsTowardsRequestGiveMoreTime() throws Exception {
+        SetPointReconciler reconciler = new SetPointReconciler(3000);
+        reconciler.onConfirmed(10, 0);
+        // Stepped a degree every 2 s over a slow link
+        reconciler.request(15, 1000);
+        for (int step = 1; step < 5; step++) {
+            reconciler.onConfirmed(10 + step, 1000 + 2000 * step);
+            assertEquals(SetPointReconciler.NONE, reconciler.check(2000 + 2000 * step));
+        }
+        reconciler.onConfirmed(15, 11000);
+        assertFalse(reconciler.isPending());
+        assertEquals(0, reconciler.getCorrections());
+        // A step the wrong way does not
+        reconciler.request(18, 12000);
+        reconciler.onConfirmed(14, 14000);
+        assertEquals(SetPointReconciler.RESEND, reconciler.check(15000));
+    }
+
+    @Test
+    public void followsThermostatWhenNothingPending() throws Exception {
+        SetPointReconciler reconciler = new SetPointReconciler(3000);
+        reconciler.onConfirmed(20, 0);
+        // Changed with the buttons on the thermostat
+        assertTrue(reconciler.onConfirmed(18, 100));
+        assertEquals(18, reconciler.getDisplayed());
+        reconciler.request(25, 200);
+        reconciler.reset();
+        assertEquals(18, reconciler.getDisplayed());
+        assertFalse(reconciler.isPending());
+        assertFalse(reconciler.hasConfirmed());
+    }
+}
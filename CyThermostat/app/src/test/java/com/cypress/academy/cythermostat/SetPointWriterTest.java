@@ -0,0 +1,167 @@
+package com.cypress.academy.cythermostat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SetPointWriter} against a thermostat that steps once per press.
+ */
+public class SetPointWriterTest {
+
+    /**
+     * Acts like the thermostat firmware. Writes are completed one at a time by ack().
+     */
+    private static class Thermostat implements SetPointWriter.Link {
+        SetPointWriter mWriter;
+        int mSetPoint = 20;
+        int mChange = SetPointWriter.CHANGE_STOP;
+        boolean mAcceptSetPoint = true;
+        boolean mPending;
+        boolean mSuccess;
+        int mWrites;
+
+        @Override
+        public void writeSetPoint(int value) {
+            assertFalse(mPending);
+            mPending = true;
+            mWrites++;
+            mSuccess = mAcceptSetPoint;
+            if (mAcceptSetPoint) {
+                mSetPoint = value;
+            }
+        }
+
+        @Override
+        public void writeChange(int change) {
+            assertFalse(mPending);
+            mPending = true;
+            mWrites++;
+            mSuccess = true;
+            // The firmware steps when a button goes down
+            if (mChange == SetPointWriter.CHANGE_STOP && change == SetPointWriter.CHANGE_UP) {
+                mSetPoint++;
+            } else if (mChange == SetPointWriter.CHANGE_STOP && change == SetPointWriter.CHANGE_DOWN) {
+                mSetPoint--;
+            }
+            mChange = change;
+        }
+
+        boolean ack() {
+            if (!mPending) {
+                return false;
+            }
+            mPending = false;
+            mWriter.onWriteDone(mSuccess);
+            return true;
+        }
+
+        void run() {
+            while (ack()) {
+                // keep going until the writer is done
+            }
+        }
+    }
+
+    private static Thermostat newThermostat(boolean absolute) {
+        Thermostat thermostat = new Thermostat();
+        thermostat.mWriter = new SetPointWriter(thermostat);
+        thermostat.mWriter.setAbsolute(absolute);
+        thermostat.mWriter.onSetPoint(thermostat.mSetPoint);
+        return thermostat;
+    }
+
+    @Test
+    public void absoluteWriteIsOneOperation() throws Exception {
+        Thermostat thermostat = newThermostat(true);
+        thermostat.mWriter.setTarget(30);
+        thermostat.run();
+        assertEquals(30, thermostat.mSetPoint);
+        assertEquals(1, thermostat.mWrites);
+        assertFalse(thermostat.mWriter.isBusy());
+    }
+
+    @Test
+    public void burstCollapsesToLatestTarget() throws Exception {
+        Thermostat thermostat = newThermostat(true);
+        for (int target = 21; target <= 30; target++) {
+            thermostat.mWriter.setTarget(target);
+        }
+        thermostat.run();
+        assertEquals(30, thermostat.mSetPoint);
+        // The first write went straight out and the other nine became one
+        assertEquals(2, thermostat.mWrites);
+        assertEquals(2, thermostat.mWriter.getWrites());
+    }
+
+    @Test
+    public void stepsWhenSetPointIsReadOnly() throws Exception {
+        Thermostat thermostat = newThermostat(false);
+        thermostat.mWriter.setTarget(17);
+        assertTrue(thermostat.mWriter.isBusy());
+        assertEquals(17, thermostat.mWriter.getTarget());
+        thermostat.run();
+        assertEquals(17, thermostat.mSetPoint);
+        assertEquals(SetPointWriter.CHANGE_STOP, thermostat.mChange);
+        // A press and a release for each degree
+        assertEquals(6, thermostat.mWrites);
+        assertFalse(thermostat.mWriter.isBusy());
+    }
+
+    @Test
+    public void changeOfMindCancelsSteps() throws Exception {
+        Thermostat thermostat = newThermostat(false);
+        // Ten presses of the up button, then three of down, before the link catches up
+        for (int i = 0; i < 10; i++) {
+            thermostat.mWriter.setTarget(thermostat.mWriter.getTarget() + 1);
+        }
+        thermostat.ack();
+        for (int i = 0; i < 3; i++) {
+            thermostat.mWriter.setTarget(thermostat.mWriter.getTarget() - 1);
+        }
+        thermostat.run();
+        assertEquals(27, thermostat.mSetPoint);
+        assertEquals(14, thermostat.mWrites);
+    }
+
+    @Test
+    public void clearingTargetStillLetsGoOfButton() throws Exception {
+        Thermostat thermostat = newThermostat(false);
+        thermostat.mWriter.setTarget(25);
+        // UP is in flight when the target is given up
+        thermostat.mWriter.clearTarget();
+        thermostat.run();
+        assertEquals(21, thermostat.mSetPoint);
+        assertEquals(SetPointWriter.CHANGE_STOP, thermostat.mChange);
+        assertEquals(2, thermostat.mWrites);
+        assertFalse(thermostat.mWriter.isBusy());
+    }
+
+    @Test
+    public void fallsBackToStepsIfWriteRejected() throws Exception {
+        Thermostat thermostat = newThermostat(true);
+        thermostat.mAcceptSetPoint = false;
+        thermostat.mWriter.setTarget(22);
+        thermostat.run();
+        assertFalse(thermostat.mWriter.isAbsolute());
+        assertEquals(22, thermostat.mSetPoint);
+        assertEquals(5, thermostat.mWrites);
+    }
+
+    @Test
+    public void followsThermostatWhenIdle() throws Exception {
+        Thermostat thermostat = newThermostat(false);
+        // Someone used the buttons on the thermostat
+        thermostat.mWriter.onSetPoint(25);
+        assertEquals(25, thermostat.mWriter.getTarget());
+        thermostat.mSetPoint = 25;
+        thermostat.mWriter.setTarget(26);
+        thermostat.run();
+        assertEquals(26, thermostat.mSetPoint);
+        assertEquals(2, thermostat.mWrites);
+        // A lost connection forgets the write in flight
+        thermostat.mWriter.setTarget(30);
+        thermostat.mWriter.reset();
+        assertFalse(thermostat.mWriter.isBusy());
+    }
+}
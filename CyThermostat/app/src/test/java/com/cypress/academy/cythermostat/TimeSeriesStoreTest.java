@@ -0,0 +1,182 @@
+package com.cypress.academy.cythermostat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TimeSeriesStore}, using a temporary directory.
+ */
+public class TimeSeriesStoreTest {
+
+    private static final long MINUTE = 60000;
+    private static final long START = 1475280000000L; // 1 Oct 2016
+
+    private File mDirectory;
+
+    /**
+     * Collects the samples read from a store
+     */
+    private static class Samples implements TimeSeriesStore.Visitor {
+        final List<Long> mTimes = new ArrayList<>();
+        final List<Integer> mValues = new ArrayList<>();
+
+        @Override
+        public void sample(long time, int value) {
+            mTimes.add(time);
+            mValues.add(value);
+        }
+    }
+
+    @Before
+    public void makeDirectory() throws IOException {
+        mDirectory = File.createTempFile("series", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory);
+        int[] values = { 215, 216, 216, -40, 32767, -32768, 0 };
+        for (int i = 0; i < values.length; i++) {
+            store.append(START + i * MINUTE, values[i]);
+        }
+        // Only 16 bits are kept
+        store.append(START + 7 * MINUTE, 0x12345);
+        assertEquals(8, store.getCount());
+        assertEquals(START, store.getFirstTime());
+        assertEquals(START + 7 * MINUTE, store.getLastTime());
+        assertEquals(0x2345, store.getLastValue());
+
+        Samples samples = new Samples();
+        assertEquals(8, store.read(Long.MIN_VALUE, Long.MAX_VALUE, samples));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(START + i * MINUTE, (long) samples.mTimes.get(i));
+            assertEquals(values[i], (int) samples.mValues.get(i));
+        }
+        samples = new Samples();
+        assertEquals(3, store.read(START + 2 * MINUTE, START + 4 * MINUTE, samples));
+        assertEquals(216, (int) samples.mValues.get(0));
+        store.close();
+    }
+
+    @Test
+    public void timeDoesNotGoBackwards() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory);
+        store.append(START, 1);
+        store.append(START - MINUTE, 2);
+        Samples samples = new Samples();
+        store.read(Long.MIN_VALUE, Long.MAX_VALUE, samples);
+        assertEquals(START, (long) samples.mTimes.get(1));
+        store.close();
+    }
+
+    @Test
+    public void monthOfMinutesIsSmall() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory);
+        int samples = 30 * 24 * 60;
+        for (int i = 0; i < samples; i++) {
+            // A slow daily swing
+            store.append(START + i * MINUTE, 200 + (int) (20 * Math.sin(i * 2 * Math.PI / 1440)));
+        }
+        assertEquals(samples, store.getCount());
+        assertTrue(store.getDataSize() < 5 * samples + 16);
+        store.close();
+    }
+
+    @Test
+    public void reopensWhereItLeftOff() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory, 4096, 8);
+        for (int i = 0; i < 2000; i++) {
+            store.append(START + i * MINUTE, i % 100);
+        }
+        int segments = store.getSegmentCount();
+        assertTrue(segments > 1);
+        store.close();
+
+        store = new TimeSeriesStore(mDirectory, 4096, 8);
+        assertEquals(2000, store.getCount());
+        assertEquals(segments, store.getSegmentCount());
+        assertEquals(START + 1999 * MINUTE, store.getLastTime());
+        assertEquals(99, store.getLastValue());
+        assertEquals(0, store.getRecovered());
+        store.append(START + 2000 * MINUTE, 7);
+        Samples samples = new Samples();
+        assertEquals(2001, store.read(Long.MIN_VALUE, Long.MAX_VALUE, samples));
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i % 100, (int) samples.mValues.get(i));
+        }
+        assertEquals(7, (int) samples.mValues.get(2000));
+        store.close();
+    }
+
+    @Test
+    public void recoversFromTornTail() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory, 4096, 8);
+        for (int i = 0; i < 10; i++) {
+            store.append(START + i * MINUTE, 100 + i);
+        }
+        long size = store.getDataSize();
+        store.close();
+
+        // Start a sample after the last one but stop part way through it
+        File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        file.seek(64 + size);
+        file.write(new byte[] { (byte) 0xe1, (byte) 0xd4, 0x03, 0x02 });
+        file.close();
+
+        store = new TimeSeriesStore(mDirectory, 4096, 8);
+        assertEquals(10, store.getCount());
+        assertEquals(4, store.getRecovered());
+        assertEquals(109, store.getLastValue());
+        store.append(START + 10 * MINUTE, 42);
+        store.close();
+        store = new TimeSeriesStore(mDirectory, 4096, 8);
+        assertEquals(11, store.getCount());
+        assertEquals(42, store.getLastValue());
+        assertEquals(0, store.getRecovered());
+        store.close();
+    }
+
+    @Test
+    public void oldSegmentsAreDropped() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(mDirectory, 1024, 3);
+        for (int i = 0; i < 5000; i++) {
+            store.append(START + i * MINUTE, i % 50);
+        }
+        assertEquals(3, store.getSegmentCount());
+        assertEquals(3, mDirectory.listFiles().length);
+        assertTrue(store.getCount() < 5000);
+        Samples samples = new Samples();
+        assertEquals(store.getCount(), store.read(Long.MIN_VALUE, Long.MAX_VALUE, samples));
+        // What is left runs up to the last sample without gaps
+        assertEquals(START + 4999 * MINUTE, (long) samples.mTimes.get(samples.mTimes.size() - 1));
+        assertEquals(store.getFirstTime(), (long) samples.mTimes.get(0));
+        for (int i = 1; i < samples.mTimes.size(); i++) {
+            assertEquals(MINUTE, samples.mTimes.get(i) - samples.mTimes.get(i - 1));
+        }
+        store.close();
+    }
+}